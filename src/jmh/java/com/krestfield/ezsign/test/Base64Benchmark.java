@@ -0,0 +1,116 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.msg.KBase64;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Base64;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Base64Benchmark
+ *
+ * Compares KBase64 with java.util.Base64, encoding and decoding byte arrays of 32 bytes to 64MB, and KBase64 in
+ * its parallel mode.  Also encoding into an offset in a larger buffer, as a text message is encoded, and
+ * decoding a string, as items of a text response are.  Built with the jmh profile, see the pom
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Fork(value = 1, jvmArgs = { "-Xms1g", "-Xmx1g" })
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+public class Base64Benchmark
+{
+    @Param({ "32", "1024", "65536", "1048576", "16777216", "67108864" })
+    public int size;
+
+    private byte[] m_data;
+    private byte[] m_encoded;
+    private String m_encodedString;
+    private byte[] m_message;
+
+    public static void main(String args[]) throws Exception
+    {
+        new Runner(new OptionsBuilder().include(Base64Benchmark.class.getSimpleName()).build()).run();
+    }
+
+    @Setup(Level.Trial)
+    public void setUp()
+    {
+        m_data = new byte[size];
+        new Random(size).nextBytes(m_data);
+        m_encoded = Base64.getEncoder().encode(m_data);
+        m_encodedString = Base64.getEncoder().encodeToString(m_data);
+        m_message = new byte[16 + m_encoded.length];
+    }
+
+    @Benchmark
+    public byte[] encodeKBase64()
+    {
+        return KBase64.encode(m_data);
+    }
+
+    @Benchmark
+    public byte[] encodeKBase64Parallel()
+    {
+        return KBase64.encode(m_data, true);
+    }
+
+    @Benchmark
+    public byte[] encodeJdk()
+    {
+        return Base64.getEncoder().encode(m_data);
+    }
+
+    @Benchmark
+    public int encodeKBase64IntoMessage()
+    {
+        return KBase64.encode(m_data, 0, m_data.length, m_message, 16);
+    }
+
+    @Benchmark
+    public byte[] decodeKBase64()
+    {
+        return KBase64.decode(m_encoded);
+    }
+
+    @Benchmark
+    public byte[] decodeKBase64Parallel()
+    {
+        return KBase64.decode(m_encoded, true);
+    }
+
+    @Benchmark
+    public byte[] decodeJdk()
+    {
+        return Base64.getDecoder().decode(m_encoded);
+    }
+
+    @Benchmark
+    public byte[] decodeStringKBase64()
+    {
+        return KBase64.FromBase64String(m_encodedString);
+    }
+
+    @Benchmark
+    public byte[] decodeStringJdk()
+    {
+        return Base64.getDecoder().decode(m_encodedString);
+    }
+}
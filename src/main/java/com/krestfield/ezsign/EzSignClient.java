@@ -1,7 +1,9 @@
 package com.krestfield.ezsign;
 
+import com.krestfield.ezsign.msg.KBase64;
 import com.krestfield.ezsign.msg.KEncipherReqMsg;
 import com.krestfield.ezsign.msg.KEncipherRespMsg;
+import com.krestfield.ezsign.msg.KEzSignReqMsg;
 import com.krestfield.ezsign.msg.KEzSignRespMsg;
 import com.krestfield.ezsign.msg.KGenRandomReqMsg;
 import com.krestfield.ezsign.msg.KGenRandomRespMsg;
@@ -9,17 +11,69 @@ import com.krestfield.ezsign.msg.KSignDataReqMsg;
 import com.krestfield.ezsign.msg.KSignDataRespMsg;
 import com.krestfield.ezsign.msg.KVerifySignatureReqMsg;
 import com.krestfield.ezsign.msg.KVerifySignatureRespMsg;
+import com.krestfield.ezsign.net.KAdaptiveTimeout;
+import com.krestfield.ezsign.net.KBinaryFraming;
+import com.krestfield.ezsign.net.KCircuitBreaker;
+import com.krestfield.ezsign.net.KConcurrencyLimiter;
+import com.krestfield.ezsign.net.KConnection;
+import com.krestfield.ezsign.net.KConnectionPool;
+import com.krestfield.ezsign.net.KConnector;
+import com.krestfield.ezsign.net.KDeadline;
+import com.krestfield.ezsign.net.KEndpoint;
+import com.krestfield.ezsign.net.KExponentialBackoff;
+import com.krestfield.ezsign.net.KFrame;
+import com.krestfield.ezsign.net.KFrameInputStream;
+import com.krestfield.ezsign.net.KFraming;
+import com.krestfield.ezsign.net.KHedgePolicy;
+import com.krestfield.ezsign.net.KLineFraming;
+import com.krestfield.ezsign.net.KLoadBalancer;
+import com.krestfield.ezsign.net.KMemoryLimiter;
+import com.krestfield.ezsign.net.KMuxPool;
+import com.krestfield.ezsign.net.KMuxRequest;
+import com.krestfield.ezsign.net.KNioTransport;
+import com.krestfield.ezsign.net.KOutlierDetector;
+import com.krestfield.ezsign.net.KPowerOfTwoBalancer;
+import com.krestfield.ezsign.net.KPriority;
+import com.krestfield.ezsign.net.KRateLimiter;
+import com.krestfield.ezsign.net.KRetryBudget;
+import com.krestfield.ezsign.net.KRetryPolicy;
+import com.krestfield.ezsign.net.KSocketPool;
+import com.krestfield.ezsign.net.KTlsContext;
+import com.krestfield.ezsign.net.KTokenBucket;
+import com.krestfield.ezsign.utils.KAuthEnvelope;
+import com.krestfield.ezsign.utils.KBufferPool;
 import com.krestfield.ezsign.utils.KEncrypt;
+import com.krestfield.ezsign.utils.KThreads;
 
 import javax.net.ssl.KeyManagerFactory;
-import javax.net.ssl.SSLContext;
-import javax.net.ssl.SSLSocket;
-import javax.net.ssl.SSLSocketFactory;
 import java.io.*;
 import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.net.ConnectException;
+import java.net.SocketTimeoutException;
 import java.security.KeyStore;
 import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+import java.util.function.Supplier;
 
 /**
  * EzSignClient
@@ -34,32 +88,120 @@ public class EzSignClient
 {
     /**
      * Local properties
+     * Note that no socket is held here.  Each call to sendMessage opens its own socket so that
+     * one client instance can be shared by many threads with requests running in parallel
      */
-    private Socket m_socket = null;
-    private SSLSocketFactory m_sslSockFactory = null;
+    private KTlsContext m_tlsContext = null;
     boolean m_useTls = false;
-    String m_host;
-    int m_port;
+    volatile String m_host;
+    volatile int m_port;
+
+    // The servers requests are sent to, each with its own pools.  The first is the host and port above.
+    // Replaced as a whole (under m_transportLock) when endpoints are added or changed
+    private volatile Route[] m_routes;
+    private volatile KLoadBalancer m_loadBalancer = new KPowerOfTwoBalancer();
 
     // Default overall timeouts
     int m_readTimeoutMs = 5000;
     int m_connectTimeoutMs = 5000;
 
-    // If send fails, retry up to this many times
+    // If connect or send fails, make up to this many attempts in all
     final int MAX_SEND_RETRIES = 5;
 
-    // If send fails, wait this long before retrying
-    final int RETRY_SEND_WAIT_MS = 5;
+    // If connect or send fails, wait a random time of up to this long before the first retry, doubling
+    // for each retry after that up to the max
+    final int RETRY_BASE_WAIT_MS = 10;
+    final int RETRY_MAX_WAIT_MS = 1000;
+
+    // By default retries may add up to this percentage of requests, with at least this many per second
+    final int DEFAULT_RETRY_BUDGET_PERCENT = 20;
+    final int DEFAULT_MIN_RETRIES_PER_SEC = 10;
 
-    // If connect fails, wait this long before retrying
-    final int RETRY_CONNECT_WAIT_MS = 10;
+    // When and how often failed connects and sends are retried
+    private volatile KRetryPolicy m_retryPolicy = new KExponentialBackoff(RETRY_BASE_WAIT_MS, RETRY_MAX_WAIT_MS, MAX_SEND_RETRIES);
+    private volatile KRetryBudget m_retryBudget = new KRetryBudget(DEFAULT_RETRY_BUDGET_PERCENT, DEFAULT_MIN_RETRIES_PER_SEC);
 
     // The initial connection timeout
     int CONNECT_TIMEOUT = 1000;
 
+    // The overall time allowed for each call, unless the caller has entered a KDeadline.  0 for no limit
+    int m_callTimeoutMs = 0;
+
     boolean m_usingAuthCode = false;
     KEncrypt m_encrypt = null;
+    private String m_authCode = null;
+
+    // Encrypts messages in the v2 envelope rather than with KEncrypt.  Disabled when null
+    private KAuthEnvelope m_authEnvelope = null;
+
+    // Holds text messages while they are encrypted with the auth code, after which they are not needed
+    private final KBufferPool m_clearBuffers = new KBufferPool(8, 2 * 1024 * 1024);
+
+    // The message format and how messages are delimited on the connection.  Text lines by default
+    boolean m_binaryFormat = false;
+    private KFraming m_framing = new KLineFraming();
+
+    // Responses longer than this are rejected by the framing before they are read in full
+    int m_maxResponseSize = KFraming.DEFAULT_MAX_MESSAGE_LEN;
+
+    // Pre-connected sockets.  Disabled when the pool size is 0
+    int m_socketPoolSize = 0;
+    int m_socketPoolIdleExpiryMs = 0;
+
+    // Keep-alive connections.  Disabled when max connections is 0
+    int m_keepAliveMaxConnections = 0;
+    int m_keepAliveIdleTimeoutMs = 0;
+
+    // Multiplexed (v2 framing) connections.  Disabled when the number of connections is 0
+    int m_muxConnections = 0;
+
+    // Non-blocking transport.  Disabled when the number of I/O threads is 0
+    int m_nioIoThreads = 0;
+    private KNioTransport m_nioTransport = null;
+
+    // Runs the asynchronous calls when the caller does not supply an executor.  Created when first needed
+    private ExecutorService m_asyncExecutor = null;
+    boolean m_useVirtualThreads = false;
+
+    // Guards the creation and closing of the pools, transports and executor.  A lock rather than synchronized
+    // so that virtual threads waiting on it do not pin their carrier threads
+    private final ReentrantLock m_transportLock = new ReentrantLock();
+
+    // Circuit breakers for each endpoint.  Disabled when the failure threshold is 0
+    int m_breakerFailureThreshold = 0;
+    int m_breakerOpenMs = 0;
+    int m_breakerRampUpMs = 0;
+    private volatile KOutlierDetector m_outlierDetector = null;
+
+    // An endpoint must have received this many requests since the last outlier check to be ejected
+    final int MIN_OUTLIER_REQUESTS = 5;
+
+    // Limits the payload bytes held by calls in progress.  Disabled when null
+    private volatile KMemoryLimiter m_memoryLimiter = null;
 
+    // The longest a call may wait for bytes under the memory limit
+    private int m_maxMemoryWaitMs = 0;
+
+    // Limits the requests in progress to a limit that adapts to the servers' response times.  Disabled when null
+    private volatile KConcurrencyLimiter m_concurrencyLimiter = null;
+
+    // The longest a request may wait for a slot under the concurrency limit
+    private int m_maxQueueWaitMs = 0;
+
+    // The priority of each channel's requests waiting for a slot, where not normal
+    private final ConcurrentHashMap<String, Integer> m_channelPriorities = new ConcurrentHashMap<String, Integer>();
+
+    // Limits the rate of requests, for all channels and for each channel.  Disabled when null
+    private volatile KRateLimiter m_rateLimiter = null;
+
+    // Sets the read timeout of each message from the recent response times of the operation.  Disabled when null
+    private volatile KAdaptiveTimeout m_adaptiveTimeout = null;
+
+    // Sends slow sign and verify requests to a second endpoint as well.  Disabled when null
+    private volatile KHedgePolicy m_hedgePolicy = null;
+
+    // Runs the tasks that are due after a delay, such as sending hedges.  Created when first needed
+    private ScheduledExecutorService m_timer = null;
 
     /**
      * The Constructor
@@ -71,17 +213,28 @@ public class EzSignClient
     {
         m_host = host;
         m_port = port;
+        m_routes = new Route[] { newRoute(host, port) };
     }
 
     /**
      * Call to enable TLS connections to the server.  Note that the server must be configured to also use TLS
+     * All connections from this client share one TLS context so that sessions are resumed rather than
+     * performing a full handshake for every request
      *
      * @return The new EzSignClient instance
      */
     public EzSignClient useTls()
     {
-        m_sslSockFactory = (SSLSocketFactory)SSLSocketFactory.getDefault();
+        try
+        {
+            m_tlsContext = new KTlsContext(null);
+        }
+        catch (KEzSignException e)
+        {
+            throw new IllegalStateException(e.getMessage(), e);
+        }
         m_useTls = true;
+        closeTransports();
 
         return this;
     }
@@ -103,12 +256,11 @@ public class EzSignClient
             clientKeyStore.load(new FileInputStream(clientKeystoreFilename), clientKeystorePassword.toCharArray());
             KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
             kmf.init(clientKeyStore, clientKeystorePassword.toCharArray());
-            SSLContext sslContext = SSLContext.getInstance("TLS");
-            sslContext.init(kmf.getKeyManagers(), null, null);
 
-            m_sslSockFactory = sslContext.getSocketFactory();
+            m_tlsContext = new KTlsContext(kmf.getKeyManagers());
 
             m_useTls = true;
+            closeTransports();
 
             return this;
         }
@@ -176,18 +328,20 @@ public class EzSignClient
         if (authCode != null && authCode.length() > 0)
         {
             m_usingAuthCode = true;
+            m_authCode = authCode;
             m_encrypt = new KEncrypt(authCode);
         }
     }
 
     /**
-     * Sets the host to use
+     * Sets the host to use.  If endpoints have been added, this replaces the first
      *
      * @param host The name of the host to connect to - IP address or hostname
      */
     public void setHost(String host)
     {
         m_host = host;
+        replaceFirstRoute(host, m_port);
     }
 
     /**
@@ -201,13 +355,14 @@ public class EzSignClient
     }
 
     /**
-     * Sets the port to be used
+     * Sets the port to be used.  If endpoints have been added, this replaces the first
      *
      * @param port The port to connect to
      */
     public void setPort(int port)
     {
         m_port = port;
+        replaceFirstRoute(m_host, port);
     }
 
     /**
@@ -221,519 +376,3511 @@ public class EzSignClient
     }
 
     /**
-     * Generates a signature and returns the produced PKCS#7
+     * Adds another EzSign server.  Each request is then sent to one of the servers, chosen by the load balancer.
+     * All servers must be configured the same way (channels, keys, auth code, TLS)
      *
-     * @param channelName The name of the EzSign channel to process the request
-     * @param dataToSign The data to sign
-     * @param isDigest True if the data is a digest (already hashed)
-     * @return The signature
-     * @throws KSigningException If there is a signing exception
-     * @throws KEzSignException If there is an error
-     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     * @param host The name of the host to connect to - IP address or hostname
+     * @param port The port the EzSign server is listening on
+     * @return The EzSignClient instance
      */
-    public byte[] signData(String channelName, byte[] dataToSign, boolean isDigest) throws KSigningException, KEzSignException, KEzSignConnectException
+    public EzSignClient addEndpoint(String host, int port)
     {
-        KSignDataReqMsg msg = new KSignDataReqMsg(channelName, dataToSign, isDigest);
-
-        String response = sendMessage(msg.getMessage());
-
-        KSignDataRespMsg resp = new KSignDataRespMsg(response);
-        int respCode = resp.getResponseCode();
-        if (respCode != KSignDataRespMsg.RESP_OK)
+        m_transportLock.lock();
+        try
         {
-            String error = resp.getErrorMessage();
-            switch (respCode)
-            {
-                case KEzSignRespMsg.RESP_GENERAL_EXCEPTION:
-                    throw new KEzSignException(error);
-                case KEzSignRespMsg.RESP_SIGNING_EXCEPTION:
-                    throw new KSigningException(error);
-            }
+            Route[] routes = Arrays.copyOf(m_routes, m_routes.length + 1);
+            routes[routes.length - 1] = newRoute(host, port);
+            m_routes = routes;
         }
-        return resp.getSignature();
+        finally
+        {
+            m_transportLock.unlock();
+        }
+
+        return this;
     }
 
     /**
-     * Generates the number of random bytes requested
+     * Sets how the server for each request is chosen when endpoints have been added.  The default is
+     * KPowerOfTwoBalancer, which routes on requests in flight and recent response times.  KLeastOutstandingBalancer
+     * and KRoundRobinBalancer are also available
      *
-     * @param channelName The name of the EzSign channel to process the request
-     * @param numBytes The number of bytes to generate
-     * @return The random bytes
-     * @throws KEzSignException If there is an error
-     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     * @param loadBalancer The load balancer
+     * @return The EzSignClient instance
      */
-    public byte[] generateRandomBytes(String channelName, int numBytes) throws KEzSignException, KEzSignConnectException
+    public EzSignClient useLoadBalancer(KLoadBalancer loadBalancer)
     {
-        KGenRandomReqMsg msg = new KGenRandomReqMsg(channelName, numBytes);
+        m_loadBalancer = loadBalancer;
 
-        String response = sendMessage(msg.getMessage());
+        return this;
+    }
 
-        KGenRandomRespMsg resp = new KGenRandomRespMsg(response);
-        int respCode = resp.getResponseCode();
-        if (respCode != KGenRandomRespMsg.RESP_OK)
-        {
-            String error = resp.getErrorMessage();
-            switch (respCode)
-            {
-                case KEzSignRespMsg.RESP_GENERAL_EXCEPTION:
-                    throw new KEzSignException(error);
-            }
-        }
-        return resp.getRandomBytes();
+    /**
+     * Returns the servers requests are sent to, with the requests in flight and average response time of each
+     *
+     * @return The endpoints.  The first is the host and port given to the constructor
+     */
+    public KEndpoint[] getEndpoints()
+    {
+        Route[] routes = m_routes;
+        return Arrays.copyOf(routes, routes.length, KEndpoint[].class);
     }
 
     /**
-     * Verifies a signature
+     * Call to track the health of each endpoint with a circuit breaker.  After a number of connect or read
+     * failures in a row no further requests are sent to the endpoint for the open time (doubling each time
+     * it opens again without recovering).  A single trial request is then sent and if it succeeds the
+     * endpoint's share of requests ramps back up over the ramp up time.  Requests fail fast, without trying
+     * to connect, if every endpoint is open.  See also useOutlierEjection
      *
-     * @param channelName The name of the EzSign channel to process the request
-     * @param signature The PKCS7 signature data to verify
-     * @param contentBytes The content that was signed
-     * @param dataIsDigest True if the data is a digest (already hashed)
-     * @throws KVerificationException If there is a signature verification error
-     * @throws KPathException If there is a path building error
-     * @throws KRevocationException If there is a revocation check error
-     * @throws KEzSignException If there is an error
-     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     * @param failureThreshold The number of failures in a row that opens the circuit
+     * @param openMs How long the circuit stays open the first time
+     * @param rampUpMs The time over which requests ramp back up after the circuit closes.  0 for none
+     * @return The EzSignClient instance
      */
-    public void verifySignature(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest)
-            throws KVerificationException, KPathException, KRevocationException, KEzSignException, KEzSignConnectException
+    public EzSignClient useCircuitBreakers(int failureThreshold, int openMs, int rampUpMs)
     {
-        verifySignature(channelName, signature, contentBytes, dataIsDigest, false, false, KVerifySignatureReqMsg.SIG_TYPE_PKCS7,
-                null, null);
+        m_transportLock.lock();
+        try
+        {
+            m_breakerFailureThreshold = failureThreshold;
+            m_breakerOpenMs = openMs;
+            m_breakerRampUpMs = rampUpMs;
+            for (Route route : m_routes)
+                route.setCircuitBreaker(newCircuitBreaker());
+        }
+        finally
+        {
+            m_transportLock.unlock();
+        }
+
+        return this;
     }
 
     /**
-     * Verifies a raw signature
+     * Call to also open the circuit of an endpoint whose average response time is much worse than the others,
+     * as a degraded server may still respond and so never fail enough to open its circuit.  No more than half
+     * of the endpoints are open at once.  Requires useCircuitBreakers
      *
-     * @param channelName The name of the EzSign channel to process the request
-     * @param signature The RAW signature data to verify
-     * @param contentBytes The content that was signed
-     * @param dataIsDigest True if the data is a digest (already hashed)
-     * @param signerCert The cert that signed the data
-     * @throws KVerificationException If there is a signature verification error
-     * @throws KPathException If there is a path building error
-     * @throws KRevocationException If there is a revocation check error
-     * @throws KEzSignException If there is an error
-     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     * @param latencyFactor An endpoint is ejected if its average response time is more than this many times the
+     *                      median of the others, e.g. 5
+     * @param intervalMs How often the endpoints are compared
+     * @return The EzSignClient instance
      */
-    public void verifyRawSignature(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest, X509Certificate signerCert)
-            throws KVerificationException, KPathException, KRevocationException, KEzSignException, KEzSignConnectException
+    public EzSignClient useOutlierEjection(double latencyFactor, int intervalMs)
     {
-        verifySignature(channelName, signature, contentBytes, dataIsDigest, false, false, KVerifySignatureReqMsg.SIG_TYPE_RAW,
-                signerCert, null);
+        m_outlierDetector = new KOutlierDetector(latencyFactor, intervalMs, MIN_OUTLIER_REQUESTS);
+
+        return this;
     }
 
     /**
-     * Verifies a raw signature.  Allows other certificates in the chain to be supplied
+     * Returns the outlier detector, which provides the number of ejections
      *
-     * @param channelName The name of the EzSign channel to process the request
-     * @param signature The RAW signature data to verify
-     * @param contentBytes The content that was signed
-     * @param dataIsDigest True if the data is a digest (already hashed)
-     * @param signerCert The cert that signed the data
-     * @param otherCerts Other certs in the path - required if they are not present on the server
-     * @throws KVerificationException If there is a signature verification error
-     * @throws KPathException If there is a path building error
-     * @throws KRevocationException If there is a revocation check error
-     * @throws KEzSignException If there is an error
-     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     * @return The outlier detector or null if not in use
      */
-    public void verifyRawSignature(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest,
-                                   X509Certificate signerCert, X509Certificate[] otherCerts)
-            throws KVerificationException, KPathException, KRevocationException, KEzSignException, KEzSignConnectException
+    public KOutlierDetector getOutlierDetector()
     {
-        verifySignature(channelName, signature, contentBytes, dataIsDigest, false, false, KVerifySignatureReqMsg.SIG_TYPE_RAW,
-                signerCert, otherCerts);
+        return m_outlierDetector;
     }
 
     /**
-     * Verifies a raw signature.  Allows other certificates in the chain to be supplied and
-     * the bypassing of revocation checking and path building
+     * Sets the overall time allowed for each call - connect, TLS handshake, retries and read together.  Without
+     * this a call can take many times the connect and read timeouts, e.g. when the connect is retried.
+     * A KDeadline entered by the calling thread applies instead, and can also be used to cancel a call
      *
-     * @param channelName The name of the EzSign channel to process the request
-     * @param signature The RAW signature data to verify
-     * @param contentBytes The content that was signed
-     * @param dataIsDigest True if the data is a digest (already hashed)
-     * @param signerCert The cert that signed the data
-     * @param otherCerts Other certs in the path - required if they are not present on the server
-     * @param bypassRevocationCheck If true, revocation checking will be skipped
-     * @param bypassPathBuild If true, path building will be skipped
-     * @throws KVerificationException If there is a signature verification error
-     * @throws KPathException If there is a path building error
-     * @throws KRevocationException If there is a revocation check error
-     * @throws KEzSignException If there is an error
-     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     * @param callTimeoutMs The time allowed for each call, 0 for no limit
+     * @return The EzSignClient instance
      */
-    public void verifyRawSignature(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest,
-                                   X509Certificate signerCert, X509Certificate[] otherCerts, boolean bypassRevocationCheck,
-                                   boolean bypassPathBuild)
-            throws KVerificationException, KPathException, KRevocationException, KEzSignException, KEzSignConnectException
+    public EzSignClient useCallTimeout(int callTimeoutMs)
     {
-        verifySignature(channelName, signature, contentBytes, dataIsDigest, bypassRevocationCheck, bypassPathBuild,
-                KVerifySignatureReqMsg.SIG_TYPE_RAW, signerCert, otherCerts);
+        m_callTimeoutMs = callTimeoutMs;
+
+        return this;
     }
 
     /**
-     * Verifies a signature.  Allows the bypassing of revocation checking and path building
+     * Limits the payload bytes held by calls in progress, so that a burst of calls with large payloads (e.g.
+     * encrypting or verifying multi-MB content) cannot run the client out of memory however many threads make
+     * them.  A call reserves its request's size and, if that would take the total over the limit, waits its
+     * turn for up to maxWaitMs, or fails straight away if 0, with KLoadShedException.  A response cannot be
+     * made to wait, as the server has already sent it, so its size is counted from when it arrives until it is
+     * returned but is bounded by useMaxResponseSize instead.  The client holds a few copies of each payload
+     * while sending it (the encoded message, and encrypted if using an auth code) so the heap used is a small
+     * multiple of the limit
      *
-     * @param channelName The name of the EzSign channel to process the request
-     * @param signature The RAW signature data to verify
-     * @param contentBytes The content that was signed
-     * @param dataIsDigest True if the data is a digest (already hashed)
-     * @param bypassRevocationCheck If true, revocation checking will be skipped
-     * @param bypassPathBuild If true, path building will be skipped
-     * @throws KVerificationException If there is a signature verification error
-     * @throws KPathException If there is a path building error
-     * @throws KRevocationException If there is a revocation check error
-     * @throws KEzSignException If there is an error
-     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     * @param maxBytes The most payload bytes held by calls in progress, e.g. 64MB
+     * @param maxWaitMs The longest a call may wait, 0 to fail fast
+     * @return The EzSignClient instance
      */
-    public void verifySignature(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest,
-                                   boolean bypassRevocationCheck, boolean bypassPathBuild)
-            throws KVerificationException, KPathException, KRevocationException, KEzSignException, KEzSignConnectException
+    public EzSignClient useMemoryLimit(long maxBytes, int maxWaitMs)
     {
-        verifySignature(channelName, signature, contentBytes, dataIsDigest,
-                bypassRevocationCheck, bypassPathBuild, KVerifySignatureReqMsg.SIG_TYPE_PKCS7, null, null);
+        m_maxMemoryWaitMs = maxWaitMs;
+        m_memoryLimiter = new KMemoryLimiter(maxBytes);
+
+        return this;
     }
 
     /**
-     * Verifies a raw signature.  Allows the bypassing of revocation checking and path building
+     * Returns the memory limiter, which provides the bytes held by calls in progress, the peak and the number
+     * of calls that waited or were rejected
      *
-     * @param channelName The name of the EzSign channel to process the request
-     * @param signature The RAW signature data to verify
-     * @param contentBytes The content that was signed
-     * @param dataIsDigest True if the data is a digest (already hashed)
-     * @param bypassRevocationCheck If true, revocation checking will be skipped
-     * @param bypassPathBuild If true, path building will be skipped
-     * @param signerCert The cert that signed the data
-     * @param otherCerts Other certs in the path - required if they are not present on the server
-     * @throws KVerificationException If there is a signature verification error
-     * @throws KPathException If there is a path building error
-     * @throws KRevocationException If there is a revocation check error
-     * @throws KEzSignException If there is an error
-     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     * @return The memory limiter or null if not in use
      */
-    public void verifyRawSignature(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest,
-                                   boolean bypassRevocationCheck, boolean bypassPathBuild,
-                                   X509Certificate signerCert, X509Certificate[] otherCerts)
-            throws KVerificationException, KPathException, KRevocationException, KEzSignException, KEzSignConnectException
+    public KMemoryLimiter getMemoryLimiter()
     {
-        verifySignature(channelName, signature, contentBytes, dataIsDigest,
-                bypassRevocationCheck, bypassPathBuild, KVerifySignatureReqMsg.SIG_TYPE_RAW, signerCert, otherCerts);
+        return m_memoryLimiter;
     }
 
     /**
-     * All verify signature calls ultimately call this method which includes all parameters
+     * Limits the requests in progress at once to a limit that adapts to the servers' response times.  The limit
+     * is raised while response times stay close to the shortest seen, and lowered as they grow (as requests
+     * queue at the server) or when requests fail to connect or time out.  Requests over the limit wait up to
+     * maxQueueWaitMs for a slot, and are shed with KLoadShedException if the queue is full or they wait too long.
+     * Waiting requests are sent with the channels taking turns, weighted by payload size, so a channel sending
+     * many or large requests does not hold up the others.  The limiter provides each channel's requests waiting
+     * and average wait
      *
-     * @param channelName The name of the EzSign channel to process the request
-     * @param signature The RAW signature data to verify
-     * @param contentBytes The content that was signed
-     * @param dataIsDigest True if the data is a digest (already hashed)
-     * @param bypassRevocationCheck If true, revocation checking will be skipped
-     * @param bypassPathBuild If true, path building will be skipped
-     * @param signatureType IF the signature is SIG_TYPE_PKCS7 or SIG_TYPE_RAW
-     * @throws KVerificationException If there is a signature verification error
-     * @throws KPathException If there is a path building error
-     * @throws KRevocationException If there is a revocation check error
-     * @throws KEzSignException If there is an error
-     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     * @param initialLimit The limit to start with, e.g. 20
+     * @param maxLimit The highest the limit may rise to, e.g. 500
+     * @param maxQueueLength The most requests that may wait for a slot, 0 to shed any request over the limit
+     * @param maxQueueWaitMs The longest a request may wait for a slot
+     * @return The EzSignClient instance
      */
-    private void verifySignature(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest,
-                                 boolean bypassRevocationCheck, boolean bypassPathBuild, int signatureType,
-                                 X509Certificate signerCert, X509Certificate[] otherCerts)
-            throws KVerificationException, KPathException, KRevocationException, KEzSignException, KEzSignConnectException
+    public EzSignClient useConcurrencyLimit(int initialLimit, int maxLimit, int maxQueueLength, int maxQueueWaitMs)
     {
-        KVerifySignatureReqMsg msg = new KVerifySignatureReqMsg(channelName, signature, contentBytes, dataIsDigest,
-                bypassRevocationCheck, bypassPathBuild, signatureType, signerCert, otherCerts);
+        m_maxQueueWaitMs = maxQueueWaitMs;
+        m_concurrencyLimiter = new KConcurrencyLimiter(initialLimit, 1, maxLimit, maxQueueLength);
 
-        String response = sendMessage(msg.getMessage());
+        return this;
+    }
 
-        KVerifySignatureRespMsg resp = new KVerifySignatureRespMsg(response);
-        int respCode = resp.getResponseCode();
-        if (respCode != KSignDataRespMsg.RESP_OK)
-        {
-            String error = resp.getErrorMessage();
-            switch (respCode)
-            {
-                case KEzSignRespMsg.RESP_GENERAL_EXCEPTION:
-                    throw new KEzSignException(error);
-                case KEzSignRespMsg.RESP_VERIFICATION_EXCEPTION:
-                    throw new KVerificationException(error);
-                case KEzSignRespMsg.RESP_REVOCATION_EXCEPTION:
-                    throw new KRevocationException(error);
-                case KEzSignRespMsg.RESP_PATH_EXCEPTION:
-                    throw new KPathException(error);
-            }
-        }
+    /**
+     * Returns the concurrency limiter, which provides the current limit, the requests in progress and the
+     * number of requests queued and shed
+     *
+     * @return The concurrency limiter or null if not in use
+     */
+    public KConcurrencyLimiter getConcurrencyLimiter()
+    {
+        return m_concurrencyLimiter;
     }
 
     /**
-     * Encrypts the data provided in dataToEncrypt with the key referenced by keyLabel
+     * Sets the priority of a channel's requests, e.g. LOW for a channel used for batch verification so that
+     * signing for users is not held up behind it.  When the concurrency limit is reached, requests waiting for
+     * a slot are sent highest priority first, a lower priority request being sent next once it has been passed
+     * over several times so it is never starved.  A priority entered by the calling thread with
+     * KPriority.enter applies in place of the channel's.  Has no effect unless useConcurrencyLimit is set,
+     * as otherwise requests do not wait in the client
      *
-     * @param channelName The name of the EzSign channel to process the request
-     * @param dataToEncrypt The data to encrypt
-     * @param keyLabel The name of the key to perfom the decryption - as configured on the server
-     * @return The encrypted data
-     * @throws KEzSignException If there is an error
-     * @throws KEzSignConnectException If unable to connect to the EzSign server
-     * @throws KEncipherException If there is an error encrypting
+     * @param channelName The channel
+     * @param priority KPriority.HIGH, NORMAL or LOW
+     * @return The EzSignClient instance
      */
-    public byte[] encryptData(String channelName, byte[] dataToEncrypt, String keyLabel) throws KEzSignException, KEzSignConnectException, KEncipherException
+    public EzSignClient useChannelPriority(String channelName, int priority)
     {
-        KEncipherReqMsg msg = new KEncipherReqMsg(channelName, true, dataToEncrypt, keyLabel);
+        m_channelPriorities.put(channelName, priority);
 
-        String response = sendMessage(msg.getMessage());
+        return this;
+    }
 
-        KEncipherRespMsg resp = new KEncipherRespMsg(response);
-        int respCode = resp.getResponseCode();
+    /**
+     * Limits the rate of requests sent to the EzSign servers, so the client cannot drive them beyond the load they
+     * handle efficiently.  Up to the burst size may be sent at once after a quiet spell.  A request over the
+     * limit waits its turn for up to maxWaitMs, or fails straight away if 0, with KRateLimitedException.
+     * Retries and hedges are limited by their own budgets, not by this
+     *
+     * @param requestsPerSec The requests allowed per second, for all channels together
+     * @param burst The most requests that may be sent at once
+     * @param maxWaitMs The longest a request may wait to be sent, 0 to fail fast
+     * @return The EzSignClient instance
+     * @throws IllegalArgumentException If requestsPerSec is 0 or less
+     */
+    public EzSignClient useRateLimit(double requestsPerSec, int burst, int maxWaitMs)
+    {
+        getOrCreateRateLimiter().setGlobalLimit(new KTokenBucket(requestsPerSec, burst, maxWaitMs));
+
+        return this;
+    }
+
+    /**
+     * Limits the rate of requests to one channel, as well as any limit for all channels (see useRateLimit)
+     *
+     * @param channelName The name of the EzSign channel
+     * @param requestsPerSec The requests allowed per second to the channel
+     * @param burst The most requests that may be sent at once
+     * @param maxWaitMs The longest a request may wait to be sent, 0 to fail fast
+     * @return The EzSignClient instance
+     * @throws IllegalArgumentException If requestsPerSec is 0 or less
+     */
+    public EzSignClient useRateLimit(String channelName, double requestsPerSec, int burst, int maxWaitMs)
+    {
+        getOrCreateRateLimiter().setChannelLimit(channelName, new KTokenBucket(requestsPerSec, burst, maxWaitMs));
+
+        return this;
+    }
+
+    private KRateLimiter getOrCreateRateLimiter()
+    {
+        m_transportLock.lock();
+        try
+        {
+            if (m_rateLimiter == null)
+                m_rateLimiter = new KRateLimiter();
+
+            return m_rateLimiter;
+        }
+        finally
+        {
+            m_transportLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the rate limiter, which provides the number of requests admitted, delayed and rejected by each limit
+     *
+     * @return The rate limiter or null if not in use
+     */
+    public KRateLimiter getRateLimiter()
+    {
+        return m_rateLimiter;
+    }
+
+    /**
+     * Sets the read timeout of each message from the recent response times of the same operation on the same
+     * channel, in place of the fixed read timeout.  The timeout is a multiple of a high percentile of the
+     * response times, between the floor and ceiling, so a request that is stuck is abandoned in a few
+     * milliseconds if the operation usually takes one, while slow operations are still given the time they need.
+     * Until enough responses have been seen, the ceiling is used
+     *
+     * @param percentile The percentile of the response times, e.g. 99.9
+     * @param multiplier The timeout is this multiple of the percentile, e.g. 3
+     * @param floorMs The shortest timeout, e.g. 50
+     * @param ceilingMs The longest timeout, e.g. the read timeout
+     * @return The EzSignClient instance
+     */
+    public EzSignClient useAdaptiveTimeout(double percentile, double multiplier, int floorMs, int ceilingMs)
+    {
+        m_adaptiveTimeout = new KAdaptiveTimeout(percentile, multiplier, floorMs, ceilingMs);
+
+        return this;
+    }
+
+    /**
+     * Returns the adaptive timeout, which provides the response times of each operation and the number of timeouts
+     *
+     * @return The adaptive timeout or null if not in use
+     */
+    public KAdaptiveTimeout getAdaptiveTimeout()
+    {
+        return m_adaptiveTimeout;
+    }
+
+    /**
+     * Sets when and how often a failed connect or send is retried.  By default up to 5 attempts are made with
+     * exponential backoff and full jitter, starting at up to 10ms.  Connects are also retried only until the
+     * connect timeout has passed
+     *
+     * @param retryPolicy The retry policy, e.g. a KExponentialBackoff
+     * @return The EzSignClient instance
+     */
+    public EzSignClient useRetryPolicy(KRetryPolicy retryPolicy)
+    {
+        m_retryPolicy = retryPolicy;
+
+        return this;
+    }
+
+    /**
+     * Limits the retries made by this client to a percentage of its requests, so that retries cannot multiply the
+     * load on a server that is already overloaded.  By default retries may add 20% to the requests, with at
+     * least 10 retries per second
+     *
+     * @param retryPercent The most retries that may be made, as a percentage of requests
+     * @param minRetriesPerSec The retries allowed per second however few requests are sent
+     * @return The EzSignClient instance
+     */
+    public EzSignClient useRetryBudget(double retryPercent, int minRetriesPerSec)
+    {
+        m_retryBudget = new KRetryBudget(retryPercent, minRetriesPerSec);
+
+        return this;
+    }
+
+    /**
+     * Returns the retry budget, which provides the number of retries and of requests given up
+     *
+     * @return The retry budget
+     */
+    public KRetryBudget getRetryBudget()
+    {
+        return m_retryBudget;
+    }
+
+    /**
+     * Call to hedge sign and verify requests: if no response has been received within the given percentile of
+     * recent response times, the request is also sent to another endpoint and whichever response arrives first
+     * is used.  This cuts the tail latency caused by a server that is briefly slow.  The hedges are limited to
+     * a percentage of requests, so that hedging cannot overload servers that are slow for every request.
+     * Requires more than one endpoint (see addEndpoint).  The request is sent from the calling thread and
+     * the hedge from the asynchronous executor, so either response may be used
+     *
+     * @param percentile The percentile of recent response times after which a request is hedged, e.g. 95
+     * @param budgetPercent The most hedges that may be sent, as a percentage of requests, e.g. 5
+     * @return The EzSignClient instance
+     */
+    public EzSignClient useHedging(double percentile, double budgetPercent)
+    {
+        m_hedgePolicy = new KHedgePolicy(percentile, budgetPercent);
+
+        return this;
+    }
+
+    /**
+     * Returns the hedge policy, which provides the number of hedges sent and how often they were answered first
+     *
+     * @return The hedge policy or null if not in use
+     */
+    public KHedgePolicy getHedgePolicy()
+    {
+        return m_hedgePolicy;
+    }
+
+    /**
+     * Returns the TLS context shared by all connections from this client.  This can be used to tune the
+     * session cache and provides the number of full and resumed handshakes
+     *
+     * @return The TLS context or null if TLS is not in use
+     */
+    public KTlsContext getTlsContext()
+    {
+        return m_tlsContext;
+    }
+
+    /**
+     * Call to keep a number of sockets connected to the server in advance, so that the connect (and TLS
+     * handshake if TLS is in use) is not part of each request.  Each socket is still only used for one message.
+     * The sockets are opened in the background.  Call after useTls or useClientTls
+     *
+     * @param poolSize The number of connected sockets to keep ready
+     * @param idleExpiryMs A socket not used within this time is closed and replaced.  This must be less than the
+     *                     time the server waits for a request on a new connection
+     * @return The EzSignClient instance
+     * @throws IllegalArgumentException If the pool size or idle expiry is not greater than 0
+     */
+    public EzSignClient usePreConnectedSockets(int poolSize, int idleExpiryMs)
+    {
+        if (poolSize <= 0)
+            throw new IllegalArgumentException("The socket pool size must be greater than 0: " + poolSize);
+        if (idleExpiryMs <= 0)
+            throw new IllegalArgumentException("The socket pool idle expiry must be greater than 0: " + idleExpiryMs);
+
+        m_socketPoolSize = poolSize;
+        m_socketPoolIdleExpiryMs = idleExpiryMs;
+        closeSocketPool();
+
+        return this;
+    }
+
+    /**
+     * Returns the pool of pre-connected sockets to the first endpoint, which provides the hit and miss counts
+     *
+     * @return The pool or null if pre-connected sockets are not in use or no request has yet been sent
+     */
+    public KSocketPool getSocketPool()
+    {
+        return m_routes[0].m_socketPool;
+    }
+
+    /**
+     * Call to keep connections open and send further messages on them, rather than opening a new connection
+     * for every message.  The server must also support this.  If the server is found to close each connection
+     * after one response, the client falls back to one connection per message.  Call after useTls or useClientTls
+     *
+     * @param maxConnections The max number of connections open at once.  Requests wait (up to the connect timeout)
+     *                       when all are in use
+     * @param idleTimeoutMs A connection not used for this long is closed.  This should be less than the time the server
+     *                      keeps an idle connection open
+     * @return The EzSignClient instance
+     */
+    public EzSignClient useKeepAlive(int maxConnections, int idleTimeoutMs)
+    {
+        m_keepAliveMaxConnections = maxConnections;
+        m_keepAliveIdleTimeoutMs = idleTimeoutMs;
+        closeConnectionPool();
+
+        return this;
+    }
+
+    /**
+     * Returns the pool of keep-alive connections to the first endpoint, which provides the connection and reuse counts
+     *
+     * @return The pool or null if keep-alive is not in use or no request has yet been sent
+     */
+    public KConnectionPool getConnectionPool()
+    {
+        return m_routes[0].m_connectionPool;
+    }
+
+    /**
+     * Call to send requests over a few long lived connections using the multiplexed (v2) framing, where each
+     * request carries a correlation ID.  Many requests are in flight on each connection at once and responses
+     * may be returned in any order.  The server must also support the v2 framing.  If it responds in the
+     * original format the client falls back to keep-alive connections (if useKeepAlive has been called) or
+     * one connection per message.  Call after useTls or useClientTls
+     *
+     * @param numConnections The number of connections to spread the requests over
+     * @return The EzSignClient instance
+     */
+    public EzSignClient useMultiplexing(int numConnections)
+    {
+        m_muxConnections = numConnections;
+        closeMuxPool();
+
+        return this;
+    }
+
+    /**
+     * Returns the multiplexed connections to the first endpoint, which provide the number of requests sent and in flight
+     *
+     * @return The multiplexed connections or null if not in use or no request has yet been sent
+     */
+    public KMuxPool getMuxPool()
+    {
+        return m_routes[0].m_muxPool;
+    }
+
+    /**
+     * Call to send messages using non-blocking I/O.  A small fixed number of I/O threads drive the connects, TLS
+     * handshakes, writes and reads of all requests, so requests waiting for the server do not each hold a
+     * socket thread.  Each message still uses its own connection.  Takes the place of usePreConnectedSockets
+     * and useKeepAlive, but useMultiplexing, if also called, is used first.  Call after useTls or useClientTls
+     *
+     * @param numIoThreads The number of I/O threads
+     * @return The EzSignClient instance
+     */
+    public EzSignClient useNio(int numIoThreads)
+    {
+        m_nioIoThreads = numIoThreads;
+        closeNioTransport();
+
+        return this;
+    }
+
+    /**
+     * Returns the non-blocking transport, which provides the number of requests sent, in flight and timed out
+     *
+     * @return The transport or null if not in use or no request has yet been sent
+     */
+    public KNioTransport getNioTransport()
+    {
+        return m_nioTransport;
+    }
+
+    /**
+     * Call to run each asynchronous call on its own virtual thread when no executor is given, rather than on a pool
+     * of platform threads.  Requires Java 21 or later - on earlier versions this has no effect.
+     * The synchronous methods may also be called from virtual threads, whether or not this is called
+     *
+     * @return The EzSignClient instance
+     */
+    public EzSignClient useVirtualThreads()
+    {
+        m_useVirtualThreads = true;
+        closeAsyncExecutor();
+
+        return this;
+    }
+
+    /**
+     *
+     * @return True if useVirtualThreads has been called and virtual threads are available on this Java version
+     */
+    public boolean isUsingVirtualThreads()
+    {
+        return m_useVirtualThreads && KThreads.isVirtualThreadsSupported();
+    }
+
+    /**
+     * Call to send messages in the binary format rather than as text lines.  Binary data (signatures, content,
+     * certificates) is sent as is rather than base64 encoded and each message is sent as a length prefixed frame.
+     * The server must also support the binary format.  This applies to all connection types
+     *
+     * @return The EzSignClient instance
+     */
+    public EzSignClient useBinaryFormat()
+    {
+        m_binaryFormat = true;
+        m_framing = createFraming();
+        closeTransports();
+
+        return this;
+    }
+
+    /**
+     * Sets the longest response read from the server, 256MB by default.  A longer response fails the call with
+     * KEzSignConnectException before it is read in full, so that a faulty server cannot make the client allocate
+     * without limit.  This is the bound on the response bytes counted under useMemoryLimit.  It applies to all
+     * connection types
+     *
+     * @param maxBytes The longest response in bytes, as received (encrypted if using an auth code)
+     * @return The EzSignClient instance
+     */
+    public EzSignClient useMaxResponseSize(int maxBytes)
+    {
+        if (maxBytes <= 0)
+            throw new IllegalArgumentException("The max response size must be greater than 0: " + maxBytes);
+
+        m_maxResponseSize = maxBytes;
+        m_framing = createFraming();
+        closeTransports();
+
+        return this;
+    }
+
+    /**
+     *
+     * @return The framing for the message format and max response size
+     */
+    private KFraming createFraming()
+    {
+        if (m_binaryFormat)
+            return new KBinaryFraming(m_authEnvelope != null, m_maxResponseSize);
+
+        return new KLineFraming(m_maxResponseSize);
+    }
+
+    /**
+     * Call to encrypt messages with the auth code in the v2 envelope (see KAuthEnvelope) rather than the original
+     * scheme.  The binary message is encrypted as is with AES-GCM under a session key, rather than base64
+     * encoded, encrypted with a key derived for that message and base64 encoded again, so the payload is sent
+     * at its own size and a message takes one pass to encrypt.  Also turns on the binary format.  Enveloped
+     * messages are marked in the frame header, and the server replies in the envelope the request was sent
+     * in, bound to that request.  The server must also support the v2 envelope.  It is not negotiated: if the
+     * server does not support it the requests fail, the client does not fall back to the original scheme
+     *
+     * @return The EzSignClient instance
+     * @throws KEzSignException If no auth code has been set, or the key cannot be derived from it
+     */
+    public EzSignClient useAuthEnvelope() throws KEzSignException
+    {
+        if (!m_usingAuthCode)
+            throw new KEzSignException("The v2 envelope requires an auth code to be set");
+
+        m_authEnvelope = new KAuthEnvelope(m_authCode);
+        return useBinaryFormat();
+    }
+
+    /**
+     * Releases any sockets and background threads held by this client.  Only required if
+     * usePreConnectedSockets, useKeepAlive, useMultiplexing, useNio or useHedging has been called, if a failed
+     * request has been retried after a backoff run by the timer, or the asynchronous methods have been used
+     * without an executor.  Hedging and backoff retries start the same executor and timer threads as the
+     * asynchronous methods
+     */
+    public void close()
+    {
+        closeTransports();
+        closeAsyncExecutor();
+        closeTimer();
+    }
+
+    /**
+     * Generates a signature and returns the produced PKCS#7
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param dataToSign The data to sign
+     * @param isDigest True if the data is a digest (already hashed)
+     * @return The signature
+     * @throws KSigningException If there is a signing exception
+     * @throws KEzSignException If there is an error
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     */
+    public byte[] signData(String channelName, byte[] dataToSign, boolean isDigest) throws KSigningException, KEzSignException, KEzSignConnectException
+    {
+        KSignDataReqMsg msg = new KSignDataReqMsg(channelName, dataToSign, isDigest);
+
+        return readSignDataResponse(sendMessage(msg));
+    }
+
+    /**
+     * Processes the response to a sign data request
+     *
+     * @param response The response
+     * @return The signature
+     * @throws KSigningException If there is a signing exception
+     * @throws KEzSignException If there is an error
+     */
+    private byte[] readSignDataResponse(byte[] response) throws KSigningException, KEzSignException
+    {
+        KSignDataRespMsg resp = new KSignDataRespMsg(response, m_binaryFormat);
+        int respCode = resp.getResponseCode();
         if (respCode != KSignDataRespMsg.RESP_OK)
         {
-            String error = resp.getErrorMessage();
-            switch (respCode)
+            String error = resp.getErrorMessage();
+            switch (respCode)
+            {
+                case KEzSignRespMsg.RESP_GENERAL_EXCEPTION:
+                    throw new KEzSignException(error);
+                case KEzSignRespMsg.RESP_SIGNING_EXCEPTION:
+                    throw new KSigningException(error);
+            }
+        }
+        return resp.getSignature();
+    }
+
+    /**
+     * Generates the number of random bytes requested
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param numBytes The number of bytes to generate
+     * @return The random bytes
+     * @throws KEzSignException If there is an error
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     */
+    public byte[] generateRandomBytes(String channelName, int numBytes) throws KEzSignException, KEzSignConnectException
+    {
+        KGenRandomReqMsg msg = new KGenRandomReqMsg(channelName, numBytes);
+
+        return readGenRandomResponse(sendMessage(msg));
+    }
+
+    /**
+     * Processes the response to a generate random request
+     *
+     * @param response The response
+     * @return The random bytes
+     * @throws KEzSignException If there is an error
+     */
+    private byte[] readGenRandomResponse(byte[] response) throws KEzSignException
+    {
+        KGenRandomRespMsg resp = new KGenRandomRespMsg(response, m_binaryFormat);
+        int respCode = resp.getResponseCode();
+        if (respCode != KGenRandomRespMsg.RESP_OK)
+        {
+            String error = resp.getErrorMessage();
+            switch (respCode)
+            {
+                case KEzSignRespMsg.RESP_GENERAL_EXCEPTION:
+                    throw new KEzSignException(error);
+            }
+        }
+        return resp.getRandomBytes();
+    }
+
+    /**
+     * Verifies a signature
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param signature The PKCS7 signature data to verify
+     * @param contentBytes The content that was signed
+     * @param dataIsDigest True if the data is a digest (already hashed)
+     * @throws KVerificationException If there is a signature verification error
+     * @throws KPathException If there is a path building error
+     * @throws KRevocationException If there is a revocation check error
+     * @throws KEzSignException If there is an error
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     */
+    public void verifySignature(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest)
+            throws KVerificationException, KPathException, KRevocationException, KEzSignException, KEzSignConnectException
+    {
+        verifySignature(channelName, signature, contentBytes, dataIsDigest, false, false, KVerifySignatureReqMsg.SIG_TYPE_PKCS7,
+                null, null);
+    }
+
+    /**
+     * Verifies a raw signature
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param signature The RAW signature data to verify
+     * @param contentBytes The content that was signed
+     * @param dataIsDigest True if the data is a digest (already hashed)
+     * @param signerCert The cert that signed the data
+     * @throws KVerificationException If there is a signature verification error
+     * @throws KPathException If there is a path building error
+     * @throws KRevocationException If there is a revocation check error
+     * @throws KEzSignException If there is an error
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     */
+    public void verifyRawSignature(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest, X509Certificate signerCert)
+            throws KVerificationException, KPathException, KRevocationException, KEzSignException, KEzSignConnectException
+    {
+        verifySignature(channelName, signature, contentBytes, dataIsDigest, false, false, KVerifySignatureReqMsg.SIG_TYPE_RAW,
+                signerCert, null);
+    }
+
+    /**
+     * Verifies a raw signature.  Allows other certificates in the chain to be supplied
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param signature The RAW signature data to verify
+     * @param contentBytes The content that was signed
+     * @param dataIsDigest True if the data is a digest (already hashed)
+     * @param signerCert The cert that signed the data
+     * @param otherCerts Other certs in the path - required if they are not present on the server
+     * @throws KVerificationException If there is a signature verification error
+     * @throws KPathException If there is a path building error
+     * @throws KRevocationException If there is a revocation check error
+     * @throws KEzSignException If there is an error
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     */
+    public void verifyRawSignature(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest,
+                                   X509Certificate signerCert, X509Certificate[] otherCerts)
+            throws KVerificationException, KPathException, KRevocationException, KEzSignException, KEzSignConnectException
+    {
+        verifySignature(channelName, signature, contentBytes, dataIsDigest, false, false, KVerifySignatureReqMsg.SIG_TYPE_RAW,
+                signerCert, otherCerts);
+    }
+
+    /**
+     * Verifies a raw signature.  Allows other certificates in the chain to be supplied and
+     * the bypassing of revocation checking and path building
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param signature The RAW signature data to verify
+     * @param contentBytes The content that was signed
+     * @param dataIsDigest True if the data is a digest (already hashed)
+     * @param signerCert The cert that signed the data
+     * @param otherCerts Other certs in the path - required if they are not present on the server
+     * @param bypassRevocationCheck If true, revocation checking will be skipped
+     * @param bypassPathBuild If true, path building will be skipped
+     * @throws KVerificationException If there is a signature verification error
+     * @throws KPathException If there is a path building error
+     * @throws KRevocationException If there is a revocation check error
+     * @throws KEzSignException If there is an error
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     */
+    public void verifyRawSignature(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest,
+                                   X509Certificate signerCert, X509Certificate[] otherCerts, boolean bypassRevocationCheck,
+                                   boolean bypassPathBuild)
+            throws KVerificationException, KPathException, KRevocationException, KEzSignException, KEzSignConnectException
+    {
+        verifySignature(channelName, signature, contentBytes, dataIsDigest, bypassRevocationCheck, bypassPathBuild,
+                KVerifySignatureReqMsg.SIG_TYPE_RAW, signerCert, otherCerts);
+    }
+
+    /**
+     * Verifies a signature.  Allows the bypassing of revocation checking and path building
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param signature The RAW signature data to verify
+     * @param contentBytes The content that was signed
+     * @param dataIsDigest True if the data is a digest (already hashed)
+     * @param bypassRevocationCheck If true, revocation checking will be skipped
+     * @param bypassPathBuild If true, path building will be skipped
+     * @throws KVerificationException If there is a signature verification error
+     * @throws KPathException If there is a path building error
+     * @throws KRevocationException If there is a revocation check error
+     * @throws KEzSignException If there is an error
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     */
+    public void verifySignature(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest,
+                                   boolean bypassRevocationCheck, boolean bypassPathBuild)
+            throws KVerificationException, KPathException, KRevocationException, KEzSignException, KEzSignConnectException
+    {
+        verifySignature(channelName, signature, contentBytes, dataIsDigest,
+                bypassRevocationCheck, bypassPathBuild, KVerifySignatureReqMsg.SIG_TYPE_PKCS7, null, null);
+    }
+
+    /**
+     * Verifies a raw signature.  Allows the bypassing of revocation checking and path building
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param signature The RAW signature data to verify
+     * @param contentBytes The content that was signed
+     * @param dataIsDigest True if the data is a digest (already hashed)
+     * @param bypassRevocationCheck If true, revocation checking will be skipped
+     * @param bypassPathBuild If true, path building will be skipped
+     * @param signerCert The cert that signed the data
+     * @param otherCerts Other certs in the path - required if they are not present on the server
+     * @throws KVerificationException If there is a signature verification error
+     * @throws KPathException If there is a path building error
+     * @throws KRevocationException If there is a revocation check error
+     * @throws KEzSignException If there is an error
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     */
+    public void verifyRawSignature(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest,
+                                   boolean bypassRevocationCheck, boolean bypassPathBuild,
+                                   X509Certificate signerCert, X509Certificate[] otherCerts)
+            throws KVerificationException, KPathException, KRevocationException, KEzSignException, KEzSignConnectException
+    {
+        verifySignature(channelName, signature, contentBytes, dataIsDigest,
+                bypassRevocationCheck, bypassPathBuild, KVerifySignatureReqMsg.SIG_TYPE_RAW, signerCert, otherCerts);
+    }
+
+    /**
+     * All verify signature calls ultimately call this method which includes all parameters
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param signature The RAW signature data to verify
+     * @param contentBytes The content that was signed
+     * @param dataIsDigest True if the data is a digest (already hashed)
+     * @param bypassRevocationCheck If true, revocation checking will be skipped
+     * @param bypassPathBuild If true, path building will be skipped
+     * @param signatureType IF the signature is SIG_TYPE_PKCS7 or SIG_TYPE_RAW
+     * @throws KVerificationException If there is a signature verification error
+     * @throws KPathException If there is a path building error
+     * @throws KRevocationException If there is a revocation check error
+     * @throws KEzSignException If there is an error
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     */
+    private void verifySignature(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest,
+                                 boolean bypassRevocationCheck, boolean bypassPathBuild, int signatureType,
+                                 X509Certificate signerCert, X509Certificate[] otherCerts)
+            throws KVerificationException, KPathException, KRevocationException, KEzSignException, KEzSignConnectException
+    {
+        KVerifySignatureReqMsg msg = new KVerifySignatureReqMsg(channelName, signature, contentBytes, dataIsDigest,
+                bypassRevocationCheck, bypassPathBuild, signatureType, signerCert, otherCerts);
+
+        readVerifySignatureResponse(sendMessage(msg));
+    }
+
+    /**
+     * Processes the response to a verify signature request
+     *
+     * @param response The response
+     * @throws KVerificationException If there is a signature verification error
+     * @throws KPathException If there is a path building error
+     * @throws KRevocationException If there is a revocation check error
+     * @throws KEzSignException If there is an error
+     */
+    private void readVerifySignatureResponse(byte[] response)
+            throws KVerificationException, KPathException, KRevocationException, KEzSignException
+    {
+        KVerifySignatureRespMsg resp = new KVerifySignatureRespMsg(response, m_binaryFormat);
+        int respCode = resp.getResponseCode();
+        if (respCode != KSignDataRespMsg.RESP_OK)
+        {
+            String error = resp.getErrorMessage();
+            switch (respCode)
+            {
+                case KEzSignRespMsg.RESP_GENERAL_EXCEPTION:
+                    throw new KEzSignException(error);
+                case KEzSignRespMsg.RESP_VERIFICATION_EXCEPTION:
+                    throw new KVerificationException(error);
+                case KEzSignRespMsg.RESP_REVOCATION_EXCEPTION:
+                    throw new KRevocationException(error);
+                case KEzSignRespMsg.RESP_PATH_EXCEPTION:
+                    throw new KPathException(error);
+            }
+        }
+    }
+
+    /**
+     * Encrypts the data provided in dataToEncrypt with the key referenced by keyLabel
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param dataToEncrypt The data to encrypt
+     * @param keyLabel The name of the key to perfom the decryption - as configured on the server
+     * @return The encrypted data
+     * @throws KEzSignException If there is an error
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     * @throws KEncipherException If there is an error encrypting
+     */
+    public byte[] encryptData(String channelName, byte[] dataToEncrypt, String keyLabel) throws KEzSignException, KEzSignConnectException, KEncipherException
+    {
+        KEncipherReqMsg msg = new KEncipherReqMsg(channelName, true, dataToEncrypt, keyLabel);
+
+        return readEncipherResponse(sendMessage(msg));
+    }
+
+    /**
+     * Processes the response to an encrypt or decrypt request
+     *
+     * @param response The response
+     * @return The encrypted or decrypted data
+     * @throws KEzSignException If there is an error
+     * @throws KEncipherException If there is an error encrypting or decrypting
+     */
+    private byte[] readEncipherResponse(byte[] response) throws KEzSignException, KEncipherException
+    {
+        KEncipherRespMsg resp = new KEncipherRespMsg(response, m_binaryFormat);
+        int respCode = resp.getResponseCode();
+        if (respCode != KSignDataRespMsg.RESP_OK)
+        {
+            String error = resp.getErrorMessage();
+            switch (respCode)
+            {
+                case KEzSignRespMsg.RESP_GENERAL_EXCEPTION:
+                    throw new KEzSignException(error);
+                case KEzSignRespMsg.RESP_ENCIPHER_EXCEPTION:
+                    throw new KEncipherException(error);
+            }
+        }
+
+        return resp.getData();
+    }
+
+    /**
+     * Decrypts data previously encrypted with encryptData using the key referenced by keyLabel
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param encryptedData The encrypted data
+     * @param keyLabel The name of the key to perfom the decryption - as configured on the server
+     * @return THe clear data
+     * @throws KEzSignException If there is an error
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     * @throws KEncipherException If there is an error decrypting
+     */
+    public byte[] decryptData(String channelName, byte[] encryptedData, String keyLabel) throws KEzSignException, KEzSignConnectException, KEncipherException
+    {
+        KEncipherReqMsg msg = new KEncipherReqMsg(channelName, false, encryptedData, keyLabel);
+
+        return readEncipherResponse(sendMessage(msg));
+    }
+
+    /**
+     * Generates a signature without blocking the calling thread
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param dataToSign The data to sign
+     * @param isDigest True if the data is a digest (already hashed)
+     * @return Completes with the signature, or exceptionally as signData would throw
+     */
+    public CompletableFuture<byte[]> signDataAsync(String channelName, byte[] dataToSign, boolean isDigest)
+    {
+        return signDataAsync(channelName, dataToSign, isDigest, null);
+    }
+
+    /**
+     * Generates a signature without blocking the calling thread
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param dataToSign The data to sign
+     * @param isDigest True if the data is a digest (already hashed)
+     * @param executor Runs the processing of the response and any blocking I/O.  If null the client's own threads are used
+     * @return Completes with the signature, or exceptionally with KSigningException, KEzSignException or
+     *         KEzSignConnectException
+     */
+    public CompletableFuture<byte[]> signDataAsync(String channelName, byte[] dataToSign, boolean isDigest, Executor executor)
+    {
+        try
+        {
+            return sendMessageAsync(new KSignDataReqMsg(channelName, dataToSign, isDigest), new KResponseReader<byte[]>()
+            {
+                public byte[] read(byte[] response) throws Exception
+                {
+                    return readSignDataResponse(response);
+                }
+            }, executor);
+        }
+        catch (KEzSignException e)
+        {
+            return failedFuture(e);
+        }
+    }
+
+    /**
+     * Generates the number of random bytes requested without blocking the calling thread
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param numBytes The number of bytes to generate
+     * @return Completes with the random bytes, or exceptionally as generateRandomBytes would throw
+     */
+    public CompletableFuture<byte[]> generateRandomBytesAsync(String channelName, int numBytes)
+    {
+        return generateRandomBytesAsync(channelName, numBytes, null);
+    }
+
+    /**
+     * Generates the number of random bytes requested without blocking the calling thread
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param numBytes The number of bytes to generate
+     * @param executor Runs the processing of the response and any blocking I/O.  If null the client's own threads are used
+     * @return Completes with the random bytes, or exceptionally with KEzSignException or KEzSignConnectException
+     */
+    public CompletableFuture<byte[]> generateRandomBytesAsync(String channelName, int numBytes, Executor executor)
+    {
+        try
+        {
+            return sendMessageAsync(new KGenRandomReqMsg(channelName, numBytes), new KResponseReader<byte[]>()
+            {
+                public byte[] read(byte[] response) throws Exception
+                {
+                    return readGenRandomResponse(response);
+                }
+            }, executor);
+        }
+        catch (KEzSignException e)
+        {
+            return failedFuture(e);
+        }
+    }
+
+    /**
+     * Verifies a signature without blocking the calling thread
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param signature The PKCS7 signature data to verify
+     * @param contentBytes The content that was signed
+     * @param dataIsDigest True if the data is a digest (already hashed)
+     * @return Completes when the signature has verified, or exceptionally as verifySignature would throw
+     */
+    public CompletableFuture<Void> verifySignatureAsync(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest)
+    {
+        return verifySignatureAsync(channelName, signature, contentBytes, dataIsDigest, false, false, null);
+    }
+
+    /**
+     * Verifies a signature without blocking the calling thread.  Allows the bypassing of revocation checking and path building
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param signature The PKCS7 signature data to verify
+     * @param contentBytes The content that was signed
+     * @param dataIsDigest True if the data is a digest (already hashed)
+     * @param bypassRevocationCheck If true, revocation checking will be skipped
+     * @param bypassPathBuild If true, path building will be skipped
+     * @param executor Runs the processing of the response and any blocking I/O.  If null the client's own threads are used
+     * @return Completes when the signature has verified, or exceptionally with KVerificationException, KPathException,
+     *         KRevocationException, KEzSignException or KEzSignConnectException
+     */
+    public CompletableFuture<Void> verifySignatureAsync(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest,
+                                                        boolean bypassRevocationCheck, boolean bypassPathBuild, Executor executor)
+    {
+        return verifySignatureAsync(channelName, signature, contentBytes, dataIsDigest, bypassRevocationCheck, bypassPathBuild,
+                KVerifySignatureReqMsg.SIG_TYPE_PKCS7, null, null, executor);
+    }
+
+    /**
+     * Verifies a raw signature without blocking the calling thread
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param signature The RAW signature data to verify
+     * @param contentBytes The content that was signed
+     * @param dataIsDigest True if the data is a digest (already hashed)
+     * @param signerCert The cert that signed the data
+     * @param otherCerts Other certs in the path - required if they are not present on the server.  May be null
+     * @return Completes when the signature has verified, or exceptionally as verifyRawSignature would throw
+     */
+    public CompletableFuture<Void> verifyRawSignatureAsync(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest,
+                                                           X509Certificate signerCert, X509Certificate[] otherCerts)
+    {
+        return verifyRawSignatureAsync(channelName, signature, contentBytes, dataIsDigest, false, false, signerCert, otherCerts, null);
+    }
+
+    /**
+     * Verifies a raw signature without blocking the calling thread.  Allows the bypassing of revocation checking and path building
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param signature The RAW signature data to verify
+     * @param contentBytes The content that was signed
+     * @param dataIsDigest True if the data is a digest (already hashed)
+     * @param bypassRevocationCheck If true, revocation checking will be skipped
+     * @param bypassPathBuild If true, path building will be skipped
+     * @param signerCert The cert that signed the data
+     * @param otherCerts Other certs in the path - required if they are not present on the server.  May be null
+     * @param executor Runs the processing of the response and any blocking I/O.  If null the client's own threads are used
+     * @return Completes when the signature has verified, or exceptionally with KVerificationException, KPathException,
+     *         KRevocationException, KEzSignException or KEzSignConnectException
+     */
+    public CompletableFuture<Void> verifyRawSignatureAsync(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest,
+                                                           boolean bypassRevocationCheck, boolean bypassPathBuild,
+                                                           X509Certificate signerCert, X509Certificate[] otherCerts, Executor executor)
+    {
+        return verifySignatureAsync(channelName, signature, contentBytes, dataIsDigest, bypassRevocationCheck, bypassPathBuild,
+                KVerifySignatureReqMsg.SIG_TYPE_RAW, signerCert, otherCerts, executor);
+    }
+
+    /**
+     * All asynchronous verify signature calls ultimately call this method
+     */
+    private CompletableFuture<Void> verifySignatureAsync(String channelName, byte[] signature, byte[] contentBytes, boolean dataIsDigest,
+                                                         boolean bypassRevocationCheck, boolean bypassPathBuild, int signatureType,
+                                                         X509Certificate signerCert, X509Certificate[] otherCerts, Executor executor)
+    {
+        try
+        {
+            KVerifySignatureReqMsg msg = new KVerifySignatureReqMsg(channelName, signature, contentBytes, dataIsDigest,
+                    bypassRevocationCheck, bypassPathBuild, signatureType, signerCert, otherCerts);
+
+            return sendMessageAsync(msg, new KResponseReader<Void>()
+            {
+                public Void read(byte[] response) throws Exception
+                {
+                    readVerifySignatureResponse(response);
+                    return null;
+                }
+            }, executor);
+        }
+        catch (KEzSignException e)
+        {
+            return failedFuture(e);
+        }
+    }
+
+    /**
+     * Encrypts data without blocking the calling thread
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param dataToEncrypt The data to encrypt
+     * @param keyLabel The name of the key to perfom the encryption - as configured on the server
+     * @return Completes with the encrypted data, or exceptionally as encryptData would throw
+     */
+    public CompletableFuture<byte[]> encryptDataAsync(String channelName, byte[] dataToEncrypt, String keyLabel)
+    {
+        return encipherAsync(channelName, true, dataToEncrypt, keyLabel, null);
+    }
+
+    /**
+     * Encrypts data without blocking the calling thread
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param dataToEncrypt The data to encrypt
+     * @param keyLabel The name of the key to perfom the encryption - as configured on the server
+     * @param executor Runs the processing of the response and any blocking I/O.  If null the client's own threads are used
+     * @return Completes with the encrypted data, or exceptionally with KEncipherException, KEzSignException or
+     *         KEzSignConnectException
+     */
+    public CompletableFuture<byte[]> encryptDataAsync(String channelName, byte[] dataToEncrypt, String keyLabel, Executor executor)
+    {
+        return encipherAsync(channelName, true, dataToEncrypt, keyLabel, executor);
+    }
+
+    /**
+     * Decrypts data without blocking the calling thread
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param encryptedData The encrypted data
+     * @param keyLabel The name of the key to perfom the decryption - as configured on the server
+     * @return Completes with the clear data, or exceptionally as decryptData would throw
+     */
+    public CompletableFuture<byte[]> decryptDataAsync(String channelName, byte[] encryptedData, String keyLabel)
+    {
+        return encipherAsync(channelName, false, encryptedData, keyLabel, null);
+    }
+
+    /**
+     * Decrypts data without blocking the calling thread
+     *
+     * @param channelName The name of the EzSign channel to process the request
+     * @param encryptedData The encrypted data
+     * @param keyLabel The name of the key to perfom the decryption - as configured on the server
+     * @param executor Runs the processing of the response and any blocking I/O.  If null the client's own threads are used
+     * @return Completes with the clear data, or exceptionally with KEncipherException, KEzSignException or
+     *         KEzSignConnectException
+     */
+    public CompletableFuture<byte[]> decryptDataAsync(String channelName, byte[] encryptedData, String keyLabel, Executor executor)
+    {
+        return encipherAsync(channelName, false, encryptedData, keyLabel, executor);
+    }
+
+    private CompletableFuture<byte[]> encipherAsync(String channelName, boolean encrypt, byte[] data, String keyLabel, Executor executor)
+    {
+        try
+        {
+            return sendMessageAsync(new KEncipherReqMsg(channelName, encrypt, data, keyLabel), new KResponseReader<byte[]>()
+            {
+                public byte[] read(byte[] response) throws Exception
+                {
+                    return readEncipherResponse(response);
+                }
+            }, executor);
+        }
+        catch (KEzSignException e)
+        {
+            return failedFuture(e);
+        }
+    }
+
+    /**
+     * Returns the pool of pre-connected sockets for the endpoint, creating it if required
+     *
+     * @param route The endpoint
+     * @return The pool or null if not in use
+     */
+    private KSocketPool getSocketPool(Route route)
+    {
+        m_transportLock.lock();
+        try
+        {
+            if (m_socketPoolSize <= 0 || route.m_closed)
+                return null;
+
+            if (route.m_socketPool == null)
+            {
+                route.m_socketPool = new KSocketPool(route.getHost(), route.getPort(), route, m_socketPoolSize, m_socketPoolIdleExpiryMs);
+            }
+
+            return route.m_socketPool;
+        }
+        finally
+        {
+            m_transportLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the pools of pre-connected sockets, if there are any
+     */
+    private void closeSocketPool()
+    {
+        m_transportLock.lock();
+        try
+        {
+            for (Route route : m_routes)
+            {
+                if (route.m_socketPool != null)
+                {
+                    route.m_socketPool.close();
+                    route.m_socketPool = null;
+                }
+            }
+        }
+        finally
+        {
+            m_transportLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the pool of keep-alive connections for the endpoint, creating it if required
+     *
+     * @param route The endpoint
+     * @return The pool or null if not in use
+     */
+    private KConnectionPool getConnectionPool(Route route)
+    {
+        m_transportLock.lock();
+        try
+        {
+            if (m_keepAliveMaxConnections <= 0 || route.m_closed)
+                return null;
+
+            if (route.m_connectionPool == null)
+                route.m_connectionPool = new KConnectionPool(route.getHost(), route.getPort(), route, m_framing,
+                        m_keepAliveMaxConnections, m_keepAliveIdleTimeoutMs);
+
+            return route.m_connectionPool;
+        }
+        finally
+        {
+            m_transportLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the pools of keep-alive connections, if there are any
+     */
+    private void closeConnectionPool()
+    {
+        m_transportLock.lock();
+        try
+        {
+            for (Route route : m_routes)
+            {
+                if (route.m_connectionPool != null)
+                {
+                    route.m_connectionPool.close();
+                    route.m_connectionPool = null;
+                }
+            }
+        }
+        finally
+        {
+            m_transportLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the multiplexed connections for the endpoint, creating them if required
+     *
+     * @param route The endpoint
+     * @return The multiplexed connections or null if not in use
+     */
+    private KMuxPool getMuxPool(Route route)
+    {
+        m_transportLock.lock();
+        try
+        {
+            if (m_muxConnections <= 0 || route.m_closed)
+                return null;
+
+            if (route.m_muxPool == null)
+                route.m_muxPool = new KMuxPool(route.getHost(), route.getPort(), route, m_framing, m_muxConnections);
+
+            return route.m_muxPool;
+        }
+        finally
+        {
+            m_transportLock.unlock();
+        }
+    }
+
+    /**
+     * Closes the multiplexed connections, if there are any
+     */
+    private void closeMuxPool()
+    {
+        m_transportLock.lock();
+        try
+        {
+            for (Route route : m_routes)
+            {
+                if (route.m_muxPool != null)
+                {
+                    route.m_muxPool.close();
+                    route.m_muxPool = null;
+                }
+            }
+        }
+        finally
+        {
+            m_transportLock.unlock();
+        }
+    }
+
+    /**
+     * Replaces the first endpoint, closing the pools to the old one
+     *
+     * @param host The new host
+     * @param port The new port
+     */
+    private void replaceFirstRoute(String host, int port)
+    {
+        m_transportLock.lock();
+        try
+        {
+            Route[] routes = m_routes.clone();
+            Route old = routes[0];
+            routes[0] = newRoute(host, port);
+            m_routes = routes;
+
+            old.m_closed = true;
+            if (old.m_socketPool != null)
+                old.m_socketPool.close();
+            if (old.m_connectionPool != null)
+                old.m_connectionPool.close();
+            if (old.m_muxPool != null)
+                old.m_muxPool.close();
+        }
+        finally
+        {
+            m_transportLock.unlock();
+        }
+    }
+
+    /**
+     * Creates an endpoint, with a circuit breaker if in use
+     *
+     * @param host The host
+     * @param port The port
+     * @return The endpoint
+     */
+    private Route newRoute(String host, int port)
+    {
+        Route route = new Route(host, port);
+        if (m_breakerFailureThreshold > 0)
+            route.setCircuitBreaker(newCircuitBreaker());
+        return route;
+    }
+
+    private KCircuitBreaker newCircuitBreaker()
+    {
+        return new KCircuitBreaker(m_breakerFailureThreshold, m_breakerOpenMs, m_breakerRampUpMs);
+    }
+
+    /**
+     * Chooses the endpoint for a request
+     *
+     * @return The endpoint
+     * @throws KEzSignConnectException If circuit breakers are in use and every endpoint is open
+     */
+    private Route selectRoute() throws KEzSignConnectException
+    {
+        Route[] routes = m_routes;
+        if (m_breakerFailureThreshold > 0)
+            routes = getAvailableRoutes(routes);
+
+        if (routes.length == 1)
+            return routes[0];
+
+        return routes[m_loadBalancer.select(routes)];
+    }
+
+    /**
+     * Returns the endpoints whose circuits are closed.  An endpoint that is ramping up after its circuit closed
+     * is only included for its share of requests.  If an open endpoint is due a trial request, it is given this one
+     *
+     * @param routes All endpoints
+     * @return The endpoints to choose from, at least one
+     * @throws KEzSignConnectException If every endpoint is open
+     */
+    private Route[] getAvailableRoutes(Route[] routes) throws KEzSignConnectException
+    {
+        long now = System.nanoTime();
+        KOutlierDetector outlierDetector = m_outlierDetector;
+        if (outlierDetector != null)
+            outlierDetector.check(routes, now);
+
+        for (Route route : routes)
+        {
+            if (route.getCircuitBreaker().tryTrial(now))
+                return new Route[] { route };
+        }
+
+        Route[] available = new Route[routes.length];
+        Route[] closed = new Route[routes.length];
+        int numAvailable = 0;
+        int numClosed = 0;
+        for (Route route : routes)
+        {
+            double share = route.getCircuitBreaker().getTrafficShare(now);
+            if (share <= 0)
+                continue;
+
+            closed[numClosed++] = route;
+            if (share >= 1 || ThreadLocalRandom.current().nextDouble() < share)
+                available[numAvailable++] = route;
+        }
+
+        if (numAvailable == routes.length)
+            return routes;
+        if (numAvailable > 0)
+            return Arrays.copyOf(available, numAvailable);
+
+        // Only endpoints that are ramping up, and none were picked.  They are still better than failing
+        if (numClosed > 0)
+            return Arrays.copyOf(closed, numClosed);
+
+        throw new KEzSignConnectException("No EzSign server is available.  The circuit breakers of all " + routes.length +
+                " endpoints are open following repeated failures.  The first is host " + routes[0].getHost() + " port " + routes[0].getPort());
+    }
+
+    /**
+     * Returns the non-blocking transport, creating it if required
+     *
+     * @return The transport or null if not in use
+     * @throws IOException If the I/O threads cannot be started
+     */
+    private KNioTransport getOrCreateNioTransport() throws IOException
+    {
+        m_transportLock.lock();
+        try
+        {
+            if (m_nioIoThreads <= 0)
+                return null;
+
+            if (m_nioTransport == null)
+                m_nioTransport = new KNioTransport(m_nioIoThreads, m_framing, m_useTls ? m_tlsContext : null,
+                        m_connectTimeoutMs, m_readTimeoutMs);
+
+            return m_nioTransport;
+        }
+        finally
+        {
+            m_transportLock.unlock();
+        }
+    }
+
+    /**
+     * Stops the non-blocking transport, if running
+     */
+    private void closeNioTransport()
+    {
+        m_transportLock.lock();
+        try
+        {
+            if (m_nioTransport != null)
+            {
+                m_nioTransport.close();
+                m_nioTransport = null;
+            }
+        }
+        finally
+        {
+            m_transportLock.unlock();
+        }
+    }
+
+    /**
+     * Closes all pools and transports, e.g. when a setting they depend on changes
+     */
+    private void closeTransports()
+    {
+        closeSocketPool();
+        closeConnectionPool();
+        closeMuxPool();
+        closeNioTransport();
+    }
+
+    /**
+     * Connects to the server
+     *
+     * @param host The host to connect to
+     * @param port The port to connect to
+     * @param route The endpoint.  Retries stop if its circuit opens
+     * @param deadline The call's deadline.  Each attempt, and the retries, stop when it passes and
+     *                 the socket is closed if the call is cancelled
+     * @return The connected socket, owned by the caller
+     * @throws KEzSignConnectException If unable to connect
+     */
+    private Socket connect(String host, int port, Route route, KDeadline deadline) throws KEzSignConnectException
+    {
+        // Under extreme server load (nearing 100% )the client may not be connect
+        // We therefore, retry as the retry policy allows until the connection timeout is reached
+        long startTime = System.nanoTime();
+        int attempt = 0;
+
+        while (true)
+        {
+            attempt++;
+            Socket socket = new Socket();
+            try
+            {
+                deadline.attach(socket);
+                try
+                {
+                    if (m_useTls)
+                        socket = m_tlsContext.connect(socket, host, port, deadline.limit(CONNECT_TIMEOUT), deadline.limit(m_readTimeoutMs));
+                    else
+                        socket.connect(new InetSocketAddress(host, port), deadline.limit(CONNECT_TIMEOUT));
+                }
+                finally
+                {
+                    deadline.detach(socket);
+                }
+                socket.setSoLinger(true, 0);
+                socket.setSoTimeout(m_readTimeoutMs);
+
+                return socket;
+            }
+            catch (Exception exception)
+            {
+                // If we get here the socket is probably overloaded, trying to reconnect
+                // will just keep failing, so the next attempt uses a new one
+                disconnect(socket);
+
+                long remainingMs = Math.min(m_connectTimeoutMs - (System.nanoTime() - startTime) / 1000000, deadline.getRemainingMs());
+                if (!waitToRetry(route, attempt, remainingMs, deadline))
+                {
+                    throw new KEzSignConnectException("There was an error connecting to the EzSign server. " +
+                            "Ensure the server is running on host " + host + " and listening on port " + port +
+                            " and there is connectivity between this client and the server. " +
+                            "If auth code is in use, check both the client and server are using the same code. " + exception.getMessage());
+                }
+
+            }
+        }
+    }
+
+    /**
+     * Decides whether a failed attempt is tried again: not if the endpoint's circuit has opened, the retry policy
+     * allows no more attempts or the retry budget is used up
+     *
+     * @param route The endpoint
+     * @param attempt The number of attempts made so far, from 1
+     * @param remainingMs The time left for the request.  It is given up if the wait would be longer
+     * @return The time to wait before trying again in ms, or -1 to give up
+     */
+    private long getRetryWaitMs(Route route, int attempt, long remainingMs)
+    {
+        KRetryBudget retryBudget = m_retryBudget;
+        long waitMs = route.isCircuitOpen() ? -1 : m_retryPolicy.getBackoffMs(attempt);
+        if (waitMs < 0 || waitMs > remainingMs)
+        {
+            retryBudget.onGiveUp();
+            return -1;
+        }
+
+        return retryBudget.tryRetry() ? waitMs : -1;
+    }
+
+    /**
+     * Decides whether a failed attempt is tried again (see getRetryWaitMs) and if so, waits before the retry
+     *
+     * @param route The endpoint
+     * @param attempt The number of attempts made so far, from 1
+     * @param deadline The call's deadline.  The wait ends early if the call is cancelled
+     * @return True to try again
+     */
+    private boolean waitToRetry(Route route, int attempt, KDeadline deadline)
+    {
+        return waitToRetry(route, attempt, deadline.getRemainingMs(), deadline);
+    }
+
+    /**
+     * As waitToRetry, with a time left that may be less than the deadline's
+     *
+     * @param route The endpoint
+     * @param attempt The number of attempts made so far, from 1
+     * @param remainingMs The time left for the request
+     * @param deadline The call's deadline.  The wait ends early if the call is cancelled
+     * @return True to try again
+     */
+    private boolean waitToRetry(Route route, int attempt, long remainingMs, KDeadline deadline)
+    {
+        if (deadline.isCancelled())
+            return false;
+
+        long waitMs = getRetryWaitMs(route, attempt, remainingMs);
+        if (waitMs < 0)
+            return false;
+
+        return waitMs == 0 || deadline.sleep(waitMs);
+    }
+
+    /**
+     * Disconnects from the server
+     *
+     * @param socket The socket to close, may be null
+     */
+    private void disconnect(Socket socket)
+    {
+        try
+        {
+            if (socket != null)
+            {
+                socket.close();
+                // This always throws an exception as the server
+                // closes the input and output streams
+            }
+        }
+        catch(Exception e)
+        {
+            //e.printStackTrace();
+        }
+    }
+
+    /**
+     * Formats the message as text or binary and encrypts it if using an auth code
+     *
+     * @param msg The message
+     * @return The message to send
+     * @throws KEzSignException If there is an error encrypting
+     */
+    private byte[] encodeMessage(KEzSignReqMsg msg) throws KEzSignException
+    {
+        if (m_binaryFormat)
+            return encryptMessage(msg.getBinaryMessage().encode());
+
+        // Without an auth code the clear text is the message sent.  It is written once, at its exact length,
+        // and is not pooled: it is held until the call completes (it may be sent again by a retry or hedge, or
+        // queued on a multiplexed or NIO connection), and the transports send whole arrays
+        if (!m_usingAuthCode)
+            return msg.getMessageBytes();
+
+        // The clear text is only needed until it is encrypted, so is written into a pooled buffer
+        int len = msg.getMessageLength();
+        byte[] buffer = m_clearBuffers.acquire(len);
+        try
+        {
+            msg.writeMessage(buffer, 0);
+            byte[] encMessage = m_encrypt.encryptBytes(buffer, 0, len);
+
+            byte[] b64Message = new byte[KBase64.getEncodedLength(encMessage.length)];
+            KBase64.encode(encMessage, 0, encMessage.length, b64Message, 0);
+            return b64Message;
+        }
+        catch (Exception e)
+        {
+            throw new KEzSignException("There was an error encrypting the message being sent to the " +
+                    "server with the auth code key. " + e.getMessage());
+        }
+        finally
+        {
+            m_clearBuffers.release(buffer);
+        }
+    }
+
+    /**
+     *
+     * @param clearMessage The clear data in the binary format
+     * @return The encrypted data, in the v2 envelope if in use
+     * @throws KEzSignException If there is an error encrypting
+     */
+    private byte[] encryptMessage(byte[] clearMessage) throws KEzSignException
+    {
+        try
+        {
+            byte[] encMessage = clearMessage;
+            if (m_authEnvelope != null)
+                encMessage = m_authEnvelope.sealRequest(clearMessage);
+            else if (m_usingAuthCode)
+                encMessage = m_encrypt.encryptBytes(clearMessage);
+
+            return encMessage;
+        }
+        catch (Exception e)
+        {
+            throw new KEzSignException("There was an error encrypting the message being sent to the " +
+                    "server with the auth code key. " + e.getMessage());
+        }
+    }
+
+    /**
+     *
+     * @param encMessage The encrypted message
+     * @param encRequest The request it answers, as sent.  A reply in the v2 envelope only opens as the reply to it
+     * @return The clear message
+     * @throws KEzSignException If there is an error decrypting
+     */
+    private byte[] decryptMessage(byte[] encMessage, byte[] encRequest) throws KEzSignException
+    {
+        try
+        {
+            byte[] clearMessage = encMessage;
+            if (m_authEnvelope != null)
+            {
+                clearMessage = m_authEnvelope.openReply(encRequest, encMessage);
+            }
+            else if (m_usingAuthCode)
+            {
+                if (!m_binaryFormat)
+                    encMessage = KBase64.decode(encMessage);
+                clearMessage = m_encrypt.decryptBytes(encMessage);
+            }
+
+            return clearMessage;
+        }
+        catch (Exception e)
+        {
+            throw new KEzSignException("There was an error decrypting the response message received from the " +
+                    "server with the auth code key. Check both the server and client are using the same auth code password. " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes one message to the connected socket and reads the response
+     *
+     * @param socket The connected socket
+     * @param encMessage The message, encrypted if using an auth code
+     * @return The response or null if the server closed the connection without responding
+     * @throws IOException If there is an error on the socket
+     */
+    private byte[] sendAndReceive(Socket socket, byte[] encMessage) throws IOException
+    {
+        KFraming framing = m_framing;
+
+        //Send the message to the server
+        OutputStream os = new BufferedOutputStream(socket.getOutputStream());
+        framing.write(os, KFraming.NO_CORRELATION_ID, encMessage);
+
+        //Get the return message from the server
+        KFrameInputStream is = new KFrameInputStream(socket.getInputStream());
+        KFrame encRespMessage = framing.read(is);
+
+        is.close();
+        os.close();
+
+        return (encRespMessage == null) ? null : encRespMessage.getMessage();
+    }
+
+    /**
+     *
+     * @param message The message
+     * @return True if no message was received
+     */
+    private static boolean isEmpty(byte[] message)
+    {
+        return message == null || message.length == 0;
+    }
+
+    /**
+     * Sends the message to the server and gets the response
+     * This is not synchronized - all socket and stream state is local to the call so any number
+     * of threads may have requests in flight on the same client
+     *
+     * @param msg The message
+     * @return The response, in the text or binary format
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     */
+    private byte[] sendMessage(KEzSignReqMsg msg) throws KEzSignConnectException
+    {
+        KDeadline deadline = getCallDeadline();
+        KRateLimiter.Reservation admission = admit(msg, deadline);
+        if (admission != null && admission.getWaitNs() > 0 &&
+                !deadline.sleep((admission.getWaitNs() + 999999) / 1000000))
+        {
+            // The message is not sent, so its tokens are given back for the calls waiting behind it
+            m_rateLimiter.cancel(admission);
+            throw new KCallCancelledException("The call to the EzSign server was cancelled");
+        }
+
+        KMemoryLimiter memoryLimiter = m_memoryLimiter;
+        if (memoryLimiter == null)
+            return sendReserved(msg, deadline);
+
+        long reservedBytes = msg.getPayloadSize();
+        reserveMemory(memoryLimiter, reservedBytes, deadline);
+        try
+        {
+            byte[] response = sendReserved(msg, deadline);
+            if (response != null)
+            {
+                memoryLimiter.add(response.length);
+                reservedBytes += response.length;
+            }
+            return response;
+        }
+        finally
+        {
+            memoryLimiter.release(reservedBytes);
+        }
+    }
+
+    /**
+     * Sends the message, once within the rate and memory limits, with a slot under the concurrency limit
+     *
+     * @param msg The message
+     * @param deadline The call's deadline
+     * @return The response, in the text or binary format
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     */
+    private byte[] sendReserved(KEzSignReqMsg msg, KDeadline deadline) throws KEzSignConnectException
+    {
+        KConcurrencyLimiter limiter = m_concurrencyLimiter;
+        if (limiter == null)
+            return sendLimited(msg, deadline);
+
+        acquireSlot(limiter, msg, deadline);
+        long startTime = System.nanoTime();
+        boolean failed = true;
+        try
+        {
+            byte[] response = sendLimited(msg, deadline);
+            failed = false;
+            return response;
+        }
+        finally
+        {
+            releaseSlot(limiter, startTime, failed, deadline);
+        }
+    }
+
+    /**
+     * Sends the message, once within the rate, memory and concurrency limits
+     *
+     * @param msg The message
+     * @param deadline The call's deadline
+     * @return The response, in the text or binary format
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     */
+    private byte[] sendLimited(KEzSignReqMsg msg, KDeadline deadline) throws KEzSignConnectException
+    {
+        KHedgePolicy hedgePolicy = m_hedgePolicy;
+        if (hedgePolicy != null && isHedgeable(msg))
+            return sendHedged(msg, getPriority(msg), selectRoute(), hedgePolicy, deadline);
+
+        return sendMessage(msg, selectRoute(), deadline);
+    }
+
+    /**
+     * Waits for a slot under the concurrency limit, in turn with the other requests of the same priority and
+     * channel
+     *
+     * @param limiter The concurrency limiter
+     * @param msg The message
+     * @param deadline The call's deadline.  The call does not wait beyond it
+     * @throws KLoadShedException If the queue is full or no slot was free within the max queue wait
+     * @throws KCallCancelledException If the call was cancelled while waiting
+     */
+    private void acquireSlot(KConcurrencyLimiter limiter, KEzSignReqMsg msg, KDeadline deadline) throws KEzSignConnectException
+    {
+        CompletableFuture<Void> slot = limiter.acquire(getPriority(msg), msg.getChannelName(), msg.getPayloadSize());
+        if (slot == null)
+            throw new KLoadShedException("The request was not sent as the client's concurrency limit of " +
+                    limiter.getLimit() + " was reached and the queue is full");
+
+        // The slot may be given just as the wait ends
+        if (slot.isDone() || awaitGrant(slot, m_maxQueueWaitMs, deadline) || !limiter.cancel(slot))
+            return;
+
+        if (deadline.isCancelled())
+            throw new KCallCancelledException("The call to the EzSign server was cancelled");
+        throw new KLoadShedException("The request was not sent as no slot under the client's concurrency limit of " +
+                limiter.getLimit() + " was free within " + m_maxQueueWaitMs + "ms");
+    }
+
+    /**
+     * Reserves the bytes for a call under the memory limit, waiting if they are not available
+     *
+     * @param limiter The memory limiter
+     * @param bytes The bytes
+     * @param deadline The call's deadline.  The call does not wait beyond it
+     * @throws KLoadShedException If the bytes were not available within the max wait
+     * @throws KCallCancelledException If the call was cancelled while waiting
+     */
+    private void reserveMemory(KMemoryLimiter limiter, long bytes, KDeadline deadline) throws KEzSignConnectException
+    {
+        CompletableFuture<Void> reservation = limiter.acquire(bytes);
+
+        // The bytes may be reserved just as the wait ends
+        if (reservation.isDone() || awaitGrant(reservation, m_maxMemoryWaitMs, deadline) || !limiter.cancel(reservation))
+            return;
+
+        if (deadline.isCancelled())
+            throw new KCallCancelledException("The call to the EzSign server was cancelled");
+        throw new KLoadShedException("The request was not sent as the client's limit of " + limiter.getMaxBytes() +
+                " bytes in progress was reached and " + bytes + " bytes were not free within " + m_maxMemoryWaitMs + "ms");
+    }
+
+    /**
+     * Takes a slot under the concurrency limit only if one is free now
+     *
+     * @param limiter The concurrency limiter
+     * @param msg The message
+     * @param priority The message's priority
+     * @return True if a slot was taken.  Give it back with release
+     */
+    private static boolean tryAcquireSlot(KConcurrencyLimiter limiter, KEzSignReqMsg msg, int priority)
+    {
+        CompletableFuture<Void> slot = limiter.acquire(priority, msg.getChannelName(), msg.getPayloadSize());
+
+        // The slot may be given just as it is cancelled
+        return slot != null && (slot.isDone() || !limiter.cancel(slot));
+    }
+
+    /**
+     * Reserves bytes under the memory limit only if they are free now
+     *
+     * @param limiter The memory limiter
+     * @param bytes The bytes
+     * @return True if the bytes were reserved.  Give them back with release
+     */
+    private static boolean tryReserveMemory(KMemoryLimiter limiter, long bytes)
+    {
+        CompletableFuture<Void> reservation = limiter.acquire(bytes);
+        return reservation.isDone() || !limiter.cancel(reservation);
+    }
+
+    /**
+     * Waits for a slot or reservation from one of the limiters
+     *
+     * @param grant Completes when it is given
+     * @param maxWaitMs The longest to wait
+     * @param deadline The call's deadline.  The wait ends at the deadline or if the call is cancelled
+     * @return True if given, false if not within the wait, in which case it must be cancelled with the limiter
+     */
+    private static boolean awaitGrant(final CompletableFuture<Void> grant, int maxWaitMs, KDeadline deadline)
+    {
+        Closeable cancel = new Closeable()
+        {
+            public void close()
+            {
+                grant.completeExceptionally(new InterruptedIOException("The call to the EzSign server was cancelled"));
+            }
+        };
+        try
+        {
+            deadline.attach(cancel);
+            try
+            {
+                grant.get(Math.min(maxWaitMs, deadline.getRemainingMs()), TimeUnit.MILLISECONDS);
+                return true;
+            }
+            finally
+            {
+                deadline.detach(cancel);
+            }
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+        }
+        catch (Exception e)
+        {
+            // Timed out or cancelled
+        }
+        return false;
+    }
+
+    /**
+     * Gives back a slot under the concurrency limit.  The response time is recorded unless the call was cancelled
+     *
+     * @param limiter The concurrency limiter
+     * @param startTime When the message was sent, from System.nanoTime
+     * @param failed True if the call failed
+     * @param deadline The call's deadline
+     */
+    private static void releaseSlot(KConcurrencyLimiter limiter, long startTime, boolean failed, KDeadline deadline)
+    {
+        if (deadline.isCancelled())
+            limiter.release();
+        else
+            limiter.release(System.nanoTime() - startTime, failed);
+    }
+
+    /**
+     * Takes a place for the message within the rate limits, if any
+     *
+     * @param msg The message
+     * @param deadline The call's deadline.  The message is not made to wait beyond it
+     * @return The tokens taken, with the time to wait before sending the message, or null if there are no limits
+     * @throws KRateLimitedException If the message may not be sent within the limits' max waits
+     */
+    private KRateLimiter.Reservation admit(KEzSignReqMsg msg, KDeadline deadline) throws KRateLimitedException
+    {
+        KRateLimiter rateLimiter = m_rateLimiter;
+        if (rateLimiter == null)
+            return null;
+
+        long remainingMs = deadline.getRemainingMs();
+        long maxWaitNs = (remainingMs == Long.MAX_VALUE) ? Long.MAX_VALUE : remainingMs * 1000000L;
+        KRateLimiter.Reservation admission = rateLimiter.reserve(msg.getChannelName(), maxWaitNs);
+        if (admission == null)
+            throw new KRateLimitedException("The request to channel " + msg.getChannelName() +
+                    " was not sent as it would exceed the client's rate limit");
+
+        return admission;
+    }
+
+    /**
+     *
+     * @param msg The message
+     * @return The priority entered by the calling thread, otherwise the message's channel's
+     */
+    private int getPriority(KEzSignReqMsg msg)
+    {
+        KPriority priority = KPriority.current();
+        if (priority != null)
+            return priority.getLevel();
+
+        Integer channelPriority = m_channelPriorities.get(msg.getChannelName());
+        return (channelPriority != null) ? channelPriority : KPriority.NORMAL;
+    }
+
+    /**
+     *
+     * @return The deadline entered by the calling thread, otherwise a new one for this client's call timeout
+     */
+    private KDeadline getCallDeadline()
+    {
+        KDeadline deadline = KDeadline.current();
+        return (deadline != null) ? deadline : new KDeadline(m_callTimeoutMs);
+    }
+
+    /**
+     * Sends the message to the given endpoint and gets the response
+     *
+     * @param msg The message
+     * @param route The endpoint.  The whole call goes to this server even if the endpoints are changed
+     *              from another thread part way through
+     * @param deadline The call's deadline
+     * @return The response, in the text or binary format
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     * @throws KDeadlineExceededException If the deadline passed first
+     * @throws KCallCancelledException If the call was cancelled
+     */
+    private byte[] sendMessage(KEzSignReqMsg msg, Route route, KDeadline deadline) throws KEzSignConnectException
+    {
+        m_retryBudget.onRequest();
+        int readTimeoutMs = getReadTimeoutMs(msg);
+
+        // Failures before anything is sent are not the server's
+        byte[] encMessage;
+        try
+        {
+            deadline.check();
+            encMessage = encodeMessage(msg);
+        }
+        catch (Exception e)
+        {
+            throw callError(route, deadline, e);
+        }
+
+        long startTime = route.start();
+        boolean ok = false;
+        boolean abandoned = false;
+        try
+        {
+            byte[] encRespMessage;
+            KMuxPool muxPool = getMuxPool(route);
+            if (muxPool != null && muxPool.isSupported())
+                encRespMessage = sendMultiplexed(route, muxPool, encMessage, deadline, readTimeoutMs);
+            else
+                encRespMessage = sendOnConnection(route, encMessage, deadline, readTimeoutMs);
+            ok = !isEmpty(encRespMessage);
+
+            byte[] clearRespMessage = decryptMessage(encRespMessage, encMessage);
+
+            return clearRespMessage;
+        }
+        catch (Exception e)
+        {
+            recordTimeout(msg, readTimeoutMs, deadline, e);
+            KEzSignConnectException error = callError(route, deadline, e);
+            abandoned = isCallerError(error);
+            throw error;
+        }
+        finally
+        {
+            if (abandoned)
+                route.abandon();
+            else
+                route.finish(startTime, ok);
+            if (ok)
+                recordLatency(msg, startTime);
+        }
+    }
+
+    /**
+     *
+     * @param error The error a call failed with
+     * @return True if the call failed for a reason of the caller's - its deadline passed or it was cancelled - so
+     *         the failure says nothing of the endpoint's health
+     */
+    private static boolean isCallerError(Throwable error)
+    {
+        if (error instanceof CompletionException && error.getCause() != null)
+            error = error.getCause();
+
+        return error instanceof KDeadlineExceededException || error instanceof KCallCancelledException;
+    }
+
+    /**
+     *
+     * @param msg The message
+     * @return The read timeout for the message, from its recent response times if using adaptive timeouts
+     */
+    private int getReadTimeoutMs(KEzSignReqMsg msg)
+    {
+        KAdaptiveTimeout adaptiveTimeout = m_adaptiveTimeout;
+        if (adaptiveTimeout == null)
+            return m_readTimeoutMs;
+
+        return adaptiveTimeout.getReadTimeoutMs(msg.getMessageId(), msg.getChannelName());
+    }
+
+    /**
+     * Records the response time of a message that was answered, if using adaptive timeouts
+     *
+     * @param msg The message
+     * @param startTime The time it was sent, from System.nanoTime
+     */
+    private void recordLatency(KEzSignReqMsg msg, long startTime)
+    {
+        KAdaptiveTimeout adaptiveTimeout = m_adaptiveTimeout;
+        if (adaptiveTimeout != null)
+            adaptiveTimeout.recordLatency(msg.getMessageId(), msg.getChannelName(), System.nanoTime() - startTime);
+    }
+
+    /**
+     * Records a message that failed because it was not answered within its read timeout, if using adaptive
+     * timeouts.  Failures because the call's deadline passed are not counted
+     *
+     * @param msg The message
+     * @param readTimeoutMs The read timeout it was given
+     * @param deadline The call's deadline
+     * @param e Why the message failed
+     */
+    private void recordTimeout(KEzSignReqMsg msg, int readTimeoutMs, KDeadline deadline, Throwable e)
+    {
+        KAdaptiveTimeout adaptiveTimeout = m_adaptiveTimeout;
+        if (adaptiveTimeout == null || deadline.isExpired() || deadline.isCancelled())
+            return;
+
+        while (e instanceof CompletionException && e.getCause() != null)
+            e = e.getCause();
+        if (e instanceof SocketTimeoutException)
+            adaptiveTimeout.onTimeout(msg.getMessageId(), msg.getChannelName(), readTimeoutMs);
+    }
+
+    /**
+     * Processes a response, as sent by one of the asynchronous methods
+     */
+    private interface KResponseReader<T>
+    {
+        T read(byte[] response) throws Exception;
+    }
+
+    /**
+     * Sends the message without blocking the calling thread.  With the non-blocking transport in use no thread
+     * waits for the response, otherwise the blocking send runs on the executor.  The response is processed
+     * on the executor
+     *
+     * @param msg The message
+     * @param reader Processes the response
+     * @param executor The executor or null for the client's own threads
+     * @return Completes with the result of the reader, or exceptionally with the exception it threw
+     *         or KEzSignConnectException
+     */
+    private <T> CompletableFuture<T> sendMessageAsync(final KEzSignReqMsg msg, final KResponseReader<T> reader, Executor executor)
+    {
+        final Executor exec = (executor != null) ? executor : getAsyncExecutor();
+        final KDeadline deadline = getCallDeadline();
+        final int priority = getPriority(msg);
+
+        CompletableFuture<byte[]> response;
+        KRateLimiter.Reservation admission = null;
+        try
+        {
+            admission = admit(msg, deadline);
+            long admitWaitNs = (admission == null) ? 0 : admission.getWaitNs();
+            if (admitWaitNs == 0)
+            {
+                response = sendAdmittedAsync(msg, priority, exec, deadline);
+            }
+            else
+            {
+                // No thread waits for the message's turn.  It is sent by the timer
+                final CompletableFuture<Void> admitted = new CompletableFuture<Void>();
+                getTimer().schedule(new Runnable()
+                {
+                    public void run()
+                    {
+                        admitted.complete(null);
+                    }
+                }, admitWaitNs, TimeUnit.NANOSECONDS);
+
+                response = admitted.thenCompose(new Function<Void, CompletableFuture<byte[]>>()
+                {
+                    public CompletableFuture<byte[]> apply(Void v)
+                    {
+                        return sendAdmittedAsync(msg, priority, exec, deadline);
+                    }
+                });
+            }
+        }
+        catch (KEzSignConnectException e)
+        {
+            return failedFuture(e);
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The client is being closed, so the message is not sent and its tokens are given back
+            if (admission != null)
+                m_rateLimiter.cancel(admission);
+            return failedFuture(new KEzSignConnectException("The EzSign client has been closed"));
+        }
+
+        return response.thenApply(new Function<byte[], T>()
+        {
+            public T apply(byte[] clearRespMessage)
+            {
+                try
+                {
+                    return reader.read(clearRespMessage);
+                }
+                catch (Exception e)
+                {
+                    throw new CompletionException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * Sends the message, once within the rate limits, with its bytes reserved under the memory limit, without
+     * blocking the calling thread
+     *
+     * @param msg The message
+     * @param priority The message's priority, from the calling thread
+     * @param exec The executor
+     * @param deadline The call's deadline
+     * @return Completes with the response, decrypted if using an auth code, or exceptionally with KEzSignConnectException
+     */
+    private CompletableFuture<byte[]> sendAdmittedAsync(final KEzSignReqMsg msg, final int priority, final Executor exec,
+                                                        final KDeadline deadline)
+    {
+        final KMemoryLimiter limiter = m_memoryLimiter;
+        if (limiter == null)
+            return sendReservedAsync(msg, priority, exec, deadline);
+
+        final long requestBytes = msg.getPayloadSize();
+        final CompletableFuture<Void> reservation = limiter.acquire(requestBytes);
+        if (!reservation.isDone())
+        {
+            // No thread waits for the bytes.  The timer rejects the call if it waits too long
+            try
+            {
+                getTimer().schedule(new Runnable()
+                {
+                    public void run()
+                    {
+                        if (limiter.cancel(reservation))
+                            reservation.completeExceptionally(new KLoadShedException("The request was not sent as the " +
+                                    "client's limit of " + limiter.getMaxBytes() + " bytes in progress was reached and " +
+                                    requestBytes + " bytes were not free within " + m_maxMemoryWaitMs + "ms"));
+                    }
+                }, Math.min(m_maxMemoryWaitMs, deadline.getRemainingMs()), TimeUnit.MILLISECONDS);
+            }
+            catch (RuntimeException e)
+            {
+                // The client is being closed
+                if (limiter.cancel(reservation))
+                    return failedFuture(new KEzSignConnectException("The EzSign client has been closed"));
+            }
+        }
+
+        return reservation.thenCompose(new Function<Void, CompletableFuture<byte[]>>()
+        {
+            public CompletableFuture<byte[]> apply(Void v)
+            {
+                return sendReservedAsync(msg, priority, exec, deadline).whenComplete(new BiConsumer<byte[], Throwable>()
+                {
+                    public void accept(byte[] response, Throwable error)
+                    {
+                        // The response is counted, as on the synchronous path, until it is handed to the caller
+                        long reservedBytes = requestBytes;
+                        if (response != null)
+                        {
+                            limiter.add(response.length);
+                            reservedBytes += response.length;
+                        }
+                        limiter.release(reservedBytes);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Sends the message, once within the rate and memory limits, with a slot under the concurrency limit,
+     * without blocking the calling thread
+     *
+     * @param msg The message
+     * @param priority The message's priority
+     * @param exec The executor
+     * @param deadline The call's deadline
+     * @return Completes with the response, decrypted if using an auth code, or exceptionally with KEzSignConnectException
+     */
+    private CompletableFuture<byte[]> sendReservedAsync(final KEzSignReqMsg msg, int priority, final Executor exec,
+                                                        final KDeadline deadline)
+    {
+        final KConcurrencyLimiter limiter = m_concurrencyLimiter;
+        if (limiter == null)
+            return sendLimitedAsync(msg, priority, exec, deadline);
+
+        final CompletableFuture<Void> slot = limiter.acquire(priority, msg.getChannelName(), msg.getPayloadSize());
+        if (slot == null)
+            return failedFuture(new KLoadShedException("The request was not sent as the client's concurrency limit of " +
+                    limiter.getLimit() + " was reached and the queue is full"));
+
+        if (!slot.isDone())
+        {
+            // No thread waits for the slot.  The timer sheds the request if it waits too long
+            try
+            {
+                getTimer().schedule(new Runnable()
+                {
+                    public void run()
+                    {
+                        if (limiter.cancel(slot))
+                            slot.completeExceptionally(new KLoadShedException("The request was not sent as no slot under " +
+                                    "the client's concurrency limit of " + limiter.getLimit() + " was free within " +
+                                    m_maxQueueWaitMs + "ms"));
+                    }
+                }, Math.min(m_maxQueueWaitMs, deadline.getRemainingMs()), TimeUnit.MILLISECONDS);
+            }
+            catch (RuntimeException e)
+            {
+                // The client is being closed
+                if (limiter.cancel(slot))
+                    return failedFuture(new KEzSignConnectException("The EzSign client has been closed"));
+            }
+        }
+
+        return slot.thenCompose(new Function<Void, CompletableFuture<byte[]>>()
+        {
+            public CompletableFuture<byte[]> apply(Void v)
+            {
+                final long startTime = System.nanoTime();
+                return sendLimitedAsync(msg, priority, exec, deadline).whenComplete(new BiConsumer<byte[], Throwable>()
+                {
+                    public void accept(byte[] response, Throwable error)
+                    {
+                        releaseSlot(limiter, startTime, error != null, deadline);
+                    }
+                });
+            }
+        });
+    }
+
+    /**
+     * Sends the message, once within the rate and concurrency limits, without blocking the calling thread
+     *
+     * @param msg The message
+     * @param priority The message's priority
+     * @param exec The executor
+     * @param deadline The call's deadline
+     * @return Completes with the response, decrypted if using an auth code, or exceptionally with KEzSignConnectException
+     */
+    private CompletableFuture<byte[]> sendLimitedAsync(KEzSignReqMsg msg, int priority, Executor exec, KDeadline deadline)
+    {
+        Route route;
+        try
+        {
+            route = selectRoute();
+        }
+        catch (KEzSignConnectException e)
+        {
+            return failedFuture(e);
+        }
+
+        KHedgePolicy hedgePolicy = m_hedgePolicy;
+        if (hedgePolicy != null && isHedgeable(msg))
+            return sendHedgedAsync(msg, priority, route, exec, hedgePolicy, deadline);
+        else
+            return sendMessageAsync(msg, route, exec, deadline);
+    }
+
+    /**
+     * Sends the message to the given endpoint without blocking the calling thread
+     *
+     * @param msg The message
+     * @param route The endpoint
+     * @param exec The executor
+     * @param deadline The call's deadline
+     * @return Completes on the executor with the response, decrypted if using an auth code, or exceptionally
+     *         with KEzSignConnectException
+     */
+    private CompletableFuture<byte[]> sendMessageAsync(final KEzSignReqMsg msg, final Route route, final Executor exec,
+                                                       final KDeadline deadline)
+    {
+        final String host = route.getHost();
+        final int port = route.getPort();
+
+        // Multiplexed connections are used first, as by sendMessage
+        KNioTransport nioTransport = null;
+        KMuxPool muxPool = getMuxPool(route);
+        if (muxPool == null || !muxPool.isSupported())
+        {
+            try
+            {
+                nioTransport = getOrCreateNioTransport();
+            }
+            catch (IOException e)
+            {
+                return failedFuture(connectError(host, port, e));
+            }
+        }
+
+        if (nioTransport == null)
+        {
+            return CompletableFuture.supplyAsync(new Supplier<byte[]>()
+            {
+                public byte[] get()
+                {
+                    try
+                    {
+                        return sendMessage(msg, route, deadline);
+                    }
+                    catch (Exception e)
+                    {
+                        throw new CompletionException(e);
+                    }
+                }
+            }, exec);
+        }
+
+        final KNioTransport transport = nioTransport;
+        return CompletableFuture.supplyAsync(new Supplier<byte[]>()
+        {
+            public byte[] get()
+            {
+                try
+                {
+                    return encodeMessage(msg);
+                }
+                catch (Exception e)
+                {
+                    throw new CompletionException(connectError(host, port, e));
+                }
+            }
+        }, exec).thenCompose(new Function<byte[], CompletableFuture<byte[]>>()
+        {
+            public CompletableFuture<byte[]> apply(final byte[] encMessage)
+            {
+                m_retryBudget.onRequest();
+                final int readTimeoutMs = getReadTimeoutMs(msg);
+                final long startTime = route.start();
+                return sendOnNioAsync(transport, route, encMessage, 1, deadline, readTimeoutMs).whenComplete(new BiConsumer<byte[], Throwable>()
+                {
+                    public void accept(byte[] encRespMessage, Throwable error)
+                    {
+                        boolean ok = error == null && !isEmpty(encRespMessage);
+                        if (error != null && isCallerError(error))
+                            route.abandon();
+                        else
+                            route.finish(startTime, ok);
+                        if (ok)
+                            recordLatency(msg, startTime);
+                        else if (error != null)
+                            recordTimeout(msg, readTimeoutMs, deadline, error);
+                    }
+                }).thenApplyAsync(new Function<byte[], byte[]>()
+                {
+                    public byte[] apply(byte[] encRespMessage)
+                    {
+                        try
+                        {
+                            return decryptMessage(encRespMessage, encMessage);
+                        }
+                        catch (Exception e)
+                        {
+                            throw new CompletionException(connectError(host, port, e));
+                        }
+                    }
+                }, exec);
+            }
+        });
+    }
+
+    /**
+     * Only requests that change nothing at the server are hedged, as a hedged request may be processed twice
+     *
+     * @param msg The message
+     * @return True if the message is a sign or verify request and there is more than one endpoint
+     */
+    private boolean isHedgeable(KEzSignReqMsg msg)
+    {
+        return (msg instanceof KSignDataReqMsg || msg instanceof KVerifySignatureReqMsg) && m_routes.length > 1;
+    }
+
+    /**
+     * Sends the message to the given endpoint from the calling thread and, if there is no response within the
+     * hedge delay, to another endpoint as well from the client's executor.  Returns once the request sent from
+     * this thread has finished, so it holds the call's place under the limits until then
+     *
+     * @param msg The message
+     * @param priority The message's priority
+     * @param route The endpoint for the original request
+     * @param hedgePolicy The hedge policy
+     * @param deadline The call's deadline, which applies to both requests
+     * @return The first response
+     * @throws KEzSignConnectException If neither request was answered
+     */
+    private byte[] sendHedged(KEzSignReqMsg msg, int priority, Route route, KHedgePolicy hedgePolicy, KDeadline deadline)
+            throws KEzSignConnectException
+    {
+        hedgePolicy.onRequest();
+
+        HedgedRequest request = new HedgedRequest(msg, priority, route, getAsyncExecutor(), hedgePolicy, deadline);
+        request.scheduleHedge();
+        request.sendOriginal();
+
+        return awaitHedged(request.m_result, deadline);
+    }
+
+    /**
+     * Sends the message to the given endpoint and, if there is no response within the hedge delay, to another
+     * endpoint as well
+     *
+     * @param msg The message
+     * @param priority The message's priority
+     * @param route The endpoint for the original request
+     * @param exec The executor the requests are sent from
+     * @param hedgePolicy The hedge policy
+     * @param deadline The call's deadline, which applies to both requests
+     * @return Completes with the first response, decrypted if using an auth code, or exceptionally with
+     *         KEzSignConnectException if neither request was answered.  Not before the original request has
+     *         finished, so the call holds its place under the limits until then
+     */
+    private CompletableFuture<byte[]> sendHedgedAsync(KEzSignReqMsg msg, int priority, Route route, Executor exec,
+                                                      KHedgePolicy hedgePolicy, KDeadline deadline)
+    {
+        hedgePolicy.onRequest();
+
+        final HedgedRequest request = new HedgedRequest(msg, priority, route, exec, hedgePolicy, deadline);
+        CompletableFuture<Void> originalFinished = request.sendOriginalAsync();
+        if (!request.m_result.isDone())
+            request.scheduleHedge();
+
+        return originalFinished.thenCompose(new Function<Void, CompletableFuture<byte[]>>()
+        {
+            public CompletableFuture<byte[]> apply(Void v)
+            {
+                return request.m_result;
+            }
+        });
+    }
+
+    /**
+     * Waits for the response to a hedged request
+     *
+     * @param response The future from sendHedgedAsync
+     * @param deadline The call's deadline
+     * @return The response
+     * @throws KEzSignConnectException If neither request was answered
+     */
+    private byte[] awaitHedged(CompletableFuture<byte[]> response, KDeadline deadline) throws KEzSignConnectException
+    {
+        try
+        {
+            long remainingMs = deadline.getRemainingMs();
+            if (remainingMs == Long.MAX_VALUE)
+                return response.get();
+
+            return response.get(remainingMs, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            throw new KDeadlineExceededException("The call to the EzSign server did not complete within its deadline of " +
+                    deadline.getTimeoutMs() + "ms");
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new KEzSignConnectException("Interrupted while waiting for the response from the EzSign server");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof KEzSignConnectException)
+                throw (KEzSignConnectException) e.getCause();
+            throw new KEzSignConnectException(e.getCause().getMessage());
+        }
+    }
+
+    /**
+     * Chooses the endpoint for a hedge
+     *
+     * @param exclude The endpoint the original request was sent to
+     * @return Another endpoint or null if there is none available
+     */
+    private Route selectOtherRoute(Route exclude)
+    {
+        Route[] routes = m_routes;
+        if (m_breakerFailureThreshold > 0)
+        {
+            try
+            {
+                routes = getAvailableRoutes(routes);
+            }
+            catch (KEzSignConnectException e)
+            {
+                return null;
+            }
+        }
+
+        Route[] others = new Route[routes.length];
+        int numOthers = 0;
+        for (Route route : routes)
+        {
+            if (route != exclude)
+                others[numOthers++] = route;
+        }
+
+        if (numOthers <= 1)
+            return (numOthers == 0) ? null : others[0];
+
+        others = Arrays.copyOf(others, numOthers);
+        return others[m_loadBalancer.select(others)];
+    }
+
+    /**
+     * Sends the message on the non-blocking transport.  As with sendOnNio an empty response or refused connection
+     * is retried, with the wait before the retry run by the timer as there is no thread to wait on
+     *
+     * @param transport The non-blocking transport
+     * @param route The endpoint.  Retries stop if its circuit opens
+     * @param encMessage The message, encrypted if using an auth code
+     * @param attempt The attempt number, from 1
+     * @param deadline The call's deadline.  The exchange fails when it passes and is closed if the call is cancelled
+     * @param readTimeoutMs The read timeout for this message
+     * @return Completes with the response, still encrypted if using an auth code, or exceptionally with KEzSignConnectException
+     */
+    private CompletableFuture<byte[]> sendOnNioAsync(final KNioTransport transport, final Route route,
+                                                     final byte[] encMessage, final int attempt, final KDeadline deadline,
+                                                     final int readTimeoutMs)
+    {
+        final String host = route.getHost();
+        final int port = route.getPort();
+        final CompletableFuture<byte[]> result = new CompletableFuture<byte[]>();
+
+        final CompletableFuture<byte[]> exchange;
+        Closeable cancel;
+        try
+        {
+            exchange = transport.send(host, port, encMessage, deadline.limit(Integer.MAX_VALUE), readTimeoutMs);
+            cancel = cancelOnClose(exchange);
+            deadline.attach(cancel);
+        }
+        catch (IOException e)
+        {
+            return failedFuture(callError(route, deadline, e));
+        }
+
+        final Closeable attached = cancel;
+        exchange.whenComplete(new BiConsumer<byte[], Throwable>()
+        {
+            public void accept(byte[] encRespMessage, Throwable error)
+            {
+                deadline.detach(attached);
+                boolean retry = (error == null) ? isEmpty(encRespMessage) : (error instanceof ConnectException);
+                long waitMs = (retry && !deadline.isCancelled()) ? getRetryWaitMs(route, attempt, deadline.getRemainingMs()) : -1;
+                if (waitMs >= 0)
+                {
+                    Runnable resend = new Runnable()
+                    {
+                        public void run()
+                        {
+                            sendOnNioAsync(transport, route, encMessage, attempt + 1, deadline, readTimeoutMs).whenComplete(new BiConsumer<byte[], Throwable>()
+                            {
+                                public void accept(byte[] retryRespMessage, Throwable retryError)
+                                {
+                                    if (retryError != null)
+                                        result.completeExceptionally(retryError);
+                                    else
+                                        result.complete(retryRespMessage);
+                                }
+                            });
+                        }
+                    };
+
+                    try
+                    {
+                        getTimer().schedule(resend, waitMs, TimeUnit.MILLISECONDS);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        // The client is being closed
+                        result.completeExceptionally(callError(route, deadline, e));
+                    }
+                }
+                else if (error != null)
+                {
+                    result.completeExceptionally(callError(route, deadline, error));
+                }
+                else
+                {
+                    result.complete(encRespMessage);
+                }
+            }
+        });
+
+        return result;
+    }
+
+    /**
+     * Returns the executor used by the asynchronous methods when the caller does not supply one, creating it if required
+     *
+     * @return The executor
+     */
+    private ExecutorService getAsyncExecutor()
+    {
+        m_transportLock.lock();
+        try
+        {
+            if (m_asyncExecutor == null)
+                m_asyncExecutor = KThreads.newRequestExecutor("EzSignAsync-", m_useVirtualThreads);
+
+            return m_asyncExecutor;
+        }
+        finally
+        {
+            m_transportLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the timer for tasks that are due after a delay, creating it if required
+     *
+     * @return The timer
+     */
+    private ScheduledExecutorService getTimer()
+    {
+        m_transportLock.lock();
+        try
+        {
+            if (m_timer == null)
+                m_timer = KThreads.newTimer("EzSignTimer");
+
+            return m_timer;
+        }
+        finally
+        {
+            m_transportLock.unlock();
+        }
+    }
+
+    /**
+     * Shuts down the timer, if created
+     */
+    private void closeTimer()
+    {
+        m_transportLock.lock();
+        try
+        {
+            if (m_timer != null)
             {
-                case KEzSignRespMsg.RESP_GENERAL_EXCEPTION:
-                    throw new KEzSignException(error);
-                case KEzSignRespMsg.RESP_ENCIPHER_EXCEPTION:
-                    throw new KEncipherException(error);
+                m_timer.shutdownNow();
+                m_timer = null;
             }
         }
+        finally
+        {
+            m_transportLock.unlock();
+        }
+    }
 
-        return resp.getData();
+    /**
+     * Shuts down the executor used by the asynchronous methods, if created
+     */
+    private void closeAsyncExecutor()
+    {
+        m_transportLock.lock();
+        try
+        {
+            if (m_asyncExecutor != null)
+            {
+                m_asyncExecutor.shutdown();
+                m_asyncExecutor = null;
+            }
+        }
+        finally
+        {
+            m_transportLock.unlock();
+        }
     }
 
     /**
-     * Decrypts data previously encrypted with encryptData using the key referenced by keyLabel
      *
-     * @param channelName The name of the EzSign channel to process the request
-     * @param encryptedData The encrypted data
-     * @param keyLabel The name of the key to perfom the decryption - as configured on the server
-     * @return THe clear data
-     * @throws KEzSignException If there is an error
-     * @throws KEzSignConnectException If unable to connect to the EzSign server
-     * @throws KEncipherException If there is an error decrypting
+     * @param error The exception
+     * @return A future that has already failed with the exception
      */
-    public byte[] decryptData(String channelName, byte[] encryptedData, String keyLabel) throws KEzSignException, KEzSignConnectException, KEncipherException
+    private static <T> CompletableFuture<T> failedFuture(Throwable error)
     {
-        KEncipherReqMsg msg = new KEncipherReqMsg(channelName, false, encryptedData, keyLabel);
+        CompletableFuture<T> future = new CompletableFuture<T>();
+        future.completeExceptionally(error);
+        return future;
+    }
+
+    /**
+     * Creates the exception reported when a message could not be sent or the response not received
+     *
+     * @param host The host
+     * @param port The port
+     * @param e The cause
+     * @return The exception
+     */
+    private KEzSignConnectException connectError(String host, int port, Throwable e)
+    {
+        if (e instanceof CompletionException && e.getCause() != null)
+            e = e.getCause();
 
-        String response = sendMessage(msg.getMessage());
+        if (e instanceof KEzSignConnectException)
+            return (KEzSignConnectException) e;
 
-        KEncipherRespMsg resp = new KEncipherRespMsg(response);
-        int respCode = resp.getResponseCode();
-        if (respCode != KSignDataRespMsg.RESP_OK)
+        return new KEzSignConnectException("There was an error connecting to the EzSign server. " +
+                "Ensure the server is running on host " + host + " and listening on port " + port +
+                " and there is connectivity between this client and the server. " +
+                "If auth code is in use, check both the client and server are using the same code. Error Details: " + e.getMessage());
+    }
+
+    /**
+     * Creates the exception reported when a call fails, which says so if the call's deadline passed or it was
+     * cancelled
+     *
+     * @param route The endpoint
+     * @param deadline The call's deadline
+     * @param e The cause
+     * @return The exception
+     */
+    private KEzSignConnectException callError(Route route, KDeadline deadline, Throwable e)
+    {
+        if (deadline.isCancelled())
+            return new KCallCancelledException("The call to the EzSign server on host " + route.getHost() + " port " +
+                    route.getPort() + " was cancelled");
+        if (deadline.isExpired())
+            return new KDeadlineExceededException("The call to the EzSign server on host " + route.getHost() + " port " +
+                    route.getPort() + " did not complete within its deadline of " + deadline.getTimeoutMs() + "ms");
+
+        // A KEzSignConnectException, or a subtype such as KLoadShedException, is returned as it is
+        return connectError(route.getHost(), route.getPort(), e);
+    }
+
+    /**
+     * Wraps a future so that closing it completes the future exceptionally, which attached to a KDeadline
+     * cancels the exchange it is waiting on
+     *
+     * @param future The future
+     * @return Closes the future
+     */
+    private static Closeable cancelOnClose(final CompletableFuture<byte[]> future)
+    {
+        return new Closeable()
         {
-            String error = resp.getErrorMessage();
-            switch (respCode)
+            public void close()
             {
-                case KEzSignRespMsg.RESP_GENERAL_EXCEPTION:
-                    throw new KEzSignException(error);
-                case KEzSignRespMsg.RESP_ENCIPHER_EXCEPTION:
-                    throw new KEncipherException(error);
+                future.completeExceptionally(new InterruptedIOException("The call to the EzSign server was cancelled"));
             }
-        }
-
-        return resp.getData();
+        };
     }
 
     /**
-     * Connects to the server
+     * Sends the message using non-blocking I/O if in use, otherwise on a keep-alive connection if in use,
+     * otherwise on a new connection
      *
-     * @throws KEzSignConnectException If unable to connect
+     * @param route The endpoint
+     * @param encMessage The message, encrypted if using an auth code
+     * @param deadline The call's deadline
+     * @param readTimeoutMs The read timeout for this message
+     * @return The response, still encrypted if using an auth code
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     * @throws IOException If there is an error on the socket, the deadline passed or the call was cancelled
      */
-    private void connect() throws KEzSignConnectException
+    private byte[] sendOnConnection(Route route, byte[] encMessage, KDeadline deadline, int readTimeoutMs)
+            throws KEzSignConnectException, IOException
     {
-        // Under extreme server load (nearing 100% )the client may not be connect
-        // We therefore, try to connect every sleepTimeMs until the connection timeout is reached
-        int numRetries = 0;
-        //int maxNumRetries = m_connectTimeoutMs / RETRY_CONNECT_WAIT_MS;
-        int maxNumRetries = m_connectTimeoutMs / CONNECT_TIMEOUT;
+        KNioTransport nioTransport = getOrCreateNioTransport();
+        if (nioTransport != null)
+            return sendOnNio(nioTransport, route, encMessage, deadline, readTimeoutMs);
+
+        KConnectionPool connectionPool = getConnectionPool(route);
+        if (connectionPool != null && connectionPool.isKeepAliveSupported())
+            return sendOnKeepAlive(route, connectionPool, encMessage, deadline, readTimeoutMs);
+        else
+            return sendOnNewConnection(route, encMessage, deadline, readTimeoutMs);
+    }
 
-        boolean connected = false;
-        while (!connected)
+    /**
+     * Sends the message on the non-blocking transport and waits for the response.  The transport applies the
+     * connect and read timeouts
+     *
+     * @param transport The non-blocking transport
+     * @param route The endpoint.  Retries stop if its circuit opens
+     * @param encMessage The message, encrypted if using an auth code
+     * @param deadline The call's deadline
+     * @param readTimeoutMs The read timeout for this message
+     * @return The response, still encrypted if using an auth code
+     * @throws IOException If there is an error on the connection, the deadline passed or the call was cancelled
+     */
+    private byte[] sendOnNio(KNioTransport transport, Route route, byte[] encMessage, KDeadline deadline, int readTimeoutMs)
+            throws IOException
+    {
+        int attempt = 0;
+        while (true)
         {
+            attempt++;
+            CompletableFuture<byte[]> exchange = transport.send(route.getHost(), route.getPort(), encMessage,
+                    deadline.limit(Integer.MAX_VALUE), readTimeoutMs);
+            Closeable cancel = cancelOnClose(exchange);
+            deadline.attach(cancel);
             try
             {
-                m_socket.connect(new InetSocketAddress(m_host, m_port), CONNECT_TIMEOUT);
-                if (m_useTls)
-                {
-                    SSLSocket sock = (SSLSocket) m_socket;
-                    sock.startHandshake();
-                }
-                m_socket.setSoLinger(true, 0);
-                m_socket.setSoTimeout(m_readTimeoutMs);
+                byte[] encRespMessage = awaitResponse(exchange);
 
-                connected = true;
+                // Wait, and then try again
+                if (!isEmpty(encRespMessage) || !waitToRetry(route, attempt, deadline))
+                    return encRespMessage;
             }
-            catch (Exception exception)
+            catch (ConnectException connEx)
             {
-                if (numRetries >= maxNumRetries)
-                {
-                    throw new KEzSignConnectException("There was an error connecting to the EzSign server. " +
-                            "Ensure the server is running on host " + m_host + " and listening on port " + m_port +
-                            " and there is connectivity between this client and the server. " +
-                            "If auth code is in use, check both the client and server are using the same code. " + exception.getMessage());
-                }
-                else
-                {
-                    // If we get here the socket is probably overloaded, trying to reconnect
-                    // will just keep failing, so create new
-                    try {
-                        m_socket = new Socket();
-                        if (m_useTls)
-                            m_socket = m_sslSockFactory.createSocket();
-                        else
-                            m_socket = new Socket();
-                    } catch (Exception e){}
-                    numRetries++;
-                    try { Thread.sleep(RETRY_CONNECT_WAIT_MS); } catch (Exception e){ }
-                }
+                // The server may be too busy to accept the connection.  Try again, if the retry policy allows
+                if (!waitToRetry(route, attempt, deadline))
+                    throw connEx;
+            }
+            finally
+            {
+                deadline.detach(cancel);
             }
         }
     }
 
     /**
-     * Disconnects from the server
+     * Waits for a response from the non-blocking transport
+     *
+     * @param response The future from the transport
+     * @return The response
+     * @throws IOException If the exchange failed
      */
-    private void disconnect()
+    private byte[] awaitResponse(CompletableFuture<byte[]> response) throws IOException
     {
         try
         {
-            if (m_socket != null)
-            {
-                m_socket.close();
-                // This always throws an exception as the server
-                // closes the input and output streams
-            }
+            return response.get();
         }
-        catch(Exception e)
+        catch (InterruptedException e)
         {
-            //e.printStackTrace();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response from the EzSign server");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
         }
     }
 
     /**
+     * Sends the message on a connection used for this message only
      *
-     * @param clearMessage The clear data
-     * @return The encrypted data
-     * @throws KEzSignException If there is an error encrypting
+     * @param route The endpoint
+     * @param encMessage The message, encrypted if using an auth code
+     * @param deadline The call's deadline
+     * @param readTimeoutMs The read timeout for this message
+     * @return The response, still encrypted if using an auth code
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     * @throws IOException If there is an error on the socket, the deadline passed or the call was cancelled
      */
-    private String encryptMessage(String clearMessage) throws KEzSignException
+    private byte[] sendOnNewConnection(Route route, byte[] encMessage, KDeadline deadline, int readTimeoutMs)
+            throws KEzSignConnectException, IOException
     {
+        String host = route.getHost();
+        int port = route.getPort();
+        Socket socket = null;
         try
         {
-            String encMessage = clearMessage;
-            if (m_usingAuthCode)
+            byte[] encRespMessage = null;
+
+            int attempt = 0;
+            boolean firstSend = true;
+            // Under extreme load (CPU near 100% 500 threads+) the server may occasionally
+            // return an empty message.  Check for this here and re-send, as the retry policy allows
+            while (true)
             {
-                encMessage = m_encrypt.encryptData(clearMessage);
-            }
+                // The first attempt uses a pre-connected socket if one is ready
+                boolean preConnected = false;
+                if (firstSend)
+                {
+                    firstSend = false;
+                    KSocketPool pool = getSocketPool(route);
+                    if (pool != null)
+                        socket = pool.take();
+                    preConnected = (socket != null);
+                }
 
-            return encMessage;
+                if (socket == null)
+                    socket = connect(host, port, route, deadline);
+
+                deadline.attach(socket);
+                try
+                {
+                    socket.setSoTimeout(deadline.limit(readTimeoutMs));
+                    encRespMessage = sendAndReceive(socket, encMessage);
+                }
+                catch (IOException ioEx)
+                {
+                    // A pre-connected socket may have been dropped by the server while it waited in the
+                    // pool.  Treat this as an empty response so the message is re-sent on a new connection
+                    if (!preConnected || deadline.isCancelled())
+                        throw ioEx;
+                }
+                finally
+                {
+                    deadline.detach(socket);
+                }
+
+                disconnect(socket);
+                socket = null;
+
+                // A pre-connected socket that failed is replaced straight away without counting as a retry
+                if (!isEmpty(encRespMessage) || (!preConnected && !waitToRetry(route, ++attempt, deadline)))
+                    return encRespMessage;
+            }
         }
-        catch (Exception e)
+        finally
         {
-            throw new KEzSignException("There was an error encrypting the message being sent to the " +
-                    "server with the auth code key. " + e.getMessage());
+            disconnect(socket);
         }
     }
 
     /**
+     * Sends the message on a keep-alive connection from the pool.  If a connection that has already been used
+     * fails, the server has probably closed it, so the message is sent again on another connection without
+     * counting as a retry
      *
-     * @param encMessage The encrypted message
-     * @return The clear message
-     * @throws KEzSignException If there is an error decrypting
+     * @param route The endpoint
+     * @param pool The connection pool
+     * @param encMessage The message, encrypted if using an auth code
+     * @param deadline The call's deadline
+     * @param readTimeoutMs The read timeout for this message
+     * @return The response, still encrypted if using an auth code
+     * @throws KEzSignConnectException If unable to connect to the EzSign server
+     * @throws IOException If there is an error on the socket, the deadline passed or the call was cancelled
      */
-    private String decryptMessage(String encMessage) throws KEzSignException
+    private byte[] sendOnKeepAlive(Route route, KConnectionPool pool, byte[] encMessage, KDeadline deadline, int readTimeoutMs)
+            throws KEzSignConnectException, IOException
     {
-        try
+        byte[] encRespMessage = null;
+
+        int attempt = 0;
+        while (true)
         {
-            String clearMessage = encMessage;
-            if (m_usingAuthCode)
+            // The server has been found to close connections after each message
+            if (!pool.isKeepAliveSupported())
+                return sendOnNewConnection(route, encMessage, deadline, readTimeoutMs);
+
+            deadline.check();
+            KConnection conn = pool.acquire(deadline.limit(m_connectTimeoutMs));
+            boolean reused = conn.getUseCount() > 0;
+            boolean ok = false;
+            try
+            {
+                deadline.attach(conn);
+                try
+                {
+                    encRespMessage = conn.exchange(encMessage, deadline.limit(readTimeoutMs));
+                    ok = !isEmpty(encRespMessage);
+                }
+                finally
+                {
+                    deadline.detach(conn);
+                }
+            }
+            catch (IOException ioEx)
+            {
+                // A timeout means the server is slow rather than that it closed the connection
+                if (!reused || deadline.isCancelled() || ioEx instanceof SocketTimeoutException)
+                    throw ioEx;
+            }
+            finally
             {
-                clearMessage = m_encrypt.decryptData(encMessage);
+                pool.release(conn, ok);
             }
 
-            return clearMessage;
-        }
-        catch (Exception e)
-        {
-            throw new KEzSignException("There was an error decrypting the response message received from the " +
-                    "server with the auth code key. Check both the server and client are using the same auth code password. " + e.getMessage());
+            if (!ok && reused)
+            {
+                pool.recordReuseFailure();
+                continue;
+            }
+
+            // Wait, and then try again
+            if (ok || !waitToRetry(route, ++attempt, deadline))
+                return encRespMessage;
         }
     }
 
     /**
-     * Sends the message to the server and gets the response string
+     * Sends the message on one of the multiplexed connections and waits for the response with the
+     * same correlation ID
      *
-     * @param clearMessage The formatted message
-     * @return The response
+     * @param route The endpoint
+     * @param pool The multiplexed connections
+     * @param encMessage The message, encrypted if using an auth code
+     * @param deadline The call's deadline.  If cancelled only this request is, the connection stays open
+     * @param readTimeoutMs The read timeout for this message
+     * @return The response, still encrypted if using an auth code
      * @throws KEzSignConnectException If unable to connect to the EzSign server
+     * @throws IOException If there is an error on the socket, the deadline passed or the call was cancelled
      */
-    private synchronized String sendMessage(String clearMessage) throws KEzSignConnectException
+    private byte[] sendMultiplexed(Route route, KMuxPool pool, byte[] encMessage, KDeadline deadline, int readTimeoutMs)
+            throws KEzSignConnectException, IOException
     {
-        try
+        int attempt = 0;
+        while (true)
+        {
+            // The server has been found not to support the v2 framing
+            if (!pool.isSupported())
+                return sendOnConnection(route, encMessage, deadline, readTimeoutMs);
+
+            attempt++;
+            deadline.check();
+            KMuxRequest request = pool.send(encMessage);
+            byte[] encRespMessage;
+            deadline.attach(request);
+            try
+            {
+                encRespMessage = request.await(deadline.limit(readTimeoutMs));
+            }
+            catch (SocketTimeoutException timeoutEx)
+            {
+                // The connection is still working, the server is just slow
+                throw timeoutEx;
+            }
+            catch (IOException ioEx)
+            {
+                // The connection failed.  Send again on another, if the retry policy allows
+                if (!waitToRetry(route, attempt, deadline))
+                    throw ioEx;
+                continue;
+            }
+            finally
+            {
+                deadline.detach(request);
+            }
+
+            // Wait, and then try again
+            if (!isEmpty(encRespMessage) || !waitToRetry(route, attempt, deadline))
+                return encRespMessage;
+        }
+    }
+
+    /**
+     * A request that may be hedged.  Run by the timer when the hedge delay has passed, to send the hedge if
+     * there is still no response.  The result completes with the first response, or with the last error
+     * once all requests sent have failed.  Each request is sent under its own deadline, and once one has
+     * been answered the other is cancelled.  The hedge takes its own place under the concurrency and memory
+     * limits, and is only sent if there is room straight away
+     */
+    private class HedgedRequest implements Runnable
+    {
+        final KEzSignReqMsg m_msg;
+        final int m_priority;
+        final Route m_route;
+        final Executor m_exec;
+        final KHedgePolicy m_hedgePolicy;
+        final KDeadline m_deadline;
+
+        final CompletableFuture<byte[]> m_result = new CompletableFuture<byte[]>();
+
+        // The requests sent and not yet finished, and the deadlines of those in progress
+        final AtomicInteger m_pending = new AtomicInteger(1);
+        final List<KDeadline> m_attempts = new ArrayList<KDeadline>(2);
+        volatile boolean m_hedged = false;
+        volatile Future<?> m_hedgeTask = null;
+
+        HedgedRequest(KEzSignReqMsg msg, int priority, Route route, Executor exec, KHedgePolicy hedgePolicy, KDeadline deadline)
+        {
+            m_msg = msg;
+            m_priority = priority;
+            m_route = route;
+            m_exec = exec;
+            m_hedgePolicy = hedgePolicy;
+            m_deadline = deadline;
+        }
+
+        /**
+         * Sends the original request from the calling thread
+         */
+        void sendOriginal()
         {
-            String encMessage = encryptMessage(clearMessage);
+            KDeadline attempt = startAttempt();
+            if (attempt == null)
+                return;
 
-            if (m_useTls)
-                m_socket = m_sslSockFactory.createSocket();
-            else
-                m_socket = new Socket();
+            long startTime = System.nanoTime();
+            try
+            {
+                finishAttempt(attempt, false, startTime, sendMessage(m_msg, m_route, attempt), null);
+            }
+            catch (Exception e)
+            {
+                finishAttempt(attempt, false, startTime, null, e);
+            }
+        }
 
-            String encRespMessage = null;
+        /**
+         * Sends the original request from the executor
+         *
+         * @return Completes once the original request has finished, whether or not it was answered
+         */
+        CompletableFuture<Void> sendOriginalAsync()
+        {
+            final KDeadline attempt = startAttempt();
+            if (attempt == null)
+                return CompletableFuture.completedFuture(null);
 
-            int retryCount = 0;
-            // Under extreme load (CPU near 100% 500 threads+) the server may occasionally
-            // return an empty message.  Check for this here and re-send, up to MAX_SEND_RETRIES
-            while ((encRespMessage == null || encRespMessage.isEmpty()) && retryCount < MAX_SEND_RETRIES)
+            final long startTime = System.nanoTime();
+            return sendMessageAsync(m_msg, m_route, m_exec, attempt).handle(new BiFunction<byte[], Throwable, Void>()
+            {
+                public Void apply(byte[] clearRespMessage, Throwable error)
+                {
+                    finishAttempt(attempt, false, startTime, clearRespMessage, error);
+                    return null;
+                }
+            });
+        }
+
+        /**
+         * Sends the hedge from the executor, under its own place in the limits
+         *
+         * @param route The endpoint
+         * @param concurrencyLimiter The concurrency limiter it has a slot from, or null
+         * @param memoryLimiter The memory limiter its bytes are reserved with, or null
+         */
+        void sendHedge(Route route, final KConcurrencyLimiter concurrencyLimiter, final KMemoryLimiter memoryLimiter)
+        {
+            final KDeadline attempt = startAttempt();
+            if (attempt == null)
             {
-                connect();
+                if (concurrencyLimiter != null)
+                    concurrencyLimiter.release();
+                if (memoryLimiter != null)
+                    memoryLimiter.release(m_msg.getPayloadSize());
+                return;
+            }
 
-                //Send the message to the server
-                OutputStream os = m_socket.getOutputStream();
-                OutputStreamWriter osw = new OutputStreamWriter(os);
-                BufferedWriter bw = new BufferedWriter(osw);
+            final long startTime = System.nanoTime();
+            sendMessageAsync(m_msg, route, m_exec, attempt).whenComplete(new BiConsumer<byte[], Throwable>()
+            {
+                public void accept(byte[] clearRespMessage, Throwable error)
+                {
+                    if (concurrencyLimiter != null)
+                        releaseSlot(concurrencyLimiter, startTime, error != null, attempt);
+                    if (memoryLimiter != null)
+                        memoryLimiter.release(m_msg.getPayloadSize());
+                    finishAttempt(attempt, true, startTime, clearRespMessage, error);
+                }
+            });
+        }
 
-                String sendMessage = encMessage + "\n";
-                bw.write(sendMessage);
-                bw.flush();
+        /**
+         * @return The deadline for a new request, or null if the call has been cancelled, in which case the
+         *         request has been counted as finished
+         */
+        KDeadline startAttempt()
+        {
+            KDeadline attempt;
+            try
+            {
+                attempt = m_deadline.newAttempt();
+            }
+            catch (InterruptedIOException e)
+            {
+                finishAttempt(null, false, 0, null, new KCallCancelledException("The call to the EzSign server was cancelled"));
+                return null;
+            }
 
-                //Get the return message from the server
-                InputStream is = m_socket.getInputStream();
-                InputStreamReader isr = new InputStreamReader(is);
-                BufferedReader br = new BufferedReader(isr);
-                encRespMessage = br.readLine();
+            synchronized (m_attempts)
+            {
+                // Already answered by the other request
+                if (m_result.isDone())
+                    attempt.cancel();
+                else
+                    m_attempts.add(attempt);
+            }
+            return attempt;
+        }
 
-                is.close();
-                os.close();
+        /**
+         * Called as each request finishes.  The first response completes the result and cancels the other request
+         *
+         * @param attempt The request's deadline, or null if it was not sent
+         * @param isHedge True for the hedge, false for the original request
+         * @param startTime When it was sent
+         * @param clearRespMessage The response or null if it failed
+         * @param error The error if it failed
+         */
+        void finishAttempt(KDeadline attempt, boolean isHedge, long startTime, byte[] clearRespMessage, Throwable error)
+        {
+            if (attempt != null)
+            {
+                m_deadline.endAttempt(attempt);
+                synchronized (m_attempts)
+                {
+                    m_attempts.remove(attempt);
+                }
+            }
 
-                disconnect();
+            if (error == null)
+            {
+                m_hedgePolicy.recordLatency(System.nanoTime() - startTime);
+                if (m_result.complete(clearRespMessage))
+                {
+                    cancelHedge();
+                    cancelAttempts();
+                    if (m_hedged)
+                        m_hedgePolicy.onHedgedResponse(isHedge);
+                }
+            }
 
-                retryCount++;
+            if (m_pending.decrementAndGet() == 0 && error != null)
+            {
+                if (error instanceof CompletionException && error.getCause() != null)
+                    error = error.getCause();
+                m_result.completeExceptionally(error);
+            }
+        }
 
-                // Wait, and then try again
-                if (encRespMessage == null || encRespMessage.isEmpty())
-                    // Try to sleep.  If fails, just continue
-                    try { Thread.sleep(RETRY_SEND_WAIT_MS); }catch (Exception e){};
+        /**
+         * Cancels the requests still in progress, once one has been answered
+         */
+        void cancelAttempts()
+        {
+            List<KDeadline> attempts;
+            synchronized (m_attempts)
+            {
+                attempts = new ArrayList<KDeadline>(m_attempts);
+                m_attempts.clear();
+            }
+            for (KDeadline attempt : attempts)
+                attempt.cancel();
+        }
+
+        void scheduleHedge()
+        {
+            long hedgeDelayNs = m_hedgePolicy.getHedgeDelayNanos();
+            if (hedgeDelayNs < 0)
+                return;
+
+            try
+            {
+                m_hedgeTask = getTimer().schedule(this, hedgeDelayNs, TimeUnit.NANOSECONDS);
+            }
+            catch (RuntimeException e)
+            {
+                // The client is being closed.  The original request carries on
             }
+            if (m_result.isDone())
+                cancelHedge();
+        }
 
-            String clearRespMessage = decryptMessage(encRespMessage);
+        void cancelHedge()
+        {
+            Future<?> hedgeTask = m_hedgeTask;
+            if (hedgeTask != null)
+                hedgeTask.cancel(false);
+        }
 
-            return clearRespMessage;
+        /**
+         * Sends the hedge if there is still no response, another endpoint is available, there is room under the
+         * limits and the budget allows
+         */
+        public void run()
+        {
+            if (m_result.isDone())
+                return;
+
+            Route other = selectOtherRoute(m_route);
+            if (other == null)
+                return;
+
+            // A hedge is not worth waiting for a place under the limits
+            KMemoryLimiter memoryLimiter = m_memoryLimiter;
+            if (memoryLimiter != null && !tryReserveMemory(memoryLimiter, m_msg.getPayloadSize()))
+                return;
+            KConcurrencyLimiter concurrencyLimiter = m_concurrencyLimiter;
+            if (concurrencyLimiter != null && !tryAcquireSlot(concurrencyLimiter, m_msg, m_priority))
+            {
+                if (memoryLimiter != null)
+                    memoryLimiter.release(m_msg.getPayloadSize());
+                return;
+            }
+
+            // Only if the budget allows and the original request has not finished in the meantime
+            boolean send = m_hedgePolicy.tryHedge();
+            int pending;
+            do
+            {
+                pending = m_pending.get();
+                if (pending == 0)
+                    send = false;
+            } while (send && !m_pending.compareAndSet(pending, pending + 1));
+
+            if (!send)
+            {
+                if (concurrencyLimiter != null)
+                    concurrencyLimiter.release();
+                if (memoryLimiter != null)
+                    memoryLimiter.release(m_msg.getPayloadSize());
+                return;
+            }
+
+            m_hedged = true;
+            sendHedge(other, concurrencyLimiter, memoryLimiter);
         }
-        catch (KEzSignConnectException connEx)
+    }
+
+    /**
+     * An endpoint and the pools of connections to it.  The pools are created and closed under m_transportLock.
+     * Also opens the connections for its pools with this client's settings
+     */
+    private class Route extends KEndpoint implements KConnector
+    {
+        KSocketPool m_socketPool = null;
+        KConnectionPool m_connectionPool = null;
+        KMuxPool m_muxPool = null;
+
+        // Set once the endpoint has been replaced, so no new pools are created for requests still in progress
+        boolean m_closed = false;
+
+        Route(String host, int port)
         {
-            throw new KEzSignConnectException(connEx.getMessage());
+            super(host, port);
         }
-        catch (Exception e)
+
+        public Socket connect(String host, int port) throws KEzSignConnectException
         {
-            throw new KEzSignConnectException("There was an error connecting to the EzSign server. " +
-                    "Ensure the server is running on host " + m_host + " and listening on port " + m_port +
-                    " and there is connectivity between this client and the server. " +
-                    "If auth code is in use, check both the client and server are using the same code. Error Details: " + e.getMessage());
+            return EzSignClient.this.connect(host, port, this, new KDeadline(0));
         }
-        finally
+
+        public Socket connect(String host, int port, int timeoutMs) throws KEzSignConnectException
         {
-            disconnect();
+            return EzSignClient.this.connect(host, port, this, new KDeadline(timeoutMs));
         }
     }
 }
@@ -0,0 +1,18 @@
+package com.krestfield.ezsign;
+
+/**
+ * KCallCancelledException
+ *
+ * Thrown when a call is cancelled (see KDeadline.cancel)
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KCallCancelledException extends KEzSignConnectException
+{
+    public KCallCancelledException(String message)
+    {
+        super(message);
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
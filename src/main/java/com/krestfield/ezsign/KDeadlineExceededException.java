@@ -0,0 +1,18 @@
+package com.krestfield.ezsign;
+
+/**
+ * KDeadlineExceededException
+ *
+ * Thrown when a call does not complete within its deadline (see KDeadline and EzSignClient.useCallTimeout)
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KDeadlineExceededException extends KEzSignConnectException
+{
+    public KDeadlineExceededException(String message)
+    {
+        super(message);
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,20 @@
+package com.krestfield.ezsign;
+
+/**
+ * KLoadShedException
+ *
+ * Thrown when a call is not sent because the client's concurrency limit has been reached and the call could
+ * not be queued, or waited too long in the queue (see EzSignClient.useConcurrencyLimit), or because its
+ * request's bytes were not free under the client's memory limit in time (see EzSignClient.useMemoryLimit)
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KLoadShedException extends KEzSignConnectException
+{
+    public KLoadShedException(String message)
+    {
+        super(message);
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
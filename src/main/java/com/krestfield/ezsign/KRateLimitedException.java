@@ -0,0 +1,19 @@
+package com.krestfield.ezsign;
+
+/**
+ * KRateLimitedException
+ *
+ * Thrown when a call is not sent because it would exceed a rate limit set on the client, and could not wait
+ * for its turn (see EzSignClient.useRateLimit)
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KRateLimitedException extends KEzSignConnectException
+{
+    public KRateLimitedException(String message)
+    {
+        super(message);
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
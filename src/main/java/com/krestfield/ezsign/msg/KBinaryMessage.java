@@ -0,0 +1,248 @@
+package com.krestfield.ezsign.msg;
+
+import com.krestfield.ezsign.KEzSignException;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * KBinaryMessage
+ *
+ * The binary message format.  Carries the same items as the text format but each item is typed and
+ * length prefixed, so binary data (signatures, content, certificates) is sent as is rather than base64
+ * encoded and nothing needs to be split on a delimiter.
+ *
+ * Message Format (all integers big endian)
+ *   0-3: Message ID (4 ASCII chars)
+ *   4:   Number of items
+ *   Then for each item:
+ *     1 byte  Type
+ *     4 bytes Length
+ *     n bytes Value
+ *
+ * Item values by type:
+ *   TYPE_TEXT   UTF-8 text
+ *   TYPE_BYTES  Raw bytes
+ *   TYPE_FLAG   1 byte, 1 for true and 0 for false
+ *   TYPE_CERTS  2 byte count then for each certificate, 4 byte length and the DER encoding
+ *
+ * Requests carry the channel name as the first item followed by the data items.  Responses carry the
+ * response code (as text) then the error message if the code is not 0, then the data items - the same
+ * order as the text format
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KBinaryMessage
+{
+    public static final byte TYPE_TEXT = 1;
+    public static final byte TYPE_BYTES = 2;
+    public static final byte TYPE_FLAG = 3;
+    public static final byte TYPE_CERTS = 4;
+
+    final static int HEADER_LEN = 5;
+    final static int ITEM_HEADER_LEN = 5;
+
+    private String m_messageId;
+    private byte[] m_types;
+    private byte[][] m_values;
+
+    /**
+     * Constructor
+     *
+     * @param messageId The 4 character message ID
+     * @param types The type of each item
+     * @param values The encoded value of each item
+     */
+    public KBinaryMessage(String messageId, byte[] types, byte[][] values)
+    {
+        m_messageId = messageId;
+        m_types = types;
+        m_values = values;
+    }
+
+    /**
+     * Encodes the message
+     *
+     * @return The encoded message
+     */
+    public byte[] encode()
+    {
+        int len = HEADER_LEN;
+        for (int i = 0; i < m_values.length; i++)
+            len += ITEM_HEADER_LEN + m_values[i].length;
+
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        buf.put(m_messageId.getBytes(StandardCharsets.US_ASCII), 0, 4);
+        buf.put((byte) m_values.length);
+        for (int i = 0; i < m_values.length; i++)
+        {
+            buf.put(m_types[i]);
+            buf.putInt(m_values[i].length);
+            buf.put(m_values[i]);
+        }
+
+        return buf.array();
+    }
+
+    /**
+     * Decodes a message
+     *
+     * @param message The encoded message
+     * @return The decoded message
+     * @throws KEzSignException If the message is not valid
+     */
+    public static KBinaryMessage decode(byte[] message) throws KEzSignException
+    {
+        try
+        {
+            ByteBuffer buf = ByteBuffer.wrap(message);
+            byte[] id = new byte[4];
+            buf.get(id);
+            int numItems = buf.get() & 0xFF;
+
+            byte[] types = new byte[numItems];
+            byte[][] values = new byte[numItems][];
+            for (int i = 0; i < numItems; i++)
+            {
+                types[i] = buf.get();
+                int len = buf.getInt();
+                if (len < 0 || len > buf.remaining())
+                    throw new KEzSignException("Item " + i + " has an invalid length of " + len);
+                values[i] = new byte[len];
+                buf.get(values[i]);
+
+                // A certificate list is checked now so that getText can read it without checks
+                if (types[i] == TYPE_CERTS)
+                    decodeCerts(values[i]);
+            }
+
+            return new KBinaryMessage(new String(id, StandardCharsets.US_ASCII), types, values);
+        }
+        catch (KEzSignException e)
+        {
+            throw new KEzSignException("The binary message was not valid. " + e.getMessage());
+        }
+        catch (RuntimeException e)
+        {
+            throw new KEzSignException("The binary message was not valid. It was shorter than its contents indicate");
+        }
+    }
+
+    /**
+     * Encodes a list of certificates as a TYPE_CERTS value
+     *
+     * @param certs The DER encoded certificates
+     * @return The encoded value
+     */
+    public static byte[] encodeCerts(byte[][] certs)
+    {
+        int len = 2;
+        for (int i = 0; i < certs.length; i++)
+            len += 4 + certs[i].length;
+
+        ByteBuffer buf = ByteBuffer.allocate(len);
+        buf.putShort((short) certs.length);
+        for (int i = 0; i < certs.length; i++)
+        {
+            buf.putInt(certs[i].length);
+            buf.put(certs[i]);
+        }
+
+        return buf.array();
+    }
+
+    /**
+     * Decodes a TYPE_CERTS value
+     *
+     * @param value The encoded value
+     * @return The DER encoded certificates
+     * @throws KEzSignException If the value is not valid
+     */
+    public static byte[][] decodeCerts(byte[] value) throws KEzSignException
+    {
+        ByteBuffer buf = ByteBuffer.wrap(value);
+        if (buf.remaining() < 2)
+            throw new KEzSignException("The certificate list has no count");
+
+        // Each certificate takes at least its 4 byte length, so a count the value cannot hold is rejected
+        // before the list is allocated
+        int numCerts = buf.getShort() & 0xFFFF;
+        if (numCerts > buf.remaining() / 4)
+            throw new KEzSignException("The certificate list has an invalid count of " + numCerts);
+
+        byte[][] certs = new byte[numCerts][];
+        for (int i = 0; i < numCerts; i++)
+        {
+            if (buf.remaining() < 4)
+                throw new KEzSignException("Certificate " + i + " has no length");
+
+            int len = buf.getInt();
+            if (len < 0 || len > buf.remaining())
+                throw new KEzSignException("Certificate " + i + " has an invalid length of " + len);
+            certs[i] = new byte[len];
+            buf.get(certs[i]);
+        }
+
+        return certs;
+    }
+
+    public String getMessageId()
+    {
+        return m_messageId;
+    }
+
+    public int getNumItems()
+    {
+        return m_values.length;
+    }
+
+    public byte getType(int index)
+    {
+        return m_types[index];
+    }
+
+    public byte[] getValue(int index)
+    {
+        return m_values[index];
+    }
+
+    /**
+     *
+     * @param index The item index
+     * @return The item as text, whatever its type (bytes are base64 encoded, certs base64 encoded
+     *         and joined with ^, flags are 1 or 0), as it would be in the text format
+     */
+    public String getText(int index)
+    {
+        switch (m_types[index])
+        {
+            case TYPE_BYTES:
+                return KBase64.ToBase64String(m_values[index]);
+            case TYPE_FLAG:
+                return m_values[index].length > 0 && m_values[index][0] != 0 ? "1" : "0";
+            case TYPE_CERTS:
+                StringBuilder sb = new StringBuilder();
+                byte[][] certs;
+                try
+                {
+                    certs = decodeCerts(m_values[index]);
+                }
+                catch (KEzSignException e)
+                {
+                    // Lists are checked by decode, and those from encodeCerts are valid
+                    throw new IllegalStateException(e.getMessage());
+                }
+                for (int i = 0; i < certs.length; i++)
+                {
+                    if (i > 0)
+                        sb.append(KVerifySignatureReqMsg.CERT_DELIM);
+                    sb.append(KBase64.ToBase64String(certs[i]));
+                }
+                return sb.toString();
+            default:
+                return new String(m_values[index], StandardCharsets.UTF_8);
+        }
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -29,12 +29,12 @@ public class KEncipherReqMsg extends KEzSignReqMsg
 
         initDataItems(NUM_ITEMS);
 
-        m_msgDataItems[ENCRYPT_INDEX] = encrypt ? TRUE_STR : FALSE_STR;
+        setFlagItem(ENCRYPT_INDEX, encrypt);
 
         if (data == null || data.length == 0)
             throw new KEzSignException("The data to encipher was empty or null.  Cannot encipher data");
 
-        m_msgDataItems[DATA_INDEX] = KBase64.ToBase64String(data);
+        setBinaryItem(DATA_INDEX, data);
 
         if (keyLabel != null && !keyLabel.isEmpty())
             m_msgDataItems[KEY_LABEL_INDEX] = keyLabel;
@@ -15,27 +15,32 @@ public class KEncipherRespMsg extends KEzSignRespMsg
     public KEncipherRespMsg(String fullMessage) throws KEzSignException
     {
         super(fullMessage);
+        readData();
+    }
+
+    public KEncipherRespMsg(byte[] message, boolean binary) throws KEzSignException
+    {
+        super(message, binary);
+        readData();
+    }
 
+    private void readData() throws KEzSignException
+    {
         // Error messages do not contain any extra data and the response code and error
-        // message would have been dealt with by the parent class
-        if (m_respDataItems == null || m_respDataItems.length == 0)
+        // message would have been dealt with by the parent class.  The data is only decoded
+        // when asked for
+        if (m_numDataItems == 0)
             return;
 
-        try
-        {
-            if (m_respDataItems[DATA_INDEX] == null)
-                throw new KEzSignException("The data contained in the response was empty");
-
-            m_data = KBase64.FromBase64String(m_respDataItems[DATA_INDEX]);
-        }
-        catch (Exception e)
-        {
-            throw new KEzSignException("There was an error converting the response data: " + e.getMessage());
-        }
+        if (!hasDataItem(DATA_INDEX))
+            throw new KEzSignException("The data contained in the response was empty");
     }
 
     public byte[] getData()
     {
+        if (m_data == null && hasDataItem(DATA_INDEX))
+            m_data = getDataItemBytes(DATA_INDEX);
+
         return m_data;
     }
 }
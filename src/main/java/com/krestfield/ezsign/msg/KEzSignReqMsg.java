@@ -2,6 +2,10 @@ package com.krestfield.ezsign.msg;
 
 import com.krestfield.ezsign.KEzSignException;
 
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+
 /**
  * KEzSignReqMsg
  *
@@ -9,10 +13,23 @@ import com.krestfield.ezsign.KEzSignException;
  */
 public class KEzSignReqMsg extends KEzSignMsg
 {
+    private final static byte DELIMITER_BYTE = (byte) DELIMITER.charAt(0);
+    private final static byte[] CERT_DELIM_BYTES = KVerifySignatureReqMsg.CERT_DELIM.getBytes(StandardCharsets.US_ASCII);
+
+    // The MESSAGE_ID~CHANNEL~ prefixes of the text format, by message ID and channel
+    private final static int MAX_CACHED_PREFIXES = 1024;
+    private final static ConcurrentHashMap<String, ConcurrentHashMap<String, byte[]>> PREFIXES =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, byte[]>>();
+
     protected String m_messageId;
     protected String m_channelName;
     protected String[] m_msgDataItems;
 
+    // The type of each data item (KBinaryMessage.TYPE_...) and, for binary items, the raw value.
+    // Binary items are only base64 encoded if the message is sent in the text format
+    protected byte[] m_msgItemTypes;
+    protected byte[][] m_msgBinaryItems;
+
     /**
      * Message Format is:
      * MESSAGE_ID : CHANNEL : DATA1 : DATA2...
@@ -32,6 +49,44 @@ public class KEzSignReqMsg extends KEzSignMsg
         m_channelName = channel;
     }
 
+    /**
+     *
+     * @return The message ID e.g. SIGN
+     */
+    public String getMessageId()
+    {
+        return m_messageId;
+    }
+
+    /**
+     *
+     * @return The channel name
+     */
+    public String getChannelName()
+    {
+        return m_channelName;
+    }
+
+    /**
+     *
+     * @return The size of the data items in bytes, binary items as they are before encoding
+     */
+    public long getPayloadSize()
+    {
+        long size = m_channelName.length();
+        if (m_msgDataItems != null)
+        {
+            for (int item = 0; item < m_msgDataItems.length; item++)
+            {
+                if (m_msgBinaryItems != null && m_msgBinaryItems[item] != null)
+                    size += m_msgBinaryItems[item].length;
+                else if (m_msgDataItems[item] != null)
+                    size += m_msgDataItems[item].length();
+            }
+        }
+        return size;
+    }
+
     /**
      * Creates the number of items required and sets them all to empty string
      *
@@ -40,8 +95,93 @@ public class KEzSignReqMsg extends KEzSignMsg
     public void initDataItems(int size)
     {
         m_msgDataItems = new String[size];
+        m_msgItemTypes = new byte[size];
+        m_msgBinaryItems = new byte[size][];
         for (int i = 0; i < m_msgDataItems.length; i++)
+        {
             m_msgDataItems[i] = EMPTY_STR;
+            m_msgItemTypes[i] = KBinaryMessage.TYPE_TEXT;
+        }
+    }
+
+    /**
+     * Sets a text data item
+     *
+     * @param index The item index
+     * @param value The text
+     */
+    protected void setTextItem(int index, String value)
+    {
+        m_msgDataItems[index] = value;
+        m_msgItemTypes[index] = KBinaryMessage.TYPE_TEXT;
+        m_msgBinaryItems[index] = null;
+    }
+
+    /**
+     * Sets a true/false data item
+     *
+     * @param index The item index
+     * @param value The value
+     */
+    protected void setFlagItem(int index, boolean value)
+    {
+        m_msgDataItems[index] = value ? TRUE_STR : FALSE_STR;
+        m_msgItemTypes[index] = KBinaryMessage.TYPE_FLAG;
+        m_msgBinaryItems[index] = new byte[] { (byte) (value ? 1 : 0) };
+    }
+
+    /**
+     * Sets a binary data item.  The data is not copied
+     *
+     * @param index The item index
+     * @param value The data
+     */
+    protected void setBinaryItem(int index, byte[] value)
+    {
+        m_msgDataItems[index] = null;
+        m_msgItemTypes[index] = KBinaryMessage.TYPE_BYTES;
+        m_msgBinaryItems[index] = value;
+    }
+
+    /**
+     * Sets a list of certificates
+     *
+     * @param index The item index
+     * @param certs The DER encoded certificates
+     */
+    protected void setCertsItem(int index, byte[][] certs)
+    {
+        m_msgDataItems[index] = null;
+        m_msgItemTypes[index] = KBinaryMessage.TYPE_CERTS;
+        m_msgBinaryItems[index] = KBinaryMessage.encodeCerts(certs);
+    }
+
+    /**
+     * Returns a data item as it is sent in the text format
+     *
+     * @param index The item index
+     * @return The item text
+     */
+    protected String getTextItem(int index)
+    {
+        if (m_msgDataItems[index] == null)
+            m_msgDataItems[index] = new KBinaryMessage(m_messageId, m_msgItemTypes, m_msgBinaryItems).getText(index);
+
+        return m_msgDataItems[index];
+    }
+
+    /**
+     * Returns a binary data item
+     *
+     * @param index The item index
+     * @return The data
+     */
+    protected byte[] getBinaryItem(int index)
+    {
+        if (m_msgBinaryItems[index] != null)
+            return m_msgBinaryItems[index];
+
+        return KBase64.FromBase64String(m_msgDataItems[index]);
     }
 
     /**
@@ -53,18 +193,214 @@ public class KEzSignReqMsg extends KEzSignMsg
      */
     public String getMessage()
     {
-        String fullMsg = m_messageId + DELIMITER +
-                         m_channelName;
+        return new String(getMessageBytes(), StandardCharsets.UTF_8);
+    }
 
-        if (m_msgDataItems != null && m_msgDataItems.length != 0)
+    /**
+     * Returns the message in the text format as bytes, encoded into an array of exactly its length (see
+     * writeMessage)
+     *
+     * @return The full message
+     */
+    public byte[] getMessageBytes()
+    {
+        byte[] message = new byte[getMessageLength()];
+        writeMessage(message, 0);
+        return message;
+    }
+
+    /**
+     *
+     * @return The length of the message in the text format, in bytes
+     */
+    public int getMessageLength()
+    {
+        int numItems = (m_msgDataItems == null) ? 0 : m_msgDataItems.length;
+        int len = getPrefix().length - ((numItems == 0) ? 1 : 0) + Math.max(0, numItems - 1);
+        for (int item = 0; item < numItems; item++)
         {
-            for (int item = 0; item < m_msgDataItems.length; item++)
+            byte[] binary = getBinaryToEncode(item);
+            if (binary == null)
+                len += textLength(m_msgDataItems[item]);
+            else if (m_msgItemTypes[item] == KBinaryMessage.TYPE_CERTS)
+                len += certsLength(binary);
+            else
+                len += KBase64.getEncodedLength(binary.length);
+        }
+        return len;
+    }
+
+    /**
+     * Writes the message in the text format straight into a buffer.  The message ID, channel and delimiters are
+     * written as ASCII (the channel as UTF-8) and binary items are base64 encoded in place, so no part of the
+     * message is built as a string
+     *
+     * @param out The buffer to write to.  Must have getMessageLength() bytes free at offset
+     * @param offset The offset to write at
+     * @return The offset after the last byte written
+     */
+    public int writeMessage(byte[] out, int offset)
+    {
+        int numItems = (m_msgDataItems == null) ? 0 : m_msgDataItems.length;
+
+        // The prefix ends with the delimiter before the first item
+        byte[] prefix = getPrefix();
+        int prefixLen = prefix.length - ((numItems == 0) ? 1 : 0);
+        System.arraycopy(prefix, 0, out, offset, prefixLen);
+        int index = offset + prefixLen;
+
+        for (int item = 0; item < numItems; item++)
+        {
+            if (item > 0)
+                out[index++] = DELIMITER_BYTE;
+
+            byte[] binary = getBinaryToEncode(item);
+            if (binary == null)
+                index = writeText(m_msgDataItems[item], out, index);
+            else if (m_msgItemTypes[item] == KBinaryMessage.TYPE_CERTS)
+                index = writeCerts(binary, out, index);
+            else
+                index = KBase64.encode(binary, 0, binary.length, out, index);
+        }
+
+        return index;
+    }
+
+    /**
+     * Returns MESSAGE_ID~CHANNEL~ as bytes, cached for each message ID and channel
+     *
+     * @return The prefix
+     */
+    private byte[] getPrefix()
+    {
+        ConcurrentHashMap<String, byte[]> channels = PREFIXES.get(m_messageId);
+        if (channels == null)
+        {
+            channels = new ConcurrentHashMap<String, byte[]>();
+            ConcurrentHashMap<String, byte[]> existing = PREFIXES.putIfAbsent(m_messageId, channels);
+            if (existing != null)
+                channels = existing;
+        }
+
+        byte[] prefix = channels.get(m_channelName);
+        if (prefix == null)
+        {
+            prefix = (m_messageId + DELIMITER + m_channelName + DELIMITER).getBytes(StandardCharsets.UTF_8);
+
+            // Only so many are kept, in case channel names are made up by callers
+            if (channels.size() < MAX_CACHED_PREFIXES)
+                channels.put(m_channelName, prefix);
+        }
+        return prefix;
+    }
+
+    /**
+     * @param item The item index
+     * @return The item's value if it is bytes or certificates, to be base64 encoded, or null if the text item
+     *         is to be sent
+     */
+    private byte[] getBinaryToEncode(int item)
+    {
+        if (m_msgItemTypes == null || m_msgBinaryItems[item] == null)
+            return null;
+        if (m_msgItemTypes[item] != KBinaryMessage.TYPE_BYTES && m_msgItemTypes[item] != KBinaryMessage.TYPE_CERTS)
+            return null;
+        return m_msgBinaryItems[item];
+    }
+
+    private static int textLength(String text)
+    {
+        for (int i = 0; i < text.length(); i++)
+        {
+            if (text.charAt(i) >= 0x80)
+                return text.getBytes(StandardCharsets.UTF_8).length;
+        }
+        return text.length();
+    }
+
+    private static int writeText(String text, byte[] out, int offset)
+    {
+        for (int i = 0; i < text.length(); i++)
+        {
+            if (text.charAt(i) >= 0x80)
+            {
+                byte[] utf8 = text.getBytes(StandardCharsets.UTF_8);
+                System.arraycopy(utf8, 0, out, offset, utf8.length);
+                return offset + utf8.length;
+            }
+        }
+
+        for (int i = 0; i < text.length(); i++)
+            out[offset + i] = (byte) text.charAt(i);
+        return offset + text.length();
+    }
+
+    /**
+     * @param certs The certificates as a TYPE_CERTS value
+     * @return The length of the certificates base64 encoded and joined with CERT_DELIM
+     */
+    private static int certsLength(byte[] certs)
+    {
+        ByteBuffer buf = ByteBuffer.wrap(certs);
+        int numCerts = buf.getShort() & 0xFFFF;
+        int len = Math.max(0, numCerts - 1) * CERT_DELIM_BYTES.length;
+        for (int i = 0; i < numCerts; i++)
+        {
+            int certLen = buf.getInt();
+            len += KBase64.getEncodedLength(certLen);
+            buf.position(buf.position() + certLen);
+        }
+        return len;
+    }
+
+    private static int writeCerts(byte[] certs, byte[] out, int offset)
+    {
+        ByteBuffer buf = ByteBuffer.wrap(certs);
+        int numCerts = buf.getShort() & 0xFFFF;
+        int index = offset;
+        for (int i = 0; i < numCerts; i++)
+        {
+            if (i > 0)
+            {
+                System.arraycopy(CERT_DELIM_BYTES, 0, out, index, CERT_DELIM_BYTES.length);
+                index += CERT_DELIM_BYTES.length;
+            }
+            int certLen = buf.getInt();
+            index = KBase64.encode(certs, buf.position(), certLen, out, index);
+            buf.position(buf.position() + certLen);
+        }
+        return index;
+    }
+
+    /**
+     * Returns the message in the binary format, see KBinaryMessage.  The channel is the first item
+     * followed by the data items
+     *
+     * @return The binary message
+     */
+    public KBinaryMessage getBinaryMessage()
+    {
+        int numItems = (m_msgDataItems == null) ? 0 : m_msgDataItems.length;
+        byte[] types = new byte[numItems + 1];
+        byte[][] values = new byte[numItems + 1][];
+
+        types[0] = KBinaryMessage.TYPE_TEXT;
+        values[0] = m_channelName.getBytes(StandardCharsets.UTF_8);
+        for (int item = 0; item < numItems; item++)
+        {
+            if (m_msgItemTypes == null || m_msgBinaryItems[item] == null)
+            {
+                types[item + 1] = KBinaryMessage.TYPE_TEXT;
+                values[item + 1] = m_msgDataItems[item].getBytes(StandardCharsets.UTF_8);
+            }
+            else
             {
-                fullMsg += (DELIMITER + m_msgDataItems[item]);
+                types[item + 1] = m_msgItemTypes[item];
+                values[item + 1] = m_msgBinaryItems[item];
             }
         }
 
-        return fullMsg;
+        return new KBinaryMessage(m_messageId, types, values);
     }
 }
 /********************************************* END OF FILE *****************************************************
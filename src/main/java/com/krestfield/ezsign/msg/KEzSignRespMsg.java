@@ -2,6 +2,9 @@ package com.krestfield.ezsign.msg;
 
 import com.krestfield.ezsign.KEzSignException;
 
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
 /**
  * KEzSignRespMsg
  *
@@ -18,10 +21,25 @@ public class KEzSignRespMsg extends KEzSignMsg
     public static final int RESP_PATH_EXCEPTION = 5;
     public static final int RESP_ENCIPHER_EXCEPTION = 6;
 
+    private static final byte DELIMITER_BYTE = (byte) KEzSignMsg.DELIMITER.charAt(0);
+
     protected String m_returnedMsgId;
     protected int m_responseCode = 0;
     protected String m_errorMsg;
-    protected String[] m_respDataItems;
+    protected int m_numDataItems;
+
+    // In the text format the message is kept and each data item is a range of it, which is only copied (and
+    // base64 decoded) when asked for.  Field f runs from m_fieldEnds[f] + 1 to m_fieldEnds[f + 1] and the
+    // data items start at field m_firstItem
+    private byte[] m_message;
+    private int[] m_fieldEnds;
+    private int m_firstItem;
+
+    // Text data items as received in the binary format.  Null for binary items and in the text format
+    private String[] m_respDataItems;
+
+    // Binary data items as received in the binary format.  Null for text items and in the text format
+    protected byte[][] m_respBinaryItems;
 
     /**
      * Message Format:
@@ -35,36 +53,199 @@ public class KEzSignRespMsg extends KEzSignMsg
         if (fullMessage == null || fullMessage.length() == 0)
             throw new KEzSignException("Message received is empty or null");
 
-        int componentIndex = 0;
-        String[] components = fullMessage.split(KEzSignMsg.DELIMITER);
+        parseText(fullMessage.getBytes(StandardCharsets.UTF_8));
+    }
+
+    /**
+     * Parses a response in either the text format or the binary format (see KBinaryMessage)
+     *
+     * @param message The full message
+     * @param binary True if the message is in the binary format
+     * @throws KEzSignException If there is an error
+     */
+    public KEzSignRespMsg(byte[] message, boolean binary) throws KEzSignException
+    {
+        if (message == null || message.length == 0)
+            throw new KEzSignException("Message received is empty or null");
 
-        if (components == null || components.length < 2)
+        if (binary)
+            parseBinary(message);
+        else
+            parseText(message);
+    }
+
+    /**
+     * Parses the text format.  The message is scanned once for the delimiters, as String.split would split it,
+     * and only the message ID, response code and error message are copied out.  The data items are left in
+     * the message for the sub classes to read
+     *
+     * @param message The full message
+     * @throws KEzSignException If there is an error
+     */
+    private void parseText(byte[] message) throws KEzSignException
+    {
+        // The delimiter is ASCII so cannot be part of a multi-byte UTF-8 character.  The first field starts
+        // after the -1 and the last ends at the end of the message
+        int[] fieldEnds = new int[16];
+        int numEnds = 0;
+        fieldEnds[numEnds++] = -1;
+        for (int i = 0; i < message.length; i++)
+        {
+            if (message[i] == DELIMITER_BYTE)
+            {
+                if (numEnds == fieldEnds.length)
+                    fieldEnds = Arrays.copyOf(fieldEnds, numEnds * 2);
+                fieldEnds[numEnds++] = i;
+            }
+        }
+        if (numEnds == fieldEnds.length)
+            fieldEnds = Arrays.copyOf(fieldEnds, numEnds + 1);
+        fieldEnds[numEnds++] = message.length;
+
+        // Trailing empty fields are dropped, as by split
+        int numFields = numEnds - 1;
+        while (numFields > 0 && fieldEnds[numFields - 1] + 1 == fieldEnds[numFields])
+            numFields--;
+
+        if (numFields < 2)
             throw new KEzSignException("Response received from the server was not valid");
 
         // Message ID - should be 4 chars
-        m_returnedMsgId = components[componentIndex];
-        componentIndex++;
+        int field = 0;
+        m_returnedMsgId = getField(message, fieldEnds, field);
+        field++;
 
         // Response Code
-        m_responseCode = Integer.parseInt(components[componentIndex]);
-        componentIndex++;
+        try
+        {
+            m_responseCode = Integer.parseInt(getField(message, fieldEnds, field));
+        }
+        catch (NumberFormatException e)
+        {
+            throw new KEzSignException("Response received from the server was not valid");
+        }
+        field++;
 
         // If response code not 0, get error message
-        if (m_responseCode != 0)
+        if (m_responseCode != 0 && field < numFields)
         {
-            m_errorMsg = components[componentIndex];
-            componentIndex++;
+            m_errorMsg = getField(message, fieldEnds, field);
+            field++;
         }
 
-        // Copy the remaining items into the data items array for the
-        // sub classes to process
-        m_respDataItems = new String[components.length - componentIndex];
-        int newIndex = 0;
-        while (componentIndex < components.length)
+        // The remaining fields are the data items
+        m_message = message;
+        m_fieldEnds = fieldEnds;
+        m_firstItem = field;
+        m_numDataItems = numFields - field;
+    }
+
+    /**
+     *
+     * @param message The full message in the text format
+     * @param fieldEnds The field ends, as found by parseText
+     * @param field The field index
+     * @return The field as a string
+     */
+    private static String getField(byte[] message, int[] fieldEnds, int field)
+    {
+        int start = fieldEnds[field] + 1;
+        return new String(message, start, fieldEnds[field + 1] - start, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Parses the binary format.  The items are the same as the text format
+     *
+     * @param message The full message
+     * @throws KEzSignException If there is an error
+     */
+    private void parseBinary(byte[] message) throws KEzSignException
+    {
+        KBinaryMessage binMessage = KBinaryMessage.decode(message);
+        if (binMessage.getNumItems() < 1)
+            throw new KEzSignException("Response received from the server was not valid");
+
+        int componentIndex = 0;
+        m_returnedMsgId = binMessage.getMessageId();
+
+        try
+        {
+            m_responseCode = Integer.parseInt(binMessage.getText(componentIndex).trim());
+        }
+        catch (NumberFormatException e)
         {
-            m_respDataItems[newIndex] = components[componentIndex];
+            throw new KEzSignException("Response received from the server was not valid");
+        }
+        componentIndex++;
+
+        if (m_responseCode != 0 && componentIndex < binMessage.getNumItems())
+        {
+            m_errorMsg = binMessage.getText(componentIndex);
             componentIndex++;
         }
+
+        int numItems = binMessage.getNumItems() - componentIndex;
+        m_numDataItems = numItems;
+        m_respDataItems = new String[numItems];
+        m_respBinaryItems = new byte[numItems][];
+        for (int newIndex = 0; newIndex < numItems; newIndex++, componentIndex++)
+        {
+            if (binMessage.getType(componentIndex) == KBinaryMessage.TYPE_BYTES)
+                m_respBinaryItems[newIndex] = binMessage.getValue(componentIndex);
+            else
+                m_respDataItems[newIndex] = binMessage.getText(componentIndex);
+        }
+    }
+
+    /**
+     *
+     * @param index The data item index
+     * @return True if the response contains the data item
+     */
+    protected boolean hasDataItem(int index)
+    {
+        if (index >= m_numDataItems)
+            return false;
+
+        return m_message != null || m_respDataItems[index] != null || m_respBinaryItems[index] != null;
+    }
+
+    /**
+     * Returns a data item as text, base64 encoding it if received in the binary format as bytes
+     *
+     * @param index The data item index
+     * @return The data item
+     */
+    protected String getDataItem(int index)
+    {
+        if (m_message != null)
+            return getField(m_message, m_fieldEnds, m_firstItem + index);
+
+        if (m_respBinaryItems[index] != null)
+            return KBase64.ToBase64String(m_respBinaryItems[index]);
+
+        return m_respDataItems[index];
+    }
+
+    /**
+     * Returns a binary data item, base64 decoding it if received in the text format.  In the text format it is
+     * decoded straight from the message, so the data is only copied once
+     *
+     * @param index The data item index
+     * @return The data
+     */
+    protected byte[] getDataItemBytes(int index)
+    {
+        if (m_message != null)
+        {
+            int start = m_fieldEnds[m_firstItem + index] + 1;
+            return KBase64.decode(m_message, start, m_fieldEnds[m_firstItem + index + 1] - start, false);
+        }
+
+        if (m_respBinaryItems[index] != null)
+            return m_respBinaryItems[index];
+
+        return KBase64.FromBase64String(m_respDataItems[index]);
     }
 
     /**
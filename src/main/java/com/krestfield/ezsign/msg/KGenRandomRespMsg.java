@@ -23,22 +23,35 @@ public class KGenRandomRespMsg extends KEzSignRespMsg
     public KGenRandomRespMsg(String fullMessage) throws KEzSignException
     {
         super(fullMessage);
+        readRandomBytes();
+    }
 
-        if (m_respDataItems == null || m_respDataItems.length == 0)
+    /**
+     * Constructor
+     *
+     * @param message The complete message
+     * @param binary True if the message is in the binary format
+     * @throws KEzSignException If there is an error
+     */
+    public KGenRandomRespMsg(byte[] message, boolean binary) throws KEzSignException
+    {
+        super(message, binary);
+        readRandomBytes();
+    }
+
+    /**
+     * Checks the data items hold the random bytes.  They are only decoded when asked for
+     *
+     * @throws KEzSignException If there is an error
+     */
+    private void readRandomBytes() throws KEzSignException
+    {
+        if (m_numDataItems == 0)
             return;
             //throw new KEzSignException("No random bytes were returned in the response data");
 
-        try
-        {
-            if (m_respDataItems[RAND_BYTES_INDEX] == null)
-                throw new KEzSignException("No random bytes were contained in the response");
-
-            m_randomBytes = KBase64.FromBase64String(m_respDataItems[RAND_BYTES_INDEX]);
-        }
-        catch (Exception e)
-        {
-            throw new KEzSignException("There was an error converting the random bytes: " + e.getMessage());
-        }
+        if (!hasDataItem(RAND_BYTES_INDEX))
+            throw new KEzSignException("No random bytes were contained in the response");
     }
 
     /**
@@ -48,6 +61,9 @@ public class KGenRandomRespMsg extends KEzSignRespMsg
      */
     public byte[] getRandomBytes()
     {
+        if (m_randomBytes == null && hasDataItem(RAND_BYTES_INDEX))
+            m_randomBytes = getDataItemBytes(RAND_BYTES_INDEX);
+
         return m_randomBytes;
     }
 }
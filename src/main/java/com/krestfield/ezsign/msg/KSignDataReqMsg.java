@@ -37,9 +37,9 @@ public class KSignDataReqMsg extends KEzSignReqMsg
 
         if (dataToSign == null || dataToSign.length == 0)
             throw new KEzSignException("The data to sign was empty or null.  Cannot sign data");
-        m_msgDataItems[DTS_INDEX] = KBase64.ToBase64String(dataToSign);
+        setBinaryItem(DTS_INDEX, dataToSign);
 
-        m_msgDataItems[IS_DIGEST_INDEX] = isDigest ? TRUE_STR : FALSE_STR;
+        setFlagItem(IS_DIGEST_INDEX, isDigest);
     }
 
     /**
@@ -21,25 +21,36 @@ public class KSignDataRespMsg extends KEzSignRespMsg
     public KSignDataRespMsg(String fullMessage) throws KEzSignException
     {
         super(fullMessage);
+        readSignature();
+    }
+
+    /**
+     *
+     * @param message The complete message
+     * @param binary True if the message is in the binary format
+     * @throws KEzSignException If there is an error
+     */
+    public KSignDataRespMsg(byte[] message, boolean binary) throws KEzSignException
+    {
+        super(message, binary);
+        readSignature();
+    }
 
+    /**
+     * Checks the data items hold a signature.  It is only decoded when asked for
+     *
+     * @throws KEzSignException If there is an error
+     */
+    private void readSignature() throws KEzSignException
+    {
         // Error messages do not contain any extra data and the response code and error
         // message would have been dealt with by the parent class
-        if (m_respDataItems == null || m_respDataItems.length == 0)
+        if (m_numDataItems == 0)
             return;
             //throw new KEzSignException("No signature was returned in the response data");
 
-        try
-        {
-            if (m_respDataItems[SIG_INDEX] == null)
-                throw new KEzSignException("The signature contained in the response was empty");
-
-            m_b64Signature = m_respDataItems[SIG_INDEX];
-            m_signature = KBase64.FromBase64String(m_respDataItems[SIG_INDEX]);
-        }
-        catch (Exception e)
-        {
-            throw new KEzSignException("There was an error converting the signature data: " + e.getMessage());
-        }
+        if (!hasDataItem(SIG_INDEX))
+            throw new KEzSignException("The signature contained in the response was empty");
     }
 
     /**
@@ -48,6 +59,9 @@ public class KSignDataRespMsg extends KEzSignRespMsg
      */
     public byte[] getSignature()
     {
+        if (m_signature == null && hasDataItem(SIG_INDEX))
+            m_signature = getDataItemBytes(SIG_INDEX);
+
         return m_signature;
     }
 
@@ -57,6 +71,9 @@ public class KSignDataRespMsg extends KEzSignRespMsg
      */
     public String getB64Signature()
     {
+        if (m_b64Signature == null && hasDataItem(SIG_INDEX))
+            m_b64Signature = getDataItem(SIG_INDEX);
+
         return m_b64Signature;
     }
 }
@@ -96,15 +96,15 @@ public class KVerifySignatureReqMsg extends KEzSignReqMsg
 
         if (signature == null || signature.length == 0)
             throw new KEzSignException("The signature to verify was null or empty.  Cannot verify signature");
-        m_msgDataItems[SIGNATURE_INDEX] = KBase64.ToBase64String(signature);
+        setBinaryItem(SIGNATURE_INDEX, signature);
 
         if (content == null || content.length == 0)
             throw new KEzSignException("The content data to verify was null or empty.  Cannot verify signature");
-        m_msgDataItems[CONTENT_INDEX] = KBase64.ToBase64String(content);
+        setBinaryItem(CONTENT_INDEX, content);
 
-        m_msgDataItems[IS_DIGEST_INDEX] = isDigest ? TRUE_STR : FALSE_STR;
-        m_msgDataItems[BYPASS_REVOCATION_INDEX] = bypassRevocationCheck ? TRUE_STR : FALSE_STR;
-        m_msgDataItems[BYPASS_PATHBUILD_INDEX] = bypassPathBuild ? TRUE_STR : FALSE_STR;
+        setFlagItem(IS_DIGEST_INDEX, isDigest);
+        setFlagItem(BYPASS_REVOCATION_INDEX, bypassRevocationCheck);
+        setFlagItem(BYPASS_PATHBUILD_INDEX, bypassPathBuild);
         m_msgDataItems[SIG_TYPE_INDEX] = Integer.toString(signatureType);
         if (signatureType == SIG_TYPE_RAW)
         {
@@ -117,7 +117,7 @@ public class KVerifySignatureReqMsg extends KEzSignReqMsg
     }
 
     /**
-     * Convert the certificate to base64 data
+     * Sets the signer certificate.  Sent as base64 data in the text format
      *
      * @param signerCert The signer certificate
      */
@@ -132,7 +132,7 @@ public class KVerifySignatureReqMsg extends KEzSignReqMsg
             try
             {
                 byte[] certData = signerCert.getEncoded();
-                m_msgDataItems[SIGNER_CERT_INDEX] = KBase64.ToBase64String(certData);
+                setBinaryItem(SIGNER_CERT_INDEX, certData);
             } catch (Exception e)
             {
                 throw new KEzSignException("There was an error extracting the data from the signer certificate.  Check the certificate is valid");
@@ -141,7 +141,7 @@ public class KVerifySignatureReqMsg extends KEzSignReqMsg
     }
 
     /**
-     * Convert the certificate array to delimited list of base64 data
+     * Sets the certificate array.  Sent as a delimited list of base64 data in the text format
      *
      * @param otherCerts Other certificates in the path
      */
@@ -156,17 +156,12 @@ public class KVerifySignatureReqMsg extends KEzSignReqMsg
             int i = 0;
             try
             {
-                StringBuilder sb = new StringBuilder();
+                byte[][] certs = new byte[otherCerts.length][];
                 for (i = 0; i < otherCerts.length; i++)
                 {
-                    if (i > 0)
-                        sb.append(CERT_DELIM);
-
-                    byte[] certData = otherCerts[i].getEncoded();
-                    String b64Data = KBase64.ToBase64String(certData);
-                    sb.append(b64Data);
+                    certs[i] = otherCerts[i].getEncoded();
                 }
-                m_msgDataItems[OTHER_CERTS_INDEX] = sb.toString();
+                setCertsItem(OTHER_CERTS_INDEX, certs);
             }
             catch (Exception e) {
                 throw new KEzSignException("There was an error extracting the data from the other certificate provided at index " + i + ".  Check the certificate is valid");
@@ -180,7 +175,7 @@ public class KVerifySignatureReqMsg extends KEzSignReqMsg
      */
     public byte[] getSignature()
     {
-        return KBase64.FromBase64String(m_msgDataItems[SIGNATURE_INDEX]);
+        return getBinaryItem(SIGNATURE_INDEX);
     }
 
     /**
@@ -189,7 +184,7 @@ public class KVerifySignatureReqMsg extends KEzSignReqMsg
      */
     public byte[] getContent()
     {
-        return KBase64.FromBase64String(m_msgDataItems[CONTENT_INDEX]);
+        return getBinaryItem(CONTENT_INDEX);
     }
 
     /**
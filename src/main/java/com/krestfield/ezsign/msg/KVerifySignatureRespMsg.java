@@ -20,6 +20,17 @@ public class KVerifySignatureRespMsg extends KEzSignRespMsg
     {
         super(fullMessage);
     }
+
+    /**
+     *
+     * @param message The complete message
+     * @param binary True if the message is in the binary format
+     * @throws KEzSignException If there is an error
+     */
+    public KVerifySignatureRespMsg(byte[] message, boolean binary) throws KEzSignException
+    {
+        super(message, binary);
+    }
 }
 /********************************************* END OF FILE *****************************************************
  ***************************************************************************************************************/
\ No newline at end of file
@@ -0,0 +1,174 @@
+package com.krestfield.ezsign.net;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * KAdaptiveTimeout
+ *
+ * Sets the read timeout of each request from the recent response times of the same operation (e.g. SIGN) on
+ * the same channel, rather than one fixed timeout for all.  The timeout is a multiple of a high percentile of
+ * the response times, kept between a floor and a ceiling, so a request that is stuck is abandoned soon after
+ * it is clear it will not be answered in the usual time, e.g. a random number request after a few
+ * milliseconds, while a verify with revocation checking is still given its usual few hundred.
+ *
+ * Until enough responses have been seen for an operation, the ceiling is used.  Timeouts are not counted as
+ * response times, as a few stuck requests would otherwise raise the timeout for all.  Instead, if several
+ * requests in a row time out the server has probably become slower for every request, so the timeout is
+ * doubled (until the new response times are known) rather than every request failing
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KAdaptiveTimeout
+{
+    // The ceiling is used until this many responses have been seen for an operation and channel
+    final static int MIN_SAMPLES = 32;
+
+    // The timeout is recalculated after this many new responses
+    final static int RECALC_INTERVAL = 16;
+
+    // The timeout is doubled after this many timeouts in a row
+    final static int MAX_CONSECUTIVE_TIMEOUTS = 3;
+
+    private final double m_percentile;
+    private final double m_multiplier;
+    private final int m_floorMs;
+    private final int m_ceilingMs;
+
+    // By operation, then channel
+    private final ConcurrentHashMap<String, ConcurrentHashMap<String, OperationTimeout>> m_timeouts =
+            new ConcurrentHashMap<String, ConcurrentHashMap<String, OperationTimeout>>();
+
+    private final AtomicLong m_timeoutCount = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param percentile The percentile of the response times the timeout is based on, e.g. 99.9
+     * @param multiplier The timeout is this multiple of the percentile, e.g. 3
+     * @param floorMs The shortest timeout, e.g. 50
+     * @param ceilingMs The longest timeout, and the timeout used until the response times are known
+     */
+    public KAdaptiveTimeout(double percentile, double multiplier, int floorMs, int ceilingMs)
+    {
+        m_percentile = percentile;
+        m_multiplier = multiplier;
+        m_floorMs = floorMs;
+        m_ceilingMs = Math.max(ceilingMs, floorMs);
+    }
+
+    /**
+     *
+     * @param operation The message ID, e.g. SIGN
+     * @param channel The channel
+     * @return The read timeout for the request, in milliseconds
+     */
+    public int getReadTimeoutMs(String operation, String channel)
+    {
+        int timeoutMs = getOperationTimeout(operation, channel).m_timeoutMs;
+        return (timeoutMs > 0) ? timeoutMs : m_ceilingMs;
+    }
+
+    /**
+     * Records the response time of a request that was answered
+     *
+     * @param operation The message ID
+     * @param channel The channel
+     * @param latencyNs The response time in nanoseconds
+     */
+    public void recordLatency(String operation, String channel, long latencyNs)
+    {
+        getOperationTimeout(operation, channel).record(latencyNs);
+    }
+
+    /**
+     * Records a request that was not answered within its read timeout
+     *
+     * @param operation The message ID
+     * @param channel The channel
+     * @param timeoutMs The read timeout it was given
+     */
+    public void onTimeout(String operation, String channel, int timeoutMs)
+    {
+        m_timeoutCount.incrementAndGet();
+        getOperationTimeout(operation, channel).onTimeout(timeoutMs);
+    }
+
+    /**
+     *
+     * @return The number of requests that were not answered within their read timeout
+     */
+    public long getTimeouts()
+    {
+        return m_timeoutCount.get();
+    }
+
+    /**
+     *
+     * @param operation The message ID
+     * @param channel The channel
+     * @return The histogram of recent response times of the operation on the channel
+     */
+    public KLatencyHistogram getHistogram(String operation, String channel)
+    {
+        return getOperationTimeout(operation, channel).m_histogram;
+    }
+
+    private OperationTimeout getOperationTimeout(String operation, String channel)
+    {
+        ConcurrentHashMap<String, OperationTimeout> byChannel = m_timeouts.get(operation);
+        if (byChannel == null)
+        {
+            m_timeouts.putIfAbsent(operation, new ConcurrentHashMap<String, OperationTimeout>());
+            byChannel = m_timeouts.get(operation);
+        }
+
+        OperationTimeout timeout = byChannel.get(channel);
+        if (timeout == null)
+        {
+            byChannel.putIfAbsent(channel, new OperationTimeout());
+            timeout = byChannel.get(channel);
+        }
+        return timeout;
+    }
+
+    /**
+     * The response times and current timeout of one operation on one channel
+     */
+    private class OperationTimeout
+    {
+        final KLatencyHistogram m_histogram = new KLatencyHistogram();
+
+        // 0 until there are enough response times
+        volatile int m_timeoutMs = 0;
+
+        final AtomicInteger m_consecutiveTimeouts = new AtomicInteger();
+
+        void record(long latencyNs)
+        {
+            m_consecutiveTimeouts.set(0);
+            m_histogram.record(latencyNs);
+
+            long count = m_histogram.getCount();
+            if (count >= MIN_SAMPLES && (count % RECALC_INTERVAL == 0 || m_timeoutMs == 0))
+            {
+                long percentileMicros = m_histogram.getPercentileMicros(m_percentile);
+                long timeoutMs = (long) Math.ceil(percentileMicros * m_multiplier / 1000);
+                m_timeoutMs = (int) Math.max(m_floorMs, Math.min(timeoutMs, m_ceilingMs));
+            }
+        }
+
+        void onTimeout(int timeoutMs)
+        {
+            if (m_consecutiveTimeouts.incrementAndGet() < MAX_CONSECUTIVE_TIMEOUTS)
+                return;
+
+            m_consecutiveTimeouts.set(0);
+            if (m_timeoutMs > 0)
+                m_timeoutMs = (int) Math.min((long) Math.max(m_timeoutMs, timeoutMs) * 2, m_ceilingMs);
+        }
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,140 @@
+package com.krestfield.ezsign.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * KBinaryFraming
+ *
+ * The length prefixed framing used for the binary message format (see KBinaryMessage).  Each frame is:
+ *
+ *   0:     0x00 - never the first byte of a text line, so a server can accept both framings on one port
+ *   1:     Frame version (1, or 2 if the message is in the v2 auth code envelope - see KAuthEnvelope)
+ *   2-9:   Correlation ID, -1 if none
+ *   10-13: Message length
+ *   14->:  Message
+ *
+ * All integers are big endian
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KBinaryFraming implements KFraming
+{
+    public static final byte MAGIC = 0x00;
+    public static final byte VERSION = 1;
+    public static final byte ENVELOPE_VERSION = 2;
+    public static final int HEADER_LEN = 14;
+
+    // Frames claiming to be longer than this are taken as corrupt
+    public static final int MAX_MESSAGE_LEN = DEFAULT_MAX_MESSAGE_LEN;
+
+    // The version of the frames written.  Frames of either version are read
+    private final byte m_version;
+
+    // Frames longer than this are rejected before the message is allocated
+    private final int m_maxMessageLen;
+
+    public KBinaryFraming()
+    {
+        this(false);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param enveloped True if the messages written are in the v2 auth code envelope
+     */
+    public KBinaryFraming(boolean enveloped)
+    {
+        this(enveloped, MAX_MESSAGE_LEN);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param enveloped True if the messages written are in the v2 auth code envelope
+     * @param maxMessageLen The longest message read
+     */
+    public KBinaryFraming(boolean enveloped, int maxMessageLen)
+    {
+        m_version = enveloped ? ENVELOPE_VERSION : VERSION;
+        m_maxMessageLen = maxMessageLen;
+    }
+
+    public void write(OutputStream out, long correlationId, byte[] message) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LEN);
+        header.put(MAGIC);
+        header.put(m_version);
+        header.putLong(correlationId);
+        header.putInt(message.length);
+
+        out.write(header.array());
+        out.write(message);
+        out.flush();
+    }
+
+    public KFrame read(KFrameInputStream in) throws IOException
+    {
+        int first = in.read();
+        if (first < 0)
+            return null;
+
+        byte[] headerBytes = new byte[HEADER_LEN];
+        headerBytes[0] = (byte) first;
+        in.readFully(headerBytes, 1, HEADER_LEN - 1);
+
+        ByteBuffer header = ByteBuffer.wrap(headerBytes);
+        byte version = headerBytes[1];
+        if (header.get() != MAGIC || !isVersion(header.get()))
+            throw new IOException("The response from the EzSign server was not in the binary format");
+
+        long correlationId = header.getLong();
+        int length = header.getInt();
+        checkLength(length);
+
+        byte[] message = new byte[length];
+        in.readFully(message, 0, length);
+
+        return new KFrame(correlationId, message, version == ENVELOPE_VERSION);
+    }
+
+    public int getFrameLength(byte[] buffer, int length) throws IOException
+    {
+        if (length < HEADER_LEN)
+            return -1;
+
+        ByteBuffer header = ByteBuffer.wrap(buffer, 0, HEADER_LEN);
+        if (header.get() != MAGIC || !isVersion(header.get()))
+            throw new IOException("The response from the EzSign server was not in the binary format");
+
+        header.getLong();
+        int messageLength = header.getInt();
+        checkLength(messageLength);
+
+        return (length >= HEADER_LEN + messageLength) ? HEADER_LEN + messageLength : -1;
+    }
+
+    public int getMaxMessageLength()
+    {
+        return m_maxMessageLen;
+    }
+
+    private void checkLength(int length) throws IOException
+    {
+        if (length < 0 || length > MAX_MESSAGE_LEN)
+            throw new IOException("The length of the binary frame received from the EzSign server was not valid: " + length);
+
+        if (length > m_maxMessageLen)
+            throw new IOException("The message received from the EzSign server is " + length + " bytes, longer than the " +
+                    "max of " + m_maxMessageLen);
+    }
+
+    private static boolean isVersion(byte version)
+    {
+        return version == VERSION || version == ENVELOPE_VERSION;
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
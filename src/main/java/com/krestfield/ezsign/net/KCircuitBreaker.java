@@ -0,0 +1,244 @@
+package com.krestfield.ezsign.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * KCircuitBreaker
+ *
+ * Tracks the health of one endpoint so that requests fail fast, or go to another endpoint, rather than each
+ * caller waiting on a server that is down or badly degraded.
+ *
+ *   CLOSED:    Requests are sent.  After a number of failures in a row (or if ejected as a latency outlier)
+ *              the circuit opens
+ *   OPEN:      No requests are sent until the open time has passed.  Each time the circuit opens again
+ *              without having fully recovered, the open time doubles (up to MAX_OPEN_MULTIPLIER times)
+ *   HALF_OPEN: A single trial request is sent.  If it succeeds the circuit closes, otherwise it opens again
+ *
+ * After closing from HALF_OPEN the endpoint's share of traffic ramps up over the ramp up time, rather than it
+ * being sent a full share of requests at once
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KCircuitBreaker
+{
+    public static final int CLOSED = 0;
+    public static final int OPEN = 1;
+    public static final int HALF_OPEN = 2;
+
+    final static int MAX_OPEN_MULTIPLIER = 32;
+
+    // The share of traffic at the start of the ramp up
+    final static double MIN_TRAFFIC_SHARE = 0.05;
+
+    private final int m_failureThreshold;
+    private final long m_openNs;
+    private final long m_rampUpNs;
+
+    // All changes of state are made under the lock.  The state read on each request is volatile
+    private final ReentrantLock m_lock = new ReentrantLock();
+    private volatile int m_state = CLOSED;
+    private volatile long m_closedAt = 0;
+    private volatile boolean m_rampingUp = false;
+    private int m_consecutiveFailures = 0;
+    private int m_consecutiveOpens = 0;
+    private long m_openUntil = 0;
+
+    private final AtomicLong m_opens = new AtomicLong();
+    private final AtomicLong m_trials = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param failureThreshold The number of failures in a row that opens the circuit
+     * @param openMs How long the circuit stays open the first time
+     * @param rampUpMs The time over which traffic ramps back up after closing.  0 for none
+     */
+    public KCircuitBreaker(int failureThreshold, int openMs, int rampUpMs)
+    {
+        m_failureThreshold = failureThreshold;
+        m_openNs = openMs * 1000000L;
+        m_rampUpNs = rampUpMs * 1000000L;
+    }
+
+    /**
+     * Moves an open circuit to HALF_OPEN if the open time has passed.  Only one caller gets the trial
+     *
+     * @param now The time from System.nanoTime
+     * @return True if the caller should send the trial request
+     */
+    public boolean tryTrial(long now)
+    {
+        if (m_state != OPEN)
+            return false;
+
+        m_lock.lock();
+        try
+        {
+            if (m_state != OPEN || now - m_openUntil < 0)
+                return false;
+
+            m_state = HALF_OPEN;
+            m_trials.incrementAndGet();
+            return true;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * The share of requests this endpoint should be offered
+     *
+     * @param now The time from System.nanoTime
+     * @return 0 if the circuit is not closed, less than 1 while ramping up, otherwise 1
+     */
+    public double getTrafficShare(long now)
+    {
+        if (m_state != CLOSED)
+            return 0;
+        if (!m_rampingUp)
+            return 1;
+
+        double share = (double) (now - m_closedAt) / m_rampUpNs;
+        return (share >= 1) ? 1 : Math.max(share, MIN_TRAFFIC_SHARE);
+    }
+
+    /**
+     * Records a successful request
+     *
+     * @param now The time from System.nanoTime
+     * @return True if this was the trial request and the circuit has now closed
+     */
+    public boolean onSuccess(long now)
+    {
+        m_lock.lock();
+        try
+        {
+            m_consecutiveFailures = 0;
+            if (m_state == HALF_OPEN)
+            {
+                m_closedAt = now;
+                m_rampingUp = m_rampUpNs > 0;
+                m_state = CLOSED;
+                return true;
+            }
+
+            // Fully recovered, so the next open starts from the shortest time again
+            if (m_state == CLOSED && (!m_rampingUp || now - m_closedAt >= m_rampUpNs))
+            {
+                m_rampingUp = false;
+                m_consecutiveOpens = 0;
+            }
+            return false;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Records a failed request - no response was received
+     *
+     * @param now The time from System.nanoTime
+     */
+    public void onFailure(long now)
+    {
+        m_lock.lock();
+        try
+        {
+            if (m_state == HALF_OPEN)
+                open(now);
+            else if (m_state == CLOSED && ++m_consecutiveFailures >= m_failureThreshold)
+                open(now);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Records a request that ended for a reason of the caller's, e.g. it was cancelled, so says nothing of the
+     * endpoint.  If it was the trial request, the trial is given to the next caller
+     *
+     * @param now The time from System.nanoTime
+     */
+    public void onAbandoned(long now)
+    {
+        m_lock.lock();
+        try
+        {
+            if (m_state == HALF_OPEN)
+            {
+                m_state = OPEN;
+                m_openUntil = now;
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Opens the circuit regardless of failures, e.g. when the endpoint is much slower than the others
+     *
+     * @param now The time from System.nanoTime
+     */
+    public void trip(long now)
+    {
+        m_lock.lock();
+        try
+        {
+            if (m_state == CLOSED)
+                open(now);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    private void open(long now)
+    {
+        m_consecutiveOpens++;
+        int multiplier = 1 << Math.min(m_consecutiveOpens - 1, 30);
+        m_openUntil = now + m_openNs * Math.min(multiplier, MAX_OPEN_MULTIPLIER);
+        m_consecutiveFailures = 0;
+        m_rampingUp = false;
+        m_state = OPEN;
+        m_opens.incrementAndGet();
+    }
+
+    /**
+     *
+     * @return CLOSED, OPEN or HALF_OPEN
+     */
+    public int getState()
+    {
+        return m_state;
+    }
+
+    /**
+     *
+     * @return The number of times the circuit has opened
+     */
+    public long getOpens()
+    {
+        return m_opens.get();
+    }
+
+    /**
+     *
+     * @return The number of trial requests sent while HALF_OPEN
+     */
+    public long getTrials()
+    {
+        return m_trials.get();
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,563 @@
+package com.krestfield.ezsign.net;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * KConcurrencyLimiter
+ *
+ * Limits the requests in progress at once to a limit that adapts to the server's response times, so that the
+ * servers are kept busy without being pushed into overload.  The limit is adjusted once per window of
+ * responses (about one round trip's worth), TCP Vegas style: the number of requests queued at the server is
+ * estimated from how much the average response time exceeds the baseline (the shortest seen recently).
+ * While few are queued the limit is raised by one, when too many are it is lowered by one, and when requests
+ * fail with a connection error or time out it is cut by a fifth straight away (once per window).
+ *
+ * Requests over the limit wait in a queue of bounded length for a slot, or are shed if the queue is full.
+ * The queue has a lane for each priority (see KPriority) and slots go to the highest priority lane with
+ * requests waiting.  So that a lower lane is not starved while higher lanes are busy, once it has been passed
+ * over STARVATION_LIMIT times its next request goes first.  Within a lane the channels take turns by deficit
+ * round robin weighted by payload size (see KFairQueue), so one busy channel cannot take the slots from the
+ * others, and each channel's requests are sent first come first served.  The current limit, requests in
+ * progress and shed, and each channel's requests waiting and time waited, are provided as metrics
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KConcurrencyLimiter
+{
+    // The limit is raised while fewer than ALPHA requests are estimated to be queued at the server, and
+    // lowered when more than BETA are
+    final static int ALPHA = 3;
+    final static int BETA = 6;
+
+    // The limit is multiplied by this when requests fail
+    final static double BACKOFF_RATIO = 0.8;
+
+    // The fewest responses in a window
+    final static int MIN_WINDOW = 10;
+
+    // The baseline is taken afresh from the windows since this many ago, so it follows a change in the
+    // server's unloaded response time, e.g. when the HSM is shared with other work
+    final static int BASELINE_WINDOWS = 50;
+
+    // A lane with requests waiting is given the next slot after this many have gone to higher lanes
+    final static int STARVATION_LIMIT = 8;
+
+    // The cost of a request in the fair queue over its payload size, for the work done by the server for any
+    // request, so channels sending small requests share the slots by number of requests
+    final static long REQUEST_COST = 1024;
+
+    // The most channels whose time waited is kept.  The least recently queued are dropped beyond this, so a
+    // client sending to many channel names over its life does not keep a record of each
+    final static int MAX_CHANNEL_STATS = 256;
+
+    private final int m_minLimit;
+    private final int m_maxLimit;
+    private final int m_maxQueueLength;
+
+    private final ReentrantLock m_lock = new ReentrantLock();
+    private double m_limit;
+    private volatile int m_currentLimit;
+    private volatile int m_inFlight = 0;
+    private final Lane[] m_lanes = new Lane[KPriority.LEVELS];
+    private int m_queueLength = 0;
+
+    // The window of responses the next adjustment is based on
+    private long m_windowRttSum = 0;
+    private int m_windowCount = 0;
+    private int m_windowFailures = 0;
+    private long m_windowMinRtt = Long.MAX_VALUE;
+    private int m_windowMaxInFlight = 0;
+    private boolean m_windowFailed = false;
+
+    private long m_baselineNs = Long.MAX_VALUE;
+    private long m_nextBaselineNs = Long.MAX_VALUE;
+    private int m_windows = 0;
+
+    private final AtomicLong m_requests = new AtomicLong();
+    private final AtomicLong m_queued = new AtomicLong();
+    private final AtomicLong m_shed = new AtomicLong();
+
+    // The time each channel's requests have waited for a slot, least recently queued first.  Under the lock
+    private final LinkedHashMap<String, ChannelStats> m_channelStats = new LinkedHashMap<String, ChannelStats>(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry<String, ChannelStats> eldest)
+        {
+            return size() > MAX_CHANNEL_STATS;
+        }
+    };
+
+    /**
+     * Constructor
+     *
+     * @param initialLimit The limit to start with
+     * @param minLimit The lowest the limit may fall to
+     * @param maxLimit The highest the limit may rise to
+     * @param maxQueueLength The most requests that may wait for a slot.  Further requests are shed
+     */
+    public KConcurrencyLimiter(int initialLimit, int minLimit, int maxLimit, int maxQueueLength)
+    {
+        m_minLimit = Math.max(minLimit, 1);
+        m_maxLimit = Math.max(maxLimit, m_minLimit);
+        m_maxQueueLength = maxQueueLength;
+        m_limit = Math.max(m_minLimit, Math.min(initialLimit, m_maxLimit));
+        m_currentLimit = (int) m_limit;
+        for (int priority = 0; priority < m_lanes.length; priority++)
+            m_lanes[priority] = new Lane(priority);
+    }
+
+    /**
+     * Takes a slot for a request of normal priority.  If the limit has been reached the request is queued
+     *
+     * @return Completes when the request has a slot (already complete if there was one free), or null if
+     *         the queue is full and the request is shed.  Each slot must be given back with release
+     */
+    public CompletableFuture<Void> acquire()
+    {
+        return acquire(KPriority.NORMAL);
+    }
+
+    /**
+     * Takes a slot for a request.  If the limit has been reached the request is queued in its priority's lane
+     *
+     * @param priority KPriority.HIGH, NORMAL or LOW
+     * @return Completes when the request has a slot (already complete if there was one free), or null if
+     *         the queue is full and the request is shed.  Each slot must be given back with release
+     */
+    public CompletableFuture<Void> acquire(int priority)
+    {
+        return acquire(priority, "", 0);
+    }
+
+    /**
+     * Takes a slot for a request.  If the limit has been reached the request is queued in its priority's lane,
+     * where it takes its channel's turn
+     *
+     * @param priority KPriority.HIGH, NORMAL or LOW
+     * @param channelName The request's channel
+     * @param payloadBytes The request's payload size, its channel's turns being shared out by these
+     * @return Completes when the request has a slot (already complete if there was one free), or null if
+     *         the queue is full and the request is shed.  Each slot must be given back with release
+     */
+    public CompletableFuture<Void> acquire(int priority, String channelName, long payloadBytes)
+    {
+        m_requests.incrementAndGet();
+        m_lock.lock();
+        try
+        {
+            if (m_queueLength == 0 && m_inFlight < (int) m_limit)
+            {
+                inFlightChanged(1);
+                return CompletableFuture.completedFuture(null);
+            }
+
+            if (m_queueLength >= m_maxQueueLength)
+            {
+                m_shed.incrementAndGet();
+                return null;
+            }
+
+            QueuedSlot slot = new QueuedSlot(channelName);
+            getChannelStats(channelName);
+            m_lanes[KPriority.toLane(priority)].m_queue.add(channelName, payloadBytes + REQUEST_COST, slot);
+            m_queueLength++;
+            m_queued.incrementAndGet();
+            return slot;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a queued request out of the queue, e.g. when it has waited too long
+     *
+     * @param slot The future from acquire
+     * @return True if the request was removed and has no slot, false if it was given a slot first (which must
+     *         be released as usual)
+     */
+    public boolean cancel(CompletableFuture<Void> slot)
+    {
+        if (!(slot instanceof QueuedSlot))
+            return false;
+
+        m_lock.lock();
+        try
+        {
+            for (Lane lane : m_lanes)
+            {
+                if (lane.m_queue.remove((QueuedSlot) slot))
+                {
+                    m_queueLength--;
+                    if (lane.m_queue.isEmpty())
+                        lane.m_passedOver = 0;
+                    m_shed.incrementAndGet();
+                    return true;
+                }
+            }
+            return false;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back a slot, recording the response time of the request that used it
+     *
+     * @param rttNs The time from sending the request to its response or failure
+     * @param failed True if the request failed with a connection error or timed out
+     */
+    public void release(long rttNs, boolean failed)
+    {
+        List<CompletableFuture<Void>> granted;
+        m_lock.lock();
+        try
+        {
+            record(rttNs, failed);
+            granted = releaseSlot();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+        grant(granted);
+    }
+
+    /**
+     * Gives back a slot without recording a response time, e.g. when the request was cancelled by the caller
+     */
+    public void release()
+    {
+        List<CompletableFuture<Void>> granted;
+        m_lock.lock();
+        try
+        {
+            granted = releaseSlot();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+        grant(granted);
+    }
+
+    /**
+     * Gives the slot, and any freed by a raised limit, to the queued requests.  Called with the lock held
+     *
+     * @return The queued requests given a slot, to be completed once the lock is released
+     */
+    private List<CompletableFuture<Void>> releaseSlot()
+    {
+        inFlightChanged(-1);
+
+        List<CompletableFuture<Void>> granted = null;
+        while (m_queueLength > 0 && m_inFlight < (int) m_limit)
+        {
+            if (granted == null)
+                granted = new ArrayList<CompletableFuture<Void>>(1);
+            granted.add(pollQueued());
+            inFlightChanged(1);
+        }
+        return granted;
+    }
+
+    /**
+     * Takes the request to be given the next slot from the queue.  Called with the lock held
+     *
+     * @return The request from the highest priority lane, unless a lower lane has been passed over too many times
+     */
+    private CompletableFuture<Void> pollQueued()
+    {
+        // The lanes run from highest priority to lowest, so the lowest starved lane goes first
+        Lane next = null;
+        for (Lane lane : m_lanes)
+        {
+            if (!lane.m_queue.isEmpty() && (next == null || lane.m_passedOver >= STARVATION_LIMIT))
+                next = lane;
+        }
+
+        for (Lane lane : m_lanes)
+        {
+            if (lane.m_priority > next.m_priority && !lane.m_queue.isEmpty())
+                lane.m_passedOver++;
+        }
+
+        next.m_passedOver = 0;
+        m_queueLength--;
+
+        QueuedSlot slot = next.m_queue.poll();
+        ChannelStats stats = getChannelStats(slot.m_channelName);
+        stats.m_waits++;
+        stats.m_waitNs += System.nanoTime() - slot.m_queuedAt;
+        return slot;
+    }
+
+    /**
+     * Returns a channel's stats, starting them if the channel has not been queued or its stats were dropped
+     * since.  Called with the lock held
+     *
+     * @param channelName The channel
+     * @return The stats
+     */
+    private ChannelStats getChannelStats(String channelName)
+    {
+        ChannelStats stats = m_channelStats.get(channelName);
+        if (stats == null)
+        {
+            stats = new ChannelStats();
+            m_channelStats.put(channelName, stats);
+        }
+        return stats;
+    }
+
+    private void grant(List<CompletableFuture<Void>> granted)
+    {
+        if (granted == null)
+            return;
+
+        // A request taken from the queue owns its slot even if it has given up waiting in the meantime.
+        // It finds the future already complete and carries on, or fails, and releases the slot
+        for (CompletableFuture<Void> slot : granted)
+            slot.complete(null);
+    }
+
+    private void inFlightChanged(int delta)
+    {
+        m_inFlight += delta;
+        if (m_inFlight > m_windowMaxInFlight)
+            m_windowMaxInFlight = m_inFlight;
+    }
+
+    /**
+     * Adds a response to the window and adjusts the limit at the end of the window.  Called with the lock held
+     *
+     * @param rttNs The response time
+     * @param failed True if the request failed
+     */
+    private void record(long rttNs, boolean failed)
+    {
+        if (failed)
+        {
+            m_windowFailures++;
+
+            // Cut straight away, but only once for a burst of failures from the same window
+            if (!m_windowFailed)
+            {
+                m_windowFailed = true;
+                setLimit(m_limit * BACKOFF_RATIO);
+            }
+        }
+        else
+        {
+            m_windowRttSum += rttNs;
+            m_windowMinRtt = Math.min(m_windowMinRtt, rttNs);
+        }
+
+        if (++m_windowCount < Math.max(MIN_WINDOW, (int) m_limit))
+            return;
+
+        int successes = m_windowCount - m_windowFailures;
+        if (!m_windowFailed && successes > 0)
+        {
+            if (m_windows++ % BASELINE_WINDOWS == 0)
+            {
+                m_baselineNs = Math.min(m_nextBaselineNs, m_windowMinRtt);
+                m_nextBaselineNs = Long.MAX_VALUE;
+            }
+            m_baselineNs = Math.min(m_baselineNs, m_windowMinRtt);
+            m_nextBaselineNs = Math.min(m_nextBaselineNs, m_windowMinRtt);
+
+            long averageRttNs = m_windowRttSum / successes;
+            double queued = m_limit * (1 - (double) m_baselineNs / averageRttNs);
+            if (queued > BETA)
+                setLimit(m_limit - 1);
+            else if (queued < ALPHA && m_windowMaxInFlight >= (int) m_limit)
+                setLimit(m_limit + 1);
+        }
+
+        m_windowRttSum = 0;
+        m_windowCount = 0;
+        m_windowMinRtt = Long.MAX_VALUE;
+        m_windowMaxInFlight = m_inFlight;
+        m_windowFailures = 0;
+        m_windowFailed = false;
+    }
+
+    private void setLimit(double limit)
+    {
+        m_limit = Math.max(m_minLimit, Math.min(limit, m_maxLimit));
+        m_currentLimit = (int) m_limit;
+    }
+
+    /**
+     *
+     * @return The current limit on requests in progress
+     */
+    public int getLimit()
+    {
+        return m_currentLimit;
+    }
+
+    /**
+     *
+     * @return The requests in progress
+     */
+    public int getInFlight()
+    {
+        return m_inFlight;
+    }
+
+    /**
+     *
+     * @return The number of requests
+     */
+    public long getRequests()
+    {
+        return m_requests.get();
+    }
+
+    /**
+     *
+     * @return The number of requests that had to wait for a slot
+     */
+    public long getQueued()
+    {
+        return m_queued.get();
+    }
+
+    /**
+     *
+     * @return The number of requests shed, as the queue was full or they waited too long for a slot
+     */
+    public long getShed()
+    {
+        return m_shed.get();
+    }
+
+    /**
+     *
+     * @param priority KPriority.HIGH, NORMAL or LOW
+     * @return The requests of that priority waiting for a slot
+     */
+    public int getWaiting(int priority)
+    {
+        m_lock.lock();
+        try
+        {
+            return m_lanes[KPriority.toLane(priority)].m_queue.size();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @param channelName The channel
+     * @return The channel's requests waiting for a slot
+     */
+    public int getWaiting(String channelName)
+    {
+        m_lock.lock();
+        try
+        {
+            int waiting = 0;
+            for (Lane lane : m_lanes)
+                waiting += lane.m_queue.getWaiting(channelName);
+            return waiting;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @param channelName The channel
+     * @return The average time the channel's requests that were queued waited for their slot, in microseconds
+     */
+    public long getAverageWaitMicros(String channelName)
+    {
+        m_lock.lock();
+        try
+        {
+            ChannelStats stats = m_channelStats.get(channelName);
+            return (stats == null || stats.m_waits == 0) ? 0 : stats.m_waitNs / stats.m_waits / 1000;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @return The channels whose requests have waited for a slot, up to the MAX_CHANNEL_STATS most recent
+     */
+    public Set<String> getQueuedChannels()
+    {
+        m_lock.lock();
+        try
+        {
+            return new HashSet<String>(m_channelStats.keySet());
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * A request waiting for a slot
+     */
+    private static class QueuedSlot extends CompletableFuture<Void>
+    {
+        final String m_channelName;
+        final long m_queuedAt = System.nanoTime();
+
+        QueuedSlot(String channelName)
+        {
+            m_channelName = channelName;
+        }
+    }
+
+    /**
+     * The time a channel's requests have waited for a slot
+     */
+    private static class ChannelStats
+    {
+        long m_waits = 0;
+        long m_waitNs = 0;
+    }
+
+    /**
+     * The requests of one priority waiting for a slot
+     */
+    private static class Lane
+    {
+        final int m_priority;
+        final KFairQueue<QueuedSlot> m_queue = new KFairQueue<QueuedSlot>();
+
+        // The slots given to higher lanes while this one had requests waiting, since it was last given one
+        int m_passedOver = 0;
+
+        Lane(int priority)
+        {
+            m_priority = priority;
+        }
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,175 @@
+package com.krestfield.ezsign.net;
+
+import java.io.*;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+
+/**
+ * KConnection
+ *
+ * A connection to the server that can carry many request/response pairs in sequence.  The input and output
+ * streams are kept for the life of the connection as the input may have buffered data
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KConnection implements Closeable
+{
+    // The read timeout used when checking whether the server has closed the connection
+    final int PROBE_TIMEOUT_MS = 1;
+
+    private final Socket m_socket;
+    private final KFraming m_framing;
+    private final KFrameInputStream m_in;
+    private final OutputStream m_out;
+    private final long m_createdAt;
+    private long m_lastUsedAt;
+    private int m_useCount = 0;
+    private int m_readTimeoutMs = -1;
+
+    /**
+     * Constructor
+     *
+     * @param socket The connected socket
+     * @param framing How messages are delimited
+     * @throws IOException If the streams cannot be obtained
+     */
+    public KConnection(Socket socket, KFraming framing) throws IOException
+    {
+        m_socket = socket;
+        m_framing = framing;
+        m_in = new KFrameInputStream(socket.getInputStream());
+        m_out = new BufferedOutputStream(socket.getOutputStream());
+        m_createdAt = System.nanoTime();
+        m_lastUsedAt = m_createdAt;
+    }
+
+    /**
+     * Sends one message and reads the response
+     *
+     * @param message The message, without any framing
+     * @return The response or null if the server closed the connection
+     * @throws IOException If there is an error on the socket
+     */
+    public byte[] exchange(byte[] message) throws IOException
+    {
+        m_useCount++;
+
+        m_framing.write(m_out, KFraming.NO_CORRELATION_ID, message);
+
+        KFrame response = m_framing.read(m_in);
+        m_lastUsedAt = System.nanoTime();
+
+        return (response == null) ? null : response.getMessage();
+    }
+
+    /**
+     * Sends one message and reads the response, waiting no longer than the given time for it
+     *
+     * @param message The message, without any framing
+     * @param readTimeoutMs The read timeout
+     * @return The response or null if the server closed the connection
+     * @throws IOException If there is an error on the socket
+     */
+    public byte[] exchange(byte[] message, int readTimeoutMs) throws IOException
+    {
+        if (readTimeoutMs != m_readTimeoutMs)
+        {
+            m_socket.setSoTimeout(readTimeoutMs);
+            m_readTimeoutMs = readTimeoutMs;
+        }
+        return exchange(message);
+    }
+
+    /**
+     * Checks the connection can still be used.  The socket must be open and there must be nothing waiting
+     * to be read (a response to a request not sent means the connection is out of step).  If the connection
+     * has been idle for longer than probeAfterIdleMs a very short read is attempted to detect if the server
+     * has since closed it
+     *
+     * @param probeAfterIdleMs Probe the connection if it has been idle for longer than this
+     * @return True if the connection may be used
+     */
+    public boolean isHealthy(int probeAfterIdleMs)
+    {
+        if (m_socket.isClosed() || m_socket.isInputShutdown() || m_socket.isOutputShutdown())
+            return false;
+
+        try
+        {
+            if (m_in.available() > 0)
+                return false;
+
+            if (getIdleMs() > probeAfterIdleMs)
+            {
+                int readTimeout = m_socket.getSoTimeout();
+                m_socket.setSoTimeout(PROBE_TIMEOUT_MS);
+                try
+                {
+                    // Any data, or the end of the stream, means the connection cannot be used
+                    m_in.read();
+                    return false;
+                }
+                catch (SocketTimeoutException e)
+                {
+                    // Nothing to read - the connection is still open
+                }
+                finally
+                {
+                    m_socket.setSoTimeout(readTimeout);
+                }
+            }
+
+            return true;
+        }
+        catch (IOException e)
+        {
+            return false;
+        }
+    }
+
+    /**
+     *
+     * @return The time in milliseconds since the connection was last used
+     */
+    public long getIdleMs()
+    {
+        return (System.nanoTime() - m_lastUsedAt) / 1000000;
+    }
+
+    /**
+     *
+     * @return The number of messages sent on this connection
+     */
+    public int getUseCount()
+    {
+        return m_useCount;
+    }
+
+    /**
+     *
+     * @return The time the connection was opened, from System.nanoTime
+     */
+    public long getCreatedAt()
+    {
+        return m_createdAt;
+    }
+
+    /**
+     *
+     * @return The underlying socket
+     */
+    public Socket getSocket()
+    {
+        return m_socket;
+    }
+
+    /**
+     * Closes the connection
+     */
+    public void close()
+    {
+        try { m_socket.close(); } catch (Exception e) { }
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,328 @@
+package com.krestfield.ezsign.net;
+
+import com.krestfield.ezsign.KEzSignConnectException;
+
+import java.io.IOException;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * KConnectionPool
+ *
+ * A bounded pool of keep-alive connections to one server.  A connection is returned to the pool after each
+ * request/response and used again for a later message, so the connect (and TLS handshake) is only paid once.
+ *
+ * At most maxConnections are open at once - callers wait for a free one up to the timeout given.
+ * Idle connections are checked before reuse and closed by a background thread once idle for longer
+ * than the idle timeout.
+ *
+ * If the server closes each connection after one response (as servers that do not support keep-alive
+ * will) reuse fails.  After MAX_REUSE_FAILURES such failures, without any connection ever having been
+ * reused successfully, the pool reports that keep-alive is not supported and the client falls back to
+ * one connection per message
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KConnectionPool implements Runnable
+{
+    // After this many failed reuses, and no successful reuse, keep-alive is taken as not supported by the server
+    final int MAX_REUSE_FAILURES = 3;
+
+    // Connections idle for longer than this are probed before being reused
+    final int VALIDATE_AFTER_IDLE_MS = 1000;
+
+    private final String m_host;
+    private final int m_port;
+    private final KConnector m_connector;
+    private final KFraming m_framing;
+    private final int m_maxConnections;
+    private final int m_idleTimeoutMs;
+
+    // Most recently used at the front
+    private final LinkedBlockingDeque<KConnection> m_idle = new LinkedBlockingDeque<KConnection>();
+    private final Semaphore m_permits;
+    private final ReentrantLock m_evictLock = new ReentrantLock();
+    private final Condition m_evictSignal = m_evictLock.newCondition();
+    private final Thread m_evictThread;
+    private volatile boolean m_running = true;
+
+    private volatile boolean m_keepAliveSupported = true;
+    private volatile boolean m_reuseConfirmed = false;
+    private final AtomicInteger m_reuseFailures = new AtomicInteger();
+
+    private final AtomicLong m_created = new AtomicLong();
+    private final AtomicLong m_reused = new AtomicLong();
+    private final AtomicLong m_evicted = new AtomicLong();
+    private final AtomicLong m_validationFailures = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param host The host to connect to
+     * @param port The port to connect to
+     * @param connector Opens the connections
+     * @param framing How messages are delimited
+     * @param maxConnections The max number of connections open at one time
+     * @param idleTimeoutMs Connections not used for this long are closed
+     */
+    public KConnectionPool(String host, int port, KConnector connector, KFraming framing, int maxConnections, int idleTimeoutMs)
+    {
+        m_host = host;
+        m_port = port;
+        m_connector = connector;
+        m_framing = framing;
+        m_maxConnections = maxConnections;
+        m_idleTimeoutMs = idleTimeoutMs;
+        m_permits = new Semaphore(maxConnections, true);
+
+        m_evictThread = new Thread(this, "EzSignConnectionPool-" + host + ":" + port);
+        m_evictThread.setDaemon(true);
+        m_evictThread.start();
+    }
+
+    /**
+     * Returns true if this pool holds connections to the given server
+     *
+     * @param host The host
+     * @param port The port
+     * @return True if the pool is for this host and port
+     */
+    public boolean isFor(String host, int port)
+    {
+        return m_port == port && m_host.equals(host);
+    }
+
+    /**
+     *
+     * @return The host the connections are to
+     */
+    public String getHost()
+    {
+        return m_host;
+    }
+
+    /**
+     *
+     * @return The port the connections are to
+     */
+    public int getPort()
+    {
+        return m_port;
+    }
+
+    /**
+     * Gets a connection, reusing an idle one if there is one that is healthy.  The connection must be
+     * given back with release
+     *
+     * @param timeoutMs The max time to wait if all connections are in use, and to open a new connection
+     * @return The connection
+     * @throws KEzSignConnectException If no connection became free in time, or a new connection could not be opened
+     */
+    public KConnection acquire(int timeoutMs) throws KEzSignConnectException
+    {
+        long startTime = System.nanoTime();
+        try
+        {
+            if (!m_permits.tryAcquire(timeoutMs, TimeUnit.MILLISECONDS))
+                throw new KEzSignConnectException("All " + m_maxConnections + " connections to the EzSign server on host " +
+                        m_host + " port " + m_port + " were in use and none became free within " + timeoutMs + "ms");
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new KEzSignConnectException("Interrupted while waiting for a connection to the EzSign server");
+        }
+
+        try
+        {
+            KConnection conn;
+            while ((conn = m_idle.pollFirst()) != null)
+            {
+                if (conn.getIdleMs() <= m_idleTimeoutMs && conn.isHealthy(VALIDATE_AFTER_IDLE_MS))
+                {
+                    m_reused.incrementAndGet();
+                    return conn;
+                }
+
+                m_validationFailures.incrementAndGet();
+                conn.close();
+            }
+
+            int remainingMs = (int) Math.max(1, timeoutMs - (System.nanoTime() - startTime) / 1000000);
+            conn = new KConnection(m_connector.connect(m_host, m_port, remainingMs), m_framing);
+            m_created.incrementAndGet();
+            return conn;
+        }
+        catch (KEzSignConnectException connEx)
+        {
+            m_permits.release();
+            throw connEx;
+        }
+        catch (IOException ioEx)
+        {
+            m_permits.release();
+            throw new KEzSignConnectException("There was an error opening a connection to the EzSign server. " + ioEx.getMessage());
+        }
+    }
+
+    /**
+     * Gives a connection back to the pool
+     *
+     * @param conn The connection from acquire
+     * @param reusable False if the connection failed or is out of step, in which case it is closed
+     */
+    public void release(KConnection conn, boolean reusable)
+    {
+        if (reusable && conn.getUseCount() > 1)
+            m_reuseConfirmed = true;
+
+        if (reusable && m_running && m_keepAliveSupported)
+            m_idle.offerFirst(conn);
+        else
+            conn.close();
+
+        m_permits.release();
+    }
+
+    /**
+     * Called when a connection that had already carried a message failed on its next use,
+     * which is what happens when the server closes connections after each response
+     */
+    public void recordReuseFailure()
+    {
+        if (!m_reuseConfirmed && m_reuseFailures.incrementAndGet() >= MAX_REUSE_FAILURES)
+        {
+            m_keepAliveSupported = false;
+            closeIdle();
+        }
+    }
+
+    /**
+     *
+     * @return False if the server has been found to close connections after each message
+     */
+    public boolean isKeepAliveSupported()
+    {
+        return m_keepAliveSupported;
+    }
+
+    /**
+     * Stops the eviction thread and closes all idle connections.  Connections in use are closed when released
+     */
+    public void close()
+    {
+        m_running = false;
+        m_evictLock.lock();
+        try
+        {
+            m_evictSignal.signal();
+        }
+        finally
+        {
+            m_evictLock.unlock();
+        }
+        closeIdle();
+    }
+
+    /**
+     * The background eviction of idle connections
+     */
+    public void run()
+    {
+        while (m_running)
+        {
+            m_evictLock.lock();
+            try
+            {
+                m_evictSignal.await(Math.max(1, m_idleTimeoutMs / 2), TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            finally
+            {
+                m_evictLock.unlock();
+            }
+
+            // The least recently used are at the back
+            KConnection conn;
+            while ((conn = m_idle.peekLast()) != null && conn.getIdleMs() > m_idleTimeoutMs)
+            {
+                if (m_idle.removeLastOccurrence(conn))
+                {
+                    m_evicted.incrementAndGet();
+                    conn.close();
+                }
+            }
+        }
+    }
+
+    private void closeIdle()
+    {
+        KConnection conn;
+        while ((conn = m_idle.pollFirst()) != null)
+            conn.close();
+    }
+
+    /**
+     *
+     * @return The number of connections opened
+     */
+    public long getCreated()
+    {
+        return m_created.get();
+    }
+
+    /**
+     *
+     * @return The number of times an idle connection was reused
+     */
+    public long getReused()
+    {
+        return m_reused.get();
+    }
+
+    /**
+     *
+     * @return The number of idle connections closed by the idle timeout
+     */
+    public long getEvicted()
+    {
+        return m_evicted.get();
+    }
+
+    /**
+     *
+     * @return The number of idle connections found to be unusable when taken from the pool
+     */
+    public long getValidationFailures()
+    {
+        return m_validationFailures.get();
+    }
+
+    /**
+     *
+     * @return The number of connections currently idle in the pool
+     */
+    public int getIdleCount()
+    {
+        return m_idle.size();
+    }
+
+    /**
+     *
+     * @return The number of connections currently in use
+     */
+    public int getActiveCount()
+    {
+        return m_maxConnections - m_permits.availablePermits();
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
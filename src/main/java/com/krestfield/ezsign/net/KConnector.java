@@ -0,0 +1,42 @@
+package com.krestfield.ezsign.net;
+
+import com.krestfield.ezsign.KEzSignConnectException;
+
+import java.net.Socket;
+
+/**
+ * KConnector
+ *
+ * Opens a connected (and, if TLS is in use, handshaken) socket to an EzSign server.
+ * Implemented by the client so that the pools can open sockets with the client's settings
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public interface KConnector
+{
+    /**
+     * Connects to the server
+     *
+     * @param host The host to connect to
+     * @param port The port to connect to
+     * @return The connected socket
+     * @throws KEzSignConnectException If unable to connect
+     */
+    Socket connect(String host, int port) throws KEzSignConnectException;
+
+    /**
+     * Connects to the server, taking no longer than the given time, including any retries
+     *
+     * @param host The host to connect to
+     * @param port The port to connect to
+     * @param timeoutMs The max time to take
+     * @return The connected socket
+     * @throws KEzSignConnectException If unable to connect
+     */
+    default Socket connect(String host, int port, int timeoutMs) throws KEzSignConnectException
+    {
+        return connect(host, port);
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,319 @@
+package com.krestfield.ezsign.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * KDeadline
+ *
+ * The overall time allowed for a call - connect, TLS handshake, retries and read together - and a way to
+ * cancel it from another thread.  While the call is in progress its socket (or connection, or request on a
+ * shared connection) is attached, so that cancel closes it straight away and the thread making the call is
+ * released rather than left waiting on the server.
+ *
+ * A deadline applies to the calls made by a thread between enter and close:
+ *
+ *   try (KDeadline deadline = KDeadline.enter(200))
+ *   {
+ *       client.signData(...);
+ *   }
+ *
+ * The asynchronous methods use the deadline of the thread that calls them
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KDeadline implements AutoCloseable
+{
+    private static final ThreadLocal<KDeadline> CURRENT = new ThreadLocal<KDeadline>();
+
+    private final long m_timeoutMs;
+    private final long m_expiresAt;
+    private volatile boolean m_cancelled = false;
+
+    // The sockets, connections or requests in use by the call.  Closed on cancel
+    private final ReentrantLock m_lock = new ReentrantLock();
+    private final Condition m_cancelledSignal = m_lock.newCondition();
+    private List<Closeable> m_attached = null;
+
+    // The deadline this replaced on the thread, from enter
+    private KDeadline m_previous = null;
+
+    // Attached to the call's deadline if this is for one attempt at it, so it is cancelled with the call
+    private final Closeable m_canceller = new Closeable()
+    {
+        public void close()
+        {
+            cancel();
+        }
+    };
+
+    /**
+     * Constructor.  The time starts now
+     *
+     * @param timeoutMs The time allowed for the call, 0 for no limit (so that it can only be cancelled)
+     */
+    public KDeadline(long timeoutMs)
+    {
+        m_timeoutMs = timeoutMs;
+        m_expiresAt = System.nanoTime() + timeoutMs * 1000000L;
+    }
+
+    private KDeadline(long timeoutMs, long expiresAt)
+    {
+        m_timeoutMs = timeoutMs;
+        m_expiresAt = expiresAt;
+    }
+
+    /**
+     * Creates a deadline that applies to the calls made by this thread until it is closed
+     *
+     * @param timeoutMs The time allowed, 0 for no limit
+     * @return The deadline
+     */
+    public static KDeadline enter(long timeoutMs)
+    {
+        KDeadline deadline = new KDeadline(timeoutMs);
+        deadline.m_previous = CURRENT.get();
+        CURRENT.set(deadline);
+        return deadline;
+    }
+
+    /**
+     *
+     * @return The deadline entered by this thread, or null if none
+     */
+    public static KDeadline current()
+    {
+        return CURRENT.get();
+    }
+
+    /**
+     * Stops the deadline applying to this thread's calls, restoring any it replaced
+     */
+    public void close()
+    {
+        if (CURRENT.get() == this)
+        {
+            if (m_previous != null)
+                CURRENT.set(m_previous);
+            else
+                CURRENT.remove();
+        }
+    }
+
+    /**
+     * Cancels the call.  Anything attached is closed, so a thread waiting on the server fails straight away
+     */
+    public void cancel()
+    {
+        List<Closeable> attached;
+        m_lock.lock();
+        try
+        {
+            if (m_cancelled)
+                return;
+
+            m_cancelled = true;
+            m_cancelledSignal.signalAll();
+            attached = m_attached;
+            m_attached = null;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        if (attached != null)
+        {
+            for (Closeable resource : attached)
+                closeQuietly(resource);
+        }
+    }
+
+    /**
+     * Creates the deadline for one attempt at the call, where more than one is made at once (e.g. a hedged
+     * request), so that an attempt can be cancelled on its own.  It passes when this does and is cancelled if
+     * this is
+     *
+     * @return The attempt's deadline.  Pass to endAttempt once the attempt has finished
+     * @throws InterruptedIOException If the call has already been cancelled
+     */
+    public KDeadline newAttempt() throws InterruptedIOException
+    {
+        KDeadline attempt = new KDeadline(m_timeoutMs, m_expiresAt);
+        attach(attempt.m_canceller);
+        return attempt;
+    }
+
+    /**
+     * Stops an attempt being cancelled with the call once it has finished
+     *
+     * @param attempt The attempt's deadline, from newAttempt
+     */
+    public void endAttempt(KDeadline attempt)
+    {
+        detach(attempt.m_canceller);
+    }
+
+    /**
+     * Attaches a socket, connection or request that the call is waiting on, so that it is closed if the call
+     * is cancelled
+     *
+     * @param resource The resource
+     * @throws InterruptedIOException If the call has already been cancelled.  The resource has been closed
+     */
+    public void attach(Closeable resource) throws InterruptedIOException
+    {
+        m_lock.lock();
+        try
+        {
+            if (!m_cancelled)
+            {
+                if (m_attached == null)
+                    m_attached = new ArrayList<Closeable>(2);
+                m_attached.add(resource);
+                return;
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        closeQuietly(resource);
+        throw new InterruptedIOException("The call to the EzSign server was cancelled");
+    }
+
+    /**
+     * Detaches a resource once the call is no longer waiting on it
+     *
+     * @param resource The resource from attach
+     */
+    public void detach(Closeable resource)
+    {
+        m_lock.lock();
+        try
+        {
+            if (m_attached != null)
+                m_attached.remove(resource);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Checks the call may carry on
+     *
+     * @throws InterruptedIOException If the call has been cancelled
+     * @throws SocketTimeoutException If the deadline has passed
+     */
+    public void check() throws IOException
+    {
+        if (m_cancelled)
+            throw new InterruptedIOException("The call to the EzSign server was cancelled");
+        if (isExpired())
+            throw new SocketTimeoutException("The call to the EzSign server did not complete within " + m_timeoutMs + "ms");
+    }
+
+    /**
+     * Waits, e.g. before a retry, returning early if the call is cancelled
+     *
+     * @param waitMs The time to wait
+     * @return True if the whole time was waited, false if cancelled or the thread was interrupted
+     */
+    public boolean sleep(long waitMs)
+    {
+        long waitNs = waitMs * 1000000L;
+        m_lock.lock();
+        try
+        {
+            while (!m_cancelled && waitNs > 0)
+                waitNs = m_cancelledSignal.awaitNanos(waitNs);
+
+            return !m_cancelled;
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @return The time left in milliseconds, rounded up so a wait for it ends after the deadline has passed.
+     *         Long.MAX_VALUE if there is no limit
+     */
+    public long getRemainingMs()
+    {
+        if (m_timeoutMs <= 0)
+            return Long.MAX_VALUE;
+
+        return Math.max(0, (m_expiresAt - System.nanoTime() + 999999L) / 1000000L);
+    }
+
+    /**
+     *
+     * @param limitMs A timeout for one step of the call, e.g. the read timeout
+     * @return The smaller of the limit and the time left
+     * @throws SocketTimeoutException If there is no time left
+     */
+    public int limit(int limitMs) throws SocketTimeoutException
+    {
+        long remainingMs = getRemainingMs();
+        if (remainingMs <= 0)
+            throw new SocketTimeoutException("The call to the EzSign server did not complete within " + m_timeoutMs + "ms");
+
+        return (int) Math.min(limitMs, remainingMs);
+    }
+
+    /**
+     *
+     * @return True if there is a limit and it has passed
+     */
+    public boolean isExpired()
+    {
+        return m_timeoutMs > 0 && System.nanoTime() - m_expiresAt >= 0;
+    }
+
+    public boolean isCancelled()
+    {
+        return m_cancelled;
+    }
+
+    /**
+     *
+     * @return The time allowed, 0 for no limit
+     */
+    public long getTimeoutMs()
+    {
+        return m_timeoutMs;
+    }
+
+    private static void closeQuietly(Closeable resource)
+    {
+        try
+        {
+            resource.close();
+        }
+        catch (Exception e)
+        {
+            // Already closed
+        }
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
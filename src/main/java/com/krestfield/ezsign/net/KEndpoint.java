@@ -0,0 +1,224 @@
+package com.krestfield.ezsign.net;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * KEndpoint
+ *
+ * One EzSign server (host and port) and its live statistics - the requests in flight and a moving average of
+ * the response time - which the load balancer uses to route each request.  If circuit breakers are in use
+ * each request's outcome is also passed to the endpoint's circuit breaker
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KEndpoint
+{
+    // The weight given to each new response time in the moving average
+    final static double LATENCY_DECAY = 0.1;
+
+    // While no responses are received the average used for the cost decays with this time constant, so an
+    // endpoint that was slow is tried again rather than never being picked and never updating its average
+    final static long LATENCY_IDLE_DECAY_NS = 2000 * 1000000L;
+
+    // A failed request counts as a response time of this many times the average, so traffic moves away
+    // from an endpoint that is failing quickly (e.g. refusing connections)
+    final static int FAILURE_LATENCY_FACTOR = 4;
+    final static long MIN_FAILURE_LATENCY_NS = 50 * 1000000L;
+
+    private final String m_host;
+    private final int m_port;
+
+    private final AtomicInteger m_inFlight = new AtomicInteger();
+    private final AtomicLong m_latencyNs = new AtomicLong();
+    private volatile long m_lastSampleAt = System.nanoTime();
+    private final AtomicLong m_requests = new AtomicLong();
+    private final AtomicLong m_failures = new AtomicLong();
+
+    private volatile KCircuitBreaker m_circuitBreaker = null;
+
+    // The number of requests when last checked for being an outlier.  Only used by KOutlierDetector
+    long m_requestsAtOutlierCheck = 0;
+
+    /**
+     * Constructor
+     *
+     * @param host The host
+     * @param port The port
+     */
+    public KEndpoint(String host, int port)
+    {
+        m_host = host;
+        m_port = port;
+    }
+
+    /**
+     * Called as a request is sent to this endpoint
+     *
+     * @return The start time, to pass to finish
+     */
+    public long start()
+    {
+        m_inFlight.incrementAndGet();
+        m_requests.incrementAndGet();
+        return System.nanoTime();
+    }
+
+    /**
+     * Called when the request completes
+     *
+     * @param startTime The time from start
+     * @param ok False if no response was received
+     */
+    public void finish(long startTime, boolean ok)
+    {
+        m_inFlight.decrementAndGet();
+
+        long now = System.nanoTime();
+        long sample = now - startTime;
+        KCircuitBreaker circuitBreaker = m_circuitBreaker;
+        if (!ok)
+        {
+            m_failures.incrementAndGet();
+            sample = Math.max(sample, Math.max(m_latencyNs.get() * FAILURE_LATENCY_FACTOR, MIN_FAILURE_LATENCY_NS));
+            if (circuitBreaker != null)
+                circuitBreaker.onFailure(now);
+        }
+        else if (circuitBreaker != null && circuitBreaker.onSuccess(now))
+        {
+            // The trial request after the circuit was open.  The average from before the circuit opened
+            // no longer applies
+            m_latencyNs.set(sample);
+            m_lastSampleAt = now;
+            return;
+        }
+        recordLatency(sample, now);
+    }
+
+    /**
+     * Called in place of finish when the request ended for a reason of the caller's - its deadline passed or it
+     * was cancelled - so says nothing of this endpoint's health.  Neither the circuit breaker nor the response
+     * time is told of it
+     */
+    public void abandon()
+    {
+        m_inFlight.decrementAndGet();
+
+        KCircuitBreaker circuitBreaker = m_circuitBreaker;
+        if (circuitBreaker != null)
+            circuitBreaker.onAbandoned(System.nanoTime());
+    }
+
+    private void recordLatency(long sample, long now)
+    {
+        // After a long idle period the old average no longer applies
+        boolean stale = now - m_lastSampleAt > LATENCY_IDLE_DECAY_NS;
+        m_lastSampleAt = now;
+        while (true)
+        {
+            long current = m_latencyNs.get();
+            long updated = (current == 0 || stale) ? sample : (long) (current + (sample - current) * LATENCY_DECAY);
+            if (m_latencyNs.compareAndSet(current, updated))
+                return;
+        }
+    }
+
+    /**
+     * The cost of sending one more request here: the requests that would be in flight multiplied by the average
+     * response time.  An endpoint with no response time yet costs only its requests in flight, so new endpoints
+     * are tried.  The average decays while no responses are received (see LATENCY_IDLE_DECAY_NS)
+     *
+     * @return The cost, lower is better
+     */
+    public double getCost()
+    {
+        double latency = m_latencyNs.get();
+        long idle = System.nanoTime() - m_lastSampleAt;
+        if (idle > 0)
+            latency *= Math.exp(-(double) idle / LATENCY_IDLE_DECAY_NS);
+
+        return (m_inFlight.get() + 1) * (latency + 1);
+    }
+
+    /**
+     * Sets the circuit breaker that tracks the health of this endpoint
+     *
+     * @param circuitBreaker The circuit breaker or null for none
+     */
+    public void setCircuitBreaker(KCircuitBreaker circuitBreaker)
+    {
+        m_circuitBreaker = circuitBreaker;
+    }
+
+    /**
+     *
+     * @return The circuit breaker or null if not in use
+     */
+    public KCircuitBreaker getCircuitBreaker()
+    {
+        return m_circuitBreaker;
+    }
+
+    /**
+     *
+     * @return True if the circuit breaker is in use and is open, so no further requests should be sent
+     */
+    public boolean isCircuitOpen()
+    {
+        KCircuitBreaker circuitBreaker = m_circuitBreaker;
+        return circuitBreaker != null && circuitBreaker.getState() == KCircuitBreaker.OPEN;
+    }
+
+    public String getHost()
+    {
+        return m_host;
+    }
+
+    public int getPort()
+    {
+        return m_port;
+    }
+
+    /**
+     *
+     * @return The number of requests sent and not yet complete
+     */
+    public int getInFlight()
+    {
+        return m_inFlight.get();
+    }
+
+    /**
+     *
+     * @return The moving average of the response time, in microseconds
+     */
+    public long getAverageLatencyMicros()
+    {
+        return m_latencyNs.get() / 1000;
+    }
+
+    /**
+     *
+     * @return The number of requests sent
+     */
+    public long getRequests()
+    {
+        return m_requests.get();
+    }
+
+    /**
+     *
+     * @return The number of requests that received no response
+     */
+    public long getFailures()
+    {
+        return m_failures.get();
+    }
+
+    public String toString()
+    {
+        return m_host + ":" + m_port;
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,48 @@
+package com.krestfield.ezsign.net;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * KExponentialBackoff
+ *
+ * Retries with exponential backoff and full jitter: before attempt n + 1 waits a random time between 0 and
+ * base x 2^(n - 1), up to the max.  The random wait spreads out the retries of many clients that failed
+ * at the same moment (e.g. when the server became overloaded), rather than them all retrying together
+ * and overloading it again
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KExponentialBackoff implements KRetryPolicy
+{
+    private final long m_baseMs;
+    private final long m_maxBackoffMs;
+    private final int m_maxAttempts;
+
+    /**
+     * Constructor
+     *
+     * @param baseMs The most time to wait before the first retry
+     * @param maxBackoffMs The most time to wait before any retry
+     * @param maxAttempts The max number of attempts, including the first
+     */
+    public KExponentialBackoff(long baseMs, long maxBackoffMs, int maxAttempts)
+    {
+        m_baseMs = baseMs;
+        m_maxBackoffMs = maxBackoffMs;
+        m_maxAttempts = maxAttempts;
+    }
+
+    public long getBackoffMs(int attempt)
+    {
+        if (attempt >= m_maxAttempts)
+            return -1;
+
+        long ceiling = m_baseMs << Math.min(attempt - 1, 30);
+        if (ceiling <= 0 || ceiling > m_maxBackoffMs)
+            ceiling = m_maxBackoffMs;
+
+        return ThreadLocalRandom.current().nextLong(ceiling + 1);
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,186 @@
+package com.krestfield.ezsign.net;
+
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Iterator;
+
+/**
+ * KFairQueue
+ *
+ * A queue that shares its turns fairly between keys (the channel names), by deficit round robin weighted by
+ * cost (the payload size), so that a key with many or large items waiting cannot hold up the others.  Each key
+ * has its own first come first served queue.  The keys with items waiting take turns, each being allowed
+ * QUANTUM of cost per turn (carried over to its next turn if its next item costs more), so under contention
+ * each key is given the same cost per round however many items it has queued.
+ *
+ * Not thread safe.  Used under the lock of its owner
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KFairQueue<T>
+{
+    // The cost each key may take per turn
+    final static long QUANTUM = 8192;
+
+    // The keys with items waiting, by key and in turn order
+    private final HashMap<String, Flow<T>> m_flows = new HashMap<String, Flow<T>>();
+    private final ArrayDeque<Flow<T>> m_turns = new ArrayDeque<Flow<T>>();
+    private int m_size = 0;
+
+    /**
+     * Adds an item to the back of its key's queue
+     *
+     * @param key The key, e.g. the channel name
+     * @param cost The item's cost, e.g. its payload size
+     * @param item The item
+     */
+    public void add(String key, long cost, T item)
+    {
+        Flow<T> flow = m_flows.get(key);
+        if (flow == null)
+        {
+            // A key that starts waiting joins the end of the round
+            flow = new Flow<T>(key);
+            m_flows.put(key, flow);
+            m_turns.add(flow);
+        }
+        flow.m_queue.add(new Entry<T>(item, Math.max(cost, 1)));
+        m_size++;
+    }
+
+    /**
+     * Takes the next item in turn
+     *
+     * @return The item, or null if the queue is empty
+     */
+    public T poll()
+    {
+        if (m_size == 0)
+            return null;
+
+        // If no key can afford its next item, skip the rounds in which none would have been taken
+        long rounds = Long.MAX_VALUE;
+        for (Flow<T> flow : m_turns)
+        {
+            long shortfall = flow.m_queue.peek().m_cost - flow.m_deficit;
+            rounds = Math.min(rounds, Math.max(0, (shortfall + QUANTUM - 1) / QUANTUM));
+        }
+        if (rounds > 0)
+        {
+            for (Flow<T> flow : m_turns)
+                flow.m_deficit += rounds * QUANTUM;
+        }
+
+        while (true)
+        {
+            Flow<T> flow = m_turns.peek();
+            Entry<T> next = flow.m_queue.peek();
+            if (next.m_cost <= flow.m_deficit)
+            {
+                flow.m_queue.poll();
+                flow.m_deficit -= next.m_cost;
+                m_size--;
+                if (flow.m_queue.isEmpty())
+                    removeFlow(flow);
+                return next.m_item;
+            }
+
+            // Its turn is over.  The unused cost is kept for its next
+            m_turns.poll();
+            flow.m_deficit += QUANTUM;
+            m_turns.add(flow);
+        }
+    }
+
+    /**
+     * Removes an item, e.g. one that has waited too long
+     *
+     * @param item The item
+     * @return True if it was waiting and has been removed
+     */
+    public boolean remove(T item)
+    {
+        for (Flow<T> flow : m_turns)
+        {
+            for (Iterator<Entry<T>> it = flow.m_queue.iterator(); it.hasNext(); )
+            {
+                if (it.next().m_item == item)
+                {
+                    it.remove();
+                    m_size--;
+                    if (flow.m_queue.isEmpty())
+                        removeFlow(flow);
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * A key that has no items waiting gives up its place in the round, and any unused cost
+     *
+     * @param flow The key's queue
+     */
+    private void removeFlow(Flow<T> flow)
+    {
+        m_turns.remove(flow);
+        m_flows.remove(flow.m_key);
+    }
+
+    /**
+     *
+     * @return The number of items waiting
+     */
+    public int size()
+    {
+        return m_size;
+    }
+
+    public boolean isEmpty()
+    {
+        return m_size == 0;
+    }
+
+    /**
+     *
+     * @param key The key
+     * @return The number of the key's items waiting
+     */
+    public int getWaiting(String key)
+    {
+        Flow<T> flow = m_flows.get(key);
+        return (flow == null) ? 0 : flow.m_queue.size();
+    }
+
+    /**
+     * The items waiting for one key
+     */
+    private static class Flow<T>
+    {
+        final String m_key;
+        final ArrayDeque<Entry<T>> m_queue = new ArrayDeque<Entry<T>>();
+
+        // The cost the key may still take, built up while it waits its turn
+        long m_deficit = QUANTUM;
+
+        Flow(String key)
+        {
+            m_key = key;
+        }
+    }
+
+    private static class Entry<T>
+    {
+        final T m_item;
+        final long m_cost;
+
+        Entry(T item, long cost)
+        {
+            m_item = item;
+            m_cost = cost;
+        }
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
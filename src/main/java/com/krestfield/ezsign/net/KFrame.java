@@ -0,0 +1,57 @@
+package com.krestfield.ezsign.net;
+
+/**
+ * KFrame
+ *
+ * One message as read from a connection, with its correlation ID if it had one and whether it is in the v2
+ * auth code envelope (see KAuthEnvelope)
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KFrame
+{
+    private final long m_correlationId;
+    private final byte[] m_message;
+    private final boolean m_enveloped;
+
+    public KFrame(long correlationId, byte[] message)
+    {
+        this(correlationId, message, false);
+    }
+
+    public KFrame(long correlationId, byte[] message, boolean enveloped)
+    {
+        m_correlationId = correlationId;
+        m_message = message;
+        m_enveloped = enveloped;
+    }
+
+    /**
+     *
+     * @return The correlation ID or KFraming.NO_CORRELATION_ID
+     */
+    public long getCorrelationId()
+    {
+        return m_correlationId;
+    }
+
+    /**
+     *
+     * @return The message
+     */
+    public byte[] getMessage()
+    {
+        return m_message;
+    }
+
+    /**
+     *
+     * @return True if the message is in the v2 auth code envelope, rather than encrypted by KEncrypt or clear
+     */
+    public boolean isEnveloped()
+    {
+        return m_enveloped;
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,180 @@
+package com.krestfield.ezsign.net;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+/**
+ * KFrameInputStream
+ *
+ * A buffered stream that can read up to a delimiter, or an exact number of bytes, straight from its buffer.
+ * Bytes after the end of a message stay buffered for the next read, so one stream is kept for the life
+ * of a connection.
+ *
+ * Unlike BufferedInputStream nothing here is synchronized (a stream is only ever read by one thread at a
+ * time) so a virtual thread blocked reading the socket does not pin its carrier thread
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KFrameInputStream extends InputStream
+{
+    final static int BUFFER_SIZE = 16384;
+
+    private final InputStream m_in;
+    private final byte[] m_buf = new byte[BUFFER_SIZE];
+    private int m_pos = 0;
+    private int m_count = 0;
+
+    public KFrameInputStream(InputStream in)
+    {
+        m_in = in;
+    }
+
+    /**
+     * Reads more from the underlying stream into the (empty) buffer
+     *
+     * @return False if the stream has ended
+     * @throws IOException If there is an error on the stream
+     */
+    private boolean fill() throws IOException
+    {
+        m_pos = 0;
+        m_count = 0;
+        int read;
+        do
+        {
+            read = m_in.read(m_buf, 0, m_buf.length);
+        }
+        while (read == 0);
+
+        if (read < 0)
+            return false;
+        m_count = read;
+        return true;
+    }
+
+    public int read() throws IOException
+    {
+        if (m_pos >= m_count && !fill())
+            return -1;
+        return m_buf[m_pos++] & 0xFF;
+    }
+
+    public int read(byte[] dest, int offset, int length) throws IOException
+    {
+        if (length == 0)
+            return 0;
+
+        if (m_pos >= m_count)
+        {
+            // Large reads go straight to the destination
+            if (length >= m_buf.length)
+                return m_in.read(dest, offset, length);
+            if (!fill())
+                return -1;
+        }
+
+        int n = Math.min(length, m_count - m_pos);
+        System.arraycopy(m_buf, m_pos, dest, offset, n);
+        m_pos += n;
+        return n;
+    }
+
+    /**
+     * Returns the next byte without consuming it
+     *
+     * @return The next byte or -1 if the stream has ended
+     * @throws IOException If there is an error on the stream
+     */
+    public int peek() throws IOException
+    {
+        if (m_pos >= m_count && !fill())
+            return -1;
+        return m_buf[m_pos] & 0xFF;
+    }
+
+    public int available() throws IOException
+    {
+        return (m_count - m_pos) + m_in.available();
+    }
+
+    public void close() throws IOException
+    {
+        m_in.close();
+    }
+
+    /**
+     * Reads up to the delimiter.  The delimiter is consumed but not returned
+     *
+     * @param delimiter The delimiter
+     * @param maxLength The most bytes that may come before the delimiter
+     * @return The bytes before the delimiter, all remaining bytes if the stream ends first, or null if
+     *         the stream has already ended
+     * @throws IOException If there is an error on the stream, or more than maxLength bytes come before the
+     *                     delimiter.  The bytes already read are discarded
+     */
+    public byte[] readUntil(byte delimiter, int maxLength) throws IOException
+    {
+        ByteArrayOutputStream partial = null;
+        while (true)
+        {
+            if (m_pos >= m_count && !fill())
+                return (partial == null) ? null : partial.toByteArray();
+
+            for (int i = m_pos; i < m_count; i++)
+            {
+                if (m_buf[i] == delimiter)
+                {
+                    if ((partial == null ? 0 : partial.size()) + (i - m_pos) > maxLength)
+                        throw new IOException("The message received from the EzSign server is longer than the max of " + maxLength + " bytes");
+
+                    byte[] result;
+                    if (partial == null)
+                    {
+                        result = Arrays.copyOfRange(m_buf, m_pos, i);
+                    }
+                    else
+                    {
+                        partial.write(m_buf, m_pos, i - m_pos);
+                        result = partial.toByteArray();
+                    }
+                    m_pos = i + 1;
+                    return result;
+                }
+            }
+
+            int partialLength = (partial == null) ? 0 : partial.size();
+            if (partialLength + (m_count - m_pos) > maxLength)
+                throw new IOException("The message received from the EzSign server is longer than the max of " + maxLength + " bytes");
+
+            if (partial == null)
+                partial = new ByteArrayOutputStream((m_count - m_pos) * 2);
+            partial.write(m_buf, m_pos, m_count - m_pos);
+            m_pos = m_count;
+        }
+    }
+
+    /**
+     * Reads exactly the number of bytes given
+     *
+     * @param dest Where to put the bytes
+     * @param offset The offset in dest
+     * @param length The number of bytes
+     * @throws IOException If the stream ends first or there is an error on the stream
+     */
+    public void readFully(byte[] dest, int offset, int length) throws IOException
+    {
+        while (length > 0)
+        {
+            int read = read(dest, offset, length);
+            if (read < 0)
+                throw new EOFException("The connection was closed part way through a message");
+            offset += read;
+            length -= read;
+        }
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
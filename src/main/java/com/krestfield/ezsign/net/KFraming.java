@@ -0,0 +1,63 @@
+package com.krestfield.ezsign.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * KFraming
+ *
+ * How messages are delimited on a connection.  KLineFraming is the original text line per message,
+ * KBinaryFraming is a length prefixed frame for the binary message format.
+ *
+ * Either may carry a correlation ID, as used on multiplexed connections.  Messages without one
+ * use NO_CORRELATION_ID
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public interface KFraming
+{
+    long NO_CORRELATION_ID = -1;
+
+    // The longest message read unless a framing is given another limit
+    int DEFAULT_MAX_MESSAGE_LEN = 256 * 1024 * 1024;
+
+    /**
+     * Writes and flushes one message
+     *
+     * @param out The stream to write to
+     * @param correlationId The correlation ID or NO_CORRELATION_ID
+     * @param message The message
+     * @throws IOException If there is an error on the stream
+     */
+    void write(OutputStream out, long correlationId, byte[] message) throws IOException;
+
+    /**
+     * Reads one message
+     *
+     * @param in The stream to read from
+     * @return The message or null if the stream has ended
+     * @throws IOException If there is an error on the stream, the frame is not valid or the message is longer
+     *                     than the max message length
+     */
+    KFrame read(KFrameInputStream in) throws IOException;
+
+    /**
+     * Checks whether a buffer holds a complete message, for callers that read into a buffer rather than a stream
+     *
+     * @param buffer The bytes received so far
+     * @param length The number of bytes received
+     * @return The length of the first message including its framing, or -1 if it is not yet complete
+     * @throws IOException If the frame is not valid or the message is longer than the max message length
+     */
+    int getFrameLength(byte[] buffer, int length) throws IOException;
+
+    /**
+     * Messages longer than this are not read, so that a faulty or hostile server cannot make the client
+     * allocate without limit
+     *
+     * @return The max message length in bytes
+     */
+    int getMaxMessageLength();
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,223 @@
+package com.krestfield.ezsign.net;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * KHedgePolicy
+ *
+ * Decides when a request that has not yet been answered is also sent to a second endpoint (a hedged request),
+ * the first response to arrive being used.  The hedge is sent once the request has taken longer than a
+ * percentile of the recent response times, so only the slowest requests are hedged.
+ *
+ * The extra load is limited by a budget: each request earns a fraction of a hedge and each hedge spends a whole
+ * one, so hedging never adds more than that fraction of requests, even when the servers are slow for every
+ * request (when hedging would only add to their load).  Also provides the number of hedges and how often the
+ * hedge was answered first
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KHedgePolicy
+{
+    // The number of recent response times the percentile is taken from
+    final static int WINDOW_SIZE = 1024;
+
+    // The percentile is recalculated after this many new response times
+    final static int RECALC_INTERVAL = 128;
+
+    // No hedges are sent until this many response times have been recorded
+    final static int MIN_SAMPLES = 64;
+
+    // Requests are never hedged sooner than this, as there is little to gain
+    final static long MIN_DELAY_NS = 1000000L;
+
+    // The most unspent hedges that can build up, so a burst of slow requests after a quiet spell is limited
+    final static int MAX_BALANCE = 10;
+
+    // The budget is held in millionths of a hedge
+    final static long CREDIT_PER_HEDGE = 1000000L;
+
+    private final double m_percentile;
+    private final long m_creditPerRequest;
+
+    private final AtomicLongArray m_window = new AtomicLongArray(WINDOW_SIZE);
+    private final AtomicLong m_samples = new AtomicLong();
+    private final AtomicBoolean m_recalculating = new AtomicBoolean(false);
+    private volatile long m_delayNs = -1;
+
+    private final AtomicLong m_balance = new AtomicLong();
+
+    private final AtomicLong m_requests = new AtomicLong();
+    private final AtomicLong m_hedges = new AtomicLong();
+    private final AtomicLong m_hedgeWins = new AtomicLong();
+    private final AtomicLong m_overBudget = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param percentile A request is hedged once it has taken longer than this percentile of recent response
+     *                   times, e.g. 95
+     * @param budgetPercent The most hedges that may be sent, as a percentage of requests, e.g. 5
+     */
+    public KHedgePolicy(double percentile, double budgetPercent)
+    {
+        m_percentile = percentile / 100;
+        m_creditPerRequest = (long) (budgetPercent / 100 * CREDIT_PER_HEDGE);
+    }
+
+    /**
+     * Called as a request that may be hedged is sent.  Adds to the budget
+     */
+    public void onRequest()
+    {
+        m_requests.incrementAndGet();
+        while (true)
+        {
+            long balance = m_balance.get();
+            long updated = Math.min(balance + m_creditPerRequest, MAX_BALANCE * CREDIT_PER_HEDGE);
+            if (updated == balance || m_balance.compareAndSet(balance, updated))
+                return;
+        }
+    }
+
+    /**
+     *
+     * @return How long to wait for a response before hedging, in nanoseconds, or -1 if there are not yet
+     *         enough response times to tell
+     */
+    public long getHedgeDelayNanos()
+    {
+        long delay = m_delayNs;
+        return (delay < 0) ? -1 : Math.max(delay, MIN_DELAY_NS);
+    }
+
+    /**
+     * Spends one hedge from the budget
+     *
+     * @return True if a hedge may be sent, false if the budget is used up
+     */
+    public boolean tryHedge()
+    {
+        while (true)
+        {
+            long balance = m_balance.get();
+            if (balance < CREDIT_PER_HEDGE)
+            {
+                m_overBudget.incrementAndGet();
+                return false;
+            }
+            if (m_balance.compareAndSet(balance, balance - CREDIT_PER_HEDGE))
+            {
+                m_hedges.incrementAndGet();
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Records the response time of a request, original or hedge, that was answered
+     *
+     * @param latencyNs The response time
+     */
+    public void recordLatency(long latencyNs)
+    {
+        long sample = m_samples.getAndIncrement();
+        m_window.lazySet((int) (sample % WINDOW_SIZE), latencyNs);
+
+        long count = sample + 1;
+        if (count >= MIN_SAMPLES && (count % RECALC_INTERVAL == 0 || m_delayNs < 0))
+            recalculate(Math.min(count, WINDOW_SIZE));
+    }
+
+    private void recalculate(long count)
+    {
+        // Only one thread sorts at a time.  Others carry on with the current delay
+        if (!m_recalculating.compareAndSet(false, true))
+            return;
+
+        try
+        {
+            long[] latencies = new long[(int) count];
+            for (int i = 0; i < latencies.length; i++)
+                latencies[i] = m_window.get(i);
+
+            Arrays.sort(latencies);
+            m_delayNs = latencies[Math.min(latencies.length - 1, (int) (latencies.length * m_percentile))];
+        }
+        finally
+        {
+            m_recalculating.set(false);
+        }
+    }
+
+    /**
+     * Called when a request that was hedged is answered
+     *
+     * @param hedgeWon True if the hedge was answered first
+     */
+    public void onHedgedResponse(boolean hedgeWon)
+    {
+        if (hedgeWon)
+            m_hedgeWins.incrementAndGet();
+    }
+
+    /**
+     *
+     * @return The number of requests that could have been hedged
+     */
+    public long getRequests()
+    {
+        return m_requests.get();
+    }
+
+    /**
+     *
+     * @return The number of hedges sent
+     */
+    public long getHedges()
+    {
+        return m_hedges.get();
+    }
+
+    /**
+     *
+     * @return The number of hedges that were answered before the original request
+     */
+    public long getHedgeWins()
+    {
+        return m_hedgeWins.get();
+    }
+
+    /**
+     *
+     * @return The share of hedges that were answered before the original request, 0 to 1
+     */
+    public double getHedgeWinRate()
+    {
+        long hedges = m_hedges.get();
+        return (hedges == 0) ? 0 : (double) m_hedgeWins.get() / hedges;
+    }
+
+    /**
+     *
+     * @return The number of hedges not sent because the budget was used up
+     */
+    public long getHedgesOverBudget()
+    {
+        return m_overBudget.get();
+    }
+
+    /**
+     *
+     * @return The current time waited before hedging, in microseconds, or -1 if not yet known
+     */
+    public long getHedgeDelayMicros()
+    {
+        long delay = getHedgeDelayNanos();
+        return (delay < 0) ? -1 : delay / 1000;
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,140 @@
+package com.krestfield.ezsign.net;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * KLatencyHistogram
+ *
+ * Counts response times in buckets that grow with the time (each power of two of microseconds is split into
+ * 8 buckets) so that any percentile can be read to within an eighth from a small, fixed array.  Recording is
+ * an index calculation and an atomic increment.  So that the percentiles follow the recent response times,
+ * the counts are halved after each DECAY_INTERVAL samples
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KLatencyHistogram
+{
+    // Each power of two of microseconds is split into 2^SUB_BUCKET_BITS buckets
+    final static int SUB_BUCKET_BITS = 3;
+    final static int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+    // Times up to 2^MAX_MAGNITUDE microseconds (about 134 seconds) are counted separately, longer ones in the last bucket
+    final static int MAX_MAGNITUDE = 27;
+    final static int NUM_BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    // The counts are halved after this many samples
+    final static int DECAY_INTERVAL = 256;
+
+    private final AtomicLongArray m_counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong m_samples = new AtomicLong();
+    private final AtomicBoolean m_decaying = new AtomicBoolean(false);
+
+    /**
+     * Records a response time
+     *
+     * @param latencyNs The response time in nanoseconds
+     */
+    public void record(long latencyNs)
+    {
+        m_counts.incrementAndGet(getBucket(latencyNs / 1000));
+
+        if (m_samples.incrementAndGet() % DECAY_INTERVAL == 0)
+            decay();
+    }
+
+    private void decay()
+    {
+        // Only one thread halves the counts at a time.  Others carry on recording
+        if (!m_decaying.compareAndSet(false, true))
+            return;
+
+        try
+        {
+            for (int i = 0; i < NUM_BUCKETS; i++)
+            {
+                long count = m_counts.get(i);
+                if (count > 0)
+                    m_counts.addAndGet(i, -(count >> 1));
+            }
+        }
+        finally
+        {
+            m_decaying.set(false);
+        }
+    }
+
+    /**
+     *
+     * @param percentile The percentile, e.g. 99.9
+     * @return The response time below which this percentile of the recent responses were received, in
+     *         microseconds.  -1 if nothing has been recorded
+     */
+    public long getPercentileMicros(double percentile)
+    {
+        long[] counts = new long[NUM_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++)
+        {
+            counts[i] = m_counts.get(i);
+            total += counts[i];
+        }
+        if (total == 0)
+            return -1;
+
+        long rank = Math.max(1, (long) Math.ceil(total * percentile / 100));
+        long seen = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++)
+        {
+            seen += counts[i];
+            if (seen >= rank)
+                return getUpperBound(i);
+        }
+        return getUpperBound(NUM_BUCKETS - 1);
+    }
+
+    /**
+     *
+     * @return The number of response times recorded
+     */
+    public long getCount()
+    {
+        return m_samples.get();
+    }
+
+    /**
+     *
+     * @param micros A time in microseconds
+     * @return The bucket it is counted in
+     */
+    static int getBucket(long micros)
+    {
+        if (micros < SUB_BUCKETS)
+            return (int) Math.max(micros, 0);
+
+        int magnitude = 63 - Long.numberOfLeadingZeros(micros);
+        int shift = magnitude - SUB_BUCKET_BITS;
+        int bucket = (shift + 1) * SUB_BUCKETS + (int) ((micros >>> shift) & (SUB_BUCKETS - 1));
+
+        return Math.min(bucket, NUM_BUCKETS - 1);
+    }
+
+    /**
+     *
+     * @param bucket The bucket
+     * @return The time in microseconds just above the longest counted in the bucket
+     */
+    static long getUpperBound(int bucket)
+    {
+        if (bucket < SUB_BUCKETS)
+            return bucket + 1;
+
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lower = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+
+        return lower + (1L << shift);
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
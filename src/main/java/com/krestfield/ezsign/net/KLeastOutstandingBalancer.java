@@ -0,0 +1,33 @@
+package com.krestfield.ezsign.net;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * KLeastOutstandingBalancer
+ *
+ * Sends each request to the endpoint with the fewest requests in flight, and of those the one with the lowest
+ * average response time.  The search starts at a random endpoint so that ties are spread evenly
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KLeastOutstandingBalancer implements KLoadBalancer
+{
+    public int select(KEndpoint[] endpoints)
+    {
+        int offset = ThreadLocalRandom.current().nextInt(endpoints.length);
+
+        int best = offset;
+        for (int i = 1; i < endpoints.length; i++)
+        {
+            int candidate = (offset + i) % endpoints.length;
+            int inFlight = endpoints[candidate].getInFlight();
+            int bestInFlight = endpoints[best].getInFlight();
+            if (inFlight < bestInFlight ||
+                    (inFlight == bestInFlight && endpoints[candidate].getAverageLatencyMicros() < endpoints[best].getAverageLatencyMicros()))
+                best = candidate;
+        }
+        return best;
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
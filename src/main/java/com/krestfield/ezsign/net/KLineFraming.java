@@ -0,0 +1,139 @@
+package com.krestfield.ezsign.net;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * KLineFraming
+ *
+ * The text framing - one message per line, terminated by \n.  A message with a correlation ID is sent
+ * in the multiplexed (v2) framing:
+ *
+ *   V2:CORRELATION_ID:MESSAGE
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KLineFraming implements KFraming
+{
+    public static final String FRAME_PREFIX = "V2:";
+    public static final char ID_DELIMITER = ':';
+
+    private static final byte[] FRAME_PREFIX_BYTES = FRAME_PREFIX.getBytes(StandardCharsets.US_ASCII);
+
+    // Room for the v2 prefix and correlation ID, which are not part of the message
+    private static final int MAX_PREFIX_LEN = FRAME_PREFIX_BYTES.length + 20 + 1;
+
+    // Lines longer than this, less the prefix, are rejected before they are read in full
+    private final int m_maxMessageLen;
+
+    public KLineFraming()
+    {
+        this(DEFAULT_MAX_MESSAGE_LEN);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param maxMessageLen The longest message read
+     */
+    public KLineFraming(int maxMessageLen)
+    {
+        m_maxMessageLen = maxMessageLen;
+    }
+
+    public void write(OutputStream out, long correlationId, byte[] message) throws IOException
+    {
+        if (correlationId != NO_CORRELATION_ID)
+        {
+            out.write(FRAME_PREFIX_BYTES);
+            out.write(Long.toString(correlationId).getBytes(StandardCharsets.US_ASCII));
+            out.write(ID_DELIMITER);
+        }
+        out.write(message);
+        out.write('\n');
+        out.flush();
+    }
+
+    public KFrame read(KFrameInputStream in) throws IOException
+    {
+        byte[] line = in.readUntil((byte) '\n', getMaxLineLength());
+        if (line == null)
+            return null;
+
+        int len = line.length;
+        if (len > 0 && line[len - 1] == '\r')
+            len--;
+
+        // A line in the v2 framing has the prefix and the ID followed by the delimiter
+        int idEnd = -1;
+        if (len > FRAME_PREFIX_BYTES.length && startsWithPrefix(line))
+        {
+            for (int i = FRAME_PREFIX_BYTES.length; i < len; i++)
+            {
+                if (line[i] == ID_DELIMITER)
+                {
+                    idEnd = i;
+                    break;
+                }
+            }
+        }
+
+        if (idEnd < 0)
+            return new KFrame(NO_CORRELATION_ID, (len == line.length) ? line : Arrays.copyOf(line, len));
+
+        long correlationId;
+        try
+        {
+            correlationId = Long.parseLong(new String(line, FRAME_PREFIX_BYTES.length, idEnd - FRAME_PREFIX_BYTES.length,
+                    StandardCharsets.US_ASCII));
+        }
+        catch (NumberFormatException e)
+        {
+            throw new IOException("The correlation ID received from the EzSign server was not valid");
+        }
+
+        return new KFrame(correlationId, Arrays.copyOfRange(line, idEnd + 1, len));
+    }
+
+    public int getFrameLength(byte[] buffer, int length) throws IOException
+    {
+        for (int i = 0; i < length; i++)
+        {
+            if (buffer[i] == '\n')
+                return i + 1;
+        }
+
+        if (length > getMaxLineLength())
+            throw new IOException("The message received from the EzSign server is longer than the max of " + m_maxMessageLen);
+        return -1;
+    }
+
+    public int getMaxMessageLength()
+    {
+        return m_maxMessageLen;
+    }
+
+    /**
+     *
+     * @return The longest line read, not counting the \n
+     */
+    private int getMaxLineLength()
+    {
+        // Allows for a \r before the \n
+        return (int) Math.min(Integer.MAX_VALUE - 8, (long) m_maxMessageLen + MAX_PREFIX_LEN + 1);
+    }
+
+    private static boolean startsWithPrefix(byte[] line)
+    {
+        for (int i = 0; i < FRAME_PREFIX_BYTES.length; i++)
+        {
+            if (line[i] != FRAME_PREFIX_BYTES[i])
+                return false;
+        }
+        return true;
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,22 @@
+package com.krestfield.ezsign.net;
+
+/**
+ * KLoadBalancer
+ *
+ * Chooses the endpoint for each request when a client has more than one.  Implementations must be safe
+ * to call from many threads at once
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public interface KLoadBalancer
+{
+    /**
+     * Chooses an endpoint
+     *
+     * @param endpoints The endpoints to choose from, at least one
+     * @return The index of the chosen endpoint
+     */
+    int select(KEndpoint[] endpoints);
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,268 @@
+package com.krestfield.ezsign.net;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * KMemoryLimiter
+ *
+ * Limits the request payload bytes held by calls in progress, so that a burst of calls with large payloads
+ * cannot run the client out of heap however many threads make them.  A call reserves its request's size before
+ * the message is encoded and waits, in turn, if that would take the total over the limit.  A call larger than
+ * the whole limit is let through once nothing else is in progress, rather than never.
+ *
+ * Responses are not limited here: by the time a response's size is known it is already in memory, so it is
+ * only added (without waiting) to be counted in the bytes in use and the peak, and all is released when the
+ * call completes.  What bounds a response is the transport's max message length (see KFraming), which rejects
+ * a longer response before it is read.
+ *
+ * The limit is on payload bytes.  The client holds a small number of copies of each payload while it is
+ * encoded, encrypted and sent, so the heap used is a small multiple of it
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KMemoryLimiter
+{
+    private final long m_maxBytes;
+
+    private final ReentrantLock m_lock = new ReentrantLock();
+    private long m_inUse = 0;
+    private final ArrayDeque<Reservation> m_queue = new ArrayDeque<Reservation>();
+
+    private volatile long m_peak = 0;
+    private final AtomicLong m_waited = new AtomicLong();
+    private final AtomicLong m_rejected = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param maxBytes The most payload bytes that may be held by calls in progress
+     */
+    public KMemoryLimiter(long maxBytes)
+    {
+        m_maxBytes = maxBytes;
+    }
+
+    /**
+     * Reserves bytes for a call.  If they are not available the call is queued behind any already waiting
+     *
+     * @param bytes The bytes
+     * @return Completes when the bytes are reserved (already complete if they were available).  They must be
+     *         given back with release
+     */
+    public CompletableFuture<Void> acquire(long bytes)
+    {
+        m_lock.lock();
+        try
+        {
+            if (m_queue.isEmpty() && fits(bytes))
+            {
+                reserve(bytes);
+                return CompletableFuture.completedFuture(null);
+            }
+
+            Reservation reservation = new Reservation(bytes);
+            m_queue.add(reservation);
+            m_waited.incrementAndGet();
+            return reservation.m_future;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Takes a waiting call out of the queue, e.g. when it has waited too long
+     *
+     * @param future The future from acquire
+     * @return True if the call was removed and has no bytes reserved, false if they were reserved first (and
+     *         must be released as usual)
+     */
+    public boolean cancel(CompletableFuture<Void> future)
+    {
+        List<CompletableFuture<Void>> granted;
+        m_lock.lock();
+        try
+        {
+            Reservation removed = null;
+            for (Iterator<Reservation> it = m_queue.iterator(); it.hasNext(); )
+            {
+                Reservation reservation = it.next();
+                if (reservation.m_future == future)
+                {
+                    it.remove();
+                    removed = reservation;
+                    break;
+                }
+            }
+            if (removed == null)
+                return false;
+
+            m_rejected.incrementAndGet();
+
+            // Calls queued behind it may now fit
+            granted = grantQueued();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+        complete(granted);
+        return true;
+    }
+
+    /**
+     * Adds bytes to a call's reservation without waiting, e.g. for its response which is already in memory
+     *
+     * @param bytes The bytes
+     */
+    public void add(long bytes)
+    {
+        m_lock.lock();
+        try
+        {
+            reserve(bytes);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     * Gives back bytes when the call completes
+     *
+     * @param bytes The bytes reserved by acquire and add
+     */
+    public void release(long bytes)
+    {
+        List<CompletableFuture<Void>> granted;
+        m_lock.lock();
+        try
+        {
+            m_inUse -= bytes;
+            granted = grantQueued();
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+        complete(granted);
+    }
+
+    /**
+     * Reserves the bytes of the calls at the head of the queue that now fit.  Called with the lock held
+     *
+     * @return The futures of the calls, to be completed once the lock is released
+     */
+    private List<CompletableFuture<Void>> grantQueued()
+    {
+        List<CompletableFuture<Void>> granted = null;
+        while (!m_queue.isEmpty() && fits(m_queue.peek().m_bytes))
+        {
+            Reservation reservation = m_queue.poll();
+            reserve(reservation.m_bytes);
+            if (granted == null)
+                granted = new ArrayList<CompletableFuture<Void>>(1);
+            granted.add(reservation.m_future);
+        }
+        return granted;
+    }
+
+    private static void complete(List<CompletableFuture<Void>> granted)
+    {
+        if (granted == null)
+            return;
+
+        // A call taken from the queue owns its bytes even if it has given up waiting in the meantime
+        for (CompletableFuture<Void> future : granted)
+            future.complete(null);
+    }
+
+    private boolean fits(long bytes)
+    {
+        return m_inUse == 0 || m_inUse + bytes <= m_maxBytes;
+    }
+
+    private void reserve(long bytes)
+    {
+        m_inUse += bytes;
+        if (m_inUse > m_peak)
+            m_peak = m_inUse;
+    }
+
+    /**
+     *
+     * @return The most payload bytes that may be held by calls in progress
+     */
+    public long getMaxBytes()
+    {
+        return m_maxBytes;
+    }
+
+    /**
+     *
+     * @return The payload bytes held by calls in progress
+     */
+    public long getInUse()
+    {
+        m_lock.lock();
+        try
+        {
+            return m_inUse;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @return The most payload bytes held at once
+     */
+    public long getPeak()
+    {
+        return m_peak;
+    }
+
+    /**
+     *
+     * @return The number of calls that had to wait for bytes
+     */
+    public long getWaited()
+    {
+        return m_waited.get();
+    }
+
+    /**
+     *
+     * @return The number of calls rejected as the bytes were not available within the max wait
+     */
+    public long getRejected()
+    {
+        return m_rejected.get();
+    }
+
+    /**
+     * A call waiting for bytes
+     */
+    private static class Reservation
+    {
+        final long m_bytes;
+        final CompletableFuture<Void> m_future = new CompletableFuture<Void>();
+
+        Reservation(long bytes)
+        {
+            m_bytes = bytes;
+        }
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,193 @@
+package com.krestfield.ezsign.net;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * KMuxConnection
+ *
+ * A long lived connection carrying many requests at once.  Each message is sent with a correlation ID, in
+ * the v2 (multiplexed) text framing:
+ *
+ *   V2:CORRELATION_ID:MESSAGE
+ *
+ * or in the header of a binary frame, where MESSAGE is the normal (possibly auth code encrypted) message.
+ * The server tags each response with the correlation ID of its request.  Requests are written as soon as they are sent and responses may
+ * come back in any order.  A reader thread matches each response to its request through the in-flight table
+ * and completes the request's future.
+ *
+ * If the connection fails all requests in flight on it fail with the same error
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KMuxConnection implements Runnable
+{
+    private final KMuxPool m_pool;
+    private final Socket m_socket;
+    private final KFraming m_framing;
+    private final KFrameInputStream m_in;
+    private final OutputStream m_out;
+    private final ReentrantLock m_writeLock = new ReentrantLock();
+    private final Map<Long, CompletableFuture<byte[]>> m_inFlight = new ConcurrentHashMap<Long, CompletableFuture<byte[]>>();
+    private volatile boolean m_open = true;
+
+    /**
+     * Constructor.  Starts the reader thread
+     *
+     * @param pool The pool this connection belongs to
+     * @param socket The connected socket
+     * @param framing How messages are delimited
+     * @throws IOException If the streams cannot be obtained
+     */
+    KMuxConnection(KMuxPool pool, Socket socket, KFraming framing) throws IOException
+    {
+        m_pool = pool;
+        m_socket = socket;
+        m_framing = framing;
+
+        // Responses arrive whenever they are ready, so the reader waits indefinitely.
+        // Each request applies its own timeout
+        m_socket.setSoTimeout(0);
+        m_in = new KFrameInputStream(socket.getInputStream());
+        m_out = new BufferedOutputStream(socket.getOutputStream());
+
+        Thread readerThread = new Thread(this, "EzSignMuxReader-" + socket.getInetAddress() + ":" + socket.getPort());
+        readerThread.setDaemon(true);
+        readerThread.start();
+    }
+
+    /**
+     * Sends a request.  Returns as soon as the request is written
+     *
+     * @param correlationId The unique ID of the request
+     * @param message The message
+     * @return The request, which completes when the response arrives
+     */
+    KMuxRequest send(long correlationId, byte[] message)
+    {
+        CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+        KMuxRequest request = new KMuxRequest(this, correlationId, future);
+
+        m_inFlight.put(correlationId, future);
+        if (!m_open)
+        {
+            abandon(correlationId);
+            future.completeExceptionally(new IOException("The connection to the EzSign server has been closed"));
+            return request;
+        }
+
+        m_writeLock.lock();
+        try
+        {
+            m_framing.write(m_out, correlationId, message);
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+        finally
+        {
+            m_writeLock.unlock();
+        }
+
+        return request;
+    }
+
+    /**
+     * Removes a request from the in-flight table, e.g. when it has timed out.  If the response
+     * does arrive later it is discarded
+     *
+     * @param correlationId The ID of the request
+     */
+    void abandon(long correlationId)
+    {
+        m_inFlight.remove(correlationId);
+    }
+
+    /**
+     * The reader.  Dispatches each response to the request with the same correlation ID
+     */
+    public void run()
+    {
+        try
+        {
+            KFrame frame;
+            while ((frame = m_framing.read(m_in)) != null)
+            {
+                if (frame.getCorrelationId() == KFraming.NO_CORRELATION_ID)
+                {
+                    // The server does not understand the v2 framing
+                    m_pool.recordProtocolMismatch();
+                    fail(new IOException("The response from the EzSign server was not in the multiplexed (v2) format"));
+                    return;
+                }
+
+                m_pool.recordV2Response();
+                CompletableFuture<byte[]> future = m_inFlight.remove(frame.getCorrelationId());
+                if (future != null)
+                    future.complete(frame.getMessage());
+            }
+
+            m_pool.recordConnectionFailure();
+            fail(new IOException("The EzSign server closed the connection"));
+        }
+        catch (IOException e)
+        {
+            if (m_open)
+                m_pool.recordConnectionFailure();
+            fail(e);
+        }
+    }
+
+    /**
+     * Closes the connection and fails every request in flight on it
+     *
+     * @param cause The reason
+     */
+    private void fail(IOException cause)
+    {
+        m_open = false;
+        try { m_socket.close(); } catch (Exception e) { }
+
+        for (Long correlationId : m_inFlight.keySet())
+        {
+            CompletableFuture<byte[]> future = m_inFlight.remove(correlationId);
+            if (future != null)
+                future.completeExceptionally(cause);
+        }
+    }
+
+    /**
+     * Closes the connection
+     */
+    void close()
+    {
+        fail(new IOException("The connection to the EzSign server has been closed"));
+    }
+
+    /**
+     *
+     * @return True if the connection can still be used
+     */
+    public boolean isOpen()
+    {
+        return m_open;
+    }
+
+    /**
+     *
+     * @return The number of requests waiting for a response
+     */
+    public int getInFlight()
+    {
+        return m_inFlight.size();
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
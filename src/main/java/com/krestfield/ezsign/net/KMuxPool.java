@@ -0,0 +1,261 @@
+package com.krestfield.ezsign.net;
+
+import com.krestfield.ezsign.KEzSignConnectException;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * KMuxPool
+ *
+ * A small fixed set of multiplexed connections to one server.  Each request is sent on the open
+ * connection with the fewest requests in flight, so many requests are pipelined over a few sockets.
+ * Connections that fail are re-opened when next needed.
+ *
+ * If the server responds without correlation IDs (the v1 format), or repeatedly closes the connection, before any v2 response
+ * has been received the pool reports that multiplexing is not supported so the client can fall back
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KMuxPool
+{
+    // If this many connections are closed by the server before any v2 response is received,
+    // the server is taken as not supporting the v2 framing
+    final int MAX_FAILURES_BEFORE_FALLBACK = 3;
+
+    private final String m_host;
+    private final int m_port;
+    private final KConnector m_connector;
+    private final KFraming m_framing;
+    private final AtomicReferenceArray<KMuxConnection> m_connections;
+    private final ReentrantLock m_connectLock = new ReentrantLock();
+    private final AtomicLong m_nextCorrelationId = new AtomicLong();
+
+    private volatile boolean m_supported = true;
+    private volatile boolean m_v2Confirmed = false;
+    private final AtomicLong m_failuresBeforeConfirmed = new AtomicLong();
+
+    private final AtomicLong m_sent = new AtomicLong();
+    private final AtomicLong m_connectionsOpened = new AtomicLong();
+
+    /**
+     * Constructor.  Connections are opened when first needed
+     *
+     * @param host The host to connect to
+     * @param port The port to connect to
+     * @param connector Opens the connections
+     * @param framing How messages are delimited.  Each message is sent with a correlation ID
+     * @param numConnections The number of connections to spread requests over
+     */
+    public KMuxPool(String host, int port, KConnector connector, KFraming framing, int numConnections)
+    {
+        m_host = host;
+        m_port = port;
+        m_connector = connector;
+        m_framing = framing;
+        m_connections = new AtomicReferenceArray<KMuxConnection>(numConnections);
+    }
+
+    /**
+     * Returns true if this pool holds connections to the given server
+     *
+     * @param host The host
+     * @param port The port
+     * @return True if the pool is for this host and port
+     */
+    public boolean isFor(String host, int port)
+    {
+        return m_port == port && m_host.equals(host);
+    }
+
+    /**
+     *
+     * @return The host the connections are to
+     */
+    public String getHost()
+    {
+        return m_host;
+    }
+
+    /**
+     *
+     * @return The port the connections are to
+     */
+    public int getPort()
+    {
+        return m_port;
+    }
+
+    /**
+     * Sends a message on the least busy connection
+     *
+     * @param message The message
+     * @return The request, to wait for the response on
+     * @throws KEzSignConnectException If no connection could be opened
+     */
+    public KMuxRequest send(byte[] message) throws KEzSignConnectException
+    {
+        KMuxConnection conn = choose();
+        m_sent.incrementAndGet();
+        return conn.send(m_nextCorrelationId.incrementAndGet(), message);
+    }
+
+    /**
+     * Opens any connections that are missing or have failed, then picks the one with the fewest requests in flight
+     *
+     * @return The connection to use
+     * @throws KEzSignConnectException If no connection is open and a new one could not be opened
+     */
+    private KMuxConnection choose() throws KEzSignConnectException
+    {
+        KEzSignConnectException connectError = null;
+        KMuxConnection best = null;
+
+        for (int i = 0; i < m_connections.length(); i++)
+        {
+            KMuxConnection conn = m_connections.get(i);
+            if (conn == null || !conn.isOpen())
+            {
+                try
+                {
+                    conn = open(i);
+                }
+                catch (KEzSignConnectException e)
+                {
+                    connectError = e;
+                    continue;
+                }
+            }
+
+            if (best == null || conn.getInFlight() < best.getInFlight())
+                best = conn;
+        }
+
+        if (best == null)
+            throw connectError;
+
+        return best;
+    }
+
+    /**
+     * Opens the connection in the given slot, unless another thread already has
+     *
+     * @param slot The slot
+     * @return The open connection
+     * @throws KEzSignConnectException If unable to connect
+     */
+    private KMuxConnection open(int slot) throws KEzSignConnectException
+    {
+        m_connectLock.lock();
+        try
+        {
+            KMuxConnection conn = m_connections.get(slot);
+            if (conn != null && conn.isOpen())
+                return conn;
+
+            try
+            {
+                conn = new KMuxConnection(this, m_connector.connect(m_host, m_port), m_framing);
+            }
+            catch (IOException e)
+            {
+                throw new KEzSignConnectException("There was an error opening a connection to the EzSign server. " + e.getMessage());
+            }
+            m_connections.set(slot, conn);
+            m_connectionsOpened.incrementAndGet();
+
+            return conn;
+        }
+        finally
+        {
+            m_connectLock.unlock();
+        }
+    }
+
+    /**
+     * Called by a connection when a response in the v2 format is received
+     */
+    void recordV2Response()
+    {
+        if (!m_v2Confirmed)
+            m_v2Confirmed = true;
+    }
+
+    /**
+     * Called by a connection when a response is not in the v2 format
+     */
+    void recordProtocolMismatch()
+    {
+        if (!m_v2Confirmed)
+            m_supported = false;
+    }
+
+    /**
+     * Called by a connection when it fails
+     */
+    void recordConnectionFailure()
+    {
+        if (!m_v2Confirmed && m_failuresBeforeConfirmed.incrementAndGet() >= MAX_FAILURES_BEFORE_FALLBACK)
+            m_supported = false;
+    }
+
+    /**
+     *
+     * @return False if the server has been found not to support the v2 framing
+     */
+    public boolean isSupported()
+    {
+        return m_supported;
+    }
+
+    /**
+     * Closes all connections.  Requests in flight fail
+     */
+    public void close()
+    {
+        for (int i = 0; i < m_connections.length(); i++)
+        {
+            KMuxConnection conn = m_connections.getAndSet(i, null);
+            if (conn != null)
+                conn.close();
+        }
+    }
+
+    /**
+     *
+     * @return The number of requests sent
+     */
+    public long getSent()
+    {
+        return m_sent.get();
+    }
+
+    /**
+     *
+     * @return The number of connections opened, including re-opened after failure
+     */
+    public long getConnectionsOpened()
+    {
+        return m_connectionsOpened.get();
+    }
+
+    /**
+     *
+     * @return The number of requests currently waiting for a response, over all connections
+     */
+    public int getInFlight()
+    {
+        int inFlight = 0;
+        for (int i = 0; i < m_connections.length(); i++)
+        {
+            KMuxConnection conn = m_connections.get(i);
+            if (conn != null)
+                inFlight += conn.getInFlight();
+        }
+        return inFlight;
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
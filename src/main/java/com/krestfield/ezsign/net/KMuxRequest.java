@@ -0,0 +1,101 @@
+package com.krestfield.ezsign.net;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * KMuxRequest
+ *
+ * A request sent on a multiplexed connection that is waiting for its response
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KMuxRequest implements Closeable
+{
+    private final KMuxConnection m_connection;
+    private final long m_correlationId;
+    private final CompletableFuture<byte[]> m_response;
+
+    KMuxRequest(KMuxConnection connection, long correlationId, CompletableFuture<byte[]> response)
+    {
+        m_connection = connection;
+        m_correlationId = correlationId;
+        m_response = response;
+    }
+
+    /**
+     * Waits for the response
+     *
+     * @param timeoutMs The max time to wait
+     * @return The response message
+     * @throws IOException If the connection failed or no response arrived in time
+     */
+    public byte[] await(int timeoutMs) throws IOException
+    {
+        try
+        {
+            return m_response.get(timeoutMs, TimeUnit.MILLISECONDS);
+        }
+        catch (TimeoutException e)
+        {
+            abandon();
+            throw new SocketTimeoutException("No response was received from the EzSign server within " + timeoutMs + "ms");
+        }
+        catch (InterruptedException e)
+        {
+            abandon();
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for the response from the EzSign server");
+        }
+        catch (ExecutionException e)
+        {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Stops waiting for the response.  If it does arrive it is discarded
+     */
+    public void abandon()
+    {
+        m_connection.abandon(m_correlationId);
+    }
+
+    /**
+     * Cancels the request.  A thread waiting in await fails straight away and the response, if it does
+     * arrive, is discarded.  The connection is left open for the other requests on it
+     */
+    public void close()
+    {
+        m_response.completeExceptionally(new InterruptedIOException("The request to the EzSign server was cancelled"));
+        abandon();
+    }
+
+    /**
+     *
+     * @return The future that completes with the response message
+     */
+    public CompletableFuture<byte[]> getResponse()
+    {
+        return m_response;
+    }
+
+    /**
+     *
+     * @return The correlation ID sent with the request
+     */
+    public long getCorrelationId()
+    {
+        return m_correlationId;
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,463 @@
+package com.krestfield.ezsign.net;
+
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLEngineResult;
+import javax.net.ssl.SSLException;
+import javax.net.ssl.SSLSession;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * KNioExchange
+ *
+ * One request/response on its own non-blocking connection.  Driven entirely by the I/O thread of a KNioLoop:
+ * connect, TLS handshake (if TLS is in use), write the request, read until a complete response frame
+ * has arrived, then close.  No state is touched by any other thread once the exchange has been submitted
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+class KNioExchange
+{
+    final static int INITIAL_READ_BUFFER = 16384;
+
+    // Room for the framing around a message, e.g. the binary header or the v2 prefix and line end
+    final static int MAX_FRAME_OVERHEAD = 64;
+
+    private static final ByteBuffer EMPTY = ByteBuffer.allocate(0);
+
+    private final KNioTransport m_transport;
+    private final InetSocketAddress m_address;
+    private final ByteBuffer m_appOut;
+    private final CompletableFuture<byte[]> m_future;
+
+    private Selector m_selector;
+    private SocketChannel m_channel;
+    private SelectionKey m_key;
+    private boolean m_connected = false;
+    private long m_deadline;
+    private final long m_timeoutMs;
+    private final int m_readTimeoutMs;
+    private final long m_expiresAt;
+    private boolean m_done = false;
+
+    // The decrypted (or plain) data received
+    private ByteBuffer m_appIn;
+
+    // TLS only
+    private SSLEngine m_engine;
+    private ByteBuffer m_netIn;
+    private ByteBuffer m_netOut;
+    private long m_handshakeStart;
+    private boolean m_handshakeRecorded = false;
+
+    /**
+     * Constructor
+     *
+     * @param transport The transport
+     * @param address The resolved server address
+     * @param framedMessage The message with its framing
+     * @param future Completed with the response message, or null if the server closed the connection without one
+     * @param timeoutMs The max time for the whole exchange, 0 for no limit
+     * @param readTimeoutMs The max time to wait for the response once connected
+     */
+    KNioExchange(KNioTransport transport, InetSocketAddress address, byte[] framedMessage, CompletableFuture<byte[]> future,
+                 long timeoutMs, int readTimeoutMs)
+    {
+        m_transport = transport;
+        m_address = address;
+        m_appOut = ByteBuffer.wrap(framedMessage);
+        m_future = future;
+        m_timeoutMs = timeoutMs;
+        m_readTimeoutMs = readTimeoutMs;
+        m_expiresAt = System.nanoTime() + timeoutMs * 1000000L;
+    }
+
+    /**
+     * Opens the channel and starts the connect.  Called on the I/O thread
+     *
+     * @param selector The selector of the I/O thread
+     */
+    void start(Selector selector)
+    {
+        m_selector = selector;
+        m_deadline = System.nanoTime() + m_transport.getConnectTimeoutMs() * 1000000L;
+        try
+        {
+            m_channel = SocketChannel.open();
+            m_channel.configureBlocking(false);
+            m_channel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            m_channel.setOption(StandardSocketOptions.SO_LINGER, 0);
+
+            if (m_channel.connect(m_address))
+                onConnected();
+            else
+                m_key = m_channel.register(selector, SelectionKey.OP_CONNECT, this);
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+        catch (RuntimeException e)
+        {
+            fail(new IOException(e));
+        }
+    }
+
+    /**
+     * Called on the I/O thread when the channel is ready
+     *
+     * @param key The selected key
+     */
+    void handle(SelectionKey key)
+    {
+        try
+        {
+            if (!m_connected)
+            {
+                if (key.isConnectable() && m_channel.finishConnect())
+                    onConnected();
+            }
+            else
+            {
+                progress();
+            }
+        }
+        catch (IOException e)
+        {
+            fail(e);
+        }
+        catch (RuntimeException e)
+        {
+            fail(new IOException(e));
+        }
+    }
+
+    /**
+     * Called on the I/O thread periodically.  Fails the exchange if it has passed its deadline, and closes
+     * the connection if the caller has cancelled it
+     *
+     * @param now The time from System.nanoTime
+     */
+    void checkTimeout(long now)
+    {
+        if (m_future.isDone())
+        {
+            fail(new InterruptedIOException("The exchange was cancelled"));
+        }
+        else if (m_timeoutMs > 0 && now - m_expiresAt > 0)
+        {
+            fail(new SocketTimeoutException("No response was received from the EzSign server within the call's " +
+                    m_timeoutMs + "ms"));
+            m_transport.recordTimeout();
+        }
+        else if (now - m_deadline > 0)
+        {
+            if (m_connected)
+                fail(new SocketTimeoutException("No response was received from the EzSign server within " +
+                        m_readTimeoutMs + "ms"));
+            else
+                fail(new SocketTimeoutException("Unable to connect to the EzSign server within " +
+                        m_transport.getConnectTimeoutMs() + "ms"));
+            m_transport.recordTimeout();
+        }
+    }
+
+    private void onConnected() throws IOException
+    {
+        m_connected = true;
+        m_deadline = System.nanoTime() + m_readTimeoutMs * 1000000L;
+        if (m_key == null)
+            m_key = m_channel.register(m_selector, 0, this);
+
+        KTlsContext tlsContext = m_transport.getTlsContext();
+        if (tlsContext != null)
+        {
+            m_engine = tlsContext.createEngine(m_address.getHostString(), m_address.getPort());
+            SSLSession session = m_engine.getSession();
+            m_netIn = ByteBuffer.allocate(session.getPacketBufferSize());
+            m_netOut = ByteBuffer.allocate(session.getPacketBufferSize());
+            m_appIn = ByteBuffer.allocate(Math.max(INITIAL_READ_BUFFER, session.getApplicationBufferSize()));
+            m_handshakeStart = System.currentTimeMillis();
+            m_engine.beginHandshake();
+        }
+        else
+        {
+            m_appIn = ByteBuffer.allocate(INITIAL_READ_BUFFER);
+        }
+
+        progress();
+    }
+
+    private void progress() throws IOException
+    {
+        if (m_engine == null)
+            progressPlain();
+        else
+            progressTls();
+    }
+
+    /**
+     * Writes what it can of the request, then reads what it can of the response
+     */
+    private void progressPlain() throws IOException
+    {
+        if (m_appOut.hasRemaining())
+        {
+            m_channel.write(m_appOut);
+            if (m_appOut.hasRemaining())
+            {
+                m_key.interestOps(SelectionKey.OP_WRITE);
+                return;
+            }
+        }
+
+        while (true)
+        {
+            if (!m_appIn.hasRemaining())
+                growAppIn(m_appIn.capacity());
+
+            int read = m_channel.read(m_appIn);
+            if (read < 0)
+            {
+                endOfStream();
+                return;
+            }
+            if (read == 0)
+                break;
+        }
+
+        if (!checkComplete())
+            m_key.interestOps(SelectionKey.OP_READ);
+    }
+
+    /**
+     * Drives the engine until it needs the channel to become readable or writable, or the response is complete
+     */
+    private void progressTls() throws IOException
+    {
+        while (!m_done)
+        {
+            // Anything already wrapped goes first
+            if (m_netOut.position() > 0)
+            {
+                m_netOut.flip();
+                m_channel.write(m_netOut);
+                m_netOut.compact();
+                if (m_netOut.position() > 0)
+                {
+                    m_key.interestOps(SelectionKey.OP_WRITE);
+                    return;
+                }
+            }
+
+            switch (m_engine.getHandshakeStatus())
+            {
+                case NEED_TASK:
+                    Runnable task;
+                    while ((task = m_engine.getDelegatedTask()) != null)
+                        task.run();
+                    break;
+
+                case NEED_WRAP:
+                    wrap(EMPTY);
+                    break;
+
+                case NEED_UNWRAP:
+                    if (!unwrap())
+                        return;
+                    break;
+
+                default:
+                    if (!m_handshakeRecorded)
+                    {
+                        m_handshakeRecorded = true;
+                        m_transport.getTlsContext().recordHandshake(m_engine.getSession(), m_handshakeStart);
+                    }
+
+                    if (m_appOut.hasRemaining())
+                    {
+                        wrap(m_appOut);
+                        break;
+                    }
+
+                    if (checkComplete() || !unwrap())
+                        return;
+                    break;
+            }
+        }
+    }
+
+    private void wrap(ByteBuffer source) throws IOException
+    {
+        SSLEngineResult result = m_engine.wrap(source, m_netOut);
+        switch (result.getStatus())
+        {
+            case BUFFER_OVERFLOW:
+                m_netOut = grow(m_netOut, m_engine.getSession().getPacketBufferSize());
+                break;
+            case CLOSED:
+                throw new SSLException("The TLS connection to the EzSign server was closed");
+            default:
+                break;
+        }
+    }
+
+    /**
+     * Unwraps any buffered data, reading more from the channel if required
+     *
+     * @return True if progress was made, false if waiting for the channel to become readable (or complete)
+     */
+    private boolean unwrap() throws IOException
+    {
+        m_netIn.flip();
+        SSLEngineResult result = m_engine.unwrap(m_netIn, m_appIn);
+        m_netIn.compact();
+
+        switch (result.getStatus())
+        {
+            case OK:
+                if (result.bytesConsumed() > 0 || result.bytesProduced() > 0)
+                    return true;
+                break;
+            case BUFFER_OVERFLOW:
+                growAppIn(m_engine.getSession().getApplicationBufferSize());
+                return true;
+            case BUFFER_UNDERFLOW:
+                if (!m_netIn.hasRemaining())
+                    m_netIn = grow(m_netIn, m_engine.getSession().getPacketBufferSize());
+                break;
+            case CLOSED:
+                endOfStream();
+                return false;
+        }
+
+        int read = m_channel.read(m_netIn);
+        if (read < 0)
+        {
+            endOfStream();
+            return false;
+        }
+        if (read == 0)
+        {
+            m_key.interestOps(SelectionKey.OP_READ);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Completes the exchange if a whole response frame has been received
+     *
+     * @return True if complete
+     */
+    private boolean checkComplete() throws IOException
+    {
+        int frameLength = m_transport.getFraming().getFrameLength(m_appIn.array(), m_appIn.position());
+        if (frameLength < 0)
+            return false;
+
+        complete(decode(frameLength));
+        return true;
+    }
+
+    /**
+     * The server closed the connection.  As with the blocking transport, whatever was received is the response
+     * (or null if nothing was)
+     */
+    private void endOfStream() throws IOException
+    {
+        if (m_appIn.position() == 0)
+            complete(null);
+        else
+            complete(decode(m_appIn.position()));
+    }
+
+    private byte[] decode(int length) throws IOException
+    {
+        KFrameInputStream in = new KFrameInputStream(new ByteArrayInputStream(m_appIn.array(), 0, length));
+        KFrame frame = m_transport.getFraming().read(in);
+        return (frame == null) ? null : frame.getMessage();
+    }
+
+    /**
+     * Makes room in the response buffer.  It never needs to hold more than the longest frame the framing
+     * reads, and room for one more read to find out it is longer, so a longer response fails the exchange
+     *
+     * @param minFree The space needed
+     * @throws IOException If the response received so far is already longer than the longest frame
+     */
+    private void growAppIn(int minFree) throws IOException
+    {
+        long maxFrame = (long) m_transport.getFraming().getMaxMessageLength() + MAX_FRAME_OVERHEAD;
+        if (m_appIn.position() >= maxFrame)
+            throw new IOException("The response from the EzSign server is longer than the max of " +
+                    m_transport.getFraming().getMaxMessageLength() + " bytes");
+
+        long capacity = Math.min((long) m_appIn.capacity() + Math.max(minFree, m_appIn.capacity()), maxFrame + minFree);
+        ByteBuffer bigger = ByteBuffer.allocate((int) Math.min(capacity, Integer.MAX_VALUE - 8));
+        m_appIn.flip();
+        bigger.put(m_appIn);
+        m_appIn = bigger;
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int minIncrease)
+    {
+        ByteBuffer bigger = ByteBuffer.allocate(buffer.capacity() + Math.max(minIncrease, buffer.capacity()));
+        buffer.flip();
+        bigger.put(buffer);
+        return bigger;
+    }
+
+    private void complete(byte[] response)
+    {
+        if (m_done)
+            return;
+        m_done = true;
+        close();
+        m_future.complete(response);
+    }
+
+    /**
+     * Fails the exchange and closes the channel.  Called on the I/O thread
+     *
+     * @param cause The reason
+     */
+    void fail(IOException cause)
+    {
+        if (m_done)
+            return;
+        m_done = true;
+        close();
+        m_future.completeExceptionally(cause);
+    }
+
+    private void close()
+    {
+        if (m_key != null)
+            m_key.cancel();
+        if (m_channel != null)
+        {
+            try { m_channel.close(); } catch (Exception e) { }
+        }
+    }
+
+    /**
+     *
+     * @return True once the response has been received or the exchange has failed
+     */
+    boolean isDone()
+    {
+        return m_done;
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,179 @@
+package com.krestfield.ezsign.net;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * KNioLoop
+ *
+ * One I/O thread and its selector.  Exchanges are handed over through a queue and from then on are only
+ * touched by this thread, which drives every connect, handshake, write and read and applies the timeouts
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+class KNioLoop implements Runnable
+{
+    // How often exchanges are checked for having passed their deadline
+    final static int TIMEOUT_CHECK_INTERVAL_MS = 10;
+
+    private final Selector m_selector;
+    private final Queue<KNioExchange> m_submitted = new ConcurrentLinkedQueue<KNioExchange>();
+    private final Set<KNioExchange> m_active = new HashSet<KNioExchange>();
+    private final AtomicInteger m_inFlight = new AtomicInteger();
+    private final Thread m_thread;
+    private volatile boolean m_running = true;
+
+    /**
+     * Constructor.  Starts the I/O thread
+     *
+     * @param name The thread name
+     * @throws IOException If the selector cannot be opened
+     */
+    KNioLoop(String name) throws IOException
+    {
+        m_selector = Selector.open();
+        m_thread = new Thread(this, name);
+        m_thread.setDaemon(true);
+        m_thread.start();
+    }
+
+    /**
+     * Hands an exchange to the I/O thread.  May be called from any thread
+     *
+     * @param exchange The exchange
+     */
+    void submit(KNioExchange exchange)
+    {
+        m_inFlight.incrementAndGet();
+        m_submitted.add(exchange);
+        if (m_running)
+            m_selector.wakeup();
+        else
+            failSubmitted();
+    }
+
+    public void run()
+    {
+        long lastTimeoutCheck = System.nanoTime();
+        try
+        {
+            while (m_running)
+            {
+                m_selector.select(TIMEOUT_CHECK_INTERVAL_MS);
+
+                KNioExchange exchange;
+                while ((exchange = m_submitted.poll()) != null)
+                {
+                    // A failure starting one exchange fails only that exchange, not the thread
+                    try
+                    {
+                        exchange.start(m_selector);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        exchange.fail(new IOException(e));
+                    }
+                    track(exchange);
+                }
+
+                Iterator<SelectionKey> keys = m_selector.selectedKeys().iterator();
+                while (keys.hasNext())
+                {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    exchange = (KNioExchange) key.attachment();
+                    try
+                    {
+                        exchange.handle(key);
+                    }
+                    catch (RuntimeException e)
+                    {
+                        exchange.fail(new IOException(e));
+                    }
+                    if (exchange.isDone())
+                        untrack(exchange);
+                }
+
+                long now = System.nanoTime();
+                if ((now - lastTimeoutCheck) / 1000000 >= TIMEOUT_CHECK_INTERVAL_MS)
+                {
+                    lastTimeoutCheck = now;
+                    Iterator<KNioExchange> active = m_active.iterator();
+                    while (active.hasNext())
+                    {
+                        exchange = active.next();
+                        exchange.checkTimeout(now);
+                        if (exchange.isDone())
+                        {
+                            active.remove();
+                            m_inFlight.decrementAndGet();
+                        }
+                    }
+                }
+            }
+        }
+        catch (Exception e)
+        {
+            // Selector failure - nothing more can be done on this thread
+            m_running = false;
+        }
+
+        IOException closed = new IOException("The connection to the EzSign server has been closed");
+        for (KNioExchange exchange : m_active)
+            exchange.fail(closed);
+        m_active.clear();
+        failSubmitted();
+        try { m_selector.close(); } catch (Exception e) { }
+    }
+
+    private void track(KNioExchange exchange)
+    {
+        if (exchange.isDone())
+            m_inFlight.decrementAndGet();
+        else
+            m_active.add(exchange);
+    }
+
+    private void untrack(KNioExchange exchange)
+    {
+        if (m_active.remove(exchange))
+            m_inFlight.decrementAndGet();
+    }
+
+    private void failSubmitted()
+    {
+        KNioExchange exchange;
+        while ((exchange = m_submitted.poll()) != null)
+        {
+            exchange.fail(new IOException("The connection to the EzSign server has been closed"));
+            m_inFlight.decrementAndGet();
+        }
+    }
+
+    /**
+     * Stops the I/O thread.  Exchanges in progress fail
+     */
+    void close()
+    {
+        m_running = false;
+        m_selector.wakeup();
+    }
+
+    /**
+     *
+     * @return The number of exchanges submitted to this thread and not yet complete
+     */
+    int getInFlight()
+    {
+        return m_inFlight.get();
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
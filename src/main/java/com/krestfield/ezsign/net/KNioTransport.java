@@ -0,0 +1,333 @@
+package com.krestfield.ezsign.net;
+
+import com.krestfield.ezsign.utils.KThreads;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * KNioTransport
+ *
+ * A non-blocking transport.  Each message is sent on its own connection (as with the blocking transport) but
+ * all connects, TLS handshakes, writes and reads are driven by a small fixed set of I/O threads using
+ * SocketChannel and SSLEngine, so requests waiting for a response do not each hold a thread.
+ *
+ * Messages are spread over the I/O threads in turn.  The connect and read timeouts are applied by the
+ * I/O threads, so the future returned by send always completes.
+ *
+ * Host names are looked up on a separate thread, never the caller's or an I/O thread, and the address is kept
+ * for ADDRESS_TTL_MS.  After that it is still used while it is looked up again in the background, so only the
+ * first message to a host waits for DNS
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KNioTransport
+{
+    // How long a host's address is used before it is looked up again
+    final static long ADDRESS_TTL_MS = 30000;
+
+    private final KNioLoop[] m_loops;
+    private final AtomicInteger m_nextLoop = new AtomicInteger();
+    private final KFraming m_framing;
+    private final KTlsContext m_tlsContext;
+    private final int m_connectTimeoutMs;
+    private final int m_readTimeoutMs;
+
+    private final ExecutorService m_resolver = KThreads.newRequestExecutor("EzSignNioResolver-", false);
+    private final ConcurrentHashMap<String, ResolvedAddress> m_addresses = new ConcurrentHashMap<String, ResolvedAddress>();
+
+    private final AtomicLong m_sent = new AtomicLong();
+    private final AtomicLong m_timedOut = new AtomicLong();
+
+    /**
+     * Constructor.  Starts the I/O threads
+     *
+     * @param numIoThreads The number of I/O threads
+     * @param framing How messages are delimited
+     * @param tlsContext The TLS context or null if TLS is not in use
+     * @param connectTimeoutMs The max time to wait for the connection
+     * @param readTimeoutMs The max time to wait for the response once connected, including the TLS handshake
+     * @throws IOException If the selectors cannot be opened
+     */
+    public KNioTransport(int numIoThreads, KFraming framing, KTlsContext tlsContext, int connectTimeoutMs, int readTimeoutMs) throws IOException
+    {
+        m_framing = framing;
+        m_tlsContext = tlsContext;
+        m_connectTimeoutMs = connectTimeoutMs;
+        m_readTimeoutMs = readTimeoutMs;
+
+        m_loops = new KNioLoop[numIoThreads];
+        try
+        {
+            for (int i = 0; i < numIoThreads; i++)
+                m_loops[i] = new KNioLoop("EzSignNioLoop-" + i);
+        }
+        catch (IOException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    /**
+     * Sends a message on a new connection.  Returns immediately
+     *
+     * @param host The host
+     * @param port The port
+     * @param message The message, without framing
+     * @return Completes with the response (null if the server closed the connection without responding)
+     *         or exceptionally with an IOException
+     */
+    public CompletableFuture<byte[]> send(String host, int port, byte[] message)
+    {
+        return send(host, port, message, 0);
+    }
+
+    /**
+     * Sends a message on a new connection, failing it if no response has been received within the given time
+     * (as well as the connect and read timeouts).  Returns immediately.  If the returned future is completed
+     * by the caller, e.g. to cancel the message, the connection is closed
+     *
+     * @param host The host
+     * @param port The port
+     * @param message The message, without framing
+     * @param timeoutMs The max time for the whole exchange, 0 for no limit other than the connect and read timeouts
+     * @return Completes with the response (null if the server closed the connection without responding)
+     *         or exceptionally with an IOException
+     */
+    public CompletableFuture<byte[]> send(String host, int port, byte[] message, long timeoutMs)
+    {
+        return send(host, port, message, timeoutMs, m_readTimeoutMs);
+    }
+
+    /**
+     * As send, with a read timeout for this message in place of the transport's
+     *
+     * @param host The host
+     * @param port The port
+     * @param message The message, without framing
+     * @param timeoutMs The max time for the whole exchange, 0 for no limit other than the connect and read timeouts
+     * @param readTimeoutMs The max time to wait for the response once connected, including the TLS handshake
+     * @return Completes with the response (null if the server closed the connection without responding)
+     *         or exceptionally with an IOException
+     */
+    public CompletableFuture<byte[]> send(final String host, final int port, byte[] message, final long timeoutMs,
+                                          final int readTimeoutMs)
+    {
+        final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+
+        ByteArrayOutputStream framed = new ByteArrayOutputStream(message.length + 32);
+        try
+        {
+            m_framing.write(framed, KFraming.NO_CORRELATION_ID, message);
+        }
+        catch (IOException e)
+        {
+            future.completeExceptionally(e);
+            return future;
+        }
+
+        final byte[] framedMessage = framed.toByteArray();
+
+        ResolvedAddress resolved = m_addresses.get(host);
+        if (resolved != null)
+        {
+            if (resolved.isExpired())
+                refresh(host, resolved);
+            submit(new InetSocketAddress(resolved.m_address, port), framedMessage, future, timeoutMs, readTimeoutMs);
+            return future;
+        }
+
+        try
+        {
+            m_resolver.execute(new Runnable()
+            {
+                public void run()
+                {
+                    InetAddress address;
+                    try
+                    {
+                        address = resolve(host);
+                    }
+                    catch (UnknownHostException e)
+                    {
+                        future.completeExceptionally(e);
+                        return;
+                    }
+
+                    // Not sent if the caller has given up in the meantime
+                    if (!future.isDone())
+                        submit(new InetSocketAddress(address, port), framedMessage, future, timeoutMs, readTimeoutMs);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            future.completeExceptionally(new IOException("The connection to the EzSign server has been closed"));
+        }
+
+        return future;
+    }
+
+    private void submit(InetSocketAddress address, byte[] framedMessage, CompletableFuture<byte[]> future, long timeoutMs,
+                        int readTimeoutMs)
+    {
+        m_sent.incrementAndGet();
+        KNioLoop loop = m_loops[(m_nextLoop.getAndIncrement() & Integer.MAX_VALUE) % m_loops.length];
+        loop.submit(new KNioExchange(this, address, framedMessage, future, timeoutMs, readTimeoutMs));
+    }
+
+    /**
+     * Looks up a host's address and keeps it.  Called on the resolver thread
+     *
+     * @param host The host name or address
+     * @return The address
+     * @throws UnknownHostException If the host cannot be found
+     */
+    private InetAddress resolve(String host) throws UnknownHostException
+    {
+        // Kept with the host name as given, which the TLS engine uses for the server name and session cache
+        InetAddress address = InetAddress.getByAddress(host, InetAddress.getByName(host).getAddress());
+        m_addresses.put(host, new ResolvedAddress(address));
+        return address;
+    }
+
+    /**
+     * Looks up an expired address again in the background.  It is used in the meantime, and still used if the
+     * lookup fails
+     *
+     * @param host The host name
+     * @param resolved The expired address
+     */
+    private void refresh(final String host, final ResolvedAddress resolved)
+    {
+        if (!resolved.m_refreshing.compareAndSet(false, true))
+            return;
+
+        try
+        {
+            m_resolver.execute(new Runnable()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        resolve(host);
+                    }
+                    catch (UnknownHostException e)
+                    {
+                        resolved.m_refreshing.set(false);
+                    }
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // The transport has been closed
+        }
+    }
+
+    /**
+     * Stops the I/O threads.  Messages in progress fail
+     */
+    public void close()
+    {
+        m_resolver.shutdownNow();
+        for (int i = 0; i < m_loops.length; i++)
+        {
+            if (m_loops[i] != null)
+                m_loops[i].close();
+        }
+    }
+
+    KFraming getFraming()
+    {
+        return m_framing;
+    }
+
+    KTlsContext getTlsContext()
+    {
+        return m_tlsContext;
+    }
+
+    int getConnectTimeoutMs()
+    {
+        return m_connectTimeoutMs;
+    }
+
+    void recordTimeout()
+    {
+        m_timedOut.incrementAndGet();
+    }
+
+    /**
+     *
+     * @return The number of I/O threads
+     */
+    public int getNumIoThreads()
+    {
+        return m_loops.length;
+    }
+
+    /**
+     *
+     * @return The number of messages sent
+     */
+    public long getSent()
+    {
+        return m_sent.get();
+    }
+
+    /**
+     *
+     * @return The number of messages that failed because the connect or read timeout passed
+     */
+    public long getTimedOut()
+    {
+        return m_timedOut.get();
+    }
+
+    /**
+     *
+     * @return The number of messages waiting for a response, over all I/O threads
+     */
+    public int getInFlight()
+    {
+        int inFlight = 0;
+        for (int i = 0; i < m_loops.length; i++)
+            inFlight += m_loops[i].getInFlight();
+        return inFlight;
+    }
+
+    /**
+     * A host's address and when it was looked up
+     */
+    private static class ResolvedAddress
+    {
+        private final InetAddress m_address;
+        private final long m_resolvedAt = System.nanoTime();
+        private final AtomicBoolean m_refreshing = new AtomicBoolean();
+
+        ResolvedAddress(InetAddress address)
+        {
+            m_address = address;
+        }
+
+        boolean isExpired()
+        {
+            return (System.nanoTime() - m_resolvedAt) / 1000000 >= ADDRESS_TTL_MS;
+        }
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,127 @@
+package com.krestfield.ezsign.net;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * KOutlierDetector
+ *
+ * Periodically compares the average response time of each endpoint with the others and opens the circuit of
+ * any that is much slower, so a degraded server that still responds (and so never trips its circuit breaker
+ * on failures) stops receiving requests.  It is then brought back through the circuit breaker's trial request
+ * and ramp up.  No more than half of the endpoints are ever open at once
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KOutlierDetector
+{
+    // An endpoint must be at least this much slower than the others to be ejected, so that endpoints that
+    // are all fast are not ejected over small differences
+    final static long MIN_LATENCY_DIFF_MICROS = 1000;
+
+    private final double m_latencyFactor;
+    private final long m_intervalNs;
+    private final int m_minRequests;
+
+    private final AtomicLong m_lastCheck = new AtomicLong(System.nanoTime());
+    private final AtomicLong m_ejections = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param latencyFactor An endpoint is ejected if its average response time is more than this many times
+     *                      the median of the other endpoints
+     * @param intervalMs How often the endpoints are compared
+     * @param minRequests The min number of requests an endpoint must have received since the last check to be ejected
+     */
+    public KOutlierDetector(double latencyFactor, int intervalMs, int minRequests)
+    {
+        m_latencyFactor = latencyFactor;
+        m_intervalNs = intervalMs * 1000000L;
+        m_minRequests = minRequests;
+    }
+
+    /**
+     * Compares the endpoints if the interval has passed since the last check.  Called on each request, so
+     * only one caller does the check
+     *
+     * @param endpoints The endpoints, each with a circuit breaker
+     * @param now The time from System.nanoTime
+     */
+    public void check(KEndpoint[] endpoints, long now)
+    {
+        long lastCheck = m_lastCheck.get();
+        if (now - lastCheck < m_intervalNs || !m_lastCheck.compareAndSet(lastCheck, now))
+            return;
+
+        int numEndpoints = endpoints.length;
+        long[] latencies = new long[numEndpoints];
+        boolean[] candidates = new boolean[numEndpoints];
+        int numClosed = 0;
+        for (int i = 0; i < numEndpoints; i++)
+        {
+            KEndpoint endpoint = endpoints[i];
+            long requests = endpoint.getRequests();
+            long recentRequests = requests - endpoint.m_requestsAtOutlierCheck;
+            endpoint.m_requestsAtOutlierCheck = requests;
+
+            KCircuitBreaker circuitBreaker = endpoint.getCircuitBreaker();
+            latencies[i] = -1;
+            if (circuitBreaker != null && circuitBreaker.getState() == KCircuitBreaker.CLOSED)
+            {
+                numClosed++;
+                latencies[i] = endpoint.getAverageLatencyMicros();
+                candidates[i] = recentRequests >= m_minRequests;
+            }
+        }
+
+        int maxEjections = numClosed - (numEndpoints + 1) / 2;
+        for (int i = 0; i < numEndpoints && maxEjections > 0; i++)
+        {
+            if (!candidates[i])
+                continue;
+
+            long median = medianOfOthers(latencies, i);
+            if (median >= 0 && latencies[i] > median * m_latencyFactor && latencies[i] - median > MIN_LATENCY_DIFF_MICROS)
+            {
+                endpoints[i].getCircuitBreaker().trip(now);
+                latencies[i] = -1;
+                m_ejections.incrementAndGet();
+                maxEjections--;
+            }
+        }
+    }
+
+    /**
+     *
+     * @param latencies The latencies, -1 for endpoints not to be compared with
+     * @param exclude The endpoint being checked
+     * @return The median latency of the others, or -1 if there are none
+     */
+    private static long medianOfOthers(long[] latencies, int exclude)
+    {
+        long[] others = new long[latencies.length];
+        int count = 0;
+        for (int i = 0; i < latencies.length; i++)
+        {
+            if (i != exclude && latencies[i] >= 0)
+                others[count++] = latencies[i];
+        }
+        if (count == 0)
+            return -1;
+
+        Arrays.sort(others, 0, count);
+        return others[count / 2];
+    }
+
+    /**
+     *
+     * @return The number of times an endpoint has been ejected for being slow
+     */
+    public long getEjections()
+    {
+        return m_ejections.get();
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,32 @@
+package com.krestfield.ezsign.net;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * KPowerOfTwoBalancer
+ *
+ * Picks two endpoints at random and sends the request to the one with the lower cost (requests in flight
+ * multiplied by average response time - see KEndpoint.getCost).  This avoids the herding of always picking
+ * the single best endpoint, where every caller sees the same statistics and piles onto it, while still
+ * steering load away from busy and slow endpoints
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KPowerOfTwoBalancer implements KLoadBalancer
+{
+    public int select(KEndpoint[] endpoints)
+    {
+        if (endpoints.length == 1)
+            return 0;
+
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        int first = random.nextInt(endpoints.length);
+        int second = random.nextInt(endpoints.length - 1);
+        if (second >= first)
+            second++;
+
+        return (endpoints[second].getCost() < endpoints[first].getCost()) ? second : first;
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
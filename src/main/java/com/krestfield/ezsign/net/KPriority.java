@@ -0,0 +1,100 @@
+package com.krestfield.ezsign.net;
+
+/**
+ * KPriority
+ *
+ * The priority of a call, which decides the order calls waiting for a slot under the client's concurrency
+ * limit are sent in.  High priority calls are sent before normal and low ones, but a lower priority call that
+ * has been passed over many times is sent next, so a lane is never starved.
+ *
+ * A client may set a default priority for each channel.  A priority applies to the calls made by a thread
+ * between enter and close, in place of the channel's:
+ *
+ *   try (KPriority priority = KPriority.enter(KPriority.LOW))
+ *   {
+ *       client.verifySignature(...);
+ *   }
+ *
+ * The asynchronous methods use the priority of the thread that calls them
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KPriority implements AutoCloseable
+{
+    public final static int HIGH = 0;
+    public final static int NORMAL = 1;
+    public final static int LOW = 2;
+
+    // The number of priorities, each with its own lane
+    final static int LEVELS = 3;
+
+    private static final ThreadLocal<KPriority> CURRENT = new ThreadLocal<KPriority>();
+
+    private final int m_level;
+
+    // The priority this replaced on the thread
+    private KPriority m_previous = null;
+
+    private KPriority(int level)
+    {
+        m_level = level;
+    }
+
+    /**
+     * Sets the priority of the calls made by this thread until it is closed
+     *
+     * @param level HIGH, NORMAL or LOW
+     * @return The priority
+     */
+    public static KPriority enter(int level)
+    {
+        KPriority priority = new KPriority(toLane(level));
+        priority.m_previous = CURRENT.get();
+        CURRENT.set(priority);
+        return priority;
+    }
+
+    /**
+     *
+     * @return The priority entered by this thread, or null if none
+     */
+    public static KPriority current()
+    {
+        return CURRENT.get();
+    }
+
+    /**
+     * Stops the priority applying to this thread's calls, restoring any it replaced
+     */
+    public void close()
+    {
+        if (CURRENT.get() == this)
+        {
+            if (m_previous != null)
+                CURRENT.set(m_previous);
+            else
+                CURRENT.remove();
+        }
+    }
+
+    /**
+     *
+     * @return HIGH, NORMAL or LOW
+     */
+    public int getLevel()
+    {
+        return m_level;
+    }
+
+    /**
+     *
+     * @param level A priority
+     * @return The lane for it.  A value outside HIGH to LOW is taken as the nearest
+     */
+    static int toLane(int level)
+    {
+        return Math.max(HIGH, Math.min(level, LOW));
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
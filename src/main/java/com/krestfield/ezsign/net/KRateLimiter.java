@@ -0,0 +1,140 @@
+package com.krestfield.ezsign.net;
+
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * KRateLimiter
+ *
+ * Admission control for the requests sent by a client: a token bucket for all requests and one for each
+ * channel that has its own limit.  A request must get a token from both (if set) before it is sent, so that
+ * the client cannot drive the server beyond the load it handles efficiently
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KRateLimiter
+{
+    private volatile KTokenBucket m_globalLimit = null;
+    private final ConcurrentHashMap<String, KTokenBucket> m_channelLimits = new ConcurrentHashMap<String, KTokenBucket>();
+
+    /**
+     * Sets the limit for all requests
+     *
+     * @param limit The token bucket, or null for no limit
+     */
+    public void setGlobalLimit(KTokenBucket limit)
+    {
+        m_globalLimit = limit;
+    }
+
+    /**
+     * Sets the limit for the requests to one channel, as well as the limit for all requests
+     *
+     * @param channelName The channel name
+     * @param limit The token bucket, or null for no limit
+     */
+    public void setChannelLimit(String channelName, KTokenBucket limit)
+    {
+        if (limit == null)
+            m_channelLimits.remove(channelName);
+        else
+            m_channelLimits.put(channelName, limit);
+    }
+
+    /**
+     * Takes a token for a request from the channel's limit and the global limit
+     *
+     * @param channelName The request's channel
+     * @param maxWaitNs A further limit on the wait, e.g. the time left before the call's deadline
+     * @return The tokens taken, or null if the request is rejected
+     */
+    public Reservation reserve(String channelName, long maxWaitNs)
+    {
+        KTokenBucket channelLimit = m_channelLimits.get(channelName);
+        long channelWaitNs = 0;
+        if (channelLimit != null)
+        {
+            channelWaitNs = channelLimit.reserve(maxWaitNs);
+            if (channelWaitNs < 0)
+                return null;
+        }
+
+        KTokenBucket globalLimit = m_globalLimit;
+        long globalWaitNs = 0;
+        if (globalLimit != null)
+        {
+            globalWaitNs = globalLimit.reserve(maxWaitNs);
+            if (globalWaitNs < 0)
+            {
+                // The channel's token is not used
+                if (channelLimit != null)
+                    channelLimit.cancel(channelWaitNs);
+                return null;
+            }
+        }
+
+        return new Reservation(channelLimit, channelWaitNs, globalLimit, globalWaitNs);
+    }
+
+    /**
+     * Returns the tokens taken by reserve to the channel's limit and the global limit, when the request is not
+     * sent after all, e.g. as its call was cancelled while it waited its turn
+     *
+     * @param reservation The tokens returned by reserve
+     */
+    public void cancel(Reservation reservation)
+    {
+        if (reservation.m_channelLimit != null)
+            reservation.m_channelLimit.cancel(reservation.m_channelWaitNs);
+        if (reservation.m_globalLimit != null)
+            reservation.m_globalLimit.cancel(reservation.m_globalWaitNs);
+    }
+
+    /**
+     *
+     * @return The limit for all requests, or null if none
+     */
+    public KTokenBucket getGlobalLimit()
+    {
+        return m_globalLimit;
+    }
+
+    /**
+     *
+     * @param channelName The channel name
+     * @return The channel's limit, or null if none
+     */
+    public KTokenBucket getChannelLimit(String channelName)
+    {
+        return m_channelLimits.get(channelName);
+    }
+
+    /**
+     * The tokens taken for a request, and the wait for each
+     */
+    public static class Reservation
+    {
+        final KTokenBucket m_channelLimit;
+        final long m_channelWaitNs;
+        final KTokenBucket m_globalLimit;
+        final long m_globalWaitNs;
+
+        Reservation(KTokenBucket channelLimit, long channelWaitNs, KTokenBucket globalLimit, long globalWaitNs)
+        {
+            m_channelLimit = channelLimit;
+            m_channelWaitNs = channelWaitNs;
+            m_globalLimit = globalLimit;
+            m_globalWaitNs = globalWaitNs;
+        }
+
+        /**
+         *
+         * @return The time in nanoseconds the request must wait before it is sent, 0 to send now
+         */
+        public long getWaitNs()
+        {
+            return Math.max(m_channelWaitNs, m_globalWaitNs);
+        }
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,157 @@
+package com.krestfield.ezsign.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * KRetryBudget
+ *
+ * Limits the retries made by one client to a percentage of its requests, so that when a server is overloaded
+ * and many requests fail the retries cannot multiply the load on it.  Each request earns a fraction of a
+ * retry and each retry spends a whole one.  So that a client sending few requests can still retry, a minimum
+ * number of retries per second is always allowed.  Also provides the number of retries and give ups
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KRetryBudget
+{
+    // The most unspent retries that can build up from requests, so a burst of failures after a quiet
+    // spell is limited
+    final static int MAX_BALANCE = 10;
+
+    // The budget is held in millionths of a retry
+    final static long CREDIT_PER_RETRY = 1000000L;
+
+    private final long m_creditPerRequest;
+    private final long m_minCreditPerSec;
+
+    private final AtomicLong m_balance = new AtomicLong();
+
+    // The retries allowed per second regardless of requests.  Refilled with the time passed, under the lock
+    private final ReentrantLock m_lock = new ReentrantLock();
+    private long m_reserve;
+    private long m_reserveRefilledAt = System.nanoTime();
+
+    private final AtomicLong m_requests = new AtomicLong();
+    private final AtomicLong m_retries = new AtomicLong();
+    private final AtomicLong m_giveUps = new AtomicLong();
+    private final AtomicLong m_overBudget = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param retryPercent The most retries that may be made, as a percentage of requests, e.g. 20
+     * @param minRetriesPerSec The retries allowed per second however few requests are sent, e.g. 10
+     */
+    public KRetryBudget(double retryPercent, int minRetriesPerSec)
+    {
+        m_creditPerRequest = (long) (retryPercent / 100 * CREDIT_PER_RETRY);
+        m_minCreditPerSec = minRetriesPerSec * CREDIT_PER_RETRY;
+        m_reserve = m_minCreditPerSec;
+    }
+
+    /**
+     * Called as each request is sent.  Adds to the budget
+     */
+    public void onRequest()
+    {
+        m_requests.incrementAndGet();
+        while (true)
+        {
+            long balance = m_balance.get();
+            long updated = Math.min(balance + m_creditPerRequest, MAX_BALANCE * CREDIT_PER_RETRY);
+            if (updated == balance || m_balance.compareAndSet(balance, updated))
+                return;
+        }
+    }
+
+    /**
+     * Spends one retry from the budget.  If the budget is used up, the request is given up
+     *
+     * @return True if the retry may be made
+     */
+    public boolean tryRetry()
+    {
+        while (true)
+        {
+            long balance = m_balance.get();
+            if (balance < CREDIT_PER_RETRY)
+                break;
+            if (m_balance.compareAndSet(balance, balance - CREDIT_PER_RETRY))
+            {
+                m_retries.incrementAndGet();
+                return true;
+            }
+        }
+
+        m_lock.lock();
+        try
+        {
+            long now = System.nanoTime();
+            long refill = (long) ((now - m_reserveRefilledAt) / 1e9 * m_minCreditPerSec);
+            m_reserve = Math.min(m_reserve + refill, m_minCreditPerSec);
+            m_reserveRefilledAt = now;
+
+            if (m_reserve >= CREDIT_PER_RETRY)
+            {
+                m_reserve -= CREDIT_PER_RETRY;
+                m_retries.incrementAndGet();
+                return true;
+            }
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        m_overBudget.incrementAndGet();
+        m_giveUps.incrementAndGet();
+        return false;
+    }
+
+    /**
+     * Called when a request is given up for any other reason, e.g. the retry policy allows no more attempts
+     */
+    public void onGiveUp()
+    {
+        m_giveUps.incrementAndGet();
+    }
+
+    /**
+     *
+     * @return The number of requests sent
+     */
+    public long getRequests()
+    {
+        return m_requests.get();
+    }
+
+    /**
+     *
+     * @return The number of retries made
+     */
+    public long getRetries()
+    {
+        return m_retries.get();
+    }
+
+    /**
+     *
+     * @return The number of times a failed connect or send was not retried, for any reason
+     */
+    public long getGiveUps()
+    {
+        return m_giveUps.get();
+    }
+
+    /**
+     *
+     * @return The number of give ups because the budget was used up
+     */
+    public long getRetriesOverBudget()
+    {
+        return m_overBudget.get();
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,23 @@
+package com.krestfield.ezsign.net;
+
+/**
+ * KRetryPolicy
+ *
+ * Decides whether a failed connect or send is tried again and how long to wait first.  Implementations must
+ * be safe to call from many threads at once.  Retries are also limited by the client's retry budget
+ * (see KRetryBudget)
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public interface KRetryPolicy
+{
+    /**
+     * Returns the time to wait before the next attempt
+     *
+     * @param attempt The number of attempts made so far, from 1
+     * @return The time to wait in milliseconds, or -1 if no further attempt should be made
+     */
+    long getBackoffMs(int attempt);
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,22 @@
+package com.krestfield.ezsign.net;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * KRoundRobinBalancer
+ *
+ * Sends requests to each endpoint in turn, regardless of how busy or slow it is
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KRoundRobinBalancer implements KLoadBalancer
+{
+    private final AtomicInteger m_next = new AtomicInteger();
+
+    public int select(KEndpoint[] endpoints)
+    {
+        return (m_next.getAndIncrement() & Integer.MAX_VALUE) % endpoints.length;
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,272 @@
+package com.krestfield.ezsign.net;
+
+import java.net.Socket;
+import java.util.concurrent.LinkedBlockingDeque;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * KSocketPool
+ *
+ * A pool of sockets that have already been connected (and, if TLS is in use, have completed the handshake)
+ * so that the connect and handshake round trips are taken off the request path.
+ *
+ * Each socket is still only used for ONE message - the pool simply opens them in advance.  A background
+ * thread keeps the pool topped up to the configured size and closes sockets that have been idle for
+ * longer than the idle expiry.  The idle expiry must be shorter than the time the server will
+ * wait for a request on a new connection
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KSocketPool implements Runnable
+{
+    // If a connect fails, the filler waits this long before trying again
+    final int RETRY_FILL_WAIT_MS = 500;
+
+    private final String m_host;
+    private final int m_port;
+    private final KConnector m_connector;
+    private final int m_poolSize;
+    private final int m_idleExpiryMs;
+
+    private final LinkedBlockingDeque<PooledSocket> m_idle = new LinkedBlockingDeque<PooledSocket>();
+    private final ReentrantLock m_fillLock = new ReentrantLock();
+    private final Condition m_fillSignal = m_fillLock.newCondition();
+    private final Thread m_fillThread;
+    private volatile boolean m_running = true;
+
+    private final AtomicLong m_hits = new AtomicLong();
+    private final AtomicLong m_misses = new AtomicLong();
+    private final AtomicLong m_expired = new AtomicLong();
+    private final AtomicLong m_connectFailures = new AtomicLong();
+
+    /**
+     * A socket along with the time it was connected
+     */
+    private static class PooledSocket
+    {
+        final Socket m_socket;
+        final long m_connectedAt;
+
+        PooledSocket(Socket socket)
+        {
+            m_socket = socket;
+            m_connectedAt = System.nanoTime();
+        }
+    }
+
+    /**
+     * Constructor.  The background fill starts immediately
+     *
+     * @param host The host the sockets connect to
+     * @param port The port the sockets connect to
+     * @param connector Opens the connections
+     * @param poolSize The number of connected sockets to keep ready, at least 1
+     * @param idleExpiryMs The max time a socket may wait in the pool before it is closed and replaced, at least 1
+     * @throws IllegalArgumentException If the pool size or idle expiry is not greater than 0
+     */
+    public KSocketPool(String host, int port, KConnector connector, int poolSize, int idleExpiryMs)
+    {
+        // An idle expiry of 0 would expire every socket as soon as it was connected and keep the filler busy
+        if (poolSize <= 0)
+            throw new IllegalArgumentException("The socket pool size must be greater than 0: " + poolSize);
+        if (idleExpiryMs <= 0)
+            throw new IllegalArgumentException("The socket pool idle expiry must be greater than 0: " + idleExpiryMs);
+
+        m_host = host;
+        m_port = port;
+        m_connector = connector;
+        m_poolSize = poolSize;
+        m_idleExpiryMs = idleExpiryMs;
+
+        m_fillThread = new Thread(this, "EzSignSocketPool-" + host + ":" + port);
+        m_fillThread.setDaemon(true);
+        m_fillThread.start();
+    }
+
+    /**
+     * Returns true if this pool holds sockets to the given server
+     *
+     * @param host The host
+     * @param port The port
+     * @return True if the pool is for this host and port
+     */
+    public boolean isFor(String host, int port)
+    {
+        return m_port == port && m_host.equals(host);
+    }
+
+    /**
+     * Takes a connected socket from the pool.  The caller owns the socket and must close it
+     *
+     * @return A connected socket or null if none are available, in which case the caller should connect itself
+     */
+    public Socket take()
+    {
+        PooledSocket pooled;
+        while ((pooled = m_idle.pollFirst()) != null)
+        {
+            if (isExpired(pooled) || pooled.m_socket.isClosed())
+            {
+                m_expired.incrementAndGet();
+                close(pooled.m_socket);
+                continue;
+            }
+
+            m_hits.incrementAndGet();
+            signalFill();
+            return pooled.m_socket;
+        }
+
+        m_misses.incrementAndGet();
+        signalFill();
+        return null;
+    }
+
+    /**
+     * Stops the background fill and closes all idle sockets
+     */
+    public void close()
+    {
+        m_running = false;
+        signalFill();
+
+        PooledSocket pooled;
+        while ((pooled = m_idle.pollFirst()) != null)
+            close(pooled.m_socket);
+    }
+
+    /**
+     * The background fill
+     */
+    public void run()
+    {
+        while (m_running)
+        {
+            removeExpired();
+
+            boolean failed = false;
+            while (m_running && m_idle.size() < m_poolSize)
+            {
+                try
+                {
+                    m_idle.addLast(new PooledSocket(m_connector.connect(m_host, m_port)));
+                }
+                catch (Exception e)
+                {
+                    m_connectFailures.incrementAndGet();
+                    failed = true;
+                    break;
+                }
+            }
+
+            // Sleep until a socket is taken, or it is time to check for expired sockets
+            m_fillLock.lock();
+            try
+            {
+                m_fillSignal.await(failed ? RETRY_FILL_WAIT_MS : Math.max(1, m_idleExpiryMs / 2), TimeUnit.MILLISECONDS);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
+            finally
+            {
+                m_fillLock.unlock();
+            }
+        }
+
+        // Catch any that were added as we were closing
+        PooledSocket pooled;
+        while ((pooled = m_idle.pollFirst()) != null)
+            close(pooled.m_socket);
+    }
+
+    /**
+     * Closes any sockets that have been idle too long.  The oldest are at the front
+     */
+    private void removeExpired()
+    {
+        PooledSocket pooled;
+        while ((pooled = m_idle.peekFirst()) != null && isExpired(pooled))
+        {
+            if (m_idle.remove(pooled))
+            {
+                m_expired.incrementAndGet();
+                close(pooled.m_socket);
+            }
+        }
+    }
+
+    private boolean isExpired(PooledSocket pooled)
+    {
+        return System.nanoTime() - pooled.m_connectedAt > TimeUnit.MILLISECONDS.toNanos(m_idleExpiryMs);
+    }
+
+    private void signalFill()
+    {
+        m_fillLock.lock();
+        try
+        {
+            m_fillSignal.signal();
+        }
+        finally
+        {
+            m_fillLock.unlock();
+        }
+    }
+
+    private void close(Socket socket)
+    {
+        try { socket.close(); } catch (Exception e) { }
+    }
+
+    /**
+     *
+     * @return The number of times a connected socket was available when requested
+     */
+    public long getHits()
+    {
+        return m_hits.get();
+    }
+
+    /**
+     *
+     * @return The number of times the pool was empty when a socket was requested
+     */
+    public long getMisses()
+    {
+        return m_misses.get();
+    }
+
+    /**
+     *
+     * @return The number of sockets closed unused because they reached the idle expiry
+     */
+    public long getExpired()
+    {
+        return m_expired.get();
+    }
+
+    /**
+     *
+     * @return The number of background connection attempts that failed
+     */
+    public long getConnectFailures()
+    {
+        return m_connectFailures.get();
+    }
+
+    /**
+     *
+     * @return The number of connected sockets currently waiting in the pool
+     */
+    public int getIdleCount()
+    {
+        return m_idle.size();
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,200 @@
+package com.krestfield.ezsign.net;
+
+import com.krestfield.ezsign.KEzSignException;
+
+import javax.net.ssl.KeyManager;
+import javax.net.ssl.SSLContext;
+import javax.net.ssl.SSLEngine;
+import javax.net.ssl.SSLSession;
+import javax.net.ssl.SSLSessionContext;
+import javax.net.ssl.SSLSocket;
+import javax.net.ssl.SSLSocketFactory;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * KTlsContext
+ *
+ * The TLS context shared by all sockets a client opens.  Its client session cache is sized so that
+ * sessions can be resumed (TLS 1.2 session IDs and TLS 1.3 session tickets) and each new socket
+ * performs an abbreviated handshake rather than a full one.
+ *
+ * Sockets are connected first and then layered with TLS using the host and port, as this is what the
+ * JSSE uses to look up a session to resume.  Full and resumed handshakes are counted.
+ *
+ * Note that TLS 1.3 tickets also require the JSSE session ticket extension to be enabled
+ * (jdk.tls.client.enableSessionTicketExtension, on by default from Java 13)
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KTlsContext
+{
+    public static final int DEFAULT_SESSION_CACHE_SIZE = 1000;
+    public static final int DEFAULT_SESSION_TIMEOUT_SECS = 86400;
+
+    private final SSLContext m_sslContext;
+    private final SSLSocketFactory m_sockFactory;
+
+    private final AtomicLong m_fullHandshakes = new AtomicLong();
+    private final AtomicLong m_resumedHandshakes = new AtomicLong();
+
+    /**
+     * Constructor
+     *
+     * @param keyManagers The key managers holding the client certificate, or null if no client certificate is used
+     * @throws KEzSignException If the context cannot be created
+     */
+    public KTlsContext(KeyManager[] keyManagers) throws KEzSignException
+    {
+        try
+        {
+            m_sslContext = SSLContext.getInstance("TLS");
+            m_sslContext.init(keyManagers, null, null);
+            m_sockFactory = m_sslContext.getSocketFactory();
+        }
+        catch (Exception e)
+        {
+            throw new KEzSignException("There was an error creating the TLS context. " + e.getMessage(), e);
+        }
+
+        setSessionCache(DEFAULT_SESSION_CACHE_SIZE, DEFAULT_SESSION_TIMEOUT_SECS);
+    }
+
+    /**
+     * Sets the size and lifetime of the client session cache
+     *
+     * @param cacheSize The max number of sessions held, 0 for no limit
+     * @param timeoutSecs How long a session may be resumed for, 0 for no limit
+     */
+    public void setSessionCache(int cacheSize, int timeoutSecs)
+    {
+        SSLSessionContext sessionContext = m_sslContext.getClientSessionContext();
+        if (sessionContext != null)
+        {
+            sessionContext.setSessionCacheSize(cacheSize);
+            sessionContext.setSessionTimeout(timeoutSecs);
+        }
+    }
+
+    /**
+     * Connects to the server and completes the TLS handshake
+     *
+     * @param host The host to connect to
+     * @param port The port to connect to
+     * @param connectTimeoutMs The TCP connect timeout
+     * @param readTimeoutMs The timeout for each read during the handshake
+     * @return The connected socket
+     * @throws IOException If unable to connect or the handshake fails
+     */
+    public SSLSocket connect(String host, int port, int connectTimeoutMs, int readTimeoutMs) throws IOException
+    {
+        return connect(new Socket(), host, port, connectTimeoutMs, readTimeoutMs);
+    }
+
+    /**
+     * Connects and completes the handshake on the given socket, which can be closed from another thread to
+     * abandon the connect
+     *
+     * @param plainSocket The unconnected socket
+     * @param host The host to connect to
+     * @param port The port to connect to
+     * @param connectTimeoutMs The TCP connect timeout
+     * @param readTimeoutMs The timeout for each read during the handshake
+     * @return The connected socket
+     * @throws IOException If unable to connect or the handshake fails
+     */
+    public SSLSocket connect(Socket plainSocket, String host, int port, int connectTimeoutMs, int readTimeoutMs) throws IOException
+    {
+        try
+        {
+            plainSocket.connect(new InetSocketAddress(host, port), connectTimeoutMs);
+            plainSocket.setSoTimeout(readTimeoutMs);
+            plainSocket.setTcpNoDelay(true);
+
+            SSLSocket socket = (SSLSocket) m_sockFactory.createSocket(plainSocket, host, port, true);
+
+            long handshakeStart = System.currentTimeMillis();
+            socket.startHandshake();
+            recordHandshake(socket.getSession(), handshakeStart);
+
+            return socket;
+        }
+        catch (IOException e)
+        {
+            try { plainSocket.close(); } catch (Exception ex) { }
+            throw e;
+        }
+    }
+
+    /**
+     * Creates an engine for a non-blocking connection.  Sessions are shared with the sockets from connect
+     * and looked up by host and port in the same way
+     *
+     * @param host The host being connected to
+     * @param port The port being connected to
+     * @return The engine, in client mode
+     */
+    public SSLEngine createEngine(String host, int port)
+    {
+        SSLEngine engine = m_sslContext.createSSLEngine(host, port);
+        engine.setUseClientMode(true);
+        return engine;
+    }
+
+    /**
+     * A resumed session keeps the creation time of the session it was resumed from,
+     * whereas a full handshake creates a new session
+     *
+     * @param session The session of the completed handshake
+     * @param handshakeStart The time the handshake was started
+     */
+    void recordHandshake(SSLSession session, long handshakeStart)
+    {
+        if (session.getCreationTime() < handshakeStart)
+            m_resumedHandshakes.incrementAndGet();
+        else
+            m_fullHandshakes.incrementAndGet();
+    }
+
+    /**
+     *
+     * @return The underlying SSL context
+     */
+    public SSLContext getSslContext()
+    {
+        return m_sslContext;
+    }
+
+    /**
+     *
+     * @return The number of handshakes that created a new session
+     */
+    public long getFullHandshakes()
+    {
+        return m_fullHandshakes.get();
+    }
+
+    /**
+     *
+     * @return The number of handshakes that resumed a cached session
+     */
+    public long getResumedHandshakes()
+    {
+        return m_resumedHandshakes.get();
+    }
+
+    /**
+     *
+     * @return The share of handshakes that were resumed, between 0 and 1
+     */
+    public double getResumptionRate()
+    {
+        long resumed = m_resumedHandshakes.get();
+        long total = resumed + m_fullHandshakes.get();
+        return total == 0 ? 0 : (double) resumed / total;
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,152 @@
+package com.krestfield.ezsign.net;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * KTokenBucket
+ *
+ * Limits the rate of requests.  Tokens are added at the given rate, up to the burst size, and each request
+ * takes one.  When there is no token a request may either fail straight away or wait up to a max time for
+ * the next: the wait is reserved (the bucket goes below zero) so that waiting requests are sent in turn and
+ * no thread has to poll for tokens.  Also provides the number of requests admitted, delayed and rejected
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KTokenBucket
+{
+    private final double m_ratePerSec;
+    private final double m_tokensPerNs;
+    private final int m_burst;
+    private final long m_maxWaitNs;
+
+    private final ReentrantLock m_lock = new ReentrantLock();
+    private double m_tokens;
+    private long m_refilledAt = System.nanoTime();
+
+    private final AtomicLong m_admitted = new AtomicLong();
+    private final AtomicLong m_delayed = new AtomicLong();
+    private final AtomicLong m_rejected = new AtomicLong();
+
+    /**
+     * Constructor.  The bucket starts full
+     *
+     * @param ratePerSec The requests allowed per second
+     * @param burst The most requests that may be sent at once after a quiet spell
+     * @param maxWaitMs The longest a request may wait for a token, 0 to fail straight away if there is none
+     * @throws IllegalArgumentException If ratePerSec is 0 or less
+     */
+    public KTokenBucket(double ratePerSec, int burst, int maxWaitMs)
+    {
+        if (!(ratePerSec > 0))
+            throw new IllegalArgumentException("The rate must be greater than 0: " + ratePerSec);
+
+        m_ratePerSec = ratePerSec;
+        m_tokensPerNs = ratePerSec / 1e9;
+        m_burst = Math.max(burst, 1);
+        m_maxWaitNs = maxWaitMs * 1000000L;
+        m_tokens = m_burst;
+    }
+
+    /**
+     * Takes a token for a request.  If there is none, the next that will be added is reserved, if it will be
+     * within the max wait
+     *
+     * @param maxWaitNs A further limit on the wait, e.g. the time left before the call's deadline
+     * @return The time in nanoseconds the request must wait before it is sent, 0 to send now, or -1 if it
+     *         is rejected
+     */
+    public long reserve(long maxWaitNs)
+    {
+        long waitNs;
+        m_lock.lock();
+        try
+        {
+            long now = System.nanoTime();
+            m_tokens = Math.min(m_tokens + (now - m_refilledAt) * m_tokensPerNs, m_burst);
+            m_refilledAt = now;
+
+            waitNs = (m_tokens >= 1) ? 0 : (long) Math.ceil((1 - m_tokens) / m_tokensPerNs);
+            if (waitNs > Math.min(m_maxWaitNs, maxWaitNs))
+                waitNs = -1;
+            else
+                m_tokens -= 1;
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+
+        if (waitNs < 0)
+        {
+            m_rejected.incrementAndGet();
+        }
+        else
+        {
+            m_admitted.incrementAndGet();
+            if (waitNs > 0)
+                m_delayed.incrementAndGet();
+        }
+
+        return waitNs;
+    }
+
+    /**
+     * Returns the token taken by reserve, when the request is not sent after all
+     *
+     * @param waitNs The wait returned by reserve, so that a delay it counted is undone as well
+     */
+    public void cancel(long waitNs)
+    {
+        m_lock.lock();
+        try
+        {
+            m_tokens = Math.min(m_tokens + 1, m_burst);
+        }
+        finally
+        {
+            m_lock.unlock();
+        }
+        m_admitted.decrementAndGet();
+        if (waitNs > 0)
+            m_delayed.decrementAndGet();
+    }
+
+    /**
+     *
+     * @return The requests allowed per second
+     */
+    public double getRatePerSec()
+    {
+        return m_ratePerSec;
+    }
+
+    /**
+     *
+     * @return The number of requests given a token
+     */
+    public long getAdmitted()
+    {
+        return m_admitted.get();
+    }
+
+    /**
+     *
+     * @return The number of requests that had to wait for their token
+     */
+    public long getDelayed()
+    {
+        return m_delayed.get();
+    }
+
+    /**
+     *
+     * @return The number of requests rejected as there was no token within the max wait
+     */
+    public long getRejected()
+    {
+        return m_rejected.get();
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,382 @@
+package com.krestfield.ezsign.utils;
+
+import com.krestfield.ezsign.KEzSignException;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.SecretKeyFactory;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.PBEKeySpec;
+import javax.crypto.spec.SecretKeySpec;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * KAuthEnvelope
+ *
+ * The v2 auth code envelope, used in place of KEncrypt with the binary message format.  The binary message is
+ * encrypted as is, in one pass, with AES-GCM (which also authenticates it), so it is neither base64 encoded
+ * nor derived a key for per message.
+ *
+ * A master key is derived from the auth code once, with PBKDF2.  Each client starts a session with a random
+ * session ID, and the session key is derived from the master key and the session ID with HKDF, so a server
+ * derives it once per session (it is cached) at the cost of an HMAC.  The envelope is:
+ *
+ *   0:      Version (2)
+ *   1-16:   Session ID
+ *   17-28:  Nonce.  For a request, 4 zero bytes then the session's 8 byte message counter.  For a reply, the
+ *           first bit set and the rest random, so a reply's nonce never repeats a request's
+ *   29->:   The message encrypted with AES-256-GCM, then the 16 byte tag.  Bytes 0-16 are also authenticated,
+ *           and for a reply so is the nonce of the request it answers, so a reply only opens as the answer to
+ *           that request.  A reply to another request (in flight at the same time, or replayed) is rejected
+ *
+ * A session is replaced by a new one before its counter reaches MAX_SESSION_MESSAGES.
+ *
+ * The envelope is not negotiated.  Once a client uses it every request is sent in it, and a server that does
+ * not support it fails the requests rather than the client falling back to the original scheme, as a fallback
+ * made on failures could be forced by anyone able to drop the connections
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KAuthEnvelope
+{
+    public final static byte VERSION = 2;
+
+    final static int LEN_SESSION_ID = 16;
+    final static int LEN_NONCE = 12;
+    final static int LEN_HEADER = 1 + LEN_SESSION_ID + LEN_NONCE;
+    final static int LEN_TAG = 16;
+
+    // Both ends derive the master key without exchanging anything, so its salt is fixed.  Each session's key
+    // is made distinct by its session ID
+    final static byte[] MASTER_KEY_SALT = "Krestfield EzSign auth envelope v2".getBytes(StandardCharsets.US_ASCII);
+    final static int MASTER_KEY_ITERATIONS = 100000;
+    final static byte[] SESSION_KEY_INFO = "EzSign v2 session key".getBytes(StandardCharsets.US_ASCII);
+
+    // The messages sent under one session key before a new session is started
+    final static long MAX_SESSION_MESSAGES = 1L << 32;
+
+    // The most session keys kept for the sessions of other senders
+    final static int MAX_CACHED_SESSIONS = 1024;
+
+    // Shared by all threads.  SecureRandom is thread safe, and a cipher is taken from the pool for each message
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final KCipherPool CIPHERS = new KCipherPool("AES/GCM/NoPadding",
+            2 * Runtime.getRuntime().availableProcessors());
+
+    private final byte[] m_masterKey;
+
+    // This sender's session.  Started on the first request
+    private volatile Session m_session = null;
+    private final ReentrantLock m_sessionLock = new ReentrantLock();
+
+    // The keys of the sessions seen, by session ID, least recently used first
+    private final ReentrantLock m_cacheLock = new ReentrantLock();
+    private final LinkedHashMap<ByteBuffer, SecretKey> m_sessionKeys = new LinkedHashMap<ByteBuffer, SecretKey>(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry<ByteBuffer, SecretKey> eldest)
+        {
+            return size() > MAX_CACHED_SESSIONS;
+        }
+    };
+
+    /**
+     * Constructor.  Derives the master key from the auth code
+     *
+     * @param authCode The auth code, the same as the server's
+     * @throws KEzSignException If there is no auth code or the key cannot be derived
+     */
+    public KAuthEnvelope(String authCode) throws KEzSignException
+    {
+        if (authCode == null || authCode.length() == 0)
+            throw new KEzSignException("Unable to encrypt data as no auth code to encrypt with has been specified");
+
+        try
+        {
+            SecretKeyFactory factory = SecretKeyFactory.getInstance("PBKDF2WithHmacSHA256");
+            PBEKeySpec spec = new PBEKeySpec(authCode.toCharArray(), MASTER_KEY_SALT, MASTER_KEY_ITERATIONS, 256);
+            m_masterKey = factory.generateSecret(spec).getEncoded();
+            spec.clearPassword();
+        }
+        catch (Exception e)
+        {
+            throw new KEzSignException("There was an error generating the key from the auth code.  " + e.getMessage());
+        }
+    }
+
+    /**
+     * Encrypts a request under this sender's session
+     *
+     * @param message The message
+     * @return The envelope
+     * @throws KEzSignException If there is an error
+     */
+    public byte[] sealRequest(byte[] message) throws KEzSignException
+    {
+        Session session = m_session;
+        long counter = (session == null) ? MAX_SESSION_MESSAGES : session.m_counter.getAndIncrement();
+        if (counter >= MAX_SESSION_MESSAGES)
+        {
+            session = startSession(session);
+            counter = session.m_counter.getAndIncrement();
+        }
+
+        byte[] nonce = new byte[LEN_NONCE];
+        for (int i = 0; i < 8; i++)
+            nonce[LEN_NONCE - 1 - i] = (byte) (counter >>> (8 * i));
+
+        return seal(session.m_id, session.m_key, nonce, message, null);
+    }
+
+    /**
+     * Decrypts a request, e.g. at the server
+     *
+     * @param envelope The envelope
+     * @return The message
+     * @throws KEzSignException If the envelope is not valid, was not a request or did not decrypt (e.g. the auth
+     *                          code differs)
+     */
+    public byte[] openRequest(byte[] envelope) throws KEzSignException
+    {
+        return open(envelope, false, null);
+    }
+
+    /**
+     * Encrypts the reply to a request, under the request's session and bound to the request's nonce
+     *
+     * @param request The request's envelope
+     * @param reply The reply
+     * @return The reply's envelope
+     * @throws KEzSignException If there is an error
+     */
+    public byte[] sealReply(byte[] request, byte[] reply) throws KEzSignException
+    {
+        if (request == null || request.length < LEN_HEADER)
+            throw new KEzSignException("There was an error encrypting the data.  The request was not a valid v2 envelope");
+
+        byte[] sessionId = Arrays.copyOfRange(request, 1, 1 + LEN_SESSION_ID);
+
+        byte[] nonce = new byte[LEN_NONCE];
+        RANDOM.nextBytes(nonce);
+        nonce[0] |= (byte) 0x80;
+
+        return seal(sessionId, getSessionKey(sessionId), nonce, reply, request);
+    }
+
+    /**
+     * Decrypts the reply to a request
+     *
+     * @param request The envelope of the request sent
+     * @param envelope The reply's envelope
+     * @return The reply
+     * @throws KEzSignException If the envelope is not valid, was not a reply, was not the reply to this request
+     *                          or did not decrypt (e.g. the auth code differs)
+     */
+    public byte[] openReply(byte[] request, byte[] envelope) throws KEzSignException
+    {
+        if (request == null || request.length < LEN_HEADER)
+            throw new KEzSignException("There was an error decrypting the data.  The request was not a valid v2 envelope");
+        if (envelope != null && envelope.length >= LEN_HEADER && !regionMatches(request, envelope, 1, LEN_SESSION_ID))
+            throw new KEzSignException("There was an error decrypting the data.  It was not the reply to the request");
+
+        return open(envelope, true, request);
+    }
+
+    /**
+     * Starts a new session for this sender, unless another thread already has
+     *
+     * @param used The session found to be used up, or null if none has been started
+     * @return The current session
+     * @throws KEzSignException If the key cannot be derived
+     */
+    private Session startSession(Session used) throws KEzSignException
+    {
+        m_sessionLock.lock();
+        try
+        {
+            Session current = m_session;
+            if (current != used && current.m_counter.get() < MAX_SESSION_MESSAGES)
+                return current;
+
+            byte[] sessionId = new byte[LEN_SESSION_ID];
+            RANDOM.nextBytes(sessionId);
+            Session session = new Session(sessionId, getSessionKey(sessionId));
+            m_session = session;
+            return session;
+        }
+        finally
+        {
+            m_sessionLock.unlock();
+        }
+    }
+
+    /**
+     *
+     * @param sessionId The session ID
+     * @param key The session's key
+     * @param nonce The nonce
+     * @param message The message
+     * @param request For a reply, the request's envelope, whose nonce is authenticated with it.  Null for a request
+     * @return The envelope
+     * @throws KEzSignException If there is an error
+     */
+    private byte[] seal(byte[] sessionId, SecretKey key, byte[] nonce, byte[] message, byte[] request) throws KEzSignException
+    {
+        Cipher cipher = null;
+        try
+        {
+            byte[] envelope = new byte[LEN_HEADER + message.length + LEN_TAG];
+            envelope[0] = VERSION;
+            System.arraycopy(sessionId, 0, envelope, 1, LEN_SESSION_ID);
+            System.arraycopy(nonce, 0, envelope, 1 + LEN_SESSION_ID, LEN_NONCE);
+
+            cipher = CIPHERS.acquire();
+            cipher.init(Cipher.ENCRYPT_MODE, key, new GCMParameterSpec(LEN_TAG * 8, nonce));
+            cipher.updateAAD(envelope, 0, 1 + LEN_SESSION_ID);
+            if (request != null)
+                cipher.updateAAD(request, 1 + LEN_SESSION_ID, LEN_NONCE);
+            cipher.doFinal(message, 0, message.length, envelope, LEN_HEADER);
+
+            return envelope;
+        }
+        catch (Exception e)
+        {
+            throw new KEzSignException("There was an error encrypting the data.  " + e.getMessage());
+        }
+        finally
+        {
+            CIPHERS.release(cipher);
+        }
+    }
+
+    /**
+     *
+     * @param envelope The envelope
+     * @param reply True if a reply is expected, false for a request
+     * @param request For a reply, the envelope of the request it should answer
+     * @return The message
+     * @throws KEzSignException If the envelope is not valid or did not decrypt
+     */
+    private byte[] open(byte[] envelope, boolean reply, byte[] request) throws KEzSignException
+    {
+        if (envelope == null || envelope.length < LEN_HEADER + LEN_TAG || envelope[0] != VERSION)
+            throw new KEzSignException("There was an error decrypting the data.  It was not a valid v2 envelope");
+        if (((envelope[1 + LEN_SESSION_ID] & 0x80) != 0) != reply)
+            throw new KEzSignException("There was an error decrypting the data.  It was not a " + (reply ? "reply" : "request"));
+
+        Cipher cipher = null;
+        try
+        {
+            SecretKey key = getSessionKey(Arrays.copyOfRange(envelope, 1, 1 + LEN_SESSION_ID));
+
+            cipher = CIPHERS.acquire();
+            cipher.init(Cipher.DECRYPT_MODE, key, new GCMParameterSpec(LEN_TAG * 8, envelope, 1 + LEN_SESSION_ID, LEN_NONCE));
+            cipher.updateAAD(envelope, 0, 1 + LEN_SESSION_ID);
+            if (request != null)
+                cipher.updateAAD(request, 1 + LEN_SESSION_ID, LEN_NONCE);
+            return cipher.doFinal(envelope, LEN_HEADER, envelope.length - LEN_HEADER);
+        }
+        catch (Exception e)
+        {
+            throw new KEzSignException("There was an error decrypting the data.  Check the auth code is correct.  Error: " + e.getMessage());
+        }
+        finally
+        {
+            CIPHERS.release(cipher);
+        }
+    }
+
+    /**
+     * Returns the key for a session, deriving it with HKDF-SHA256 (RFC 5869) from the master key if it is not
+     * cached
+     *
+     * @param sessionId The session ID, the HKDF salt
+     * @return The key
+     * @throws KEzSignException If there is an error
+     */
+    private SecretKey getSessionKey(byte[] sessionId) throws KEzSignException
+    {
+        ByteBuffer cacheKey = ByteBuffer.wrap(sessionId);
+        m_cacheLock.lock();
+        try
+        {
+            SecretKey key = m_sessionKeys.get(cacheKey);
+            if (key != null)
+                return key;
+        }
+        finally
+        {
+            m_cacheLock.unlock();
+        }
+
+        SecretKey key;
+        try
+        {
+            // Extract, then expand one block - all that is needed for a 256 bit key
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(sessionId, "HmacSHA256"));
+            byte[] prk = mac.doFinal(m_masterKey);
+
+            mac.init(new SecretKeySpec(prk, "HmacSHA256"));
+            mac.update(SESSION_KEY_INFO);
+            mac.update((byte) 1);
+            key = new SecretKeySpec(mac.doFinal(), "AES");
+        }
+        catch (Exception e)
+        {
+            throw new KEzSignException("There was an error generating the session key.  " + e.getMessage());
+        }
+
+        m_cacheLock.lock();
+        try
+        {
+            m_sessionKeys.put(cacheKey, key);
+        }
+        finally
+        {
+            m_cacheLock.unlock();
+        }
+        return key;
+    }
+
+    /**
+     *
+     * @param a An array
+     * @param b Another array
+     * @param offset The offset in both
+     * @param len The number of bytes to compare
+     * @return True if the bytes are the same in both
+     */
+    private static boolean regionMatches(byte[] a, byte[] b, int offset, int len)
+    {
+        int diff = 0;
+        for (int i = offset; i < offset + len; i++)
+            diff |= a[i] ^ b[i];
+        return diff == 0;
+    }
+
+    /**
+     * A sender's session
+     */
+    private static class Session
+    {
+        final byte[] m_id;
+        final SecretKey m_key;
+        final AtomicLong m_counter = new AtomicLong();
+
+        Session(byte[] id, SecretKey key)
+        {
+            m_id = id;
+            m_key = key;
+        }
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,90 @@
+package com.krestfield.ezsign.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * KBufferPool
+ *
+ * A small pool of byte arrays for data that is only needed until it has been processed, such as a message
+ * before it is encrypted, so that large messages do not each allocate (and zero) a buffer of their size.
+ * Buffers are sized in powers of two so that one may be reused for messages of similar sizes.  Only so many
+ * buffers, and none over a maximum size, are kept
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KBufferPool
+{
+    final static int MIN_BUFFER_SIZE = 4096;
+
+    private final int m_maxBuffers;
+    private final int m_maxBufferSize;
+    private final ConcurrentLinkedQueue<byte[]> m_buffers = new ConcurrentLinkedQueue<byte[]>();
+    private final AtomicInteger m_numBuffers = new AtomicInteger();
+
+    /**
+     * Constructor
+     *
+     * @param maxBuffers The most buffers kept
+     * @param maxBufferSize The largest buffer kept.  Larger ones are allocated when needed and not kept
+     */
+    public KBufferPool(int maxBuffers, int maxBufferSize)
+    {
+        m_maxBuffers = maxBuffers;
+        m_maxBufferSize = maxBufferSize;
+    }
+
+    /**
+     * Takes a buffer from the pool, or allocates one if there is none large enough.  Its contents are not
+     * cleared
+     *
+     * @param minSize The least size needed
+     * @return The buffer, at least minSize long.  Pass to release when done with
+     */
+    public byte[] acquire(int minSize)
+    {
+        byte[] buffer = m_buffers.poll();
+        if (buffer != null)
+        {
+            m_numBuffers.decrementAndGet();
+            if (buffer.length >= minSize)
+                return buffer;
+
+            // Too small.  It is dropped and a larger one will take its place when released
+        }
+
+        int size = MIN_BUFFER_SIZE;
+        while (size < minSize && size > 0)
+            size <<= 1;
+        return new byte[(size > 0) ? size : minSize];
+    }
+
+    /**
+     * Returns a buffer to the pool
+     *
+     * @param buffer The buffer, as returned by acquire.  Must not be used after
+     */
+    public void release(byte[] buffer)
+    {
+        if (buffer == null || buffer.length > m_maxBufferSize)
+            return;
+
+        if (m_numBuffers.incrementAndGet() > m_maxBuffers)
+        {
+            m_numBuffers.decrementAndGet();
+            return;
+        }
+        m_buffers.offer(buffer);
+    }
+
+    /**
+     *
+     * @return The number of buffers in the pool
+     */
+    public int getNumBuffers()
+    {
+        return m_numBuffers.get();
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,83 @@
+package com.krestfield.ezsign.utils;
+
+import javax.crypto.Cipher;
+import java.security.GeneralSecurityException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * KCipherPool
+ *
+ * A small pool of Cipher instances for one transformation, so that each message does not look up the provider
+ * and create a cipher.  A cipher is only held while a message is encrypted or decrypted, so the pool is shared
+ * by all threads rather than kept per thread, which would create one for every task on a thread per task
+ * (e.g. virtual thread) executor.  Only so many ciphers are kept
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KCipherPool
+{
+    private final String m_transformation;
+    private final int m_maxCiphers;
+    private final ConcurrentLinkedQueue<Cipher> m_ciphers = new ConcurrentLinkedQueue<Cipher>();
+    private final AtomicInteger m_numCiphers = new AtomicInteger();
+
+    /**
+     * Constructor
+     *
+     * @param transformation The transformation, e.g. AES/GCM/NoPadding
+     * @param maxCiphers The most ciphers kept
+     */
+    public KCipherPool(String transformation, int maxCiphers)
+    {
+        m_transformation = transformation;
+        m_maxCiphers = maxCiphers;
+    }
+
+    /**
+     * Takes a cipher from the pool, or creates one if the pool is empty.  It must be initialised before use
+     *
+     * @return The cipher.  Pass to release when done with
+     * @throws GeneralSecurityException If the transformation is not available
+     */
+    public Cipher acquire() throws GeneralSecurityException
+    {
+        Cipher cipher = m_ciphers.poll();
+        if (cipher != null)
+        {
+            m_numCiphers.decrementAndGet();
+            return cipher;
+        }
+
+        return Cipher.getInstance(m_transformation);
+    }
+
+    /**
+     * Returns a cipher to the pool
+     *
+     * @param cipher The cipher, as returned by acquire.  Must not be used after
+     */
+    public void release(Cipher cipher)
+    {
+        if (cipher == null)
+            return;
+
+        if (m_numCiphers.incrementAndGet() > m_maxCiphers)
+        {
+            m_numCiphers.decrementAndGet();
+            return;
+        }
+        m_ciphers.offer(cipher);
+    }
+
+    /**
+     *
+     * @return The number of ciphers in the pool
+     */
+    public int getNumCiphers()
+    {
+        return m_numCiphers.get();
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
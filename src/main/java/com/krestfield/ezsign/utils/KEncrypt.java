@@ -12,10 +12,20 @@ import javax.crypto.spec.PBEKeySpec;
 import javax.crypto.spec.SecretKeySpec;
 import java.security.SecureRandom;
 import java.security.spec.KeySpec;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * KEncrypt
  *
+ * Deriving a key from the password (PBKDF2) is by far the most costly part of encrypting a message, so keys
+ * are not derived for every message.  Messages are encrypted under a salt and key that are reused until the
+ * key lifetime has passed, when a new salt is generated.  Each message still has its own random IV.  The keys
+ * for the salts of messages decrypted are kept in a small LRU cache, so messages from a sender doing the same
+ * are decrypted without deriving the key again.  The format of the data is unchanged
+ *
  * Copyright Krestfield 2016
   */
 public class KEncrypt
@@ -24,7 +34,36 @@ public class KEncrypt
     int LEN_IV = 16;
     int AES_KEY_LEN = 256;
 
+    // The default time a salt and key are used to encrypt before a new salt is generated
+    public final static long DEFAULT_KEY_LIFETIME_MS = 5 * 60 * 1000;
+
+    // The most keys kept for decrypting
+    final static int MAX_CACHED_KEYS = 256;
+
+    // Shared by all threads rather than created per message.  SecureRandom is thread safe, and a cipher is
+    // taken from the pool for each message.  The key factory is only needed when a key is derived, which is
+    // rare, so is created then
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final KCipherPool CIPHERS = new KCipherPool("AES/CBC/PKCS5Padding",
+            2 * Runtime.getRuntime().availableProcessors());
+
     String m_password;
+    private final long m_keyLifetimeNs;
+
+    // The salt and key messages are encrypted under.  Replaced by one thread when its lifetime has passed,
+    // the others carrying on with the current one meanwhile
+    private volatile DerivedKey m_encryptKey = null;
+    private final ReentrantLock m_rotateLock = new ReentrantLock();
+
+    // The keys for the salts of messages decrypted, by salt, least recently used first
+    private final ReentrantLock m_cacheLock = new ReentrantLock();
+    private final LinkedHashMap<Long, SecretKey> m_decryptKeys = new LinkedHashMap<Long, SecretKey>(16, 0.75f, true)
+    {
+        protected boolean removeEldestEntry(Map.Entry<Long, SecretKey> eldest)
+        {
+            return size() > MAX_CACHED_KEYS;
+        }
+    };
 
     /**
      * Constructor
@@ -33,8 +72,22 @@ public class KEncrypt
      * @throws KEzSignException If there is an error
      */
     public KEncrypt(String password) throws KEzSignException
+    {
+        this(password, DEFAULT_KEY_LIFETIME_MS);
+    }
+
+    /**
+     * Constructor
+     *
+     * @param password The password
+     * @param keyLifetimeMs The time a salt and key are used to encrypt before a new salt is generated, 0 for a
+     *                      new salt for every message
+     * @throws KEzSignException If there is an error
+     */
+    public KEncrypt(String password, long keyLifetimeMs) throws KEzSignException
     {
         m_password = password;
+        m_keyLifetimeNs = keyLifetimeMs * 1000000L;
 
         if (m_password == null || m_password.length() == 0)
             throw new KEzSignException("Unable to encrypt data as no password to encrypt with has been specified");
@@ -49,7 +102,7 @@ public class KEncrypt
      */
     public String encryptData(String data) throws KEzSignException
     {
-        byte[] encData = encryptData(m_password, data.getBytes());
+        byte[] encData = encryptBytes(data.getBytes());
         return KBase64.ToBase64String(encData);
     }
 
@@ -71,6 +124,46 @@ public class KEncrypt
             return new String(clearData);
     }
 
+    /**
+     * Encrypts the supplied data with the password passed to the constructor
+     * Returns the salt, IV and encrypted data as raw bytes (see encryptData)
+     * @param data The data to encrypt
+     * @return The encrypted data
+     * @throws KEzSignException If there is an error
+     */
+    public byte[] encryptBytes(byte[] data) throws KEzSignException
+    {
+        return encryptData(m_password, data, 0, data.length);
+    }
+
+    /**
+     * Encrypts part of a buffer, e.g. a message written into a reused buffer, with the password passed to the
+     * constructor
+     * @param data The buffer holding the data to encrypt
+     * @param offset The offset of the data
+     * @param len The length of the data
+     * @return The encrypted data, as encryptBytes
+     * @throws KEzSignException If there is an error
+     */
+    public byte[] encryptBytes(byte[] data, int offset, int len) throws KEzSignException
+    {
+        return encryptData(m_password, data, offset, len);
+    }
+
+    /**
+     * Decrypts the supplied raw data with the password passed to the constructor
+     * @param encData The salt, IV and encrypted data
+     * @return The clear data
+     * @throws KEzSignException If there is an error
+     */
+    public byte[] decryptBytes(byte[] encData) throws KEzSignException
+    {
+        if (encData == null || encData.length < LEN_SALT + LEN_IV)
+            throw new KEzSignException("There was an error decrypting the data.  The data was too short");
+
+        return decryptData(m_password, encData);
+    }
+
     /**
      * A utility method which generates a number of random bytes.  Used in IV and salt generation.
      * @param numBytes The number of random bytes
@@ -78,9 +171,8 @@ public class KEncrypt
      */
     private byte[] generateRandomBytes(int numBytes)
     {
-        SecureRandom r = new SecureRandom();
         byte[] rnd = new byte[numBytes];
-        r.nextBytes(rnd);
+        RANDOM.nextBytes(rnd);
 
         return rnd;
     }
@@ -106,30 +198,6 @@ public class KEncrypt
         return salt;
     }
 
-    /**
-     * Extracts the IV data from a file.  The format is:
-     * Bytes Len  Data
-     * 0-7   8    Salt
-     * 8-15  16   IV
-     * 16->  n    Encrypted data
-     * The 16 IV bytes are returned.
-     * @param originalData The original data
-     * @return The IV extracted from the original data
-     */
-    private byte[] extractIV(byte[] originalData)
-    {
-        byte[] iv = new byte[16];
-        int ivIndex = 0;
-        for (int i = 8; i < 24; i++)
-        {
-            iv[ivIndex] = originalData[i];
-            ivIndex++;
-        }
-
-        return iv;
-    }
-
-
     /**
      * Generates an AES key based on the Password (which is a static variable) and the salt provided
      * @param salt The salt value
@@ -155,37 +223,138 @@ public class KEncrypt
     }
 
     /**
-     * Encrypts a block of data.  Generates a new random salt and generates the key from this and the Password
-     * already set.  Generates a new IV and encrypts the data.
+     * Returns the salt and key to encrypt under, generating a new salt and key if the current one's lifetime
+     * has passed
+     *
+     * @param password The password
+     * @return The salt and key
+     * @throws KEzSignException If there is an error
+     */
+    private DerivedKey getEncryptKey(String password) throws KEzSignException
+    {
+        if (m_keyLifetimeNs <= 0)
+        {
+            byte[] salt = generateRandomBytes(LEN_SALT);
+            return new DerivedKey(salt, generateKey(password, salt));
+        }
+
+        DerivedKey current = m_encryptKey;
+        if (current != null && System.nanoTime() - current.m_createdAt < m_keyLifetimeNs)
+            return current;
+
+        // Only one thread derives the next key.  The others use the current one until it is ready
+        if (current != null && !m_rotateLock.tryLock())
+            return current;
+        if (current == null)
+            m_rotateLock.lock();
+        try
+        {
+            DerivedKey latest = m_encryptKey;
+            if (latest != null && System.nanoTime() - latest.m_createdAt < m_keyLifetimeNs)
+                return latest;
+
+            byte[] salt = generateRandomBytes(LEN_SALT);
+            DerivedKey next = new DerivedKey(salt, generateKey(password, salt));
+            m_encryptKey = next;
+
+            // Replies encrypted under the same salt are decrypted without deriving the key again
+            cacheKey(salt, next.m_key);
+            return next;
+        }
+        finally
+        {
+            m_rotateLock.unlock();
+        }
+    }
+
+    /**
+     * Returns the key for the salt of data to be decrypted, from the cache if it has been seen recently
+     *
+     * @param password The password
+     * @param data The data, starting with the salt
+     * @return The key
+     * @throws KEzSignException If there is an error
+     */
+    private SecretKey getDecryptKey(String password, byte[] data) throws KEzSignException
+    {
+        Long saltId = toSaltId(data);
+        m_cacheLock.lock();
+        try
+        {
+            SecretKey key = m_decryptKeys.get(saltId);
+            if (key != null)
+                return key;
+        }
+        finally
+        {
+            m_cacheLock.unlock();
+        }
+
+        // Derived outside the lock.  Two threads may derive the same key at once, which does no harm
+        byte[] salt = extractSalt(data);
+        SecretKey key = generateKey(password, salt);
+        cacheKey(salt, key);
+        return key;
+    }
+
+    private void cacheKey(byte[] salt, SecretKey key)
+    {
+        m_cacheLock.lock();
+        try
+        {
+            m_decryptKeys.put(toSaltId(salt), key);
+        }
+        finally
+        {
+            m_cacheLock.unlock();
+        }
+    }
+
+    /**
+     * @param data The salt, or data starting with it
+     * @return The salt as a number, to look up its key by
+     */
+    private Long toSaltId(byte[] data)
+    {
+        long id = 0;
+        for (int i = 0; i < LEN_SALT; i++)
+            id = (id << 8) | (data[i] & 0xFF);
+        return id;
+    }
+
+    /**
+     * Encrypts a block of data.  Uses the current salt and key (see getEncryptKey), generating a new random salt
+     * and the key from this and the Password already set when its lifetime has passed.  Generates a new IV and
+     * encrypts the data.
      * The data returned is of the following format:
      * Bytes Len  Data
      * 0-7   8    Salt
      * 8-15  16   IV
      * 16->  n    Encrypted data
-     * @param data The data to encrypt
+     * @param data The buffer holding the data to encrypt
+     * @param offset The offset of the data
+     * @param len The length of the data
      * @return The encrypted data
      * @throws KEzSignException If there is an error
      */
-    private byte[] encryptData(String password, byte[] data) throws KEzSignException
+    private byte[] encryptData(String password, byte[] data, int offset, int len) throws KEzSignException
     {
-        byte[] salt = generateRandomBytes(LEN_SALT);
+        DerivedKey dk = getEncryptKey(password);
         byte[] iv = generateRandomBytes(LEN_IV);
 
-        SecretKey sk = generateKey(password, salt);
-        if (sk == null)
-            return null;
-
+        Cipher cipher = null;
         try {
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(Cipher.ENCRYPT_MODE, sk, new IvParameterSpec(iv));
-
-            byte[] encData = cipher.doFinal(data);
+            cipher = CIPHERS.acquire();
+            cipher.init(Cipher.ENCRYPT_MODE, dk.m_key, new IvParameterSpec(iv));
 
-            byte[] newData = new byte[encData.length + LEN_IV + LEN_SALT];
-            System.arraycopy(salt, 0, newData, 0, LEN_SALT);
+            // Encrypted straight into place after the salt and IV
+            byte[] newData = new byte[LEN_SALT + LEN_IV + cipher.getOutputSize(len)];
+            System.arraycopy(dk.m_salt, 0, newData, 0, LEN_SALT);
             System.arraycopy(iv, 0, newData, LEN_SALT, LEN_IV);
-            System.arraycopy(encData, 0, newData, LEN_SALT + LEN_IV, encData.length);
+            int encLen = cipher.doFinal(data, offset, len, newData, LEN_SALT + LEN_IV);
 
+            if (LEN_SALT + LEN_IV + encLen != newData.length)
+                return Arrays.copyOf(newData, LEN_SALT + LEN_IV + encLen);
             return newData;
         }
         catch (java.security.InvalidKeyException ke)
@@ -197,11 +366,15 @@ public class KEncrypt
         {
             throw new KEzSignException("There was an error encrypting the data.  " + e.getMessage());
         }
+        finally
+        {
+            CIPHERS.release(cipher);
+        }
     }
 
     /**
      * Decrypts a block of data.  Extracts the salt from the data and generates the key from this and the Password
-     * already set.  Extracts the IV and decrypts the data.
+     * already set, unless it is cached.  Extracts the IV and decrypts the data.
      * The data processed is in the following format:
      * Bytes Len  Data
      * 0-7   8    Salt
@@ -215,22 +388,17 @@ public class KEncrypt
      */
     private byte[] decryptData(String password, byte[] data) throws KEzSignException
     {
-        byte[] salt = extractSalt(data);
-        byte[] iv = extractIV(data);
-
-        byte[] cleanedData = new byte[data.length - (LEN_SALT + LEN_IV)];
-        System.arraycopy(data, LEN_SALT + LEN_IV, cleanedData, 0, cleanedData.length);
-
-        SecretKey sk = generateKey(password, salt);
+        SecretKey sk = getDecryptKey(password, data);
         if (sk == null)
             return null;
 
+        Cipher cipher = null;
         try
         {
-            Cipher cipher = Cipher.getInstance("AES/CBC/PKCS5Padding");
-            cipher.init(Cipher.DECRYPT_MODE, sk, new IvParameterSpec(iv));
+            cipher = CIPHERS.acquire();
+            cipher.init(Cipher.DECRYPT_MODE, sk, new IvParameterSpec(data, LEN_SALT, LEN_IV));
 
-            return cipher.doFinal(cleanedData);
+            return cipher.doFinal(data, LEN_SALT + LEN_IV, data.length - (LEN_SALT + LEN_IV));
         }
         catch (java.security.InvalidKeyException ke)
         {
@@ -241,6 +409,26 @@ public class KEncrypt
         {
             throw new KEzSignException("There was an error decrypting the data.  Check the password is correct.  Error: " + e.getMessage());
         }
+        finally
+        {
+            CIPHERS.release(cipher);
+        }
+    }
+
+    /**
+     * A salt and the key derived from it
+     */
+    private static class DerivedKey
+    {
+        final byte[] m_salt;
+        final SecretKey m_key;
+        final long m_createdAt = System.nanoTime();
+
+        DerivedKey(byte[] salt, SecretKey key)
+        {
+            m_salt = salt;
+            m_key = key;
+        }
     }
 }
 /********************************************************************************************************************/
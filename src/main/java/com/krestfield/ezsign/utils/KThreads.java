@@ -0,0 +1,84 @@
+package com.krestfield.ezsign.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * KThreads
+ *
+ * Creates the threads that run client requests.  Virtual threads are created by KVirtualThreads, the only
+ * class with a Java 21 version: the jar is multi-release and on Java 21 and later the version in
+ * META-INF/versions/21 is loaded in place of the Java 8 version, which does not support them
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KThreads
+{
+    /**
+     *
+     * @return True if virtual threads are available on this Java version
+     */
+    public static boolean isVirtualThreadsSupported()
+    {
+        return KVirtualThreads.isSupported();
+    }
+
+    /**
+     * Creates an executor for running requests
+     *
+     * @param namePrefix The thread name prefix
+     * @param virtual If true and supported, each task runs on its own virtual thread.  Otherwise a cached pool
+     *                of daemon platform threads is used
+     * @return The executor
+     */
+    public static ExecutorService newRequestExecutor(String namePrefix, boolean virtual)
+    {
+        if (virtual && KVirtualThreads.isSupported())
+            return KVirtualThreads.newExecutor(namePrefix);
+
+        return newPlatformExecutor(namePrefix);
+    }
+
+    /**
+     * Creates a timer for running short tasks after a delay, on a single daemon platform thread.  Cancelled
+     * tasks are removed straight away, as most are cancelled long before they are due
+     *
+     * @param name The thread name
+     * @return The timer
+     */
+    public static ScheduledExecutorService newTimer(final String name)
+    {
+        ScheduledThreadPoolExecutor timer = new ScheduledThreadPoolExecutor(1, new ThreadFactory()
+        {
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, name);
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        timer.setRemoveOnCancelPolicy(true);
+        return timer;
+    }
+
+    static ExecutorService newPlatformExecutor(final String namePrefix)
+    {
+        return Executors.newCachedThreadPool(new ThreadFactory()
+        {
+            private final AtomicInteger m_threadNum = new AtomicInteger();
+
+            public Thread newThread(Runnable r)
+            {
+                Thread thread = new Thread(r, namePrefix + m_threadNum.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,36 @@
+package com.krestfield.ezsign.utils;
+
+import java.util.concurrent.ExecutorService;
+
+/**
+ * KVirtualThreads
+ *
+ * Creates virtual threads for KThreads.  This is the Java 8 version, where they are not available.  On Java 21
+ * and later the version in META-INF/versions/21 of the multi-release jar is loaded instead
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+class KVirtualThreads
+{
+    /**
+     *
+     * @return True if virtual threads are available on this Java version
+     */
+    static boolean isSupported()
+    {
+        return false;
+    }
+
+    /**
+     * Creates an executor that runs each task on its own virtual thread.  Only called if isSupported
+     *
+     * @param namePrefix The thread name prefix
+     * @return The executor
+     */
+    static ExecutorService newExecutor(String namePrefix)
+    {
+        throw new UnsupportedOperationException("Virtual threads require Java 21 or later");
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,37 @@
+package com.krestfield.ezsign.utils;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * KVirtualThreads
+ *
+ * Creates virtual threads for KThreads.  This is the Java 21 version, loaded from META-INF/versions/21 of the
+ * multi-release jar in place of the Java 8 version
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+class KVirtualThreads
+{
+    /**
+     *
+     * @return True if virtual threads are available on this Java version
+     */
+    static boolean isSupported()
+    {
+        return true;
+    }
+
+    /**
+     * Creates an executor that runs each task on its own virtual thread
+     *
+     * @param namePrefix The thread name prefix
+     * @return The executor
+     */
+    static ExecutorService newExecutor(String namePrefix)
+    {
+        return Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name(namePrefix, 1).factory());
+    }
+}
+/********************************************* END OF FILE *****************************************************
+ ***************************************************************************************************************/
@@ -0,0 +1,163 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.net.KAdaptiveTimeout;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AdaptiveTimeoutTest
+ *
+ * Many threads request random bytes (quick at the server) and signatures (slower) against a server on which
+ * a small share of requests get stuck.  Runs with the fixed read timeout and then with adaptive timeouts and
+ * reports, for each operation, the time taken by the calls that succeeded and by those that failed (how long
+ * a stuck request held the caller), and the timeouts learned.  Then checks the timeout grows to suit when
+ * every request becomes slower
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class AdaptiveTimeoutTest
+{
+    private static int numThreads = 8;
+    private static int numIterations = 150;
+    private static int randProcessingMs = 1;
+    private static int signProcessingMs = 30;
+    private static double stuckShare = 0.005;
+    private static int stuckProcessingMs = 2000;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        try
+        {
+            System.out.println("Usage: AdaptiveTimeoutTest [num threads] [num iterations]");
+            if (args.length > 0)
+                numThreads = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                numIterations = Integer.parseInt(args[1]);
+
+            System.out.println("RAND takes " + randProcessingMs + "ms, SIGN " + signProcessingMs + "ms, " + (stuckShare * 100) +
+                    "% of requests stuck for " + stuckProcessingMs + "ms");
+
+            run("Fixed 5000ms timeout", false);
+            run("Adaptive, 3 x p99", true);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private static void run(String name, boolean useAdaptive) throws Exception
+    {
+        LocalEzSignServer server = new LocalEzSignServer(0).useProcessingTime("RAND", randProcessingMs)
+                .useProcessingTime("SIGN", signProcessingMs).useSlowRequests(stuckShare, stuckProcessingMs).start();
+        final EzSignClient client = new EzSignClient("127.0.0.1", server.getPort(), 1000, 5000);
+        if (useAdaptive)
+            client.useAdaptiveTimeout(99, 3, 20, 5000);
+
+        final long[][] latencies = new long[2][numThreads * numIterations];
+        final boolean[][] failed = new boolean[2][numThreads * numIterations];
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        long startTime = System.nanoTime();
+        for (int t = 0; t < numThreads; t++)
+        {
+            final int threadNum = t;
+            new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < numIterations; i++)
+                    {
+                        int index = threadNum * numIterations + i;
+                        for (int op = 0; op < 2; op++)
+                        {
+                            long callStart = System.nanoTime();
+                            try
+                            {
+                                if (op == 0)
+                                    client.generateRandomBytes(channel, 32);
+                                else
+                                    client.signData(channel, "Data to sign".getBytes(), false);
+                            }
+                            catch (Exception e)
+                            {
+                                failed[op][index] = true;
+                                failures.incrementAndGet();
+                            }
+                            latencies[op][index] = System.nanoTime() - callStart;
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        double secs = (System.nanoTime() - startTime) / 1e9;
+
+        System.out.println();
+        System.out.println(String.format("%s: %.1fs, %d failed", name, secs, failures.get()));
+        report("RAND", latencies[0], failed[0]);
+        report("SIGN", latencies[1], failed[1]);
+
+        KAdaptiveTimeout adaptiveTimeout = client.getAdaptiveTimeout();
+        if (adaptiveTimeout != null)
+        {
+            System.out.println(String.format("  Timeouts learned: RAND %dms, SIGN %dms.  Requests timed out: %d",
+                    adaptiveTimeout.getReadTimeoutMs("RAND", channel), adaptiveTimeout.getReadTimeoutMs("SIGN", channel),
+                    adaptiveTimeout.getTimeouts()));
+
+            // Every SIGN request becomes slower than the learned timeout.  The timeout must grow to suit
+            server.useSlowRequests(0, 0).useProcessingTime("SIGN", signProcessingMs * 8);
+            int slowFailures = 0;
+            for (int i = 0; i < 40; i++)
+            {
+                try
+                {
+                    client.signData(channel, "Data to sign".getBytes(), false);
+                }
+                catch (Exception e)
+                {
+                    slowFailures++;
+                }
+            }
+            System.out.println(String.format("  SIGN slowed to %dms for all requests: %d of 40 failed, timeout now %dms",
+                    signProcessingMs * 8, slowFailures, adaptiveTimeout.getReadTimeoutMs("SIGN", channel)));
+        }
+
+        client.close();
+        server.stop();
+    }
+
+    private static void report(String operation, long[] latencies, boolean[] failed)
+    {
+        long[] ok = new long[latencies.length];
+        long[] notOk = new long[latencies.length];
+        int numOk = 0;
+        int numNotOk = 0;
+        for (int i = 0; i < latencies.length; i++)
+        {
+            if (failed[i])
+                notOk[numNotOk++] = latencies[i];
+            else
+                ok[numOk++] = latencies[i];
+        }
+        ok = Arrays.copyOf(ok, numOk);
+        notOk = Arrays.copyOf(notOk, numNotOk);
+        Arrays.sort(ok);
+        Arrays.sort(notOk);
+
+        System.out.println(String.format("  %s  OK %5d  p50 %6.2fms  p99 %7.2fms    failed %3d  max time held %7.2fms", operation,
+                numOk, percentile(ok, 0.50), percentile(ok, 0.99), numNotOk, (numNotOk == 0) ? 0 : notOk[numNotOk - 1] / 1e6));
+    }
+
+    private static double percentile(long[] sorted, double p)
+    {
+        if (sorted.length == 0)
+            return 0;
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1e6;
+    }
+}
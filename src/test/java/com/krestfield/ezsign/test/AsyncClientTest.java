@@ -0,0 +1,209 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.KEzSignConnectException;
+import com.krestfield.ezsign.KVerificationException;
+
+import java.net.ServerSocket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * AsyncClientTest
+ *
+ * Checks the asynchronous API over each transport: results, server error codes completing exceptionally with
+ * the same exception types as the synchronous API, connection failures and a caller supplied executor.  Then
+ * puts a large number of calls in flight at once against a server that takes a while to respond
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class AsyncClientTest
+{
+    private static int numConcurrent = 500;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        LocalEzSignServer server = null;
+        LocalEzSignServer authServer = null;
+        LocalEzSignServer slowServer = null;
+        ExecutorService callerExecutor = Executors.newFixedThreadPool(2);
+        try
+        {
+            System.out.println("Usage: AsyncClientTest [num concurrent]");
+            if (args.length > 0)
+                numConcurrent = Integer.parseInt(args[0]);
+
+            server = new LocalEzSignServer(0).useBinaryFormat().start();
+            authServer = new LocalEzSignServer(0).useAuthCode("password").start();
+
+            check("Blocking", new EzSignClient("127.0.0.1", server.getPort()), null);
+            check("Blocking, caller executor", new EzSignClient("127.0.0.1", server.getPort()), callerExecutor);
+            check("NIO", new EzSignClient("127.0.0.1", server.getPort()).useNio(2), null);
+            check("NIO, caller executor", new EzSignClient("127.0.0.1", server.getPort()).useNio(2), callerExecutor);
+            check("NIO, binary", new EzSignClient("127.0.0.1", server.getPort()).useBinaryFormat().useNio(2), null);
+            check("NIO, auth code", new EzSignClient("127.0.0.1", authServer.getPort(), "password").useNio(2), null);
+
+            checkConnectFailure("Blocking", false);
+            checkConnectFailure("NIO", true);
+
+            // Many calls in flight at once, each taking 200ms at the server
+            slowServer = new LocalEzSignServer(200).start();
+            throughput("Blocking", new EzSignClient("127.0.0.1", slowServer.getPort()));
+            throughput("NIO", new EzSignClient("127.0.0.1", slowServer.getPort()).useNio(2));
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            callerExecutor.shutdown();
+            if (server != null)
+                server.stop();
+            if (authServer != null)
+                authServer.stop();
+            if (slowServer != null)
+                slowServer.stop();
+        }
+    }
+
+    /**
+     * Calls each async method and checks the results
+     *
+     * @param name The name of the check
+     * @param client The client
+     * @param executor The executor or null
+     * @throws Exception If any call fails
+     */
+    private static void check(String name, EzSignClient client, ExecutorService executor) throws Exception
+    {
+        for (int i = 0; i < 50; i++)
+        {
+            byte[] randBytes = client.generateRandomBytesAsync(channel, 32, executor).get();
+            byte[] signature = client.signDataAsync(channel, randBytes, false, executor).get();
+            client.verifySignatureAsync(channel, signature, randBytes, false, false, false, executor).get();
+
+            byte[] encrypted = client.encryptDataAsync(channel, randBytes, "KEY", executor).get();
+            byte[] decrypted = client.decryptDataAsync(channel, encrypted, "KEY", executor).get();
+            if (!Arrays.equals(randBytes, decrypted))
+                throw new Exception(name + ": decrypted data does not match");
+
+            randBytes[0] ^= 1;
+            try
+            {
+                client.verifySignatureAsync(channel, signature, randBytes, false, false, false, executor).get();
+                throw new Exception(name + ": tampered data verified");
+            }
+            catch (ExecutionException e)
+            {
+                if (!(e.getCause() instanceof KVerificationException))
+                    throw new Exception(name + ": expected KVerificationException but was " + e.getCause());
+            }
+        }
+
+        // Message construction errors fail the future rather than throwing
+        try
+        {
+            client.signDataAsync(channel, null, false, executor).get();
+            throw new Exception(name + ": null data was signed");
+        }
+        catch (ExecutionException e)
+        {
+            // Expected
+        }
+
+        System.out.println(name + ": OK");
+        client.close();
+    }
+
+    /**
+     * Checks that a call to a port with nothing listening completes with KEzSignConnectException
+     *
+     * @param name The name of the check
+     * @param nio If true the non-blocking transport is used
+     * @throws Exception If the check fails
+     */
+    private static void checkConnectFailure(String name, boolean nio) throws Exception
+    {
+        ServerSocket unused = new ServerSocket(0);
+        int port = unused.getLocalPort();
+        unused.close();
+
+        EzSignClient client = new EzSignClient("127.0.0.1", port, 2000, 5000);
+        if (nio)
+            client.useNio(1);
+        try
+        {
+            client.signDataAsync(channel, "Data".getBytes(), false).get();
+            throw new Exception(name + ": call with no server succeeded");
+        }
+        catch (ExecutionException e)
+        {
+            if (!(e.getCause() instanceof KEzSignConnectException))
+                throw new Exception(name + ": expected KEzSignConnectException but was " + e.getCause());
+        }
+        finally
+        {
+            client.close();
+        }
+        System.out.println(name + ": connection failure OK");
+    }
+
+    /**
+     * Starts the calls all at once and reports how long they took to complete and how many threads were used
+     *
+     * @param name The name of the run
+     * @param client The client
+     * @throws Exception If there is an error
+     */
+    private static void throughput(String name, EzSignClient client) throws Exception
+    {
+        long startTime = System.nanoTime();
+        List<CompletableFuture<byte[]>> results = new ArrayList<CompletableFuture<byte[]>>();
+        for (int i = 0; i < numConcurrent; i++)
+            results.add(client.signDataAsync(channel, "Data to sign".getBytes(), false));
+
+        int asyncThreads = countThreads("EzSignAsync");
+        int failed = 0;
+        for (CompletableFuture<byte[]> result : results)
+        {
+            try
+            {
+                result.get();
+            }
+            catch (ExecutionException e)
+            {
+                failed++;
+            }
+        }
+        long timeTaken = System.nanoTime() - startTime;
+
+        System.out.println(name + ": " + numConcurrent + " calls (200ms each at the server) completed in " +
+                timeTaken / 1000000 + "ms.  Failed: " + failed + " Client threads: " +
+                Math.max(asyncThreads, countThreads("EzSignAsync")) + " async, " + countThreads("EzSignNioLoop") + " I/O");
+        client.close();
+    }
+
+    /**
+     * Counts the live threads with the given name prefix
+     *
+     * @param prefix The thread name prefix
+     * @return The number of threads
+     */
+    private static int countThreads(String prefix)
+    {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.getName().startsWith(prefix))
+                count++;
+        }
+        return count;
+    }
+}
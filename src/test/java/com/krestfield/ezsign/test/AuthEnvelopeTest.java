@@ -0,0 +1,209 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.KEzSignException;
+import com.krestfield.ezsign.utils.KAuthEnvelope;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * AuthEnvelopeTest
+ *
+ * Many threads sign payloads with an auth code set, in the text format (base64 encoded, encrypted and base64
+ * encoded again), in the binary format with the original encryption and in the v2 envelope, against one
+ * server accepting all three, and reports the calls per second and the bytes sent per payload byte.  Then
+ * checks the v2 envelope over each connection type, with a wrong auth code, and with clients of both kinds at
+ * once, and that a reply is only accepted as the answer to the request it was sealed for
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class AuthEnvelopeTest
+{
+    private static int numThreads = 8;
+    private static int numIterations = 200;
+    private static int payloadBytes = 16 * 1024;
+    private static String authCode = "password";
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        LocalEzSignServer server = null;
+        try
+        {
+            System.out.println("Usage: AuthEnvelopeTest [num threads] [payload bytes]");
+            if (args.length > 0)
+                numThreads = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                payloadBytes = Integer.parseInt(args[1]);
+
+            server = new LocalEzSignServer(0).useBinaryFormat().useAuthCode(authCode).useKeepAlive().start();
+            System.out.println(numThreads + " threads signing " + (payloadBytes / 1024) + "KB");
+
+            run("Text", new EzSignClient("127.0.0.1", server.getPort(), authCode).useKeepAlive(16, 60000), server);
+            run("Binary", new EzSignClient("127.0.0.1", server.getPort(), authCode).useBinaryFormat().useKeepAlive(16, 60000), server);
+            run("Binary, v2 envelope", new EzSignClient("127.0.0.1", server.getPort(), authCode).useAuthEnvelope()
+                    .useKeepAlive(16, 60000), server);
+
+            checkTransports();
+            checkSwappedReplies();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            if (server != null)
+                server.stop();
+        }
+    }
+
+    private static void run(String name, final EzSignClient client, LocalEzSignServer server) throws Exception
+    {
+        final byte[] payload = new byte[payloadBytes];
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(numThreads);
+
+        long bytesAtStart = server.getNumBytesReceived();
+        long startTime = System.nanoTime();
+        for (int t = 0; t < numThreads; t++)
+        {
+            new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < numIterations; i++)
+                    {
+                        try
+                        {
+                            client.signData(channel, payload, false);
+                        }
+                        catch (Exception e)
+                        {
+                            failed.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        double secs = (System.nanoTime() - startTime) / 1e9;
+
+        int calls = numThreads * numIterations;
+        double bytesPerCall = (double) (server.getNumBytesReceived() - bytesAtStart) / calls;
+        System.out.println(String.format("%-24s %8.0f calls/sec  %8.0f bytes sent per call  %4.2f x payload  %d failed",
+                name, calls / secs, bytesPerCall, bytesPerCall / payloadBytes, failed.get()));
+
+        client.close();
+    }
+
+    private static void checkTransports() throws Exception
+    {
+        LocalEzSignServer server = new LocalEzSignServer(0).useBinaryFormat().useAuthCode(authCode).useKeepAlive()
+                .useMultiplexing().start();
+        int port = server.getPort();
+        check("New connections", new EzSignClient("127.0.0.1", port, authCode).useAuthEnvelope());
+        check("Keep-alive", new EzSignClient("127.0.0.1", port, authCode).useAuthEnvelope().useKeepAlive(4, 60000));
+        check("Multiplexed", new EzSignClient("127.0.0.1", port, authCode).useAuthEnvelope().useMultiplexing(2));
+        check("NIO", new EzSignClient("127.0.0.1", port, authCode).useAuthEnvelope().useNio(2));
+
+        // Clients of both kinds at once
+        final EzSignClient legacy = new EzSignClient("127.0.0.1", port, authCode).useBinaryFormat().useKeepAlive(4, 60000);
+        final EzSignClient enveloped = new EzSignClient("127.0.0.1", port, authCode).useAuthEnvelope().useKeepAlive(4, 60000);
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(8);
+        for (int t = 0; t < 8; t++)
+        {
+            final EzSignClient client = (t % 2 == 0) ? legacy : enveloped;
+            new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < 100; i++)
+                    {
+                        try
+                        {
+                            byte[] data = ("Data " + i).getBytes();
+                            client.verifySignature(channel, client.signData(channel, data, false), data, false);
+                        }
+                        catch (Exception e)
+                        {
+                            failed.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        System.out.println("Original and v2 clients at once: 800 calls, " + failed.get() + " failed");
+        legacy.close();
+        enveloped.close();
+
+        EzSignClient wrongCode = new EzSignClient("127.0.0.1", port, "not the password").useAuthEnvelope();
+        try
+        {
+            wrongCode.signData(channel, "Data".getBytes(), false);
+            System.out.println("Wrong auth code: FAILED - the call succeeded");
+        }
+        catch (Exception e)
+        {
+            System.out.println("Wrong auth code: OK - " + e.getClass().getSimpleName());
+        }
+        wrongCode.close();
+        server.stop();
+    }
+
+    /**
+     * Two requests in flight at once, with their replies swapped or replayed
+     */
+    private static void checkSwappedReplies() throws Exception
+    {
+        KAuthEnvelope client = new KAuthEnvelope(authCode);
+        KAuthEnvelope server = new KAuthEnvelope(authCode);
+
+        byte[] request1 = client.sealRequest("Sign this".getBytes());
+        byte[] request2 = client.sealRequest("Sign that".getBytes());
+        byte[] reply1 = server.sealReply(request1, server.openRequest(request1));
+        byte[] reply2 = server.sealReply(request2, server.openRequest(request2));
+
+        // Each reply opens as the answer to its own request only
+        boolean ok = Arrays.equals(client.openReply(request1, reply1), "Sign this".getBytes()) &&
+                Arrays.equals(client.openReply(request2, reply2), "Sign that".getBytes());
+        ok = ok && isRejected(client, request1, reply2) && isRejected(client, request2, reply1);
+
+        // Nor as the answer to a request of another session
+        byte[] otherSession = new KAuthEnvelope(authCode).sealRequest("Sign this".getBytes());
+        ok = ok && isRejected(client, otherSession, reply1);
+
+        System.out.println("Swapped and replayed replies rejected: " + (ok ? "OK" : "FAILED"));
+    }
+
+    private static boolean isRejected(KAuthEnvelope client, byte[] request, byte[] reply)
+    {
+        try
+        {
+            client.openReply(request, reply);
+            return false;
+        }
+        catch (KEzSignException e)
+        {
+            return true;
+        }
+    }
+
+    private static void check(String name, EzSignClient client) throws Exception
+    {
+        byte[] data = "Data to sign".getBytes();
+        byte[] signature = client.signData(channel, data, false);
+        client.verifySignature(channel, signature, data, false);
+        byte[] enciphered = client.encryptData(channel, data, "KEY");
+        byte[] async = client.signDataAsync(channel, data, false).get();
+        System.out.println(String.format("v2 envelope, %-16s %s", name + ":",
+                (Arrays.equals(signature, async) && enciphered.length == data.length) ? "OK" : "FAILED"));
+        client.close();
+    }
+}
@@ -0,0 +1,204 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.msg.KBase64;
+
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Random;
+
+/**
+ * Base64Test
+ *
+ * Checks KBase64 against java.util.Base64 for data of many lengths, through arrays, heap and direct buffers and
+ * in parallel, and that input with line breaks, other junk and padding in the middle is still decoded as it
+ * was, skipping the characters that are not base64.  Then reports the encode and decode rates of both for a
+ * few sizes.  See Base64Benchmark (src/jmh/java) for the JMH comparison
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class Base64Test
+{
+    private static int maxLength = 4 * 1024 * 1024;
+
+    public static void main(String args[])
+    {
+        try
+        {
+            System.out.println("Usage: Base64Test [max length]");
+            if (args.length > 0)
+                maxLength = Integer.parseInt(args[0]);
+
+            checkLengths();
+            checkLenient();
+
+            int[] sizes = { 32, 1024, 64 * 1024, 1024 * 1024, maxLength };
+            for (int size : sizes)
+                measure(size);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private static void checkLengths()
+    {
+        Random random = new Random(1);
+        int checked = 0;
+        int failed = 0;
+        int[] lengths = new int[200];
+        for (int i = 0; i < 100; i++)
+            lengths[i] = i;
+        for (int i = 100; i < lengths.length; i++)
+            lengths[i] = random.nextInt(maxLength);
+        lengths[lengths.length - 1] = maxLength;
+
+        for (int len : lengths)
+        {
+            byte[] data = new byte[len];
+            random.nextBytes(data);
+            byte[] expected = Base64.getEncoder().encode(data);
+
+            checked++;
+            byte[] encoded = KBase64.encode(data);
+            boolean ok = Arrays.equals(encoded, expected)
+                    && Arrays.equals(KBase64.encode(data, true), expected)
+                    && KBase64.ToBase64String(data).equals(new String(expected, StandardCharsets.US_ASCII))
+                    && Arrays.equals(KBase64.decode(encoded), data)
+                    && Arrays.equals(KBase64.decode(encoded, true), data)
+                    && Arrays.equals(KBase64.FromBase64String(new String(encoded, StandardCharsets.US_ASCII)), data);
+
+            // Into and out of the middle of larger arrays
+            byte[] message = new byte[expected.length + 7];
+            int end = KBase64.encode(data, 0, len, message, 7);
+            ok = ok && end == message.length && Arrays.equals(Arrays.copyOfRange(message, 7, end), expected)
+                    && Arrays.equals(KBase64.decode(message, 7, expected.length, false), data);
+
+            // Through buffers, at an offset
+            ByteBuffer src = ByteBuffer.allocate(len + 3);
+            src.position(3);
+            src.put(data).position(3);
+            ByteBuffer dst = ByteBuffer.allocateDirect(expected.length + 5);
+            dst.position(5);
+            KBase64.encode(src, dst);
+            dst.flip().position(5);
+            ByteBuffer decoded = ByteBuffer.allocate(len);
+            KBase64.decode(dst, decoded);
+            ok = ok && !src.hasRemaining() && !dst.hasRemaining() && Arrays.equals(decoded.array(), data);
+
+            if (!ok)
+            {
+                failed++;
+                System.out.println("Length " + len + " FAILED");
+            }
+        }
+
+        System.out.println("Encoded and decoded " + checked + " lengths, " + failed + " failed");
+    }
+
+    private static void checkLenient()
+    {
+        byte[] data = "Data to encode, long enough to be split over lines".getBytes(StandardCharsets.US_ASCII);
+        String strict = Base64.getEncoder().encodeToString(data);
+        String mime = Base64.getMimeEncoder(16, "\r\n".getBytes(StandardCharsets.US_ASCII)).encodeToString(data);
+
+        String[] inputs = { mime, " " + strict + "\n", strict.replace("=", ""), strict.substring(0, 8) + "=" +
+                strict.substring(8), strict.substring(0, 10) + "€" + strict.substring(10) };
+        int failed = 0;
+        for (String input : inputs)
+        {
+            if (!Arrays.equals(KBase64.FromBase64String(input), data))
+            {
+                failed++;
+                System.out.println("Lenient input FAILED: " + input);
+            }
+        }
+
+        // Large enough to decode in parallel, with line breaks that keep its length a multiple of 4
+        byte[] large = new byte[3 * KBase64.PARALLEL_MIN_LENGTH];
+        new Random(2).nextBytes(large);
+        String largeB64 = Base64.getEncoder().encodeToString(large);
+        byte[] largeWithBreaks = (largeB64.substring(0, largeB64.length() / 2) + "\r\n\r\n" +
+                largeB64.substring(largeB64.length() / 2)).getBytes(StandardCharsets.US_ASCII);
+        if (!Arrays.equals(KBase64.decode(largeWithBreaks, true), large))
+        {
+            failed++;
+            System.out.println("Large input with line breaks FAILED");
+        }
+
+        // Decoding a buffer that is too small leaves both unchanged
+        ByteBuffer src = ByteBuffer.wrap(strict.getBytes(StandardCharsets.US_ASCII));
+        ByteBuffer dst = ByteBuffer.allocate(data.length - 1);
+        try
+        {
+            KBase64.decode(src, dst);
+            failed++;
+        }
+        catch (BufferOverflowException e)
+        {
+            if (src.position() != 0 || dst.position() != 0)
+                failed++;
+        }
+
+        // Input of a strict length with junk in it is decoded leniently, and nothing is written past what it decodes to
+        byte[] junk = (strict.substring(0, 20) + " " + strict.substring(21)).getBytes(StandardCharsets.US_ASCII);
+        byte[] expected = KBase64.decode(junk);
+        dst = ByteBuffer.allocate(data.length + 8);
+        Arrays.fill(dst.array(), (byte) 0x55);
+        KBase64.decode(ByteBuffer.wrap(junk), dst);
+        boolean untouched = true;
+        for (int i = dst.position(); i < dst.capacity(); i++)
+            untouched &= dst.get(i) == 0x55;
+        if (dst.position() != expected.length || !Arrays.equals(Arrays.copyOf(dst.array(), expected.length), expected) || !untouched)
+        {
+            failed++;
+            System.out.println("Junk input into a buffer FAILED");
+        }
+
+        System.out.println("Decoded " + (inputs.length + 2) + " inputs with junk and a short buffer, " + failed + " failed");
+    }
+
+    private static void measure(int size)
+    {
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        byte[] encoded = Base64.getEncoder().encode(data);
+        int iterations = Math.max(3, 256 * 1024 * 1024 / Math.max(size, 1) / 8);
+
+        // Warm up, then time
+        for (int round = 0; round < 2; round++)
+        {
+            long sink = 0;
+            long start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                sink += KBase64.encode(data).length;
+            long kEncode = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                sink += Base64.getEncoder().encode(data).length;
+            long jdkEncode = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                sink += KBase64.decode(encoded).length;
+            long kDecode = System.nanoTime() - start;
+
+            start = System.nanoTime();
+            for (int i = 0; i < iterations; i++)
+                sink += Base64.getDecoder().decode(encoded).length;
+            long jdkDecode = System.nanoTime() - start;
+
+            // The lengths are used so the results are not optimised away
+            if (round == 1 && sink > 0)
+            {
+                double mb = (double) size * iterations / (1024 * 1024);
+                System.out.println(String.format("%9d bytes  encode: KBase64 %7.0f MB/s  JDK %7.0f MB/s   decode: KBase64 %7.0f MB/s  JDK %7.0f MB/s",
+                        size, mb / (kEncode / 1e9), mb / (jdkEncode / 1e9), mb / (kDecode / 1e9), mb / (jdkDecode / 1e9)));
+            }
+        }
+    }
+}
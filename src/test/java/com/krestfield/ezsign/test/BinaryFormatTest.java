@@ -0,0 +1,173 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.KEzSignException;
+import com.krestfield.ezsign.KVerificationException;
+import com.krestfield.ezsign.msg.KBinaryMessage;
+
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * BinaryFormatTest
+ *
+ * Checks malformed certificate lists are rejected, that the binary format works over each connection type, with
+ * and without an auth code, then compares the time to verify signatures over large content in the text and
+ * binary formats on keep-alive connections
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class BinaryFormatTest
+{
+    private static int numIterations = 200;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        LocalEzSignServer server = null;
+        LocalEzSignServer authServer = null;
+        try
+        {
+            System.out.println("Usage: BinaryFormatTest [num iterations]");
+            if (args.length > 0)
+                numIterations = Integer.parseInt(args[0]);
+
+            checkMalformedCerts();
+
+            server = new LocalEzSignServer(0).useKeepAlive().useMultiplexing().useBinaryFormat().start();
+            authServer = new LocalEzSignServer(0).useKeepAlive().useMultiplexing().useBinaryFormat().useAuthCode("password").start();
+
+            int port = server.getPort();
+            check("Text, new connection per message", new EzSignClient("127.0.0.1", port));
+            check("Binary, new connection per message", new EzSignClient("127.0.0.1", port).useBinaryFormat());
+            check("Binary, pre-connected", new EzSignClient("127.0.0.1", port).useBinaryFormat().usePreConnectedSockets(4, 5000));
+            check("Binary, keep-alive", new EzSignClient("127.0.0.1", port).useBinaryFormat().useKeepAlive(4, 30000));
+            check("Binary, multiplexed", new EzSignClient("127.0.0.1", port).useBinaryFormat().useMultiplexing(2));
+            check("Binary, auth code", new EzSignClient("127.0.0.1", authServer.getPort(), "password").useBinaryFormat());
+            check("Binary, auth code, multiplexed", new EzSignClient("127.0.0.1", authServer.getPort(), "password")
+                    .useBinaryFormat().useMultiplexing(2));
+
+            EzSignClient textClient = new EzSignClient("127.0.0.1", port).useKeepAlive(1, 30000);
+            EzSignClient binaryClient = new EzSignClient("127.0.0.1", port).useKeepAlive(1, 30000).useBinaryFormat();
+            int[] sizes = { 1024, 64 * 1024, 1024 * 1024 };
+            for (int size : sizes)
+            {
+                int iterations = Math.max(5, numIterations * 1024 / size);
+                long textTime = verifyLoop(textClient, size, iterations);
+                long binaryTime = verifyLoop(binaryClient, size, iterations);
+                System.out.println(String.format("%8d byte content: text %8d micro seconds, binary %8d micro seconds per verify (%.2fx)",
+                        size, textTime / 1000 / iterations, binaryTime / 1000 / iterations, (double) textTime / binaryTime));
+            }
+            textClient.close();
+            binaryClient.close();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            if (server != null)
+                server.stop();
+            if (authServer != null)
+                authServer.stop();
+        }
+    }
+
+    /**
+     * Decodes messages with certificate lists that are cut short or claim more than they hold.  Each must fail
+     * with KEzSignException rather than a runtime exception
+     */
+    private static void checkMalformedCerts()
+    {
+        byte[][] values = {
+            new byte[0],
+            new byte[] { 0 },
+            ByteBuffer.allocate(2).putShort((short) 2).array(),
+            ByteBuffer.allocate(6).putShort((short) 1).putInt(100).array(),
+            ByteBuffer.allocate(6).putShort((short) 1).putInt(-1).array(),
+            ByteBuffer.allocate(10).putShort((short) 2).putInt(2).put(new byte[2]).putShort((short) 0).array(),
+            ByteBuffer.allocate(6).putShort((short) 0xFFFF).putInt(0).array()
+        };
+
+        int rejected = 0;
+        for (byte[] value : values)
+        {
+            byte[] message = new KBinaryMessage("IREV", new byte[] { KBinaryMessage.TYPE_TEXT, KBinaryMessage.TYPE_CERTS },
+                    new byte[][] { "0".getBytes(), value }).encode();
+            try
+            {
+                KBinaryMessage.decode(message);
+            }
+            catch (KEzSignException e)
+            {
+                rejected++;
+            }
+            catch (RuntimeException e)
+            {
+                System.out.println("Malformed certificate list threw " + e);
+            }
+        }
+
+        System.out.println("Malformed certificate lists rejected: " + rejected + " of " + values.length + " " +
+                (rejected == values.length ? "OK" : "FAILED"));
+    }
+
+    /**
+     * Sends each message type and checks the results, including a verify that should fail
+     *
+     * @param name The name of the check
+     * @param client The client
+     * @throws Exception If any message fails
+     */
+    private static void check(String name, EzSignClient client) throws Exception
+    {
+        for (int i = 0; i < 20; i++)
+        {
+            byte[] randBytes = client.generateRandomBytes(channel, 100);
+            byte[] signature = client.signData(channel, randBytes, false);
+            client.verifySignature(channel, signature, randBytes, false);
+
+            byte[] encData = client.encryptData(channel, randBytes, "KEY");
+            byte[] decData = client.decryptData(channel, encData, "KEY");
+            if (!Arrays.equals(randBytes, decData))
+                throw new Exception(name + ": the decrypted data did not match");
+
+            randBytes[0] ^= 1;
+            try
+            {
+                client.verifySignature(channel, signature, randBytes, false);
+                throw new Exception(name + ": tampered data verified");
+            }
+            catch (KVerificationException e)
+            {
+                // Expected
+            }
+        }
+        client.close();
+        System.out.println(name + ": OK");
+    }
+
+    /**
+     * Signs then verifies content of the given size
+     *
+     * @param client The client
+     * @param size The content size
+     * @param iterations The number of verifies
+     * @return The time taken for the verifies in nano seconds
+     * @throws Exception If any message fails
+     */
+    private static long verifyLoop(EzSignClient client, int size, int iterations) throws Exception
+    {
+        byte[] content = new byte[size];
+        new SecureRandom().nextBytes(content);
+        byte[] signature = client.signData(channel, content, false);
+        client.verifySignature(channel, signature, content, false);
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < iterations; i++)
+            client.verifySignature(channel, signature, content, false);
+        return System.nanoTime() - startTime;
+    }
+}
@@ -0,0 +1,253 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.net.KCircuitBreaker;
+import com.krestfield.ezsign.net.KDeadline;
+import com.krestfield.ezsign.net.KEndpoint;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * BreakerTest
+ *
+ * Many threads sign on a client with several endpoints through three phases: all healthy, then one server badly
+ * degraded and another down, then the degraded server recovered.  Runs without and then with circuit breakers
+ * and outlier ejection and reports the errors, latency percentiles and share of requests of each endpoint
+ * in each phase.  Then checks that calls whose deadline passes or which are cancelled do not open the circuit
+ * of a healthy server
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class BreakerTest
+{
+    private static int numThreads = 16;
+    private static int phaseMs = 3000;
+    private static int fastProcessingMs = 5;
+    private static int slowProcessingMs = 300;
+    private static String channel = "TEST";
+
+    private static final String[] PHASES = { "Healthy", "Degraded + down", "Recovered" };
+
+    public static void main(String args[])
+    {
+        try
+        {
+            System.out.println("Usage: BreakerTest [num threads] [phase ms]");
+            if (args.length > 0)
+                numThreads = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                phaseMs = Integer.parseInt(args[1]);
+
+            System.out.println("Phase 2: endpoint 3 takes " + slowProcessingMs + "ms per request and endpoint 4 is down.  " +
+                    "Phase 3: endpoint 3 recovers");
+
+            run("Load balancing only", false);
+            run("Circuit breakers + outlier ejection", true);
+            checkCallerFailures();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private static void run(String name, boolean useBreakers) throws Exception
+    {
+        System.out.println();
+        System.out.println(name);
+
+        LocalEzSignServer[] servers = new LocalEzSignServer[4];
+        for (int i = 0; i < servers.length; i++)
+            servers[i] = new LocalEzSignServer(fastProcessingMs).start();
+
+        final EzSignClient client = new EzSignClient("127.0.0.1", servers[0].getPort());
+        for (int i = 1; i < servers.length; i++)
+            client.addEndpoint("127.0.0.1", servers[i].getPort());
+        if (useBreakers)
+            client.useCircuitBreakers(5, 500, 1000).useOutlierEjection(5, 500);
+
+        final List<ConcurrentLinkedQueue<Long>> latencies = new ArrayList<ConcurrentLinkedQueue<Long>>();
+        final List<AtomicInteger> errors = new ArrayList<AtomicInteger>();
+        for (int p = 0; p < PHASES.length; p++)
+        {
+            latencies.add(new ConcurrentLinkedQueue<Long>());
+            errors.add(new AtomicInteger());
+        }
+
+        final AtomicInteger phase = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        for (int t = 0; t < numThreads; t++)
+        {
+            new Thread()
+            {
+                public void run()
+                {
+                    int current;
+                    while ((current = phase.get()) < PHASES.length)
+                    {
+                        long callStart = System.nanoTime();
+                        try
+                        {
+                            client.signData(channel, "Data to sign".getBytes(), false);
+                            latencies.get(current).add(System.nanoTime() - callStart);
+                        }
+                        catch (Exception e)
+                        {
+                            errors.get(current).incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        long[] requestsAtStart = requestCounts(client);
+        for (int p = 0; p < PHASES.length; p++)
+        {
+            if (p == 1)
+            {
+                servers[2].setProcessingTime(slowProcessingMs);
+                servers[3].stop();
+            }
+            else if (p == 2)
+            {
+                servers[2].setProcessingTime(fastProcessingMs);
+            }
+
+            Thread.sleep(phaseMs);
+            phase.incrementAndGet();
+
+            long[] requestsAtEnd = requestCounts(client);
+            report(PHASES[p], latencies.get(p), errors.get(p).get(), requestsAtStart, requestsAtEnd);
+            requestsAtStart = requestsAtEnd;
+        }
+        done.await();
+
+        if (useBreakers)
+        {
+            StringBuilder states = new StringBuilder();
+            for (KEndpoint endpoint : client.getEndpoints())
+            {
+                KCircuitBreaker breaker = endpoint.getCircuitBreaker();
+                states.append(" ").append(endpoint).append(" opens=").append(breaker.getOpens())
+                        .append(" trials=").append(breaker.getTrials());
+            }
+            System.out.println("Outlier ejections: " + client.getOutlierDetector().getEjections() + states);
+        }
+
+        client.close();
+        for (LocalEzSignServer server : servers)
+            server.stop();
+    }
+
+    private static long[] requestCounts(EzSignClient client)
+    {
+        KEndpoint[] endpoints = client.getEndpoints();
+        long[] counts = new long[endpoints.length];
+        for (int i = 0; i < endpoints.length; i++)
+            counts[i] = endpoints[i].getRequests();
+        return counts;
+    }
+
+    private static void checkCallerFailures() throws Exception
+    {
+        LocalEzSignServer server = new LocalEzSignServer(100).start();
+        EzSignClient client = new EzSignClient("127.0.0.1", server.getPort()).useCircuitBreakers(3, 500, 1000);
+        int failed = 0;
+
+        // Deadlines too short for the server
+        for (int i = 0; i < 10; i++)
+        {
+            KDeadline deadline = KDeadline.enter(20);
+            try
+            {
+                client.signData(channel, "Data to sign".getBytes(), false);
+                failed++;
+            }
+            catch (Exception e)
+            {
+                // Expected
+            }
+            finally
+            {
+                deadline.close();
+            }
+        }
+
+        // Cancelled by the caller
+        for (int i = 0; i < 10; i++)
+        {
+            final KDeadline deadline = KDeadline.enter(0);
+            new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        Thread.sleep(20);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        // Cancel now
+                    }
+                    deadline.cancel();
+                }
+            }.start();
+            try
+            {
+                client.signData(channel, "Data to sign".getBytes(), false);
+                failed++;
+            }
+            catch (Exception e)
+            {
+                // Expected
+            }
+            finally
+            {
+                deadline.close();
+            }
+        }
+
+        KEndpoint endpoint = client.getEndpoints()[0];
+        KCircuitBreaker breaker = endpoint.getCircuitBreaker();
+        boolean ok = failed == 0 && breaker.getState() == KCircuitBreaker.CLOSED && breaker.getOpens() == 0 &&
+                endpoint.getFailures() == 0 && endpoint.getInFlight() == 0;
+        client.signData(channel, "Data to sign".getBytes(), false);
+
+        System.out.println();
+        System.out.println("20 calls past their deadline or cancelled: circuit " +
+                (breaker.getState() == KCircuitBreaker.CLOSED ? "closed" : "open") + ", opens " + breaker.getOpens() +
+                ", failures " + endpoint.getFailures() + ": " + (ok ? "OK" : "FAILED"));
+        client.close();
+        server.stop();
+    }
+
+    private static void report(String phase, ConcurrentLinkedQueue<Long> latencies, int errors, long[] requestsAtStart,
+                               long[] requestsAtEnd)
+    {
+        List<Long> sorted = new ArrayList<Long>(latencies);
+        Collections.sort(sorted);
+
+        long total = 0;
+        for (int i = 0; i < requestsAtEnd.length; i++)
+            total += requestsAtEnd[i] - requestsAtStart[i];
+        StringBuilder shares = new StringBuilder();
+        for (int i = 0; i < requestsAtEnd.length; i++)
+            shares.append(String.format(" %5.1f%%", 100.0 * (requestsAtEnd[i] - requestsAtStart[i]) / Math.max(total, 1)));
+
+        System.out.println(String.format("  %-16s %6d calls  %5d errors  p50 %7.2fms  p99 %7.2fms  share:%s", phase,
+                sorted.size(), errors, percentile(sorted, 0.50), percentile(sorted, 0.99), shares));
+    }
+
+    private static double percentile(List<Long> sorted, double p)
+    {
+        if (sorted.isEmpty())
+            return 0;
+        return sorted.get(Math.min(sorted.size() - 1, (int) (sorted.size() * p))) / 1e6;
+    }
+}
@@ -0,0 +1,114 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.net.KEndpoint;
+import com.krestfield.ezsign.net.KLeastOutstandingBalancer;
+import com.krestfield.ezsign.net.KLoadBalancer;
+import com.krestfield.ezsign.net.KPowerOfTwoBalancer;
+import com.krestfield.ezsign.net.KRoundRobinBalancer;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * ClusterTest
+ *
+ * Many threads sign on one client with several endpoints, one of which is much slower than the others (as a
+ * degraded node would be).  Runs with each load balancer and reports the throughput, latency percentiles
+ * and the share of requests each endpoint received
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class ClusterTest
+{
+    private static int numThreads = 32;
+    private static int numIterations = 100;
+    private static int fastProcessingMs = 5;
+    private static int slowProcessingMs = 50;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        LocalEzSignServer[] servers = new LocalEzSignServer[4];
+        try
+        {
+            System.out.println("Usage: ClusterTest [num threads] [num iterations]");
+            if (args.length > 0)
+                numThreads = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                numIterations = Integer.parseInt(args[1]);
+
+            for (int i = 0; i < servers.length; i++)
+                servers[i] = new LocalEzSignServer(i == servers.length - 1 ? slowProcessingMs : fastProcessingMs).start();
+            System.out.println(servers.length + " servers, the last taking " + slowProcessingMs + "ms per request, the others " +
+                    fastProcessingMs + "ms");
+
+            run("Round robin", new KRoundRobinBalancer(), servers);
+            run("Least outstanding", new KLeastOutstandingBalancer(), servers);
+            run("Power of two choices", new KPowerOfTwoBalancer(), servers);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            for (LocalEzSignServer server : servers)
+            {
+                if (server != null)
+                    server.stop();
+            }
+        }
+    }
+
+    private static void run(String name, KLoadBalancer balancer, LocalEzSignServer[] servers) throws Exception
+    {
+        final EzSignClient client = new EzSignClient("127.0.0.1", servers[0].getPort()).useLoadBalancer(balancer);
+        for (int i = 1; i < servers.length; i++)
+            client.addEndpoint("127.0.0.1", servers[i].getPort());
+
+        final long[] latencies = new long[numThreads * numIterations];
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        long startTime = System.nanoTime();
+        for (int t = 0; t < numThreads; t++)
+        {
+            final int threadNum = t;
+            new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int i = 0; i < numIterations; i++)
+                        {
+                            long callStart = System.nanoTime();
+                            client.signData(channel, "Data to sign".getBytes(), false);
+                            latencies[threadNum * numIterations + i] = System.nanoTime() - callStart;
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        long timeTaken = System.nanoTime() - startTime;
+
+        Arrays.sort(latencies);
+        StringBuilder shares = new StringBuilder();
+        for (KEndpoint endpoint : client.getEndpoints())
+            shares.append(String.format(" %4.1f%%", 100.0 * endpoint.getRequests() / latencies.length));
+
+        System.out.println(String.format("%-22s %7.1f signatures/sec  p50 %6.2fms  p99 %6.2fms  share:%s", name,
+                latencies.length * 1e9 / timeTaken, percentile(latencies, 0.50), percentile(latencies, 0.99), shares));
+        client.close();
+    }
+
+    private static double percentile(long[] sorted, double p)
+    {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1e6;
+    }
+}
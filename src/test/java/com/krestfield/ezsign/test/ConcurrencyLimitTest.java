@@ -0,0 +1,166 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.net.KConcurrencyLimiter;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * ConcurrencyLimitTest
+ *
+ * Many threads sign against a server with a fixed number of cores (so requests queue and their response
+ * time grows with the load) that drops requests once too many are in progress, as an overloaded server
+ * would.  Half way through the server's capacity doubles, as when an HSM is freed of other work.  Runs
+ * without and then with the adaptive concurrency limit and reports, for each phase, the calls that
+ * succeeded, the requests dropped by the server, the latency percentiles and the limit reached.  Then checks
+ * asynchronous calls queue for their slot
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class ConcurrencyLimitTest
+{
+    private static int numThreads = 150;
+    private static int phaseMs = 3000;
+    private static int processingMs = 10;
+    private static int capacity = 8;
+    private static int maxConcurrent = 48;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        try
+        {
+            System.out.println("Usage: ConcurrencyLimitTest [num threads] [phase ms]");
+            if (args.length > 0)
+                numThreads = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                phaseMs = Integer.parseInt(args[1]);
+
+            System.out.println(numThreads + " threads, server taking " + processingMs + "ms per request on " + capacity +
+                    " cores (then " + (capacity * 2) + "), dropping requests over " + maxConcurrent + " in progress");
+
+            run("No concurrency limit", new EzSignClient("127.0.0.1", 0));
+            run("Adaptive limit", new EzSignClient("127.0.0.1", 0).useConcurrencyLimit(4, 200, 1000, 5000));
+
+            checkAsync();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private static void run(String name, final EzSignClient client) throws Exception
+    {
+        System.out.println();
+        System.out.println(name);
+
+        LocalEzSignServer server = new LocalEzSignServer(processingMs).useCapacity(capacity).useMaxConcurrent(maxConcurrent).start();
+        client.setPort(server.getPort());
+
+        final List<ConcurrentLinkedQueue<Long>> latencies = new ArrayList<ConcurrentLinkedQueue<Long>>();
+        final List<AtomicInteger> errors = new ArrayList<AtomicInteger>();
+        for (int p = 0; p < 2; p++)
+        {
+            latencies.add(new ConcurrentLinkedQueue<Long>());
+            errors.add(new AtomicInteger());
+        }
+
+        final AtomicInteger phase = new AtomicInteger(0);
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        for (int t = 0; t < numThreads; t++)
+        {
+            new Thread()
+            {
+                public void run()
+                {
+                    int current;
+                    while ((current = phase.get()) < 2)
+                    {
+                        long callStart = System.nanoTime();
+                        try
+                        {
+                            client.signData(channel, "Data to sign".getBytes(), false);
+                            latencies.get(current).add(System.nanoTime() - callStart);
+                        }
+                        catch (Exception e)
+                        {
+                            errors.get(current).incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        for (int p = 0; p < 2; p++)
+        {
+            if (p == 1)
+                server.useCapacity(capacity * 2);
+
+            long droppedAtStart = server.getNumRejected();
+            Thread.sleep(phaseMs);
+            phase.incrementAndGet();
+
+            List<Long> sorted = new ArrayList<Long>(latencies.get(p));
+            Collections.sort(sorted);
+            KConcurrencyLimiter limiter = client.getConcurrencyLimiter();
+            System.out.println(String.format("  %d cores: %6.1f OK/sec  %5d errors  dropped by server %5d  p50 %7.2fms  p99 %7.2fms%s",
+                    (p == 0) ? capacity : capacity * 2, sorted.size() * 1000.0 / phaseMs, errors.get(p).get(),
+                    server.getNumRejected() - droppedAtStart, percentile(sorted, 0.50), percentile(sorted, 0.99),
+                    (limiter == null) ? "" : "  limit " + limiter.getLimit()));
+        }
+        done.await();
+
+        KConcurrencyLimiter limiter = client.getConcurrencyLimiter();
+        if (limiter != null)
+            System.out.println(String.format("  Requests %d, queued %d, shed %d", limiter.getRequests(), limiter.getQueued(),
+                    limiter.getShed()));
+
+        client.close();
+        server.stop();
+    }
+
+    private static void checkAsync() throws Exception
+    {
+        LocalEzSignServer server = new LocalEzSignServer(processingMs).useCapacity(capacity).start();
+        EzSignClient client = new EzSignClient("127.0.0.1", server.getPort()).useConcurrencyLimit(4, 200, 1000, 5000);
+
+        List<CompletableFuture<byte[]>> futures = new ArrayList<CompletableFuture<byte[]>>();
+        for (int i = 0; i < 500; i++)
+            futures.add(client.signDataAsync(channel, "Data to sign".getBytes(), false));
+
+        int failed = 0;
+        for (CompletableFuture<byte[]> future : futures)
+        {
+            try
+            {
+                future.get();
+            }
+            catch (ExecutionException e)
+            {
+                failed++;
+            }
+        }
+        KConcurrencyLimiter limiter = client.getConcurrencyLimiter();
+        System.out.println(String.format("Async: 500 calls, %d failed, %d queued, limit %d, in progress after %d", failed,
+                limiter.getQueued(), limiter.getLimit(), limiter.getInFlight()));
+
+        client.close();
+        server.stop();
+    }
+
+    private static double percentile(List<Long> sorted, double p)
+    {
+        if (sorted.isEmpty())
+            return 0;
+        return sorted.get(Math.min(sorted.size() - 1, (int) (sorted.size() * p))) / 1e6;
+    }
+}
@@ -0,0 +1,141 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.KCallCancelledException;
+import com.krestfield.ezsign.KDeadlineExceededException;
+import com.krestfield.ezsign.net.KDeadline;
+
+import java.util.concurrent.ExecutionException;
+
+/**
+ * DeadlineTest
+ *
+ * Signs against a server that takes much longer than the call timeout, with a new connection per call,
+ * keep-alive connections, multiplexing and non-blocking I/O.  Checks that each call fails with
+ * KDeadlineExceededException close to its deadline, that a call cancelled from another thread fails with
+ * KCallCancelledException straight away, that an asynchronous call uses the deadline of the thread that made
+ * it, and that the client still works once the server is quick again
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class DeadlineTest
+{
+    private static int slowProcessingMs = 2000;
+    private static int callTimeoutMs = 200;
+    private static int cancelAfterMs = 100;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        try
+        {
+            run("New connection", new LocalEzSignServer(slowProcessingMs), 0);
+            run("Keep-alive", new LocalEzSignServer(slowProcessingMs).useKeepAlive(), 1);
+            run("Multiplexed", new LocalEzSignServer(slowProcessingMs).useMultiplexing(), 2);
+            run("NIO", new LocalEzSignServer(slowProcessingMs), 3);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private static void run(String name, LocalEzSignServer server, int transport) throws Exception
+    {
+        server.start();
+        EzSignClient client = new EzSignClient("127.0.0.1", server.getPort(), 1000, 10000).useCallTimeout(callTimeoutMs);
+        if (transport == 1)
+            client.useKeepAlive(4, 30000);
+        else if (transport == 2)
+            client.useMultiplexing(1);
+        else if (transport == 3)
+            client.useNio(1);
+
+        try
+        {
+            // The call timeout
+            long startTime = System.nanoTime();
+            String outcome = outcome(client);
+            System.out.println(String.format("%-15s call timeout %dms:  %-27s after %4dms", name, callTimeoutMs, outcome,
+                    (System.nanoTime() - startTime) / 1000000));
+
+            // Cancelled from another thread
+            final KDeadline deadline = KDeadline.enter(0);
+            new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        Thread.sleep(cancelAfterMs);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                    deadline.cancel();
+                }
+            }.start();
+            startTime = System.nanoTime();
+            try
+            {
+                outcome = outcome(client);
+            }
+            finally
+            {
+                deadline.close();
+            }
+            System.out.println(String.format("%-15s cancel after %dms:  %-27s after %4dms", name, cancelAfterMs, outcome,
+                    (System.nanoTime() - startTime) / 1000000));
+
+            // Asynchronous, with a deadline entered by the calling thread
+            startTime = System.nanoTime();
+            KDeadline asyncDeadline = KDeadline.enter(callTimeoutMs / 2);
+            try
+            {
+                client.signDataAsync(channel, "Data to sign".getBytes(), false).get();
+                outcome = "OK";
+            }
+            catch (ExecutionException e)
+            {
+                outcome = e.getCause().getClass().getSimpleName();
+            }
+            finally
+            {
+                asyncDeadline.close();
+            }
+            System.out.println(String.format("%-15s async, %dms:         %-27s after %4dms", name, callTimeoutMs / 2, outcome,
+                    (System.nanoTime() - startTime) / 1000000));
+
+            // The connections left by the failed calls must not affect the next
+            server.setProcessingTime(5);
+            System.out.println(String.format("%-15s server quick again:  %s", name, outcome(client)));
+        }
+        finally
+        {
+            client.close();
+            server.stop();
+        }
+    }
+
+    private static String outcome(EzSignClient client)
+    {
+        try
+        {
+            client.signData(channel, "Data to sign".getBytes(), false);
+            return "OK";
+        }
+        catch (KDeadlineExceededException e)
+        {
+            return "KDeadlineExceededException";
+        }
+        catch (KCallCancelledException e)
+        {
+            return "KCallCancelledException";
+        }
+        catch (Exception e)
+        {
+            return e.getClass().getSimpleName() + ": " + e.getMessage();
+        }
+    }
+}
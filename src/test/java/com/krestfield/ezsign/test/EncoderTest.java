@@ -0,0 +1,212 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.KEzSignException;
+import com.krestfield.ezsign.msg.KBase64;
+import com.krestfield.ezsign.msg.KBinaryMessage;
+import com.krestfield.ezsign.msg.KEzSignReqMsg;
+import com.krestfield.ezsign.msg.KVerifySignatureReqMsg;
+import com.krestfield.ezsign.utils.KBufferPool;
+import com.krestfield.ezsign.utils.KEncrypt;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * EncoderTest
+ *
+ * Checks the text format encoder writes the same bytes as the message built as a string, for each item type
+ * and for data of every length modulo 3, then reports the bytes allocated and the time to encode a 1MB
+ * verify both ways, with and without an auth code.  Then verifies signatures over large content in the text
+ * format against the local server, with and without an auth code
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class EncoderTest
+{
+    private static int numIterations = 50;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        LocalEzSignServer server = null;
+        LocalEzSignServer authServer = null;
+        try
+        {
+            System.out.println("Usage: EncoderTest [num iterations]");
+            if (args.length > 0)
+                numIterations = Integer.parseInt(args[0]);
+
+            checkEncoding();
+
+            byte[] content = new byte[1024 * 1024];
+            new SecureRandom().nextBytes(content);
+            byte[] signature = new byte[2048];
+            new SecureRandom().nextBytes(signature);
+            KVerifySignatureReqMsg msg = new KVerifySignatureReqMsg(channel, signature, content, false);
+            KEncrypt encrypt = new KEncrypt("password");
+            KBufferPool pool = new KBufferPool(8, 2 * 1024 * 1024);
+            System.out.println("Encoding a verify of 1MB content");
+            measure("As a string", msg, null, null);
+            measure("Encoder", msg, null, pool);
+            measure("As a string, auth code", msg, encrypt, null);
+            measure("Encoder, auth code", msg, encrypt, pool);
+
+            server = new LocalEzSignServer(0).useKeepAlive().start();
+            authServer = new LocalEzSignServer(0).useKeepAlive().useAuthCode("password").start();
+            verifyLoop("Text, keep-alive", new EzSignClient("127.0.0.1", server.getPort()).useKeepAlive(1, 30000));
+            verifyLoop("Text, keep-alive, auth code", new EzSignClient("127.0.0.1", authServer.getPort(), "password")
+                    .useKeepAlive(1, 30000));
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            if (server != null)
+                server.stop();
+            if (authServer != null)
+                authServer.stop();
+        }
+    }
+
+    private static void checkEncoding() throws Exception
+    {
+        int failed = 0;
+        int checked = 0;
+        for (int len = 0; len < 8; len++)
+        {
+            byte[] data = new byte[len];
+            new SecureRandom().nextBytes(data);
+            byte[][] certs = { Arrays.copyOf(data, len + 1), new byte[] { 1, 2 }, data };
+
+            TestMsg[] msgs = {
+                new TestMsg("SIGN", channel, data, certs, "SHA256"),
+                new TestMsg("VERI", "Chânnel é", data, new byte[][] { data }, "Ünïcode text"),
+                new TestMsg("RAND", channel, null, null, null)
+            };
+            for (TestMsg msg : msgs)
+            {
+                checked++;
+                if (!Arrays.equals(msg.getMessageBytes(), getMessageAsString(msg).getBytes(StandardCharsets.UTF_8)) ||
+                        msg.getMessageLength() != msg.getMessageBytes().length)
+                {
+                    failed++;
+                    System.out.println("Encoding differs: " + msg.getMessage() + " != " + getMessageAsString(msg));
+                }
+            }
+        }
+
+        // Written at an offset into a larger buffer
+        TestMsg msg = new TestMsg("SIGN", channel, new byte[100], new byte[][] { new byte[10] }, "SHA256");
+        byte[] buffer = new byte[msg.getMessageLength() + 20];
+        int end = msg.writeMessage(buffer, 10);
+        if (end != 10 + msg.getMessageLength() || !Arrays.equals(Arrays.copyOfRange(buffer, 10, end), msg.getMessageBytes()))
+            failed++;
+
+        System.out.println("Encoder matches the string encoding: " + (checked + 1) + " messages, " + failed + " failed");
+    }
+
+    /**
+     * The message built as a string, as it was before the encoder
+     */
+    private static String getMessageAsString(KEzSignReqMsg msg)
+    {
+        KBinaryMessage binary = msg.getBinaryMessage();
+        String fullMsg = msg.getMessageId() + KEzSignReqMsg.DELIMITER + msg.getChannelName();
+        for (int item = 1; item < binary.getNumItems(); item++)
+            fullMsg += (KEzSignReqMsg.DELIMITER + binary.getText(item));
+        return fullMsg;
+    }
+
+    private static void measure(String name, KEzSignReqMsg msg, KEncrypt encrypt, KBufferPool pool) throws Exception
+    {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up
+        for (int i = 0; i < 5; i++)
+            encode(msg, encrypt, pool);
+
+        long allocatedAtStart = threads.getThreadAllocatedBytes(threadId);
+        long startTime = System.nanoTime();
+        long bytes = 0;
+        for (int i = 0; i < numIterations; i++)
+            bytes += encode(msg, encrypt, pool).length;
+        long time = System.nanoTime() - startTime;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedAtStart;
+
+        System.out.println(String.format("  %-24s %8d bytes sent  %10d bytes allocated (%4.1fx)  %6d micro seconds",
+                name, bytes / numIterations, allocated / numIterations, (double) allocated / bytes, time / 1000 / numIterations));
+    }
+
+    /**
+     * Encodes as EzSignClient does in the text format, or as a string if no pool is given
+     */
+    private static byte[] encode(KEzSignReqMsg msg, KEncrypt encrypt, KBufferPool pool) throws KEzSignException
+    {
+        if (pool == null)
+        {
+            byte[] clear = getMessageAsString(msg).getBytes();
+            if (encrypt == null)
+                return clear;
+            return KBase64.ToBase64String(encrypt.encryptBytes(clear)).getBytes(StandardCharsets.US_ASCII);
+        }
+
+        if (encrypt == null)
+            return msg.getMessageBytes();
+
+        int len = msg.getMessageLength();
+        byte[] buffer = pool.acquire(len);
+        try
+        {
+            msg.writeMessage(buffer, 0);
+            byte[] encMessage = encrypt.encryptBytes(buffer, 0, len);
+            byte[] b64Message = new byte[KBase64.getEncodedLength(encMessage.length)];
+            KBase64.encode(encMessage, 0, encMessage.length, b64Message, 0);
+            return b64Message;
+        }
+        finally
+        {
+            pool.release(buffer);
+        }
+    }
+
+    private static void verifyLoop(String name, EzSignClient client) throws Exception
+    {
+        byte[] content = new byte[1024 * 1024];
+        new SecureRandom().nextBytes(content);
+        byte[] signature = client.signData(channel, content, false);
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < numIterations; i++)
+            client.verifySignature(channel, signature, content, false);
+        long time = System.nanoTime() - startTime;
+
+        System.out.println(String.format("%-28s %8d micro seconds per 1MB verify", name, time / 1000 / numIterations));
+        client.close();
+    }
+
+    /**
+     * A message with an item of each type
+     */
+    private static class TestMsg extends KEzSignReqMsg
+    {
+        TestMsg(String messageId, String channel, byte[] data, byte[][] certs, String text) throws KEzSignException
+        {
+            super(messageId, channel);
+            if (data == null)
+                return;
+
+            initDataItems(5);
+            setBinaryItem(0, data);
+            setFlagItem(1, true);
+            setTextItem(2, text);
+            setCertsItem(3, certs);
+            setFlagItem(4, false);
+        }
+    }
+}
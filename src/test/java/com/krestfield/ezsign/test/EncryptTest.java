@@ -0,0 +1,126 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.utils.KEncrypt;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * EncryptTest
+ *
+ * Measures the messages per second encrypted and decrypted under an auth code, with a key derived for every
+ * message (a new salt each time, as before keys were cached) and with the salt and key reused and the keys of
+ * messages decrypted cached.  Checks that messages from each decrypt with the other (the format is unchanged),
+ * that a new salt is used once the key lifetime has passed, and that signing over a client using an auth code
+ * still works
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class EncryptTest
+{
+    private static int numThreads = 8;
+    private static int numIterations = 500;
+    private static String authCode = "password";
+
+    public static void main(String args[])
+    {
+        try
+        {
+            System.out.println("Usage: EncryptTest [num threads] [num iterations]");
+            if (args.length > 0)
+                numThreads = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                numIterations = Integer.parseInt(args[1]);
+
+            run("Key derived per message", new KEncrypt(authCode, 0), new KEncrypt(authCode, 0));
+            run("Cached keys", new KEncrypt(authCode), new KEncrypt(authCode));
+
+            checkFormat();
+            checkClient();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private static void run(String name, final KEncrypt sender, final KEncrypt receiver) throws Exception
+    {
+        final byte[] message = "SIGN~TEST~RGF0YSB0byBzaWdu~0".getBytes();
+        final AtomicInteger failed = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        long startTime = System.nanoTime();
+        for (int t = 0; t < numThreads; t++)
+        {
+            new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < numIterations; i++)
+                    {
+                        try
+                        {
+                            // A request one way and its reply the other
+                            byte[] request = receiver.decryptBytes(sender.encryptBytes(message));
+                            byte[] reply = sender.decryptBytes(receiver.encryptBytes(request));
+                            if (!Arrays.equals(reply, message))
+                                failed.incrementAndGet();
+                        }
+                        catch (Exception e)
+                        {
+                            failed.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        double secs = (System.nanoTime() - startTime) / 1e9;
+
+        System.out.println(String.format("%-24s %9.0f requests/sec (each encrypted and decrypted both ways)  %d failed",
+                name, numThreads * numIterations / secs, failed.get()));
+    }
+
+    private static void checkFormat() throws Exception
+    {
+        byte[] data = new byte[1000];
+        KEncrypt perMessage = new KEncrypt(authCode, 0);
+        KEncrypt cached = new KEncrypt(authCode);
+        boolean ok = Arrays.equals(cached.decryptBytes(perMessage.encryptBytes(data)), data) &&
+                Arrays.equals(perMessage.decryptBytes(cached.encryptBytes(data)), data) &&
+                new KEncrypt(authCode).decryptData(cached.encryptData("Text")).equals("Text");
+
+        // The same salt with a new IV while the key lasts, and the encrypted data the same length as before
+        byte[] first = cached.encryptBytes(data);
+        byte[] second = cached.encryptBytes(data);
+        boolean saltReused = Arrays.equals(Arrays.copyOf(first, 8), Arrays.copyOf(second, 8)) &&
+                !Arrays.equals(Arrays.copyOfRange(first, 8, 24), Arrays.copyOfRange(second, 8, 24)) &&
+                first.length == perMessage.encryptBytes(data).length;
+
+        KEncrypt shortLived = new KEncrypt(authCode, 50);
+        byte[] beforeExpiry = shortLived.encryptBytes(data);
+        Thread.sleep(100);
+        byte[] afterExpiry = shortLived.encryptBytes(data);
+        boolean rotated = !Arrays.equals(Arrays.copyOf(beforeExpiry, 8), Arrays.copyOf(afterExpiry, 8)) &&
+                Arrays.equals(shortLived.decryptBytes(beforeExpiry), data);
+
+        System.out.println("Interoperable: " + (ok ? "OK" : "FAILED") + "  salt reused with new IVs: " +
+                (saltReused ? "OK" : "FAILED") + "  new salt after lifetime: " + (rotated ? "OK" : "FAILED"));
+    }
+
+    private static void checkClient() throws Exception
+    {
+        LocalEzSignServer server = new LocalEzSignServer(0).useAuthCode(authCode).start();
+        EzSignClient client = new EzSignClient("127.0.0.1", server.getPort(), 5000, 5000, authCode);
+        byte[] data = "Data to sign".getBytes();
+        for (int i = 0; i < 100; i++)
+            client.verifySignature("TEST", client.signData("TEST", data, false), data, false);
+        System.out.println("Client with auth code: 200 calls OK");
+
+        client.close();
+        server.stop();
+    }
+}
@@ -0,0 +1,201 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.net.KConcurrencyLimiter;
+import com.krestfield.ezsign.net.KPriority;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * FairQueueTest
+ *
+ * One noisy tenant signs from many threads on its channel while a few quiet tenants sign from a couple of
+ * threads each on theirs, against a server with a fixed number of cores.  Runs without and then with a
+ * concurrency limit (so the requests queue in the client, where the channels take turns) and reports each
+ * channel's throughput and latency, and the requests waiting and average wait from the limiter.  Then has two
+ * channels, one sending large payloads and one small, and reports the share of the payload bytes each sent.
+ * Last checks the limiter's per channel stats stay bounded when requests are queued on many channel names
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class FairQueueTest
+{
+    private static int numNoisyThreads = 100;
+    private static int numQuietTenants = 4;
+    private static int numQuietThreads = 2;
+    private static int runMs = 3000;
+    private static int processingMs = 10;
+    private static int capacity = 8;
+
+    public static void main(String args[])
+    {
+        try
+        {
+            System.out.println("Usage: FairQueueTest [num noisy threads] [run ms]");
+            if (args.length > 0)
+                numNoisyThreads = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                runMs = Integer.parseInt(args[1]);
+
+            System.out.println(numNoisyThreads + " threads on NOISY, " + numQuietTenants + " quiet channels of " +
+                    numQuietThreads + " threads, server taking " + processingMs + "ms per request on " + capacity + " cores");
+
+            Map<String, Integer> tenants = new LinkedHashMap<String, Integer>();
+            tenants.put("NOISY", numNoisyThreads);
+            for (int i = 1; i <= numQuietTenants; i++)
+                tenants.put("QUIET" + i, numQuietThreads);
+
+            run("No concurrency limit", false, tenants, 1024, 1024);
+            run("Fair queuing", true, tenants, 1024, 1024);
+
+            Map<String, Integer> sizes = new LinkedHashMap<String, Integer>();
+            sizes.put("LARGE", 50);
+            sizes.put("SMALL", 50);
+            System.out.println();
+            System.out.println("LARGE sending 64KB, SMALL 1KB");
+            run("No concurrency limit", false, sizes, 64 * 1024, 1024);
+            run("Fair queuing", true, sizes, 64 * 1024, 1024);
+
+            checkManyChannels();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private static void run(String name, boolean useLimit, Map<String, Integer> channels, int firstPayloadBytes,
+                            int otherPayloadBytes) throws Exception
+    {
+        System.out.println(name);
+
+        LocalEzSignServer server = new LocalEzSignServer(processingMs).useCapacity(capacity).start();
+        final EzSignClient client = new EzSignClient("127.0.0.1", server.getPort());
+        if (useLimit)
+            client.useConcurrencyLimit(capacity, capacity, 10000, 30000);
+
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicInteger errors = new AtomicInteger();
+        final Map<String, ConcurrentLinkedQueue<Long>> latencies = new LinkedHashMap<String, ConcurrentLinkedQueue<Long>>();
+        int numThreads = 0;
+        for (Integer threads : channels.values())
+            numThreads += threads;
+        final CountDownLatch done = new CountDownLatch(numThreads);
+
+        boolean first = true;
+        for (Map.Entry<String, Integer> channel : channels.entrySet())
+        {
+            final String channelName = channel.getKey();
+            final ConcurrentLinkedQueue<Long> channelLatencies = new ConcurrentLinkedQueue<Long>();
+            latencies.put(channelName, channelLatencies);
+            final byte[] data = new byte[first ? firstPayloadBytes : otherPayloadBytes];
+            first = false;
+
+            for (int t = 0; t < channel.getValue(); t++)
+            {
+                new Thread()
+                {
+                    public void run()
+                    {
+                        while (!stop.get())
+                        {
+                            long callStart = System.nanoTime();
+                            try
+                            {
+                                client.signData(channelName, data, false);
+                                channelLatencies.add(System.nanoTime() - callStart);
+                            }
+                            catch (Exception e)
+                            {
+                                errors.incrementAndGet();
+                            }
+                        }
+                        done.countDown();
+                    }
+                }.start();
+            }
+        }
+
+        // Only the calls in the middle of the run are counted, once every channel is queueing
+        Thread.sleep(500);
+        for (ConcurrentLinkedQueue<Long> channelLatencies : latencies.values())
+            channelLatencies.clear();
+        Thread.sleep(runMs);
+
+        Map<String, List<Long>> sorted = new LinkedHashMap<String, List<Long>>();
+        for (Map.Entry<String, ConcurrentLinkedQueue<Long>> channel : latencies.entrySet())
+        {
+            List<Long> channelSorted = new ArrayList<Long>(channel.getValue());
+            Collections.sort(channelSorted);
+            sorted.put(channel.getKey(), channelSorted);
+        }
+        KConcurrencyLimiter limiter = client.getConcurrencyLimiter();
+        Map<String, Integer> waiting = new LinkedHashMap<String, Integer>();
+        for (String channelName : channels.keySet())
+            waiting.put(channelName, (limiter == null) ? 0 : limiter.getWaiting(channelName));
+
+        stop.set(true);
+        done.await();
+
+        first = true;
+        for (Map.Entry<String, List<Long>> channel : sorted.entrySet())
+        {
+            List<Long> channelSorted = channel.getValue();
+            int payloadBytes = first ? firstPayloadBytes : otherPayloadBytes;
+            first = false;
+            System.out.print(String.format("  %-7s %6.1f OK/sec  %8.1f KB/sec  p50 %7.2fms  p99 %7.2fms", channel.getKey(),
+                    channelSorted.size() * 1000.0 / runMs, channelSorted.size() * (payloadBytes / 1024.0) * 1000.0 / runMs,
+                    percentile(channelSorted, 0.50), percentile(channelSorted, 0.99)));
+            if (limiter != null)
+                System.out.print(String.format("  waiting %3d  average wait %7.2fms", waiting.get(channel.getKey()),
+                        limiter.getAverageWaitMicros(channel.getKey()) / 1e3));
+            System.out.println();
+        }
+        if (errors.get() > 0)
+            System.out.println("  " + errors.get() + " errors");
+
+        client.close();
+        server.stop();
+    }
+
+    /**
+     * Queues a request on each of many channel names, as a client passing through its callers' channels might,
+     * and checks the limiter keeps the wait times of no more than MAX_CHANNEL_STATS of them
+     */
+    private static void checkManyChannels() throws Exception
+    {
+        KConcurrencyLimiter limiter = new KConcurrencyLimiter(1, 1, 1, 100000);
+        limiter.acquire().get();
+
+        int numChannels = 10000;
+        for (int i = 0; i < numChannels; i++)
+        {
+            CompletableFuture<Void> slot = limiter.acquire(KPriority.NORMAL, "CHANNEL" + i, 1024);
+            limiter.release();
+            slot.get();
+        }
+        limiter.release();
+
+        int kept = limiter.getQueuedChannels().size();
+        boolean ok = kept <= 256 && limiter.getQueuedChannels().contains("CHANNEL" + (numChannels - 1)) &&
+                limiter.getInFlight() == 0;
+        System.out.println();
+        System.out.println(numChannels + " channels queued, wait times kept for " + kept + ": " + (ok ? "OK" : "FAILED"));
+    }
+
+    private static double percentile(List<Long> sorted, double p)
+    {
+        if (sorted.isEmpty())
+            return 0;
+        return sorted.get(Math.min(sorted.size() - 1, (int) (sorted.size() * p))) / 1e6;
+    }
+}
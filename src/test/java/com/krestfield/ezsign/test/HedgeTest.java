@@ -0,0 +1,178 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.net.KHedgePolicy;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+
+/**
+ * HedgeTest
+ *
+ * Many threads sign on a client with several endpoints, each of which answers most requests quickly but a
+ * small share very slowly (the long tail seen from an HSM).  Runs without and then with hedging and reports
+ * the latency percentiles, the extra load on the servers and how often the hedge was answered first.
+ * Also checks a hedged verify and asynchronous sign, and that under concurrency and memory limits the request
+ * not answered first is cancelled, so the limits are all given back soon after the calls return
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class HedgeTest
+{
+    private static int numThreads = 16;
+    private static int numIterations = 300;
+    private static int processingMs = 8;
+    private static int slowProcessingMs = 400;
+    private static double slowShare = 0.01;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        LocalEzSignServer[] servers = new LocalEzSignServer[3];
+        try
+        {
+            System.out.println("Usage: HedgeTest [num threads] [num iterations]");
+            if (args.length > 0)
+                numThreads = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                numIterations = Integer.parseInt(args[1]);
+
+            for (int i = 0; i < servers.length; i++)
+                servers[i] = new LocalEzSignServer(processingMs).useSlowRequests(slowShare, slowProcessingMs).start();
+            System.out.println(servers.length + " servers taking " + processingMs + "ms per request, " + (slowShare * 100) +
+                    "% of requests taking " + slowProcessingMs + "ms");
+
+            run("No hedging", false, servers);
+            run("Hedging at p95, 5% budget", true, servers);
+            checkLimits(servers);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            for (LocalEzSignServer server : servers)
+            {
+                if (server != null)
+                    server.stop();
+            }
+        }
+    }
+
+    private static void run(String name, boolean useHedging, LocalEzSignServer[] servers) throws Exception
+    {
+        final EzSignClient client = new EzSignClient("127.0.0.1", servers[0].getPort());
+        for (int i = 1; i < servers.length; i++)
+            client.addEndpoint("127.0.0.1", servers[i].getPort());
+        if (useHedging)
+            client.useHedging(95, 5);
+
+        long serverRequestsAtStart = serverRequests(servers);
+        final long[] latencies = new long[numThreads * numIterations];
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        for (int t = 0; t < numThreads; t++)
+        {
+            final int threadNum = t;
+            new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int i = 0; i < numIterations; i++)
+                        {
+                            long callStart = System.nanoTime();
+                            client.signData(channel, "Data to sign".getBytes(), false);
+                            latencies[threadNum * numIterations + i] = System.nanoTime() - callStart;
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        long extraRequests = serverRequests(servers) - serverRequestsAtStart - latencies.length;
+
+        Arrays.sort(latencies);
+        System.out.println(String.format("%-26s p50 %6.2fms  p99 %7.2fms  p99.9 %7.2fms  max %7.2fms  extra load %4.1f%%", name,
+                percentile(latencies, 0.50), percentile(latencies, 0.99), percentile(latencies, 0.999),
+                latencies[latencies.length - 1] / 1e6, 100.0 * extraRequests / latencies.length));
+
+        KHedgePolicy hedgePolicy = client.getHedgePolicy();
+        if (hedgePolicy != null)
+        {
+            System.out.println(String.format("  Hedges: %d of %d requests, won %d (%.1f%%), %d over budget, delay %.2fms",
+                    hedgePolicy.getHedges(), hedgePolicy.getRequests(), hedgePolicy.getHedgeWins(),
+                    hedgePolicy.getHedgeWinRate() * 100, hedgePolicy.getHedgesOverBudget(), hedgePolicy.getHedgeDelayMicros() / 1e3));
+
+            byte[] data = "Data to verify".getBytes();
+            byte[] signature = client.signDataAsync(channel, data, false).get();
+            client.verifySignature(channel, signature, data, false);
+            System.out.println("  Hedged verify and async sign OK");
+        }
+
+        client.close();
+    }
+
+    private static void checkLimits(LocalEzSignServer[] servers) throws Exception
+    {
+        final EzSignClient client = new EzSignClient("127.0.0.1", servers[0].getPort())
+                .useHedging(90, 50).useConcurrencyLimit(24, 24, 1000, 10000).useMemoryLimit(1024 * 1024, 10000);
+        for (int i = 1; i < servers.length; i++)
+            client.addEndpoint("127.0.0.1", servers[i].getPort());
+
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        for (int t = 0; t < numThreads; t++)
+        {
+            new Thread()
+            {
+                public void run()
+                {
+                    try
+                    {
+                        for (int i = 0; i < numIterations; i++)
+                        {
+                            if (i % 2 == 0)
+                                client.signData(channel, "Data to sign".getBytes(), false);
+                            else
+                                client.signDataAsync(channel, "Data to sign".getBytes(), false).get();
+                        }
+                    }
+                    catch (Exception e)
+                    {
+                        e.printStackTrace();
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+
+        // Well before a slow request still in progress would have been answered
+        Thread.sleep(slowProcessingMs / 4);
+        int inFlight = client.getConcurrencyLimiter().getInFlight();
+        long bytesInUse = client.getMemoryLimiter().getInUse();
+        System.out.println(String.format("Hedging under limits: %d hedges, %d won.  %d slots and %d bytes in use after: %s",
+                client.getHedgePolicy().getHedges(), client.getHedgePolicy().getHedgeWins(), inFlight, bytesInUse,
+                (inFlight == 0 && bytesInUse == 0) ? "OK" : "FAILED"));
+        client.close();
+    }
+
+    private static long serverRequests(LocalEzSignServer[] servers)
+    {
+        long total = 0;
+        for (LocalEzSignServer server : servers)
+            total += server.getNumRequests();
+        return total;
+    }
+
+    private static double percentile(long[] sorted, double p)
+    {
+        return sorted[Math.min(sorted.length - 1, (int) (sorted.length * p))] / 1e6;
+    }
+}
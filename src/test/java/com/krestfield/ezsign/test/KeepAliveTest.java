@@ -0,0 +1,98 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.net.KConnectionPool;
+
+/**
+ * KeepAliveTest
+ *
+ * Runs the same sequence of SIGN, VERI, RAND and ENCI messages with a new connection per message and then
+ * with keep-alive connections, against a LocalEzSignServer that keeps connections open.  Then runs with
+ * keep-alive against a server that closes after each message to show the fall back to one connection per message
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class KeepAliveTest
+{
+    private static int numIterations = 2000;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        LocalEzSignServer keepAliveServer = null;
+        LocalEzSignServer oneShotServer = null;
+        try
+        {
+            System.out.println("Usage: KeepAliveTest [num iterations]");
+            if (args.length > 0)
+                numIterations = Integer.parseInt(args[0]);
+
+            keepAliveServer = new LocalEzSignServer(0).useKeepAlive().start();
+            oneShotServer = new LocalEzSignServer(0).start();
+
+            EzSignClient oneShotClient = new EzSignClient("127.0.0.1", keepAliveServer.getPort());
+            EzSignClient keepAliveClient = new EzSignClient("127.0.0.1", keepAliveServer.getPort()).useKeepAlive(8, 30000);
+
+            // Warm up
+            run(oneShotClient, numIterations / 10);
+            run(keepAliveClient, numIterations / 10);
+
+            long connectionsBefore = keepAliveServer.getNumConnections();
+            long oneShotTime = run(oneShotClient, numIterations);
+            System.out.println("New connection per message: " + oneShotTime / 1000 / (numIterations * 4) + " micro seconds per message, " +
+                    (keepAliveServer.getNumConnections() - connectionsBefore) + " connections");
+
+            connectionsBefore = keepAliveServer.getNumConnections();
+            long keepAliveTime = run(keepAliveClient, numIterations);
+            System.out.println("Keep-alive:                 " + keepAliveTime / 1000 / (numIterations * 4) + " micro seconds per message, " +
+                    (keepAliveServer.getNumConnections() - connectionsBefore) + " connections");
+            System.out.println(String.format("Speedup: %.2fx", (double) oneShotTime / keepAliveTime));
+
+            KConnectionPool pool = keepAliveClient.getConnectionPool();
+            System.out.println("Pool - Created: " + pool.getCreated() + " Reused: " + pool.getReused() +
+                    " Validation Failures: " + pool.getValidationFailures());
+            keepAliveClient.close();
+
+            // Against a server that does not keep connections open
+            EzSignClient fallbackClient = new EzSignClient("127.0.0.1", oneShotServer.getPort()).useKeepAlive(8, 30000);
+            run(fallbackClient, 100);
+            System.out.println("Against a one-shot server - all messages OK, keep-alive supported: " +
+                    fallbackClient.getConnectionPool().isKeepAliveSupported());
+            fallbackClient.close();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            if (keepAliveServer != null)
+                keepAliveServer.stop();
+            if (oneShotServer != null)
+                oneShotServer.stop();
+        }
+    }
+
+    /**
+     * Sends numIterations of each message type
+     *
+     * @param client The client
+     * @param numIterations The number of iterations
+     * @return The time taken in nano seconds
+     * @throws Exception If any message fails
+     */
+    private static long run(EzSignClient client, int numIterations) throws Exception
+    {
+        long startTime = System.nanoTime();
+        for (int i = 0; i < numIterations; i++)
+        {
+            byte[] randBytes = client.generateRandomBytes(channel, 20);
+            byte[] signature = client.signData(channel, randBytes, false);
+            client.verifySignature(channel, signature, randBytes, false);
+            byte[] encData = client.encryptData(channel, randBytes, "KEY");
+            if (encData.length != randBytes.length)
+                throw new Exception("Unexpected encrypted data length");
+        }
+        return System.nanoTime() - startTime;
+    }
+}
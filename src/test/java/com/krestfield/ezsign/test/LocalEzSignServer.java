@@ -0,0 +1,666 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.msg.KBase64;
+import com.krestfield.ezsign.msg.KBinaryMessage;
+import com.krestfield.ezsign.net.KBinaryFraming;
+import com.krestfield.ezsign.net.KFrame;
+import com.krestfield.ezsign.net.KFrameInputStream;
+import com.krestfield.ezsign.net.KFraming;
+import com.krestfield.ezsign.net.KLineFraming;
+import com.krestfield.ezsign.utils.KAuthEnvelope;
+import com.krestfield.ezsign.utils.KEncrypt;
+
+import javax.net.ssl.KeyManagerFactory;
+import javax.net.ssl.SSLContext;
+import java.io.*;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.KeyStore;
+import java.security.MessageDigest;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LocalEzSignServer
+ *
+ * A minimal stand-in for the EzSign server, used by the test harnesses so that client changes can be
+ * measured without a real server or HSM.  Supports the SIGN, VERI, RAND and ENCI messages.
+ *
+ * The "signature" is a SHA-256 of the data, so VERI can report a genuine failure for tampered data.
+ * Each request can be made to take a fixed time to simulate the server side processing (e.g. the HSM)
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class LocalEzSignServer implements Runnable
+{
+    private ServerSocket m_serverSocket;
+    private ExecutorService m_workers = Executors.newCachedThreadPool();
+    private Thread m_acceptThread;
+    private volatile boolean m_running = false;
+
+    private volatile int m_processingTimeMs = 0;
+    private final Map<String, Integer> m_processingTimesById = new ConcurrentHashMap<String, Integer>();
+    private volatile double m_slowShare = 0;
+    private volatile int m_slowProcessingTimeMs = 0;
+    private int m_maxConcurrent = 0;
+    private final AtomicInteger m_inProgress = new AtomicInteger();
+    private int m_capacity = 0;
+    private int m_processing = 0;
+    private final ReentrantLock m_capacityLock = new ReentrantLock();
+    private final Condition m_capacityFreed = m_capacityLock.newCondition();
+    private boolean m_keepAlive = false;
+    private boolean m_multiplexing = false;
+    private boolean m_binaryFormat = false;
+    private final KFraming m_lineFraming = new KLineFraming();
+    private final KFraming m_binaryFraming = new KBinaryFraming();
+    private final KFraming m_envelopeFraming = new KBinaryFraming(true);
+    private KEncrypt m_encrypt = null;
+    private KAuthEnvelope m_authEnvelope = null;
+
+    private AtomicLong m_numRequests = new AtomicLong();
+    private AtomicLong m_numBytesReceived = new AtomicLong();
+    private AtomicLong m_numConnections = new AtomicLong();
+    private AtomicLong m_numRejected = new AtomicLong();
+
+    /**
+     * Constructor.  Listens on any free local port
+     *
+     * @param processingTimeMs The time each request should take, to simulate server side processing
+     * @throws IOException If the server socket cannot be opened
+     */
+    public LocalEzSignServer(int processingTimeMs) throws IOException
+    {
+        m_processingTimeMs = processingTimeMs;
+        m_serverSocket = new ServerSocket(0, 1000);
+    }
+
+    /**
+     * Changes the time each request takes, e.g. to simulate a server becoming degraded and recovering
+     *
+     * @param processingTimeMs The time each request should take
+     */
+    public void setProcessingTime(int processingTimeMs)
+    {
+        m_processingTimeMs = processingTimeMs;
+    }
+
+    /**
+     * Sets the time requests with the given message ID take, in place of the time for all requests
+     *
+     * @param messageId The message ID, e.g. RAND
+     * @param processingTimeMs The time each of these requests should take
+     * @return The LocalEzSignServer instance
+     */
+    public LocalEzSignServer useProcessingTime(String messageId, int processingTimeMs)
+    {
+        m_processingTimesById.put(messageId, processingTimeMs);
+        return this;
+    }
+
+    /**
+     * Makes a share of requests take much longer, to simulate the long tail of response times from an HSM
+     *
+     * @param share The share of requests that are slow, 0 to 1
+     * @param slowProcessingTimeMs The time each slow request takes
+     * @return The LocalEzSignServer instance
+     */
+    public LocalEzSignServer useSlowRequests(double share, int slowProcessingTimeMs)
+    {
+        m_slowShare = share;
+        m_slowProcessingTimeMs = slowProcessingTimeMs;
+        return this;
+    }
+
+    /**
+     * Limits the requests processed at once, to simulate an overloaded server.  A request received when the
+     * limit is reached is dropped: the connection is closed without a response
+     *
+     * @param maxConcurrent The max requests processed at once
+     * @return The LocalEzSignServer instance
+     */
+    public LocalEzSignServer useMaxConcurrent(int maxConcurrent)
+    {
+        m_maxConcurrent = maxConcurrent;
+        return this;
+    }
+
+    /**
+     * Limits the requests processed at the same time, as by an HSM with a fixed number of cores.  Further
+     * requests queue, so their response time grows with the load
+     *
+     * @param capacity The requests processed at the same time, 0 for no limit
+     * @return The LocalEzSignServer instance
+     */
+    public LocalEzSignServer useCapacity(int capacity)
+    {
+        m_capacityLock.lock();
+        try
+        {
+            m_capacity = capacity;
+            m_capacityFreed.signalAll();
+        }
+        finally
+        {
+            m_capacityLock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * Sets the auth code, this must be the same as the client.  Requests may be encrypted by KEncrypt or, in
+     * the binary format, in the v2 envelope, and each is replied to in the same way
+     *
+     * @param authCode The auth code
+     * @return This server
+     * @throws Exception If there is an error
+     */
+    public LocalEzSignServer useAuthCode(String authCode) throws Exception
+    {
+        m_encrypt = new KEncrypt(authCode);
+        m_authEnvelope = new KAuthEnvelope(authCode);
+        return this;
+    }
+
+    /**
+     * Accepts TLS connections only.  Must be called before start
+     *
+     * @param keystoreFilename The PKCS12 file holding the server key and certificate
+     * @param keystorePassword The keystore password
+     * @return This server
+     * @throws Exception If there is an error
+     */
+    public LocalEzSignServer useTls(String keystoreFilename, String keystorePassword) throws Exception
+    {
+        KeyStore keyStore = KeyStore.getInstance("PKCS12");
+        keyStore.load(new FileInputStream(keystoreFilename), keystorePassword.toCharArray());
+        KeyManagerFactory kmf = KeyManagerFactory.getInstance("SunX509");
+        kmf.init(keyStore, keystorePassword.toCharArray());
+        SSLContext sslContext = SSLContext.getInstance("TLS");
+        sslContext.init(kmf.getKeyManagers(), null, null);
+
+        m_serverSocket.close();
+        m_serverSocket = sslContext.getServerSocketFactory().createServerSocket(0, 1000);
+        return this;
+    }
+
+    /**
+     * Keeps each connection open for further requests until the client closes it, rather than
+     * closing it after one response
+     *
+     * @return This server
+     */
+    public LocalEzSignServer useKeepAlive()
+    {
+        m_keepAlive = true;
+        return this;
+    }
+
+    /**
+     * Accepts requests carrying a correlation ID - in the multiplexed (v2) text framing, V2:CORRELATION_ID:MESSAGE,
+     * or in a binary frame header.  These requests are processed in parallel and the responses written as each
+     * completes, so they may be returned out of order
+     *
+     * @return This server
+     */
+    public LocalEzSignServer useMultiplexing()
+    {
+        m_multiplexing = true;
+        return this;
+    }
+
+    /**
+     * Accepts messages in the binary format, in length prefixed frames, as well as text lines.  Without this
+     * a connection sending a binary frame is closed
+     *
+     * @return This server
+     */
+    public LocalEzSignServer useBinaryFormat()
+    {
+        m_binaryFormat = true;
+        return this;
+    }
+
+    /**
+     * Sets the executor that handles connections and multiplexed requests, e.g. to run them on virtual threads.
+     * By default a cached pool of platform threads is used
+     *
+     * @param workers The executor
+     * @return This server
+     */
+    public LocalEzSignServer useWorkers(ExecutorService workers)
+    {
+        m_workers.shutdown();
+        m_workers = workers;
+        return this;
+    }
+
+    /**
+     * Starts accepting connections
+     *
+     * @return This server
+     */
+    public LocalEzSignServer start()
+    {
+        m_running = true;
+        m_acceptThread = new Thread(this, "LocalEzSignServer");
+        m_acceptThread.setDaemon(true);
+        m_acceptThread.start();
+        return this;
+    }
+
+    /**
+     * Stops the server
+     */
+    public void stop()
+    {
+        m_running = false;
+        try { m_serverSocket.close(); } catch (Exception e) { }
+        m_workers.shutdownNow();
+    }
+
+    public int getPort()
+    {
+        return m_serverSocket.getLocalPort();
+    }
+
+    public long getNumRequests()
+    {
+        return m_numRequests.get();
+    }
+
+    public long getNumConnections()
+    {
+        return m_numConnections.get();
+    }
+
+    public long getNumRejected()
+    {
+        return m_numRejected.get();
+    }
+
+    /**
+     *
+     * @return The size of the request messages received, as sent (encrypted and encoded), without framing
+     */
+    public long getNumBytesReceived()
+    {
+        return m_numBytesReceived.get();
+    }
+
+    public void run()
+    {
+        while (m_running)
+        {
+            try
+            {
+                final Socket socket = m_serverSocket.accept();
+                m_numConnections.incrementAndGet();
+                m_workers.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        handleConnection(socket);
+                    }
+                });
+            }
+            catch (Exception e)
+            {
+                // Closed
+            }
+        }
+    }
+
+    /**
+     * Handles a single connection.  Like the EzSign server, one request is processed and the connection closed,
+     * unless keep-alive is on in which case requests are processed until the client closes the connection.
+     * Each message may be a text line or, if the binary format is on, a binary frame
+     *
+     * @param socket The accepted socket
+     */
+    private void handleConnection(Socket socket)
+    {
+        try
+        {
+            KFrameInputStream in = new KFrameInputStream(socket.getInputStream());
+            final OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+
+            while (true)
+            {
+                int first = in.peek();
+                if (first < 0)
+                    break;
+
+                final boolean binary = (first == KBinaryFraming.MAGIC);
+                if (binary && !m_binaryFormat)
+                    break;
+
+                final KFrame frame = (binary ? m_binaryFraming : m_lineFraming).read(in);
+                if (frame == null)
+                    break;
+
+                // Replies in the framing of the request
+                final KFraming framing = frame.isEnveloped() ? m_envelopeFraming : binary ? m_binaryFraming : m_lineFraming;
+
+                if (m_multiplexing && frame.getCorrelationId() != KFraming.NO_CORRELATION_ID)
+                {
+                    // Process in parallel and keep reading
+                    m_workers.execute(new Runnable()
+                    {
+                        public void run()
+                        {
+                            processMultiplexed(frame, binary, framing, out);
+                        }
+                    });
+                    continue;
+                }
+
+                if (m_maxConcurrent > 0 && m_inProgress.incrementAndGet() > m_maxConcurrent)
+                {
+                    m_inProgress.decrementAndGet();
+                    m_numRejected.incrementAndGet();
+                    break;
+                }
+                try
+                {
+                    framing.write(out, KFraming.NO_CORRELATION_ID, processMessage(frame, binary));
+                }
+                finally
+                {
+                    if (m_maxConcurrent > 0)
+                        m_inProgress.decrementAndGet();
+                }
+
+                if (!m_keepAlive)
+                    break;
+            }
+        }
+        catch (Exception e)
+        {
+            // Client went away
+        }
+        finally
+        {
+            try { socket.close(); } catch (Exception e) { }
+        }
+    }
+
+    /**
+     * Processes a request carrying a correlation ID and writes the response with the same ID
+     *
+     * @param frame The request as received
+     * @param binary True if in the binary format
+     * @param framing The framing it was received in
+     * @param out The stream shared by all requests on the connection
+     */
+    private void processMultiplexed(KFrame frame, boolean binary, KFraming framing, OutputStream out)
+    {
+        try
+        {
+            byte[] response = processMessage(frame, binary);
+            synchronized (out)
+            {
+                framing.write(out, frame.getCorrelationId(), response);
+            }
+        }
+        catch (Exception e)
+        {
+            // Client went away
+        }
+    }
+
+    /**
+     * Decrypts (if using an auth code), processes and encrypts the response
+     *
+     * @param frame The message as received
+     * @param binary True if in the binary format
+     * @return The message to send back
+     * @throws Exception If there is an error
+     */
+    private byte[] processMessage(KFrame frame, boolean binary) throws Exception
+    {
+        byte[] message = frame.getMessage();
+        m_numBytesReceived.addAndGet(message.length);
+
+        if (frame.isEnveloped())
+        {
+            if (m_authEnvelope == null)
+                throw new IOException("An enveloped message was received without an auth code set");
+
+            Response response = processRequest(Request.fromBinary(m_authEnvelope.openRequest(message)));
+            return m_authEnvelope.sealReply(message, response.toBinary());
+        }
+
+        if (m_encrypt != null)
+        {
+            if (!binary)
+                message = KBase64.FromBase64String(new String(message, StandardCharsets.US_ASCII));
+            message = m_encrypt.decryptBytes(message);
+        }
+
+        Response response = processRequest(binary ? Request.fromBinary(message) : Request.fromText(new String(message)));
+        byte[] respMessage = binary ? response.toBinary() : response.toText().getBytes();
+
+        if (m_encrypt != null)
+        {
+            respMessage = m_encrypt.encryptBytes(respMessage);
+            if (!binary)
+                respMessage = KBase64.ToBase64String(respMessage).getBytes(StandardCharsets.US_ASCII);
+        }
+        return respMessage;
+    }
+
+    /**
+     * Takes the processing time, waiting for a free core first if the capacity is limited
+     *
+     * @param processingTimeMs The processing time
+     * @throws InterruptedException If interrupted
+     */
+    private void process(int processingTimeMs) throws InterruptedException
+    {
+        m_capacityLock.lock();
+        try
+        {
+            while (m_capacity > 0 && m_processing >= m_capacity)
+                m_capacityFreed.await();
+            m_processing++;
+        }
+        finally
+        {
+            m_capacityLock.unlock();
+        }
+
+        try
+        {
+            Thread.sleep(processingTimeMs);
+        }
+        finally
+        {
+            m_capacityLock.lock();
+            try
+            {
+                m_processing--;
+                m_capacityFreed.signal();
+            }
+            finally
+            {
+                m_capacityLock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Processes a clear request message
+     * MESSAGE_ID ~ CHANNEL ~ DATA1 ~ DATA2...
+     *
+     * @param request The request
+     * @return The response
+     * @throws Exception If there is an error
+     */
+    Response processRequest(Request request) throws Exception
+    {
+        m_numRequests.incrementAndGet();
+
+        Integer processingTimeById = m_processingTimesById.get(request.m_messageId);
+        int processingTimeMs = (processingTimeById != null) ? processingTimeById : m_processingTimeMs;
+        if (m_slowShare > 0 && ThreadLocalRandom.current().nextDouble() < m_slowShare)
+            processingTimeMs = m_slowProcessingTimeMs;
+        if (processingTimeMs > 0)
+            process(processingTimeMs);
+
+        String messageId = request.m_messageId;
+        String respId = new StringBuilder(messageId).reverse().toString();
+
+        if (messageId.equals("SIGN"))
+        {
+            return new Response(respId, 0, null, sign(request.getBytes(1)));
+        }
+        else if (messageId.equals("VERI"))
+        {
+            byte[] signature = request.getBytes(1);
+            byte[] content = request.getBytes(2);
+            if (Arrays.equals(signature, sign(content)))
+                return new Response(respId, 0, null, null);
+            else
+                return new Response(respId, 3, "The signature did not verify", null);
+        }
+        else if (messageId.equals("RAND"))
+        {
+            byte[] rnd = new byte[Integer.parseInt(request.getText(1).trim())];
+            new SecureRandom().nextBytes(rnd);
+            return new Response(respId, 0, null, rnd);
+        }
+        else if (messageId.equals("ENCI"))
+        {
+            // Not real encryption, just reversible
+            byte[] data = request.getBytes(2).clone();
+            for (int i = 0; i < data.length; i++)
+                data[i] ^= 0x5A;
+            return new Response(respId, 0, null, data);
+        }
+
+        return new Response(respId, 1, "Unknown message " + messageId, null);
+    }
+
+    /**
+     * The stand-in signature - just a hash
+     *
+     * @param data The data
+     * @return The hash of the data
+     * @throws Exception If there is an error
+     */
+    private byte[] sign(byte[] data) throws Exception
+    {
+        return MessageDigest.getInstance("SHA-256").digest(data);
+    }
+
+    /**
+     * A request in either format.  Item 0 is the channel
+     */
+    static class Request
+    {
+        String m_messageId;
+        String[] m_textItems;
+        byte[][] m_binaryItems;
+
+        static Request fromText(String message)
+        {
+            Request request = new Request();
+            String[] items = message.split("~", -1);
+            request.m_messageId = items[0];
+            request.m_textItems = Arrays.copyOfRange(items, 1, items.length);
+            request.m_binaryItems = new byte[request.m_textItems.length][];
+            return request;
+        }
+
+        static Request fromBinary(byte[] message) throws Exception
+        {
+            Request request = new Request();
+            KBinaryMessage binMessage = KBinaryMessage.decode(message);
+            request.m_messageId = binMessage.getMessageId();
+            request.m_textItems = new String[binMessage.getNumItems()];
+            request.m_binaryItems = new byte[binMessage.getNumItems()][];
+            for (int i = 0; i < binMessage.getNumItems(); i++)
+            {
+                if (binMessage.getType(i) == KBinaryMessage.TYPE_BYTES)
+                    request.m_binaryItems[i] = binMessage.getValue(i);
+                else
+                    request.m_textItems[i] = binMessage.getText(i);
+            }
+            return request;
+        }
+
+        String getText(int index)
+        {
+            return m_textItems[index];
+        }
+
+        byte[] getBytes(int index)
+        {
+            return (m_binaryItems[index] != null) ? m_binaryItems[index] : KBase64.FromBase64String(m_textItems[index]);
+        }
+    }
+
+    /**
+     * A response, formatted as text or binary
+     */
+    static class Response
+    {
+        String m_messageId;
+        int m_code;
+        String m_error;
+        byte[] m_data;
+
+        Response(String messageId, int code, String error, byte[] data)
+        {
+            m_messageId = messageId;
+            m_code = code;
+            m_error = error;
+            m_data = data;
+        }
+
+        String toText()
+        {
+            StringBuilder sb = new StringBuilder(m_messageId).append('~').append(m_code);
+            if (m_error != null)
+                sb.append('~').append(m_error);
+            if (m_data != null)
+                sb.append('~').append(KBase64.ToBase64String(m_data));
+            return sb.toString();
+        }
+
+        byte[] toBinary()
+        {
+            List<byte[]> values = new ArrayList<byte[]>();
+            List<Byte> types = new ArrayList<Byte>();
+            types.add(KBinaryMessage.TYPE_TEXT);
+            values.add(Integer.toString(m_code).getBytes(StandardCharsets.UTF_8));
+            if (m_error != null)
+            {
+                types.add(KBinaryMessage.TYPE_TEXT);
+                values.add(m_error.getBytes(StandardCharsets.UTF_8));
+            }
+            if (m_data != null)
+            {
+                types.add(KBinaryMessage.TYPE_BYTES);
+                values.add(m_data);
+            }
+
+            byte[] typeArray = new byte[types.size()];
+            for (int i = 0; i < typeArray.length; i++)
+                typeArray[i] = types.get(i);
+            return new KBinaryMessage(m_messageId, typeArray, values.toArray(new byte[0][])).encode();
+        }
+    }
+}
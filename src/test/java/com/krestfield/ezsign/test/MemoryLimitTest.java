@@ -0,0 +1,218 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.KEzSignConnectException;
+import com.krestfield.ezsign.KLoadShedException;
+import com.krestfield.ezsign.net.KMemoryLimiter;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MemoryLimitTest
+ *
+ * Many threads encrypt multi-MB payloads at once against a slow server, as when a batch of documents is
+ * sent in one go.  Runs without and then with a memory limit and reports the calls that succeeded, the
+ * payload bytes held by calls in progress and the heap used at the peak.  Then runs with a limit that fails
+ * fast rather than waits, checks asynchronous calls wait for their bytes and that a response longer than the
+ * max response size is rejected
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class MemoryLimitTest
+{
+    private static int numThreads = 64;
+    private static int numIterations = 4;
+    private static int payloadBytes = 2 * 1024 * 1024;
+    private static int processingMs = 50;
+    private static long maxBytes = 32L * 1024 * 1024;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        try
+        {
+            System.out.println("Usage: MemoryLimitTest [num threads] [payload bytes]");
+            if (args.length > 0)
+                numThreads = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                payloadBytes = Integer.parseInt(args[1]);
+
+            System.out.println(numThreads + " threads encrypting " + (payloadBytes / 1024) + "KB, server taking " +
+                    processingMs + "ms per request");
+
+            run("No memory limit", new EzSignClient("127.0.0.1", 0));
+            run("Limit " + (maxBytes >> 20) + "MB, wait 10s", new EzSignClient("127.0.0.1", 0).useMemoryLimit(maxBytes, 10000));
+            run("Limit " + (maxBytes >> 20) + "MB, fail fast", new EzSignClient("127.0.0.1", 0).useMemoryLimit(maxBytes, 0));
+
+            checkAsync();
+            checkMaxResponseSize(false);
+            checkMaxResponseSize(true);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private static void run(String name, final EzSignClient client) throws Exception
+    {
+        LocalEzSignServer server = new LocalEzSignServer(processingMs).start();
+        client.setPort(server.getPort());
+
+        final byte[] payload = new byte[payloadBytes];
+        final AtomicInteger succeeded = new AtomicInteger();
+        final AtomicInteger shed = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(numThreads);
+
+        System.gc();
+        final Runtime runtime = Runtime.getRuntime();
+        final long heapAtStart = runtime.totalMemory() - runtime.freeMemory();
+        final AtomicLong peakHeap = new AtomicLong();
+        Thread monitor = new Thread()
+        {
+            public void run()
+            {
+                while (done.getCount() > 0)
+                {
+                    long used = runtime.totalMemory() - runtime.freeMemory() - heapAtStart;
+                    if (used > peakHeap.get())
+                        peakHeap.set(used);
+                    try
+                    {
+                        Thread.sleep(1);
+                    }
+                    catch (InterruptedException e)
+                    {
+                        return;
+                    }
+                }
+            }
+        };
+        monitor.setDaemon(true);
+        monitor.start();
+
+        long startTime = System.nanoTime();
+        for (int t = 0; t < numThreads; t++)
+        {
+            new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < numIterations; i++)
+                    {
+                        try
+                        {
+                            client.encryptData(channel, payload, "KEY");
+                            succeeded.incrementAndGet();
+                        }
+                        catch (KLoadShedException e)
+                        {
+                            shed.incrementAndGet();
+                        }
+                        catch (Throwable e)
+                        {
+                            errors.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        double secs = (System.nanoTime() - startTime) / 1e9;
+
+        System.out.println(String.format("%-26s %4d of %4d OK  %4d shed  %4d errors  %5.2fs  peak heap growth %5dMB", name,
+                succeeded.get(), numThreads * numIterations, shed.get(), errors.get(), secs, peakHeap.get() >> 20));
+
+        KMemoryLimiter limiter = client.getMemoryLimiter();
+        if (limiter != null)
+            System.out.println(String.format("  Peak payload bytes in progress %dMB of %dMB, waited %d, rejected %d, in use after %d",
+                    limiter.getPeak() >> 20, limiter.getMaxBytes() >> 20, limiter.getWaited(), limiter.getRejected(),
+                    limiter.getInUse()));
+
+        client.close();
+        server.stop();
+    }
+
+    private static void checkAsync() throws Exception
+    {
+        LocalEzSignServer server = new LocalEzSignServer(processingMs).start();
+        EzSignClient client = new EzSignClient("127.0.0.1", server.getPort()).useMemoryLimit(maxBytes, 10000);
+
+        byte[] payload = new byte[payloadBytes];
+        List<CompletableFuture<byte[]>> futures = new ArrayList<CompletableFuture<byte[]>>();
+        for (int i = 0; i < 100; i++)
+            futures.add(client.encryptDataAsync(channel, payload, "KEY"));
+
+        int failed = 0;
+        for (CompletableFuture<byte[]> future : futures)
+        {
+            try
+            {
+                future.get();
+            }
+            catch (ExecutionException e)
+            {
+                failed++;
+            }
+        }
+        KMemoryLimiter limiter = client.getMemoryLimiter();
+        System.out.println(String.format("Async: 100 calls, %d failed, waited %d, peak %dMB, in use after %d", failed,
+                limiter.getWaited(), limiter.getPeak() >> 20, limiter.getInUse()));
+
+        client.close();
+        server.stop();
+    }
+
+    private static void checkMaxResponseSize(boolean binary) throws Exception
+    {
+        LocalEzSignServer server = new LocalEzSignServer(0);
+        EzSignClient client = new EzSignClient("127.0.0.1", 0).useMemoryLimit(maxBytes, 10000);
+        if (binary)
+        {
+            server.useBinaryFormat();
+            client.useBinaryFormat();
+        }
+        server.start();
+        client.setPort(server.getPort());
+        client.useMaxResponseSize(payloadBytes / 2);
+
+        byte[] payload = new byte[payloadBytes];
+        boolean syncRejected = false;
+        try
+        {
+            client.encryptData(channel, payload, "KEY");
+        }
+        catch (KEzSignConnectException e)
+        {
+            syncRejected = true;
+        }
+
+        boolean asyncRejected = false;
+        try
+        {
+            client.encryptDataAsync(channel, payload, "KEY").get();
+        }
+        catch (ExecutionException e)
+        {
+            asyncRejected = e.getCause() instanceof KEzSignConnectException;
+        }
+
+        // A smaller response is still read
+        boolean smallOk = client.encryptData(channel, new byte[payloadBytes / 4], "KEY") != null;
+
+        boolean ok = syncRejected && asyncRejected && smallOk && client.getMemoryLimiter().getInUse() == 0;
+        System.out.println(String.format("Max response size %dKB, %s format: %s", (payloadBytes / 2) / 1024,
+                binary ? "binary" : "text", ok ? "OK" : "FAILED"));
+
+        client.close();
+        server.stop();
+    }
+}
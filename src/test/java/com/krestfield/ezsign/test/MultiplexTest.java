@@ -0,0 +1,121 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.net.KMuxPool;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * MultiplexTest
+ *
+ * Many threads sign on one client.  First with one connection per message and then with all requests
+ * pipelined over a few multiplexed (v2) connections.  Finally checks that multiplexing falls back
+ * when the server does not support the v2 framing
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class MultiplexTest
+{
+    private static int numThreads = 200;
+    private static int numIterations = 50;
+    private static int numConnections = 2;
+    private static int serverProcessingMs = 5;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        LocalEzSignServer muxServer = null;
+        LocalEzSignServer v1Server = null;
+        try
+        {
+            System.out.println("Usage: MultiplexTest [num threads] [num iterations] [num connections]");
+            if (args.length > 0)
+                numThreads = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                numIterations = Integer.parseInt(args[1]);
+            if (args.length > 2)
+                numConnections = Integer.parseInt(args[2]);
+
+            muxServer = new LocalEzSignServer(serverProcessingMs).useMultiplexing().start();
+
+            EzSignClient oneShotClient = new EzSignClient("127.0.0.1", muxServer.getPort());
+            long connectionsBefore = muxServer.getNumConnections();
+            double tps = run(oneShotClient);
+            System.out.println(String.format("Connection per message:  %8.1f signatures/sec over %d connections",
+                    tps, muxServer.getNumConnections() - connectionsBefore));
+
+            EzSignClient muxClient = new EzSignClient("127.0.0.1", muxServer.getPort()).useMultiplexing(numConnections);
+            connectionsBefore = muxServer.getNumConnections();
+            tps = run(muxClient);
+            KMuxPool pool = muxClient.getMuxPool();
+            System.out.println(String.format("Multiplexed:             %8.1f signatures/sec over %d connections",
+                    tps, muxServer.getNumConnections() - connectionsBefore));
+            System.out.println("Requests sent multiplexed: " + pool.getSent());
+            muxClient.close();
+
+            // A server that only understands the original framing
+            v1Server = new LocalEzSignServer(0).start();
+            EzSignClient fallbackClient = new EzSignClient("127.0.0.1", v1Server.getPort()).useMultiplexing(numConnections);
+            fallbackClient.signData(channel, "Hello".getBytes(), false);
+            System.out.println("Against a v1 server - signed OK, multiplexing supported: " + fallbackClient.getMuxPool().isSupported());
+            fallbackClient.close();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            if (muxServer != null)
+                muxServer.stop();
+            if (v1Server != null)
+                v1Server.stop();
+        }
+    }
+
+    /**
+     * Runs numThreads threads each signing numIterations times on the shared client
+     *
+     * @param client The shared client
+     * @return The number of signatures per second
+     * @throws Exception If there is an error
+     */
+    private static double run(final EzSignClient client) throws Exception
+    {
+        final AtomicLong numBad = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(numThreads);
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < numThreads; i++)
+        {
+            new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    for (int j = 0; j < numIterations; j++)
+                    {
+                        try
+                        {
+                            byte[] data = ("Data " + j).getBytes();
+                            byte[] signature = client.signData(channel, data, false);
+                            client.verifySignature(channel, signature, data, false);
+                        }
+                        catch (Exception e)
+                        {
+                            numBad.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }, "Thread " + i).start();
+        }
+        done.await();
+        long duration = System.nanoTime() - startTime;
+
+        if (numBad.get() > 0)
+            System.out.println("WARNING: THERE WERE " + numBad.get() + " FAILURES");
+
+        return (numThreads * numIterations) / (duration / 1000000000.0);
+    }
+}
@@ -0,0 +1,214 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.KVerificationException;
+import com.krestfield.ezsign.msg.KEncipherReqMsg;
+import com.krestfield.ezsign.msg.KSignDataReqMsg;
+import com.krestfield.ezsign.msg.KSignDataRespMsg;
+import com.krestfield.ezsign.net.KLineFraming;
+import com.krestfield.ezsign.net.KNioTransport;
+
+import java.io.IOException;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * NioTransportTest
+ *
+ * Checks the synchronous API over the non-blocking transport (plain, binary, auth code and, if a keystore is
+ * given, TLS), that a response longer than the max message length fails its message and that host names are
+ * looked up without holding up send.  Then puts a large number of requests in flight at once on the transport,
+ * against a server that takes a while to respond, and reports the throughput and the number of threads the
+ * client used
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class NioTransportTest
+{
+    private static int numConcurrent = 1000;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        LocalEzSignServer server = null;
+        LocalEzSignServer authServer = null;
+        LocalEzSignServer tlsServer = null;
+        LocalEzSignServer slowServer = null;
+        try
+        {
+            System.out.println("Usage: NioTransportTest [num concurrent] [server keystore] [keystore password]");
+            if (args.length > 0)
+                numConcurrent = Integer.parseInt(args[0]);
+
+            server = new LocalEzSignServer(0).useBinaryFormat().start();
+            authServer = new LocalEzSignServer(0).useAuthCode("password").start();
+
+            check("Text", new EzSignClient("127.0.0.1", server.getPort()).useNio(2));
+            check("Binary", new EzSignClient("127.0.0.1", server.getPort()).useBinaryFormat().useNio(2));
+            check("Auth code", new EzSignClient("127.0.0.1", authServer.getPort(), "password").useNio(2));
+            checkLimits(new LocalEzSignServer(0).start());
+
+            if (args.length > 2)
+            {
+                // The stand-in server certificate is self-signed so trust the keystore it is in
+                System.setProperty("javax.net.ssl.trustStore", args[1]);
+                System.setProperty("javax.net.ssl.trustStorePassword", args[2]);
+                System.setProperty("javax.net.ssl.trustStoreType", "PKCS12");
+
+                tlsServer = new LocalEzSignServer(0).useTls(args[1], args[2]).start();
+                EzSignClient tlsClient = new EzSignClient("localhost", tlsServer.getPort()).useTls().useNio(2);
+                check("TLS", tlsClient);
+                System.out.println("TLS - Full Handshakes: " + tlsClient.getTlsContext().getFullHandshakes() +
+                        " Resumed Handshakes: " + tlsClient.getTlsContext().getResumedHandshakes());
+            }
+
+            // Many requests in flight at once, each taking 200ms at the server
+            slowServer = new LocalEzSignServer(200).start();
+            KNioTransport transport = new KNioTransport(2, new KLineFraming(), null, 5000, 30000);
+            byte[] message = new KSignDataReqMsg(channel, "Data to sign".getBytes(), false).getMessage().getBytes();
+
+            long startTime = System.nanoTime();
+            List<CompletableFuture<byte[]>> responses = new ArrayList<CompletableFuture<byte[]>>();
+            for (int i = 0; i < numConcurrent; i++)
+                responses.add(transport.send("127.0.0.1", slowServer.getPort(), message));
+
+            int peakInFlight = transport.getInFlight();
+            int failed = 0;
+            for (CompletableFuture<byte[]> response : responses)
+            {
+                try
+                {
+                    new KSignDataRespMsg(response.get(), false).getSignature();
+                }
+                catch (Exception e)
+                {
+                    failed++;
+                }
+            }
+            long timeTaken = System.nanoTime() - startTime;
+
+            System.out.println(numConcurrent + " concurrent requests (200ms each at the server) completed in " +
+                    timeTaken / 1000000 + "ms.  Failed: " + failed + " In flight after submit: " + peakInFlight +
+                    " Client I/O threads: " + countThreads("EzSignNioLoop"));
+            transport.close();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            if (server != null)
+                server.stop();
+            if (authServer != null)
+                authServer.stop();
+            if (tlsServer != null)
+                tlsServer.stop();
+            if (slowServer != null)
+                slowServer.stop();
+        }
+    }
+
+    /**
+     * Checks a response longer than the framing's max fails only its own message, that a host name is looked
+     * up and that an unknown host fails the message rather than send
+     *
+     * @param server The server, stopped after
+     * @throws Exception If there is an unexpected error
+     */
+    private static void checkLimits(LocalEzSignServer server) throws Exception
+    {
+        KNioTransport transport = new KNioTransport(1, new KLineFraming(4096), null, 5000, 30000);
+        try
+        {
+            byte[] small = new KEncipherReqMsg(channel, true, new byte[1024], "KEY").getMessage().getBytes();
+            byte[] large = new KEncipherReqMsg(channel, true, new byte[64 * 1024], "KEY").getMessage().getBytes();
+
+            boolean tooLong = false;
+            try
+            {
+                transport.send("127.0.0.1", server.getPort(), large).get();
+            }
+            catch (ExecutionException e)
+            {
+                tooLong = e.getCause() instanceof IOException;
+            }
+
+            // The I/O thread carries on with the next message
+            boolean smallOk = transport.send("localhost", server.getPort(), small).get() != null;
+
+            long startTime = System.nanoTime();
+            CompletableFuture<byte[]> unknown = transport.send("no-such-host.invalid", server.getPort(), small);
+            long sendMs = (System.nanoTime() - startTime) / 1000000;
+            boolean unknownFailed = false;
+            try
+            {
+                unknown.get();
+            }
+            catch (ExecutionException e)
+            {
+                unknownFailed = e.getCause() instanceof UnknownHostException;
+            }
+
+            System.out.println("Max message length: " + (tooLong ? "OK" : "FAILED") + ", next message: " +
+                    (smallOk ? "OK" : "FAILED") + ", unknown host: " + (unknownFailed ? "OK" : "FAILED") +
+                    " (send took " + sendMs + "ms)");
+        }
+        finally
+        {
+            transport.close();
+            server.stop();
+        }
+    }
+
+    /**
+     * Counts the live threads with the given name prefix.  The stand-in server runs in the same
+     * process so the total thread count would include its threads
+     *
+     * @param prefix The thread name prefix
+     * @return The number of threads
+     */
+    private static int countThreads(String prefix)
+    {
+        int count = 0;
+        for (Thread thread : Thread.getAllStackTraces().keySet())
+        {
+            if (thread.getName().startsWith(prefix))
+                count++;
+        }
+        return count;
+    }
+
+    /**
+     * Sends each message type and checks the results
+     *
+     * @param name The name of the check
+     * @param client The client
+     * @throws Exception If any message fails
+     */
+    private static void check(String name, EzSignClient client) throws Exception
+    {
+        for (int i = 0; i < 50; i++)
+        {
+            byte[] randBytes = client.generateRandomBytes(channel, 32);
+            byte[] signature = client.signData(channel, randBytes, false);
+            client.verifySignature(channel, signature, randBytes, false);
+
+            randBytes[0] ^= 1;
+            try
+            {
+                client.verifySignature(channel, signature, randBytes, false);
+                throw new Exception(name + ": tampered data verified");
+            }
+            catch (KVerificationException e)
+            {
+                // Expected
+            }
+        }
+        System.out.println(name + ": OK, " + client.getNioTransport().getSent() + " messages sent");
+        client.close();
+    }
+}
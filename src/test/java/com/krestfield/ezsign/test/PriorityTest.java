@@ -0,0 +1,194 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.net.KConcurrencyLimiter;
+import com.krestfield.ezsign.net.KPriority;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * PriorityTest
+ *
+ * A batch of many threads verifies signatures while a few users sign on the same channel (so the channels'
+ * turns do not keep them apart), on a client with a concurrency limit against a server with a fixed number
+ * of cores (so requests queue in the client).  Runs without and then with the batch's threads at low priority
+ * and reports the users' latency and the batch's throughput.  Then runs with the users' load high enough to
+ * fill every slot on its own and checks the batch still makes progress, and that asynchronous calls take the
+ * priority entered by the calling thread
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class PriorityTest
+{
+    private static int numBulkThreads = 100;
+    private static int numUserThreads = 4;
+    private static int runMs = 3000;
+    private static int processingMs = 10;
+    private static int capacity = 8;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        try
+        {
+            System.out.println("Usage: PriorityTest [num bulk threads] [run ms]");
+            if (args.length > 0)
+                numBulkThreads = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                runMs = Integer.parseInt(args[1]);
+
+            System.out.println(numBulkThreads + " threads verifying, " + numUserThreads +
+                    " users signing every 20ms, server taking " + processingMs + "ms per request on " + capacity + " cores");
+
+            run("No priorities", false, numUserThreads, 20);
+            run("Batch at low priority", true, numUserThreads, 20);
+            run("Users filling every slot", true, 64, 0);
+
+            checkAsync();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private static void run(String name, final boolean usePriorities, int userThreads, final int userPauseMs) throws Exception
+    {
+        LocalEzSignServer server = new LocalEzSignServer(processingMs).useCapacity(capacity).start();
+        final EzSignClient client = new EzSignClient("127.0.0.1", server.getPort()).useConcurrencyLimit(capacity, capacity,
+                10000, 30000);
+
+        final byte[] data = "Data to verify".getBytes();
+        final byte[] signature = client.signData(channel, data, false);
+
+        final AtomicBoolean stop = new AtomicBoolean(false);
+        final AtomicInteger bulkDone = new AtomicInteger();
+        final AtomicInteger errors = new AtomicInteger();
+        final ConcurrentLinkedQueue<Long> userLatencies = new ConcurrentLinkedQueue<Long>();
+        final CountDownLatch done = new CountDownLatch(numBulkThreads + userThreads);
+        for (int t = 0; t < numBulkThreads; t++)
+        {
+            new Thread()
+            {
+                public void run()
+                {
+                    if (usePriorities)
+                        KPriority.enter(KPriority.LOW);
+
+                    while (!stop.get())
+                    {
+                        try
+                        {
+                            client.verifySignature(channel, signature, data, false);
+                            bulkDone.incrementAndGet();
+                        }
+                        catch (Exception e)
+                        {
+                            errors.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        // Let the batch fill the queue first
+        Thread.sleep(200);
+        for (int t = 0; t < userThreads; t++)
+        {
+            new Thread()
+            {
+                public void run()
+                {
+                    while (!stop.get())
+                    {
+                        long callStart = System.nanoTime();
+                        try
+                        {
+                            client.signData(channel, "Data to sign".getBytes(), false);
+                            userLatencies.add(System.nanoTime() - callStart);
+                            if (userPauseMs > 0)
+                                Thread.sleep(userPauseMs);
+                        }
+                        catch (Exception e)
+                        {
+                            errors.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+
+        int bulkAtStart = bulkDone.get();
+        Thread.sleep(runMs);
+        int bulkInRun = bulkDone.get() - bulkAtStart;
+        stop.set(true);
+        done.await();
+
+        List<Long> sorted = new ArrayList<Long>(userLatencies);
+        Collections.sort(sorted);
+        System.out.println(String.format("%-26s users: %5d signs  p50 %7.2fms  p99 %7.2fms   batch: %6.1f verifies/sec  %d errors",
+                name, sorted.size(), percentile(sorted, 0.50), percentile(sorted, 0.99), bulkInRun * 1000.0 / runMs, errors.get()));
+
+        client.close();
+        server.stop();
+    }
+
+    private static void checkAsync() throws Exception
+    {
+        LocalEzSignServer server = new LocalEzSignServer(processingMs).useCapacity(capacity).start();
+        EzSignClient client = new EzSignClient("127.0.0.1", server.getPort()).useConcurrencyLimit(capacity, capacity, 10000, 30000);
+
+        // Fill the slots, then queue low priority calls ahead of high priority ones
+        List<CompletableFuture<byte[]>> low = new ArrayList<CompletableFuture<byte[]>>();
+        List<CompletableFuture<byte[]>> high = new ArrayList<CompletableFuture<byte[]>>();
+        for (int i = 0; i < capacity; i++)
+            client.signDataAsync(channel, "Data to sign".getBytes(), false);
+        try (KPriority priority = KPriority.enter(KPriority.LOW))
+        {
+            if (KPriority.current() != priority)
+                throw new Exception("The priority entered does not apply to this thread");
+            for (int i = 0; i < 40; i++)
+                low.add(client.signDataAsync(channel, "Data to sign".getBytes(), false));
+        }
+        try (KPriority priority = KPriority.enter(KPriority.HIGH))
+        {
+            if (KPriority.current() != priority)
+                throw new Exception("The priority entered does not apply to this thread");
+            for (int i = 0; i < 40; i++)
+                high.add(client.signDataAsync(channel, "Data to sign".getBytes(), false));
+        }
+
+        KConcurrencyLimiter limiter = client.getConcurrencyLimiter();
+        int lowWaiting = limiter.getWaiting(KPriority.LOW);
+        int highWaiting = limiter.getWaiting(KPriority.HIGH);
+        CompletableFuture.allOf(high.toArray(new CompletableFuture<?>[0])).get();
+        int lowDoneAfterHigh = 0;
+        for (CompletableFuture<byte[]> future : low)
+        {
+            if (future.isDone())
+                lowDoneAfterHigh++;
+        }
+        CompletableFuture.allOf(low.toArray(new CompletableFuture<?>[0])).get();
+        System.out.println(String.format("Async: %d low and %d high waiting, %d of 40 low done when all high were",
+                lowWaiting, highWaiting, lowDoneAfterHigh));
+
+        client.close();
+        server.stop();
+    }
+
+    private static double percentile(List<Long> sorted, double p)
+    {
+        if (sorted.isEmpty())
+            return 0;
+        return sorted.get(Math.min(sorted.size() - 1, (int) (sorted.size() * p))) / 1e6;
+    }
+}
@@ -0,0 +1,237 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.KCallCancelledException;
+import com.krestfield.ezsign.KRateLimitedException;
+import com.krestfield.ezsign.net.KDeadline;
+import com.krestfield.ezsign.net.KTokenBucket;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RateLimitTest
+ *
+ * Many threads sign at once against a server that can only process a few requests at a time and drops the
+ * rest.  Runs without a rate limit and then with a limit below the server's capacity (waiting for a turn) and
+ * reports the calls that succeeded, the requests the server dropped and the time taken.  Then checks a
+ * fail fast limit on one channel leaves other channels alone, that a call cancelled while waiting its turn
+ * gives its tokens back, that asynchronous calls wait their turn without holding a thread, and that a rate
+ * of 0 or less is rejected
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class RateLimitTest
+{
+    private static int numThreads = 100;
+    private static int numIterations = 20;
+    private static int processingMs = 10;
+    private static int maxConcurrent = 8;
+    private static String channel = "TEST";
+    private static String bulkChannel = "BULK";
+
+    public static void main(String args[])
+    {
+        try
+        {
+            System.out.println("Usage: RateLimitTest [num threads] [num iterations]");
+            if (args.length > 0)
+                numThreads = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                numIterations = Integer.parseInt(args[1]);
+
+            System.out.println(numThreads + " threads, server taking " + processingMs + "ms per request and dropping requests " +
+                    "over " + maxConcurrent + " at once");
+
+            run("No rate limit", new EzSignClient("127.0.0.1", 0));
+            run("500/sec, wait up to 5s", new EzSignClient("127.0.0.1", 0).useRateLimit(500, 10, 5000));
+
+            checkRejected(0);
+            checkRejected(-10);
+            checkRejected(Double.NaN);
+            checkChannelLimit();
+            checkCancelled();
+            checkAsync();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private static void run(String name, final EzSignClient client) throws Exception
+    {
+        LocalEzSignServer server = new LocalEzSignServer(processingMs).useMaxConcurrent(maxConcurrent).start();
+        client.setPort(server.getPort());
+
+        final AtomicInteger succeeded = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        long startTime = System.nanoTime();
+        for (int t = 0; t < numThreads; t++)
+        {
+            new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < numIterations; i++)
+                    {
+                        try
+                        {
+                            client.signData(channel, "Data to sign".getBytes(), false);
+                            succeeded.incrementAndGet();
+                        }
+                        catch (Exception e)
+                        {
+                            // Counted as not succeeded
+                        }
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        double secs = (System.nanoTime() - startTime) / 1e9;
+
+        System.out.println(String.format("%-24s %5d of %5d OK  %6.1f OK/sec  dropped by server %6d  in %.1fs", name,
+                succeeded.get(), numThreads * numIterations, succeeded.get() / secs, server.getNumRejected(), secs));
+        if (client.getRateLimiter() != null)
+        {
+            KTokenBucket limit = client.getRateLimiter().getGlobalLimit();
+            System.out.println(String.format("  Admitted %d (%d waited), rejected %d", limit.getAdmitted(), limit.getDelayed(),
+                    limit.getRejected()));
+        }
+
+        client.close();
+        server.stop();
+    }
+
+    private static void checkChannelLimit() throws Exception
+    {
+        LocalEzSignServer server = new LocalEzSignServer(0).start();
+        EzSignClient client = new EzSignClient("127.0.0.1", server.getPort()).useRateLimit(bulkChannel, 50, 5, 0);
+
+        int bulkOk = 0;
+        int bulkRejected = 0;
+        int otherOk = 0;
+        for (int i = 0; i < 100; i++)
+        {
+            try
+            {
+                client.signData(bulkChannel, "Data to sign".getBytes(), false);
+                bulkOk++;
+            }
+            catch (KRateLimitedException e)
+            {
+                bulkRejected++;
+            }
+            client.signData(channel, "Data to sign".getBytes(), false);
+            otherOk++;
+        }
+        System.out.println(String.format("Fail fast limit of 50/sec on %s: %d OK, %d rejected.  %s: %d of 100 OK", bulkChannel,
+                bulkOk, bulkRejected, channel, otherOk));
+
+        client.close();
+        server.stop();
+    }
+
+    private static void checkCancelled() throws Exception
+    {
+        LocalEzSignServer server = new LocalEzSignServer(0).start();
+        EzSignClient client = new EzSignClient("127.0.0.1", server.getPort()).useRateLimit(10, 1, 5000)
+                .useRateLimit(bulkChannel, 10, 1, 5000);
+
+        // Takes the only token, so the next call waits 100ms for its turn and is cancelled after 20ms
+        client.signData(bulkChannel, "Data to sign".getBytes(), false);
+        final KDeadline deadline = KDeadline.enter(0);
+        new Thread()
+        {
+            public void run()
+            {
+                try
+                {
+                    Thread.sleep(20);
+                }
+                catch (InterruptedException e)
+                {
+                    return;
+                }
+                deadline.cancel();
+            }
+        }.start();
+        boolean cancelled = false;
+        try
+        {
+            client.signData(bulkChannel, "Data to sign".getBytes(), false);
+        }
+        catch (KCallCancelledException e)
+        {
+            cancelled = true;
+        }
+        finally
+        {
+            deadline.close();
+        }
+
+        // The cancelled call's tokens were given back, so the next waits out the first call's 100ms, not 200ms
+        long startTime = System.nanoTime();
+        client.signData(bulkChannel, "Data to sign".getBytes(), false);
+        long waitMs = (System.nanoTime() - startTime) / 1000000;
+
+        KTokenBucket globalLimit = client.getRateLimiter().getGlobalLimit();
+        KTokenBucket channelLimit = client.getRateLimiter().getChannelLimit(bulkChannel);
+        boolean ok = cancelled && waitMs < 150 && globalLimit.getAdmitted() == 2 && globalLimit.getDelayed() == 1 &&
+                channelLimit.getAdmitted() == 2 && channelLimit.getDelayed() == 1;
+        System.out.println(String.format("Cancelled while waiting at 10/sec: next call waited %dms, admitted %d (%d waited): %s",
+                waitMs, globalLimit.getAdmitted(), globalLimit.getDelayed(), ok ? "OK" : "FAILED"));
+
+        client.close();
+        server.stop();
+    }
+
+    private static void checkAsync() throws Exception
+    {
+        LocalEzSignServer server = new LocalEzSignServer(0).start();
+        EzSignClient client = new EzSignClient("127.0.0.1", server.getPort()).useRateLimit(200, 10, 5000);
+
+        long startTime = System.nanoTime();
+        List<CompletableFuture<byte[]>> futures = new ArrayList<CompletableFuture<byte[]>>();
+        for (int i = 0; i < 110; i++)
+            futures.add(client.signDataAsync(channel, "Data to sign".getBytes(), false));
+        long submitMs = (System.nanoTime() - startTime) / 1000000;
+
+        int failed = 0;
+        for (CompletableFuture<byte[]> future : futures)
+        {
+            try
+            {
+                future.get();
+            }
+            catch (ExecutionException e)
+            {
+                failed++;
+            }
+        }
+        System.out.println(String.format("Async at 200/sec: 110 calls submitted in %dms, completed in %dms (expected ~500ms), %d failed",
+                submitMs, (System.nanoTime() - startTime) / 1000000, failed));
+
+        client.close();
+        server.stop();
+    }
+
+    private static void checkRejected(double requestsPerSec)
+    {
+        try
+        {
+            new EzSignClient("127.0.0.1", 0).useRateLimit(requestsPerSec, 10, 0);
+            System.out.println("Rate " + requestsPerSec + "/sec: FAILED, not rejected");
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.out.println("Rate " + requestsPerSec + "/sec rejected: OK");
+        }
+    }
+}
@@ -0,0 +1,231 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.KEzSignException;
+import com.krestfield.ezsign.msg.KBase64;
+import com.krestfield.ezsign.msg.KBinaryMessage;
+import com.krestfield.ezsign.msg.KEncipherRespMsg;
+import com.krestfield.ezsign.msg.KEzSignMsg;
+import com.krestfield.ezsign.msg.KEzSignRespMsg;
+import com.krestfield.ezsign.msg.KSignDataRespMsg;
+
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.security.SecureRandom;
+import java.util.Arrays;
+
+/**
+ * RespParserTest
+ *
+ * Checks the text format response parser finds the same message ID, response code, error message and data
+ * items as splitting the response as a string did, including empty and trailing empty items, non-ASCII error
+ * messages and responses that are not valid, and that the binary format still parses.  Then reports the bytes
+ * allocated and the time to read a 1MB signature and decrypt result both ways
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class RespParserTest
+{
+    private static int numIterations = 50;
+
+    public static void main(String args[])
+    {
+        try
+        {
+            System.out.println("Usage: RespParserTest [num iterations]");
+            if (args.length > 0)
+                numIterations = Integer.parseInt(args[0]);
+
+            checkParsing();
+            checkBinary();
+
+            byte[] data = new byte[1024 * 1024];
+            new SecureRandom().nextBytes(data);
+            byte[] signResponse = ("NGIS~0~" + KBase64.ToBase64String(data)).getBytes(StandardCharsets.UTF_8);
+            byte[] decryptResponse = ("ICNE~0~" + KBase64.ToBase64String(data)).getBytes(StandardCharsets.UTF_8);
+            System.out.println("Reading a 1MB signature and decrypt result");
+            measure("Split, signature", signResponse, true, false);
+            measure("Parser, signature", signResponse, false, false);
+            measure("Split, decrypt", decryptResponse, true, true);
+            measure("Parser, decrypt", decryptResponse, false, true);
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private static void checkParsing() throws Exception
+    {
+        byte[] data = new byte[100];
+        new SecureRandom().nextBytes(data);
+        String b64 = KBase64.ToBase64String(data);
+
+        String[] responses = {
+            "NGIS~0~" + b64,
+            "NGIS~0~" + b64 + "~",
+            "NGIS~0~" + b64 + "~~~",
+            "NGIS~0~~" + b64,
+            "NGIS~0~" + b64 + "~~" + b64 + "~1",
+            "NGIS~0",
+            "NGIS~0~",
+            "IREV~3~Signature not valid",
+            "IREV~3~Signature not valid~",
+            "IREV~3~Sïgnâture nöt välid € ~" + b64,
+            "IREV~3",
+            "IREV~3~~" + b64,
+            "~0~" + b64,
+            "NGIS~~" + b64,
+            "NGIS~x~" + b64,
+            "NGIS",
+            "NGIS~",
+            "~~~",
+            "~"
+        };
+
+        int failed = 0;
+        for (String response : responses)
+        {
+            String parsed = parse(response);
+            String expected = parseAsString(response);
+            if (!parsed.equals(expected))
+            {
+                failed++;
+                System.out.println("Parsing differs for " + response + ": " + parsed + " != " + expected);
+            }
+        }
+
+        System.out.println("Parser matches splitting the string: " + responses.length + " responses, " + failed + " failed");
+    }
+
+    private static void checkBinary() throws Exception
+    {
+        byte[] data = new byte[100];
+        new SecureRandom().nextBytes(data);
+        KBinaryMessage binary = new KBinaryMessage("NGIS",
+                new byte[] { KBinaryMessage.TYPE_TEXT, KBinaryMessage.TYPE_BYTES, KBinaryMessage.TYPE_TEXT },
+                new byte[][] { "0".getBytes(StandardCharsets.UTF_8), data, KBase64.encode(data) });
+        TestRespMsg msg = new TestRespMsg(binary.encode(), true);
+
+        KSignDataRespMsg sign = new KSignDataRespMsg(binary.encode(), true);
+        boolean ok = msg.getNumItems() == 2 && Arrays.equals(msg.getItemBytes(0), data) &&
+                Arrays.equals(msg.getItemBytes(1), data) && msg.getItem(0).equals(KBase64.ToBase64String(data)) &&
+                Arrays.equals(sign.getSignature(), data) && sign.getB64Signature().equals(KBase64.ToBase64String(data));
+
+        System.out.println("Binary format: " + (ok ? "ok" : "FAILED"));
+    }
+
+    /**
+     * The response as read by the parser, as a string to compare
+     */
+    private static String parse(String response)
+    {
+        try
+        {
+            TestRespMsg msg = new TestRespMsg(response.getBytes(StandardCharsets.UTF_8), false);
+            String parsed = msg.getMessageId() + "|" + msg.getResponseCode() + "|" + msg.getErrorMessage();
+            for (int i = 0; i < msg.getNumItems(); i++)
+                parsed += "|" + msg.getItem(i) + "=" + Arrays.toString(msg.getItemBytes(i));
+            return parsed;
+        }
+        catch (KEzSignException e)
+        {
+            return "not valid";
+        }
+    }
+
+    /**
+     * The response split as a string, as it was before the parser
+     */
+    private static String parseAsString(String response)
+    {
+        String[] components = response.split(KEzSignMsg.DELIMITER);
+        if (components.length < 2)
+            return "not valid";
+
+        int responseCode;
+        try
+        {
+            responseCode = Integer.parseInt(components[1]);
+        }
+        catch (NumberFormatException e)
+        {
+            return "not valid";
+        }
+
+        int index = 2;
+        String errorMsg = null;
+        if (responseCode != 0 && index < components.length)
+            errorMsg = components[index++];
+
+        String parsed = components[0] + "|" + responseCode + "|" + errorMsg;
+        for (; index < components.length; index++)
+            parsed += "|" + components[index] + "=" + Arrays.toString(KBase64.FromBase64String(components[index]));
+        return parsed;
+    }
+
+    private static void measure(String name, byte[] response, boolean asString, boolean decrypt) throws Exception
+    {
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up
+        for (int i = 0; i < 5; i++)
+            read(response, asString, decrypt);
+
+        long allocatedAtStart = threads.getThreadAllocatedBytes(threadId);
+        long startTime = System.nanoTime();
+        long bytes = 0;
+        for (int i = 0; i < numIterations; i++)
+            bytes += read(response, asString, decrypt).length;
+        long time = System.nanoTime() - startTime;
+        long allocated = threads.getThreadAllocatedBytes(threadId) - allocatedAtStart;
+
+        System.out.println(String.format("  %-20s %8d bytes returned  %10d bytes allocated (%4.1fx)  %6d micro seconds",
+                name, bytes / numIterations, allocated / numIterations, (double) allocated / bytes, time / 1000 / numIterations));
+    }
+
+    /**
+     * Reads the data from a response as EzSignClient does, or as a string split into items as it was
+     */
+    private static byte[] read(byte[] response, boolean asString, boolean decrypt) throws KEzSignException
+    {
+        if (asString)
+            return KBase64.FromBase64String(new String(response).split(KEzSignMsg.DELIMITER)[2]);
+
+        if (decrypt)
+            return new KEncipherRespMsg(response, false).getData();
+
+        return new KSignDataRespMsg(response, false).getSignature();
+    }
+
+    /**
+     * Exposes the data items of a response
+     */
+    private static class TestRespMsg extends KEzSignRespMsg
+    {
+        TestRespMsg(byte[] message, boolean binary) throws KEzSignException
+        {
+            super(message, binary);
+        }
+
+        String getMessageId()
+        {
+            return m_returnedMsgId;
+        }
+
+        int getNumItems()
+        {
+            return m_numDataItems;
+        }
+
+        String getItem(int index)
+        {
+            return getDataItem(index);
+        }
+
+        byte[] getItemBytes(int index)
+        {
+            return getDataItemBytes(index);
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.net.KRetryBudget;
+import com.krestfield.ezsign.net.KRetryPolicy;
+
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * RetryTest
+ *
+ * Many threads sign at once against a server that can only process a few requests at a time and drops the
+ * rest, as an overloaded server would.  Runs with fixed short waits between retries and no budget (the
+ * previous behaviour), with exponential backoff with jitter only and then with the default backoff and retry
+ * budget, and reports the calls that succeeded, the load the retries put on the server and the retries and
+ * give ups
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class RetryTest
+{
+    private static int numThreads = 200;
+    private static int numIterations = 20;
+    private static int processingMs = 10;
+    private static int maxConcurrent = 8;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        try
+        {
+            System.out.println("Usage: RetryTest [num threads] [num iterations]");
+            if (args.length > 0)
+                numThreads = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                numIterations = Integer.parseInt(args[1]);
+
+            System.out.println(numThreads + " threads, server taking " + processingMs + "ms per request and dropping requests " +
+                    "over " + maxConcurrent + " at once");
+
+            // The previous behaviour: 5 attempts, 5ms apart
+            KRetryPolicy fixedWaits = new KRetryPolicy()
+            {
+                public long getBackoffMs(int attempt)
+                {
+                    return (attempt < 5) ? 5 : -1;
+                }
+            };
+            run("Fixed 5ms waits", new EzSignClient("127.0.0.1", 0).useRetryPolicy(fixedWaits).useRetryBudget(1e6, 1000000));
+            run("Backoff with jitter, no budget", new EzSignClient("127.0.0.1", 0).useRetryBudget(1e6, 1000000));
+            run("Backoff with jitter + budget", new EzSignClient("127.0.0.1", 0));
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+    }
+
+    private static void run(String name, final EzSignClient client) throws Exception
+    {
+        LocalEzSignServer server = new LocalEzSignServer(processingMs).useMaxConcurrent(maxConcurrent).start();
+        client.setPort(server.getPort());
+
+        final long[] latencies = new long[numThreads * numIterations];
+        final AtomicInteger succeeded = new AtomicInteger();
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        long startTime = System.nanoTime();
+        for (int t = 0; t < numThreads; t++)
+        {
+            final int threadNum = t;
+            new Thread()
+            {
+                public void run()
+                {
+                    for (int i = 0; i < numIterations; i++)
+                    {
+                        long callStart = System.nanoTime();
+                        try
+                        {
+                            client.signData(channel, "Data to sign".getBytes(), false);
+                            succeeded.incrementAndGet();
+                        }
+                        catch (Exception e)
+                        {
+                            // Counted as not succeeded
+                        }
+                        latencies[threadNum * numIterations + i] = System.nanoTime() - callStart;
+                    }
+                    done.countDown();
+                }
+            }.start();
+        }
+        done.await();
+        double secs = (System.nanoTime() - startTime) / 1e9;
+
+        long attempts = server.getNumRequests() + server.getNumRejected();
+        Arrays.sort(latencies);
+        System.out.println(String.format("%-30s %5d of %5d OK  %6.1f OK/sec  server attempts per call %5.2f  dropped %6d  p99 %7.2fms",
+                name, succeeded.get(), latencies.length, succeeded.get() / secs, (double) attempts / latencies.length,
+                server.getNumRejected(), latencies[(int) (latencies.length * 0.99)] / 1e6));
+
+        KRetryBudget retryBudget = client.getRetryBudget();
+        System.out.println(String.format("  Retries %d, give ups %d (%d over budget)", retryBudget.getRetries(),
+                retryBudget.getGiveUps(), retryBudget.getRetriesOverBudget()));
+
+        client.close();
+        server.stop();
+    }
+}
@@ -0,0 +1,139 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.net.KSocketPool;
+
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * SocketPoolTest
+ *
+ * Sends messages on pre-connected sockets against a LocalEzSignServer and checks the pool's hit and miss
+ * counts: paced messages should find a socket ready, a burst of takes larger than the pool should miss, and
+ * sockets left idle past the expiry should be closed and replaced.  Also checks a pool size or idle expiry of 0 is
+ * rejected, and reports the time per message with and without the pool
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class SocketPoolTest
+{
+    private static int numIterations = 200;
+    private static int poolSize = 4;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        LocalEzSignServer server = null;
+        try
+        {
+            System.out.println("Usage: SocketPoolTest [num iterations]");
+            if (args.length > 0)
+                numIterations = Integer.parseInt(args[0]);
+
+            checkRejected(0, 5000);
+            checkRejected(4, 0);
+            checkRejected(-1, 5000);
+
+            server = new LocalEzSignServer(0).start();
+            EzSignClient noPoolClient = new EzSignClient("127.0.0.1", server.getPort());
+            EzSignClient poolClient = new EzSignClient("127.0.0.1", server.getPort()).usePreConnectedSockets(poolSize, 5000);
+
+            // The first message starts the pool, so misses
+            send(poolClient);
+            Thread.sleep(200);
+            KSocketPool pool = poolClient.getSocketPool();
+            System.out.println("Pool filled to " + pool.getIdleCount() + " of " + poolSize + ": " +
+                    (pool.getIdleCount() == poolSize ? "OK" : "FAILED"));
+
+            // Paced messages leave the filler time to replace each socket taken
+            long hitsBefore = pool.getHits();
+            long missesBefore = pool.getMisses();
+            long startTime = System.nanoTime();
+            for (int i = 0; i < numIterations; i++)
+            {
+                send(poolClient);
+                Thread.sleep(2);
+            }
+            long poolTime = System.nanoTime() - startTime;
+            long hits = pool.getHits() - hitsBefore;
+            long misses = pool.getMisses() - missesBefore;
+            System.out.println("Paced: " + hits + " hits, " + misses + " misses: " +
+                    (hits >= numIterations * 9 / 10 ? "OK" : "FAILED"));
+
+            startTime = System.nanoTime();
+            for (int i = 0; i < numIterations; i++)
+            {
+                send(noPoolClient);
+                Thread.sleep(2);
+            }
+            long noPoolTime = System.nanoTime() - startTime;
+            System.out.println("Per message (including 2ms pause): no pool " + noPoolTime / 1000 / numIterations +
+                    " micro seconds, pool " + poolTime / 1000 / numIterations + " micro seconds");
+
+            // Sockets taken with no pause empty the pool faster than it is refilled.  Sends one at a time are
+            // slower than the background connects, so the pool is taken from directly
+            Thread.sleep(200);
+            hitsBefore = pool.getHits();
+            missesBefore = pool.getMisses();
+            List<Socket> taken = new ArrayList<Socket>();
+            for (int i = 0; i < poolSize * 4; i++)
+            {
+                Socket socket = pool.take();
+                if (socket != null)
+                    taken.add(socket);
+            }
+            for (Socket socket : taken)
+                socket.close();
+            hits = pool.getHits() - hitsBefore;
+            misses = pool.getMisses() - missesBefore;
+            System.out.println("Burst of " + (poolSize * 4) + " taken: " + hits + " hits, " + misses + " misses: " +
+                    (hits >= poolSize && misses > 0 ? "OK" : "FAILED"));
+            poolClient.close();
+
+            // Sockets idle past the expiry are closed and replaced, without the filler spinning
+            EzSignClient expiryClient = new EzSignClient("127.0.0.1", server.getPort()).usePreConnectedSockets(poolSize, 100);
+            send(expiryClient);
+            long connectionsBefore = server.getNumConnections();
+            Thread.sleep(1000);
+            KSocketPool expiryPool = expiryClient.getSocketPool();
+            long connections = server.getNumConnections() - connectionsBefore;
+            boolean ok = expiryPool.getExpired() >= poolSize && expiryPool.getIdleCount() == poolSize &&
+                    connections <= poolSize * 12;
+            System.out.println("Idle expiry 100ms over 1s: " + expiryPool.getExpired() + " expired, " + connections +
+                    " connections, " + expiryPool.getIdleCount() + " idle: " + (ok ? "OK" : "FAILED"));
+            expiryClient.close();
+            noPoolClient.close();
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            if (server != null)
+                server.stop();
+        }
+    }
+
+    private static void send(EzSignClient client) throws Exception
+    {
+        byte[] randBytes = client.generateRandomBytes(channel, 32);
+        if (randBytes.length != 32)
+            throw new Exception("Expected 32 random bytes but received " + randBytes.length);
+    }
+
+    private static void checkRejected(int size, int idleExpiryMs)
+    {
+        try
+        {
+            new EzSignClient("127.0.0.1", 0).usePreConnectedSockets(size, idleExpiryMs);
+            System.out.println("Pool size " + size + ", idle expiry " + idleExpiryMs + "ms: FAILED, not rejected");
+        }
+        catch (IllegalArgumentException e)
+        {
+            System.out.println("Pool size " + size + ", idle expiry " + idleExpiryMs + "ms rejected: OK");
+        }
+    }
+}
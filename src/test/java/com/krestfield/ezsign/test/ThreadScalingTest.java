@@ -0,0 +1,118 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * ThreadScalingTest
+ *
+ * Shares ONE EzSignClient between an increasing number of threads and reports the throughput at
+ * each step.  As requests on the same client run in parallel, throughput should rise with the
+ * thread count until the server (or the network) becomes the limit.
+ *
+ * Runs against a LocalEzSignServer unless a host and port are provided
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class ThreadScalingTest
+{
+    private static int[] threadCounts = {1, 2, 4, 8, 16, 32, 64};
+    private static int durationMs = 2000;
+    private static int serverProcessingMs = 5;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        LocalEzSignServer server = null;
+        try
+        {
+            System.out.println("Usage: ThreadScalingTest [host] [port] [channel]");
+            System.out.println("Thread Scaling Test...");
+
+            EzSignClient client;
+            if (args.length > 1)
+            {
+                client = new EzSignClient(args[0], Integer.parseInt(args[1]));
+                if (args.length > 2)
+                    channel = args[2];
+            }
+            else
+            {
+                server = new LocalEzSignServer(serverProcessingMs).start();
+                client = new EzSignClient("127.0.0.1", server.getPort());
+                System.out.println("Using local server with " + serverProcessingMs + "ms processing time");
+            }
+
+            double singleThreadTps = 0;
+            for (int numThreads : threadCounts)
+            {
+                double tps = run(client, numThreads);
+                if (numThreads == 1)
+                    singleThreadTps = tps;
+
+                System.out.println(String.format("Threads: %3d  Signatures/sec: %8.1f  Scaling: %5.2fx",
+                        numThreads, tps, tps / singleThreadTps));
+            }
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            if (server != null)
+                server.stop();
+        }
+    }
+
+    /**
+     * Runs numThreads threads signing on the shared client for durationMs
+     *
+     * @param client The shared client
+     * @param numThreads The number of threads
+     * @return The number of signatures per second
+     * @throws Exception If there is an error
+     */
+    private static double run(final EzSignClient client, int numThreads) throws Exception
+    {
+        final AtomicLong numGood = new AtomicLong();
+        final AtomicLong numBad = new AtomicLong();
+        final CountDownLatch done = new CountDownLatch(numThreads);
+        final long endTime = System.currentTimeMillis() + durationMs;
+        final byte[] dataToSign = "Hello".getBytes();
+
+        long startTime = System.nanoTime();
+        for (int i = 0; i < numThreads; i++)
+        {
+            Thread t = new Thread(new Runnable()
+            {
+                public void run()
+                {
+                    while (System.currentTimeMillis() < endTime)
+                    {
+                        try
+                        {
+                            client.signData(channel, dataToSign, false);
+                            numGood.incrementAndGet();
+                        }
+                        catch (Exception e)
+                        {
+                            numBad.incrementAndGet();
+                        }
+                    }
+                    done.countDown();
+                }
+            }, "Thread " + i);
+            t.start();
+        }
+        done.await();
+        long duration = System.nanoTime() - startTime;
+
+        if (numBad.get() > 0)
+            System.out.println("WARNING: THERE WERE " + numBad.get() + " FAILURES");
+
+        return numGood.get() / (duration / 1000000000.0);
+    }
+}
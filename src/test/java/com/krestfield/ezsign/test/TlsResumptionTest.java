@@ -0,0 +1,62 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.net.KTlsContext;
+
+/**
+ * TlsResumptionTest
+ *
+ * Signs repeatedly over TLS and reports how many handshakes were full and how many resumed a cached session.
+ * After the first connection nearly all handshakes should be resumed.
+ *
+ * Runs against a LocalEzSignServer using the keystore provided, which is also used as the client trust store
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class TlsResumptionTest
+{
+    private static int numIterations = 500;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        LocalEzSignServer server = null;
+        try
+        {
+            System.out.println("Usage: TlsResumptionTest [server PKCS12 keystore] [password] [num iterations]");
+            if (args.length < 2)
+                return;
+
+            if (args.length > 2)
+                numIterations = Integer.parseInt(args[2]);
+
+            // Trust the server's own certificate
+            System.setProperty("javax.net.ssl.trustStore", args[0]);
+            System.setProperty("javax.net.ssl.trustStorePassword", args[1]);
+            System.setProperty("javax.net.ssl.trustStoreType", "PKCS12");
+
+            server = new LocalEzSignServer(0).useTls(args[0], args[1]).start();
+            EzSignClient client = new EzSignClient("localhost", server.getPort()).useTls();
+
+            long startTime = System.nanoTime();
+            for (int i = 0; i < numIterations; i++)
+                client.signData(channel, "Hello".getBytes(), false);
+            long duration = System.nanoTime() - startTime;
+
+            KTlsContext tls = client.getTlsContext();
+            System.out.println("Full Handshakes: " + tls.getFullHandshakes());
+            System.out.println("Resumed Handshakes: " + tls.getResumedHandshakes());
+            System.out.println(String.format("Resumption Rate: %.1f%%", tls.getResumptionRate() * 100));
+            System.out.println("Time Taken Per Transaction: " + (duration / 1000 / numIterations) + " micro seconds");
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            if (server != null)
+                server.stop();
+        }
+    }
+}
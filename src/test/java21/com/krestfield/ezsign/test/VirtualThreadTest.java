@@ -0,0 +1,144 @@
+package com.krestfield.ezsign.test;
+
+import com.krestfield.ezsign.EzSignClient;
+import com.krestfield.ezsign.utils.KThreads;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * VirtualThreadTest
+ *
+ * Java 21 only.  Starts a large number of virtual threads at once, each calling the synchronous signData,
+ * over each transport against a server that takes a while to respond.  If the client pinned carrier threads
+ * while waiting for the server the calls would be serialised over the few carriers and take many times longer.
+ * Then the same number of asynchronous calls with useVirtualThreads over connection-per-message.
+ *
+ * Run against the jar (mvn package) so the Java 21 classes in META-INF/versions/21 are loaded, and
+ * with -Djdk.tracePinnedThreads=short to report any pinning
+ *
+ * Copyright (C) 2024 Krestfield Ltd - All Rights Reserved
+ */
+public class VirtualThreadTest
+{
+    private static int numCallers = 10000;
+    private static int serverProcessingMs = 100;
+    private static String channel = "TEST";
+
+    public static void main(String args[])
+    {
+        LocalEzSignServer server = null;
+        try
+        {
+            System.out.println("Usage: VirtualThreadTest [num callers] [server processing ms]");
+            if (args.length > 0)
+                numCallers = Integer.parseInt(args[0]);
+            if (args.length > 1)
+                serverProcessingMs = Integer.parseInt(args[1]);
+
+            System.out.println("Java 21 classes loaded: " + KThreads.isVirtualThreadsSupported() +
+                    "  Carrier threads: " + Runtime.getRuntime().availableProcessors());
+
+            // The server also runs on virtual threads so it can have every request in progress at once
+            server = new LocalEzSignServer(serverProcessingMs).useKeepAlive().useMultiplexing()
+                    .useWorkers(Executors.newVirtualThreadPerTaskExecutor()).start();
+
+            run("Keep-alive (500 connections)", newClient(server).useKeepAlive(500, 30000));
+            run("Multiplexed (4 connections)", newClient(server).useMultiplexing(4));
+            run("NIO (2 I/O threads)", newClient(server).useNio(2));
+            runAsync("Async, virtual threads (connection per message)", newClient(server).useVirtualThreads());
+        }
+        catch (Exception e)
+        {
+            e.printStackTrace();
+        }
+        finally
+        {
+            if (server != null)
+                server.stop();
+        }
+    }
+
+    private static EzSignClient newClient(LocalEzSignServer server)
+    {
+        // Long timeouts as callers queue for connections
+        return new EzSignClient("127.0.0.1", server.getPort(), 60000, 60000);
+    }
+
+    /**
+     * Starts one virtual thread per caller, each making one synchronous call
+     *
+     * @param name The name of the run
+     * @param client The client
+     * @throws Exception If there is an error
+     */
+    private static void run(String name, EzSignClient client) throws Exception
+    {
+        // Warm up
+        client.signData(channel, "Warm up".getBytes(), false);
+
+        AtomicInteger failed = new AtomicInteger();
+        long startTime = System.nanoTime();
+        try (ExecutorService callers = Executors.newVirtualThreadPerTaskExecutor())
+        {
+            for (int i = 0; i < numCallers; i++)
+            {
+                callers.execute(() ->
+                {
+                    try
+                    {
+                        client.signData(channel, "Data to sign".getBytes(), false);
+                    }
+                    catch (Exception e)
+                    {
+                        failed.incrementAndGet();
+                    }
+                });
+            }
+        }
+        report(name, System.nanoTime() - startTime, failed.get());
+        client.close();
+    }
+
+    /**
+     * Makes all the asynchronous calls at once
+     *
+     * @param name The name of the run
+     * @param client The client
+     * @throws Exception If there is an error
+     */
+    private static void runAsync(String name, EzSignClient client) throws Exception
+    {
+        System.out.println("Using virtual threads: " + client.isUsingVirtualThreads());
+
+        int failed = 0;
+        long startTime = System.nanoTime();
+        List<CompletableFuture<byte[]>> results = new ArrayList<>();
+        for (int i = 0; i < numCallers; i++)
+            results.add(client.signDataAsync(channel, "Data to sign".getBytes(), false));
+        for (CompletableFuture<byte[]> result : results)
+        {
+            try
+            {
+                result.get();
+            }
+            catch (ExecutionException e)
+            {
+                failed++;
+            }
+        }
+        report(name, System.nanoTime() - startTime, failed);
+        client.close();
+    }
+
+    private static void report(String name, long timeTakenNs, int failed)
+    {
+        System.out.println(String.format("%-50s %d calls in %6dms  (%8.1f calls/sec)  Failed: %d", name, numCallers,
+                timeTakenNs / 1000000, numCallers * 1e9 / timeTakenNs, failed));
+    }
+}